@@ -12,18 +12,24 @@ import edu.berkeley.cs186.database.concurrency.*;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.index.BPlusTree;
+import edu.berkeley.cs186.database.index.BPlusTreeException;
 import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
+import edu.berkeley.cs186.database.index.IndexKey;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
 import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
 import edu.berkeley.cs186.database.memory.BufferManager;
 import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
 import edu.berkeley.cs186.database.memory.EvictionPolicy;
+import edu.berkeley.cs186.database.memory.VersionStore;
+import edu.berkeley.cs186.database.query.IndexEntryScanOperator;
+import edu.berkeley.cs186.database.query.QueryOperator;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.query.SequentialScanOperator;
 import edu.berkeley.cs186.database.query.SortOperator;
 import edu.berkeley.cs186.database.query.expr.Expression;
 import edu.berkeley.cs186.database.recovery.ARIESRecoveryManager;
 import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import edu.berkeley.cs186.database.recovery.LogManager;
 import edu.berkeley.cs186.database.recovery.RecoveryManager;
 import edu.berkeley.cs186.database.table.*;
 import edu.berkeley.cs186.database.table.stats.TableStats;
@@ -37,6 +43,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Phaser;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 
 /**
@@ -79,6 +86,8 @@ public class Database implements AutoCloseable {
     private static final String TABLE_INFO_TABLE_NAME = METADATA_TABLE_PREFIX + "tables";
     private static final String INDEX_INFO_TABLE_NAME = METADATA_TABLE_PREFIX + "indices";
     private static final int DEFAULT_BUFFER_SIZE = 262144; // default of 1G
+    // time between the checkpoints taken in the background, in milliseconds
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 30000;
     // effective page size - table metadata size
     private static final int MAX_SCHEMA_SIZE = 4006;
 
@@ -100,6 +109,13 @@ public class Database implements AutoCloseable {
 
     // number of pages of memory to use for joins, etc.
     private int workMem = 1024; // default of 4M
+    // lock wait timeout of new transactions, in milliseconds (negative for none)
+    private volatile long lockWaitTimeout = -1;
+    // escalation threshold of table lock contexts (see setTableLockEscalation)
+    private volatile int tableEscalationPageLocks = 0;
+    private volatile double tableEscalationPageFraction = 0;
+    // fill factor of the leaves of bulk loaded indices (see setIndexFillFactor)
+    private volatile float indexFillFactor = 0.9f;
     // number of pages of memory available total
     private int numMemoryPages;
     // active transactions
@@ -173,21 +189,83 @@ public class Database implements AutoCloseable {
      */
     public Database(String fileDir, int numMemoryPages, LockManager lockManager,
                     EvictionPolicy policy, boolean useRecoveryManager) {
+        this(fileDir, numMemoryPages, lockManager, () -> policy, 1, useRecoveryManager);
+    }
+
+    /**
+     * Creates a new database whose buffer cache is split into several stripes, each
+     * with its own eviction policy and lock (see BufferManager).
+     *
+     * @param fileDir the directory to put the table files in
+     * @param numMemoryPages the number of pages of memory in the buffer cache
+     * @param lockManager the lock manager
+     * @param policyFactory creates the eviction policy of each buffer cache stripe
+     * @param numBufferStripes number of stripes to split the buffer cache into
+     * @param useRecoveryManager flag to enable or disable the recovery manager (ARIES)
+     */
+    public Database(String fileDir, int numMemoryPages, LockManager lockManager,
+                    Supplier<EvictionPolicy> policyFactory, int numBufferStripes,
+                    boolean useRecoveryManager) {
+        this(fileDir, numMemoryPages, lockManager, policyFactory, numBufferStripes,
+             useRecoveryManager, LogManager.DEFAULT_LOG_PAGES);
+    }
+
+    /**
+     * Creates a new database whose log (with the recovery manager enabled) is
+     * stored in numLogPages page slots, which bounds the size of the log. The
+     * number of slots must be the same every time the database is opened.
+     *
+     * @param fileDir the directory to put the table files in
+     * @param numMemoryPages the number of pages of memory in the buffer cache
+     * @param lockManager the lock manager
+     * @param policyFactory creates the eviction policy of each buffer cache stripe
+     * @param numBufferStripes number of stripes to split the buffer cache into
+     * @param useRecoveryManager flag to enable or disable the recovery manager (ARIES)
+     * @param numLogPages number of page slots of the log
+     */
+    public Database(String fileDir, int numMemoryPages, LockManager lockManager,
+                    Supplier<EvictionPolicy> policyFactory, int numBufferStripes,
+                    boolean useRecoveryManager, int numLogPages) {
+        this(fileDir, numMemoryPages, lockManager, policyFactory, numBufferStripes,
+             useRecoveryManager, numLogPages, 1);
+    }
+
+    /**
+     * Creates a new database whose restart recovery (with the recovery manager
+     * enabled) redoes the log with redoThreads threads. With one thread, the
+     * default, the log is redone serially.
+     *
+     * @param fileDir the directory to put the table files in
+     * @param numMemoryPages the number of pages of memory in the buffer cache
+     * @param lockManager the lock manager
+     * @param policyFactory creates the eviction policy of each buffer cache stripe
+     * @param numBufferStripes number of stripes to split the buffer cache into
+     * @param useRecoveryManager flag to enable or disable the recovery manager (ARIES)
+     * @param numLogPages number of page slots of the log
+     * @param redoThreads number of threads of the redo pass of restart recovery
+     */
+    public Database(String fileDir, int numMemoryPages, LockManager lockManager,
+                    Supplier<EvictionPolicy> policyFactory, int numBufferStripes,
+                    boolean useRecoveryManager, int numLogPages, int redoThreads) {
         boolean initialized = setupDirectory(fileDir);
 
         numTransactions = 0;
         this.numMemoryPages = numMemoryPages;
         this.lockManager = lockManager;
 
+        ARIESRecoveryManager ariesRecoveryManager = null;
         if (useRecoveryManager) {
-            recoveryManager = new ARIESRecoveryManager(this::beginRecoveryTransaction);
+            ariesRecoveryManager = new ARIESRecoveryManager(this::beginRecoveryTransaction);
+            ariesRecoveryManager.setRedoThreads(redoThreads);
+            ariesRecoveryManager.setNumLogPages(numLogPages);
+            recoveryManager = ariesRecoveryManager;
         } else {
             recoveryManager = new DummyRecoveryManager();
         }
 
         diskSpaceManager = new DiskSpaceManagerImpl(fileDir, recoveryManager);
         bufferManager = new BufferManager(diskSpaceManager, recoveryManager, numMemoryPages,
-                                              policy);
+                                              numBufferStripes, policyFactory);
 
         // create log partition
         if (!initialized) diskSpaceManager.allocPart(0);
@@ -196,6 +274,10 @@ public class Database implements AutoCloseable {
         recoveryManager.setManagers(diskSpaceManager, bufferManager);
         if (!initialized) recoveryManager.initialize();
         recoveryManager.restart();
+        if (ariesRecoveryManager != null) {
+            // keeps the log truncated, and restart short
+            ariesRecoveryManager.startCheckpointer(CHECKPOINT_INTERVAL_MILLIS);
+        }
 
         Transaction initTransaction = beginTransaction();
 
@@ -323,6 +405,59 @@ public class Database implements AutoCloseable {
         this.workMem = workMem;
     }
 
+    public long getLockWaitTimeout() {
+        return this.lockWaitTimeout;
+    }
+
+    /**
+     * Sets the lock wait timeout new transactions start with (see
+     * TransactionContext#setLockWaitTimeout).
+     * @param lockWaitTimeout timeout in milliseconds, or negative to wait indefinitely
+     */
+    public void setLockWaitTimeout(long lockWaitTimeout) {
+        this.lockWaitTimeout = lockWaitTimeout;
+    }
+
+    /**
+     * Makes a transaction that holds locks on at least `pageLocks` pages of a
+     * table, or on at least `pageFraction` of its pages, trade them for a
+     * single lock on the table when it next locks a page of the table (see
+     * LockContext#setEscalationThreshold). 0 disables either threshold; both
+     * are disabled by default.
+     */
+    public void setTableLockEscalation(int pageLocks, double pageFraction) {
+        this.tableEscalationPageLocks = pageLocks;
+        this.tableEscalationPageFraction = pageFraction;
+    }
+
+    public float getIndexFillFactor() {
+        return this.indexFillFactor;
+    }
+
+    /**
+     * Sets the fill factor of the leaves of indices built by bulk loading
+     * (see Transaction#createIndex). Leaves that are not full leave room for
+     * later inserts without splitting.
+     * @param indexFillFactor fraction of each leaf to fill, in (0, 1]
+     */
+    public void setIndexFillFactor(float indexFillFactor) {
+        if (indexFillFactor <= 0 || indexFillFactor > 1) {
+            throw new IllegalArgumentException("fill factor must be in (0, 1]");
+        }
+        this.indexFillFactor = indexFillFactor;
+    }
+
+    /**
+     * Enables snapshot transactions (see beginSnapshotTransaction). From now
+     * on, transactions save the contents of each page before first writing to
+     * it, for as long as a snapshot may read them, and empty data pages are
+     * kept rather than freed. Snapshots may see the uncommitted changes of
+     * transactions that were already running when this was called.
+     */
+    public void enableSnapshotReads() {
+        this.bufferManager.enableVersions();
+    }
+
     /**
      * @return Schema for _metadata.tables with fields:
      *   | field name   | field type
@@ -448,6 +583,7 @@ public class Database implements AutoCloseable {
     private Table tableFromMetadata(TableMetadata metadata) {
         String tableName = normalize(metadata.tableName);
         LockContext tableContext = getTableContext(tableName);
+        tableContext.setEscalationThreshold(tableEscalationPageLocks, tableEscalationPageFraction);
         long page0 = DiskSpaceManager.getVirtualPageNum(metadata.partNum, 0);
         PageDirectory pd = new PageDirectory(bufferManager, metadata.partNum, page0, (short) 0, tableContext);
         return new Table(metadata.tableName, metadata.schema, pd, tableContext, stats);
@@ -533,6 +669,71 @@ public class Database implements AutoCloseable {
         return new BPlusTree(bufferManager, metadata, indexContext);
     }
 
+    /**
+     * @return the record ids of the records whose values of the columns
+     * indexed by the tree of `metadata` are between `low` and `high`, in
+     * order (see TransactionContext#indexRangeScan). `schema` is the schema
+     * of the indexed table.
+     */
+    private Iterator<RecordId> scanIndexRange(BPlusTreeMetadata metadata, Schema schema,
+                                              List<DataBox> low, List<DataBox> high) {
+        Pair<DataBox, DataBox> bounds = indexRangeBounds(metadata, schema, low, high);
+        return indexFromMetadata(metadata).scanRange(bounds.getFirst(), bounds.getSecond());
+    }
+
+    /**
+     * @return the values of the columns indexed by the tree of `metadata`
+     * of the records whose values are between `low` and `high`, in order
+     * (see TransactionContext#indexOnlyScan). The values are read from the
+     * keys of the tree, without reading the records.
+     */
+    private Iterator<Record> scanIndexValues(BPlusTreeMetadata metadata, Schema schema,
+                                             List<DataBox> low, List<DataBox> high) {
+        Pair<DataBox, DataBox> bounds = indexRangeBounds(metadata, schema, low, high);
+        Iterator<DataBox> keys = indexFromMetadata(metadata).scanKeys(bounds.getFirst(), bounds.getSecond());
+        List<Type> columnTypes = indexColumnTypes(metadata, schema);
+        boolean encoded = IndexKey.isEncoded(metadata, columnTypes);
+        return new Iterator<Record>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                DataBox key = keys.next();
+                if (!encoded) {
+                    return new Record(key);
+                }
+                return new Record(IndexKey.decode(columnTypes, key));
+            }
+        };
+    }
+
+    // The keys of the tree of `metadata` bounding the entries whose values
+    // of the indexed columns are between `low` and `high` (null if open)
+    private Pair<DataBox, DataBox> indexRangeBounds(BPlusTreeMetadata metadata, Schema schema,
+                                                    List<DataBox> low, List<DataBox> high) {
+        List<Type> columnTypes = indexColumnTypes(metadata, schema);
+        if (!IndexKey.isEncoded(metadata, columnTypes)) {
+            return new Pair<>(low.isEmpty() ? null : low.get(0), high.isEmpty() ? null : high.get(0));
+        }
+        Type keySchema = metadata.getKeySchema();
+        return new Pair<>(
+            low.isEmpty() ? null : IndexKey.lowerBound(keySchema, columnTypes, low),
+            high.isEmpty() ? null : IndexKey.upperBound(keySchema, columnTypes, high)
+        );
+    }
+
+    // The types of the columns indexed by the tree of `metadata`
+    private List<Type> indexColumnTypes(BPlusTreeMetadata metadata, Schema schema) {
+        List<Type> columnTypes = new ArrayList<>();
+        for (String columnName : metadata.getColNames()) {
+            columnTypes.add(schema.getFieldType(schema.findField(columnName)));
+        }
+        return columnTypes;
+    }
+
     // get the lock context for database/_metadata.tables
     private LockContext getTableInfoContext() {
         return lockManager.databaseContext().childContext(TABLE_INFO_TABLE_NAME);
@@ -572,7 +773,29 @@ public class Database implements AutoCloseable {
      * @return the new Transaction
      */
     public synchronized Transaction beginTransaction() {
+        return beginTransaction(TransactionContext.NO_SNAPSHOT);
+    }
+
+    /**
+     * Start a new read-only transaction that reads a snapshot of the database:
+     * it sees the changes of exactly the transactions that committed before it
+     * started, and reads without taking shared locks, so that it neither waits
+     * for writers nor makes them wait. Snapshot reads must be enabled (see
+     * enableSnapshotReads).
+     *
+     * @return the new Transaction
+     */
+    public synchronized Transaction beginSnapshotTransaction() {
+        VersionStore versions = this.bufferManager.getVersionStore();
+        if (versions == null) {
+            throw new IllegalStateException("snapshot reads are not enabled");
+        }
+        return beginTransaction(versions.beginSnapshot());
+    }
+
+    private Transaction beginTransaction(long snapshot) {
         TransactionImpl t = new TransactionImpl(this.numTransactions, false);
+        t.getTransactionContext().setSnapshot(snapshot);
         activeTransactions.register();
         if (activeTransactions.isTerminated()) {
             activeTransactions = new Phaser(1);
@@ -604,16 +827,23 @@ public class Database implements AutoCloseable {
     private class TransactionContextImpl extends TransactionContext {
         long transNum;
         Map<String, String> aliases;
+        // concurrent, since sorts add records to temporary tables on other
+        // threads while creating more (see SortOperator)
         Map<String, Table> tempTables;
         long tempTableCounter;
         boolean recoveryTransaction;
+        // (table name, column name) of the indices whose root this
+        // transaction changed, by partition number
+        Map<Integer, Pair<String, String>> changedIndexRoots;
 
         private TransactionContextImpl(long tNum, boolean recoveryTransaction) {
             this.transNum = tNum;
             this.aliases = new HashMap<>();
-            this.tempTables = new HashMap<>();
+            this.tempTables = new ConcurrentHashMap<>();
+            this.changedIndexRoots = new HashMap<>();
             this.tempTableCounter = 0;
             this.recoveryTransaction = recoveryTransaction;
+            this.setLockWaitTimeout(Database.this.lockWaitTimeout);
         }
 
         @Override
@@ -667,11 +897,22 @@ public class Database implements AutoCloseable {
             return getColumnIndexMetadata(tableName, columnName) != null;
         }
 
+        @Override
+        public List<String> getIndexNames(String tableName) {
+            if (aliases.containsKey(tableName)) tableName = aliases.get(tableName);
+            List<String> names = new ArrayList<>();
+            for (Pair<RecordId, BPlusTreeMetadata> p : getTableIndicesMetadata(tableName)) {
+                names.add(p.getSecond().getColName());
+            }
+            return names;
+        }
+
         @Override
         public void updateIndexMetadata(BPlusTreeMetadata metadata) {
             Record updated = metadata.toRecord();
             String tableName = normalize(metadata.getTableName());
             String columnName = normalize(metadata.getColName());
+            changedIndexRoots.put(metadata.getPartNum(), new Pair<>(tableName, columnName));
             // Exclusive access is needed on the index metadata entry to update it
             LockUtil.ensureSufficientLockHeld(getColumnIndexMetadataContext(tableName, columnName), LockType.X);
             for (Pair<RecordId, BPlusTreeMetadata> p: scanIndexMetadata()) {
@@ -688,6 +929,24 @@ public class Database implements AutoCloseable {
             }
         }
 
+        /**
+         * Resets the latches of the indices whose root this transaction
+         * changed, after a rollback that may have undone the changes (see
+         * BPlusTree.resetLatch). Called while the transaction still holds its
+         * locks on the indices.
+         */
+        void resetIndexLatches() {
+            for (Map.Entry<Integer, Pair<String, String>> e : changedIndexRoots.entrySet()) {
+                String tableName = e.getValue().getFirst();
+                Pair<RecordId, BPlusTreeMetadata> pair = getColumnIndexMetadata(tableName, e.getValue().getSecond());
+                BPlusTreeMetadata metadata = null;
+                if (pair != null && pair.getSecond().getPartNum() == e.getKey()) {
+                    metadata = pair.getSecond();
+                }
+                BPlusTree.resetLatch(bufferManager, e.getKey(), metadata);
+            }
+        }
+
         @Override
         public Iterator<Record> sortedScan(String tableName, String columnName) {
             Table tab = getTable(tableName);
@@ -714,19 +973,44 @@ public class Database implements AutoCloseable {
         public Iterator<Record> sortedScanFrom(String tableName, String columnName, DataBox startValue) {
             Table tab = getTable(tableName);
             tableName = tab.getName();
-            BPlusTree tree = indexFromMetadata(getColumnIndexMetadata(tableName, columnName).getSecond());
+            BPlusTreeMetadata metadata = getColumnIndexMetadata(tableName, columnName).getSecond();
             // Since we'll likely scan multiple pages of records, its better
             // to get an S lock on the whole table up front
             LockUtil.ensureSufficientLockHeld(getTableContext(tableName), LockType.S);
-            return tab.recordIterator(tree.scanGreaterEqual(startValue));
+            return tab.recordIterator(scanIndexRange(metadata, tab.getSchema(),
+                    Collections.singletonList(startValue), Collections.emptyList()));
+        }
+
+        @Override
+        public Iterator<Record> indexRangeScan(String tableName, String indexName,
+                                               List<DataBox> low, List<DataBox> high) {
+            Table tab = getTable(tableName);
+            tableName = tab.getName();
+            BPlusTreeMetadata metadata = getColumnIndexMetadata(tableName, indexName).getSecond();
+            LockUtil.ensureSufficientLockHeld(getTableContext(tableName), LockType.S);
+            return tab.recordIterator(scanIndexRange(metadata, tab.getSchema(), low, high));
+        }
+
+        @Override
+        public Iterator<Record> indexOnlyScan(String tableName, String indexName,
+                                              List<DataBox> low, List<DataBox> high) {
+            Table tab = getTable(tableName);
+            tableName = tab.getName();
+            BPlusTreeMetadata metadata = getColumnIndexMetadata(tableName, indexName).getSecond();
+            LockUtil.ensureSufficientLockHeld(getTableContext(tableName), LockType.S);
+            return scanIndexValues(metadata, tab.getSchema(), low, high);
         }
 
         @Override
         public Iterator<Record> lookupKey(String tableName, String columnName, DataBox key) {
             Table tab = getTable(tableName);
             tableName = tab.getName();
-            BPlusTree tree = indexFromMetadata(getColumnIndexMetadata(tableName, columnName).getSecond());
-            return tab.recordIterator(tree.scanEqual(key));
+            BPlusTreeMetadata metadata = getColumnIndexMetadata(tableName, columnName).getSecond();
+            if (!IndexKey.isEncoded(metadata, indexColumnTypes(metadata, tab.getSchema()))) {
+                return tab.recordIterator(indexFromMetadata(metadata).scanEqual(key));
+            }
+            List<DataBox> prefix = Collections.singletonList(key);
+            return tab.recordIterator(scanIndexRange(metadata, tab.getSchema(), prefix, prefix));
         }
 
         @Override
@@ -734,29 +1018,44 @@ public class Database implements AutoCloseable {
             return getTable(tableName).iterator();
         }
 
+        @Override
+        public Iterator<RecordBatch> getRecordBatchIterator(String tableName) {
+            return getTable(tableName).batchIterator();
+        }
+
         @Override
         public boolean contains(String tableName, String columnName, DataBox key) {
             tableName = aliases.getOrDefault(tableName, tableName);
-            BPlusTree tree = indexFromMetadata(getColumnIndexMetadata(tableName, columnName).getSecond());
-            return tree.get(key).isPresent();
+            BPlusTreeMetadata metadata = getColumnIndexMetadata(tableName, columnName).getSecond();
+            Schema schema = getTable(tableName).getSchema();
+            if (!IndexKey.isEncoded(metadata, indexColumnTypes(metadata, schema))) {
+                return indexFromMetadata(metadata).get(key).isPresent();
+            }
+            List<DataBox> prefix = Collections.singletonList(key);
+            return scanIndexRange(metadata, schema, prefix, prefix).hasNext();
         }
 
         @Override
         public RecordId addRecord(String tableName, Record record) {
             Table tab = getTable(tableName);
+            boolean temporary = this.tempTables.containsKey(tableName);
             tableName = tab.getName();
             if (tab == null) {
                 throw new DatabaseException("table `" + tableName + "` does not exist!");
             }
+            // other writes are refused when locking the page they change, but
+            // inserts pick a data page (in the page directory) before locking it
+            if (readsSnapshot() && !temporary) {
+                throw new DatabaseException("snapshot transactions are read-only");
+            }
             RecordId rid = tab.addRecord(record);
+            // temporary tables never have indices, so skip the index metadata scan
+            if (temporary) return rid;
             Schema s = tab.getSchema();
-            List<String> colNames = s.getFieldNames();
 
             for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
                 BPlusTree tree = indexFromMetadata(p.getSecond());
-                String column = tree.getMetadata().getColName();
-                DataBox key = record.getValue(colNames.indexOf(column));
-                tree.put(key, rid);
+                tree.put(IndexKey.of(p.getSecond(), s, record, rid), rid);
             }
             return rid;
         }
@@ -767,13 +1066,10 @@ public class Database implements AutoCloseable {
             tableName = tab.getName();
             Schema s = tab.getSchema();
             Record record = tab.deleteRecord(rid);
-            List<String> colNames = s.getFieldNames();
 
             for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
                 BPlusTree tree = indexFromMetadata(p.getSecond());
-                String column = tree.getMetadata().getColName();
-                DataBox key = record.getValue(colNames.indexOf(column));
-                tree.remove(key);
+                tree.remove(IndexKey.of(p.getSecond(), s, record, rid));
             }
             return rid;
         }
@@ -790,15 +1086,11 @@ public class Database implements AutoCloseable {
             Schema s = tab.getSchema();
 
             Record old = tab.updateRecord(rid, updated);
-            List<String> colNames = s.getFieldNames();
 
             for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
                 BPlusTree tree = indexFromMetadata(p.getSecond());
-                String column = tree.getMetadata().getColName();
-                DataBox oldKey = old.getValue(colNames.indexOf(column));
-                DataBox newKey = updated.getValue(colNames.indexOf(column));
-                tree.remove(oldKey);
-                tree.put(newKey, rid);
+                tree.remove(IndexKey.of(p.getSecond(), s, old, rid));
+                tree.put(IndexKey.of(p.getSecond(), s, updated, rid), rid);
             }
             return rid;
         }
@@ -984,7 +1276,7 @@ public class Database implements AutoCloseable {
     private class TransactionImpl extends Transaction {
         private long transNum;
         private boolean recoveryTransaction;
-        private TransactionContext transactionContext;
+        private TransactionContextImpl transactionContext;
 
         private TransactionImpl(long transNum, boolean recovery) {
             this.transNum = transNum;
@@ -1003,8 +1295,7 @@ public class Database implements AutoCloseable {
             }
             ExecutableStatementVisitor visitor = new ExecutableStatementVisitor();
             stmt.jjtAccept(visitor, null);
-            Optional<QueryPlan> qp = visitor.execute(this, System.out);
-            return qp;
+            return rollbackOnDeadlock(() -> visitor.execute(this, System.out));
         }
 
         @Override
@@ -1026,14 +1317,37 @@ public class Database implements AutoCloseable {
                 return;
             }
 
+            // end() completes the transaction, rolling it back if it aborted
+            boolean committed = getStatus() == Status.COMMITTING;
             if (!this.recoveryTransaction) {
                 recoveryManager.end(transNum);
+                if (!committed) {
+                    transactionContext.resetIndexLatches();
+                }
             }
+            endVersions(committed);
 
             transactionContext.close();
             activeTransactions.arriveAndDeregister();
         }
 
+        // releases the transaction's snapshot, or publishes or drops the versions of
+        // pages it wrote; done before releasing its locks, so that later writers of
+        // the same pages save versions that include its changes
+        private void endVersions(boolean committed) {
+            VersionStore versions = bufferManager.getVersionStore();
+            if (versions == null) {
+                return;
+            }
+            if (transactionContext.readsSnapshot()) {
+                versions.endSnapshot(transactionContext.getSnapshot());
+            } else if (committed) {
+                versions.commit(transNum);
+            } else {
+                versions.abort(transNum);
+            }
+        }
+
         @Override
         public long getTransNum() {
             return transNum;
@@ -1041,141 +1355,190 @@ public class Database implements AutoCloseable {
 
         @Override
         public void createTable(Schema s, String tableName) {
-            if (tableName.contains(".") || tableName.contains(" ") || tableName.length() == 0) {
-                throw new IllegalArgumentException("name of new table may not contain '.' or ' ', or be the empty string");
-            }
-            // To create the table we'll need exclusive access to it's metadata for the duration of the transaction
-            // This way, other transactions won't be able to access it in the event that we abort
-            LockUtil.ensureSufficientLockHeld(getTableMetadataContext(tableName), LockType.X);
-
-            // To check whether the table exists we just need to read that table's metadata, if it exists
-            Pair<RecordId, TableMetadata> pair = getTableMetadata(tableName);
-            if (pair != null) {
-                throw new DatabaseException("table `" + tableName + "` already exists");
-            }
-            TableMetadata metadata = new TableMetadata(tableName);
-            metadata.partNum = diskSpaceManager.allocPart();
-            metadata.pageNum = diskSpaceManager.allocPage(metadata.partNum);
-            metadata.schema = s;
-            synchronized (tableMetadata) {
-                tableMetadata.addRecord(metadata.toRecord());
-            }
+            rollbackOnDeadlock(() -> {
+                if (tableName.contains(".") || tableName.contains(" ") || tableName.length() == 0) {
+                    throw new IllegalArgumentException("name of new table may not contain '.' or ' ', or be the empty string");
+                }
+                // To create the table we'll need exclusive access to it's metadata for the duration of the transaction
+                // This way, other transactions won't be able to access it in the event that we abort
+                LockUtil.ensureSufficientLockHeld(getTableMetadataContext(tableName), LockType.X);
+
+                // To check whether the table exists we just need to read that table's metadata, if it exists
+                Pair<RecordId, TableMetadata> pair = getTableMetadata(tableName);
+                if (pair != null) {
+                    throw new DatabaseException("table `" + tableName + "` already exists");
+                }
+                TableMetadata metadata = new TableMetadata(tableName);
+                metadata.partNum = diskSpaceManager.allocPart();
+                metadata.pageNum = diskSpaceManager.allocPage(metadata.partNum);
+                metadata.schema = s;
+                synchronized (tableMetadata) {
+                    tableMetadata.addRecord(metadata.toRecord());
+                }
+            });
         }
 
         @Override
         public void dropTable(String tableName) {
-            if (tableName.contains(".") || tableName.contains(" ") || tableName.length() == 0) {
-                throw new IllegalArgumentException("name of new table may not contain '.' or ' ', or be the empty string");
-            }
-            // To check whether the table exists we just need to read that table's metadata, if it exists
-            Pair<RecordId, TableMetadata> pair = getTableMetadata(tableName);
-            if (pair == null) {
-                throw new DatabaseException("table `" + tableName + "` doesn't exist!");
-            }
-            // To drop a table we'll need exclusive access to it's metadata and the metadata of its indices
-            LockUtil.ensureSufficientLockHeld(getTableMetadataContext(tableName), LockType.X);
-            LockUtil.ensureSufficientLockHeld(getTableIndexMetadataContext(tableName), LockType.X);
+            rollbackOnDeadlock(() -> {
+                if (tableName.contains(".") || tableName.contains(" ") || tableName.length() == 0) {
+                    throw new IllegalArgumentException("name of new table may not contain '.' or ' ', or be the empty string");
+                }
+                // To check whether the table exists we just need to read that table's metadata, if it exists
+                Pair<RecordId, TableMetadata> pair = getTableMetadata(tableName);
+                if (pair == null) {
+                    throw new DatabaseException("table `" + tableName + "` doesn't exist!");
+                }
+                // To drop a table we'll need exclusive access to it's metadata and the metadata of its indices
+                LockUtil.ensureSufficientLockHeld(getTableMetadataContext(tableName), LockType.X);
+                LockUtil.ensureSufficientLockHeld(getTableIndexMetadataContext(tableName), LockType.X);
 
-            for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
-                BPlusTreeMetadata tree = p.getSecond();
-                dropIndex(tableName, tree.getColName());
-            }
-            RecordId rid = getTableMetadata(tableName).getFirst();
-            TableMetadata metadata;
-            synchronized(tableMetadata) {
-                metadata = new TableMetadata(tableMetadata.deleteRecord(rid));
-            }
-            bufferManager.freePart(metadata.partNum);
+                for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
+                    BPlusTreeMetadata tree = p.getSecond();
+                    dropIndex(tableName, tree.getColName());
+                }
+                RecordId rid = getTableMetadata(tableName).getFirst();
+                TableMetadata metadata;
+                synchronized(tableMetadata) {
+                    metadata = new TableMetadata(tableMetadata.deleteRecord(rid));
+                }
+                bufferManager.freePart(metadata.partNum);
+            });
         }
 
         @Override
         public void dropAllTables() {
-            // For something as drastic as dropping all tables we'll want
-            // to get an exclusive lock on the entire database.
-            LockUtil.ensureSufficientLockHeld(lockManager.databaseContext(), LockType.X);
-            for (Pair<RecordId, TableMetadata> p: scanTableMetadata()) {
-                dropTable(p.getSecond().tableName);
-            }
+            rollbackOnDeadlock(() -> {
+                // For something as drastic as dropping all tables we'll want
+                // to get an exclusive lock on the entire database.
+                LockUtil.ensureSufficientLockHeld(lockManager.databaseContext(), LockType.X);
+                for (Pair<RecordId, TableMetadata> p: scanTableMetadata()) {
+                    dropTable(p.getSecond().tableName);
+                }
+            });
         }
 
         @Override
-        public void createIndex(String tableName, String columnName, boolean bulkLoad) {
-            if (tableName.contains(".") || tableName.contains(" ") || tableName.length() == 0) {
-                throw new IllegalArgumentException("name of new table may not contain '.' or ' ', or be the empty string");
-            }
-            // We want to check that the table exists
-            TableMetadata tableMetadata = getTableMetadata(tableName).getSecond();
-            if (tableMetadata == null) {
-                throw new DatabaseException("table " + tableName + " does not exist");
-            }
-
-            Schema s = tableMetadata.schema;
-            List<String> schemaColNames = s.getFieldNames();
-            List<Type> schemaColType = s.getFieldTypes();
-            if (!schemaColNames.contains(columnName)) {
-                throw new DatabaseException("table " + tableName + " does not have a column " + columnName);
-            }
-
-            int columnIndex = schemaColNames.indexOf(columnName);
-            Type colType = schemaColType.get(columnIndex);
+        public void createIndex(String tableName, List<String> columnNames, boolean unique, boolean bulkLoad) {
+            rollbackOnDeadlock(() -> {
+                if (tableName.contains(".") || tableName.contains(" ") || tableName.length() == 0) {
+                    throw new IllegalArgumentException("name of new table may not contain '.' or ' ', or be the empty string");
+                }
+                // We want to check that the table exists
+                TableMetadata tableMetadata = getTableMetadata(tableName).getSecond();
+                if (tableMetadata == null) {
+                    throw new DatabaseException("table " + tableName + " does not exist");
+                }
 
-            // To create the index we'll need an exclusive lock on its metadata
-            LockUtil.ensureSufficientLockHeld(getColumnIndexMetadataContext(tableName, columnName), LockType.X);
-            Pair<RecordId, BPlusTreeMetadata> pair = getColumnIndexMetadata(tableName, columnName);
-            if (pair != null) {
-                throw new DatabaseException("index already exists on " + tableName + "(" + columnName + ")");
-            }
+                Schema s = tableMetadata.schema;
+                List<String> schemaColNames = s.getFieldNames();
+                List<Type> schemaColType = s.getFieldTypes();
+                if (columnNames.isEmpty()) {
+                    throw new DatabaseException("an index must be on at least one column");
+                }
+                List<Type> colTypes = new ArrayList<>();
+                for (String columnName : columnNames) {
+                    if (!schemaColNames.contains(columnName)) {
+                        throw new DatabaseException("table " + tableName + " does not have a column " + columnName);
+                    }
+                    colTypes.add(schemaColType.get(schemaColNames.indexOf(columnName)));
+                }
+                if (new HashSet<>(columnNames).size() != columnNames.size()) {
+                    throw new DatabaseException("index columns " + columnNames + " contain a duplicate");
+                }
+                // the index is named after its columns, which must fit in _metadata.indices
+                String columnName = String.join(",", columnNames);
+                if (columnName.length() > 32) {
+                    throw new DatabaseException("names of index columns " + columnNames + " are too long");
+                }
 
-            int order = BPlusTree.maxOrder(BufferManager.EFFECTIVE_PAGE_SIZE, colType);
-            Record indexEntry = new Record(tableName, columnName, order,
-                    diskSpaceManager.allocPart(),
-                    diskSpaceManager.INVALID_PAGE_NUM,
-                    colType.getTypeId().ordinal(),
-                    colType.getSizeInBytes(), -1
-            );
-            synchronized (indexMetadata) {
-                indexMetadata.addRecord(indexEntry);
-            }
-            BPlusTreeMetadata metadata = new BPlusTreeMetadata(indexEntry);
-            BPlusTree tree = indexFromMetadata(metadata);
+                // To create the index we'll need an exclusive lock on its metadata
+                LockUtil.ensureSufficientLockHeld(getColumnIndexMetadataContext(tableName, columnName), LockType.X);
+                Pair<RecordId, BPlusTreeMetadata> pair = getColumnIndexMetadata(tableName, columnName);
+                if (pair != null) {
+                    throw new DatabaseException("index already exists on " + tableName + "(" + columnName + ")");
+                }
 
-            // load data into index
-            if (bulkLoad) {
-                throw new UnsupportedOperationException("not implemented");
-            } else {
-                Table table = tableFromMetadata(tableMetadata);
-                for (RecordId rid : (Iterable<RecordId>) table::ridIterator) {
-                    Record record = table.getRecord(rid);
-                    tree.put(record.getValue(columnIndex), rid);
+                // composite and non-unique indices are on encoded keys (see IndexKey)
+                Type keyType = unique && columnNames.size() == 1 ? colTypes.get(0) :
+                               IndexKey.keySchema(colTypes, unique);
+                int order = BPlusTree.maxOrder(BufferManager.EFFECTIVE_PAGE_SIZE, keyType);
+                Record indexEntry = new Record(tableName, columnName, order,
+                        diskSpaceManager.allocPart(),
+                        diskSpaceManager.INVALID_PAGE_NUM,
+                        keyType.getTypeId().ordinal(),
+                        keyType.getSizeInBytes(), -1
+                );
+                synchronized (indexMetadata) {
+                    indexMetadata.addRecord(indexEntry);
                 }
-            }
+                BPlusTreeMetadata metadata = new BPlusTreeMetadata(indexEntry);
+                BPlusTree tree = indexFromMetadata(metadata);
+
+                // load data into index
+                if (bulkLoad) {
+                    // Sort the (key, record id) pairs of the table with an external
+                    // sort, and build the tree bottom-up from the sorted pairs.
+                    QueryOperator entries = new SortOperator(getTransactionContext(),
+                            new IndexEntryScanOperator(getTransactionContext(), tableName, metadata),
+                            IndexEntryScanOperator.KEY_FIELD);
+                    Iterator<Record> sorted = entries.iterator();
+                    tree.bulkLoad(new Iterator<Pair<DataBox, RecordId>>() {
+                        private DataBox prevKey = null;
+
+                        @Override
+                        public boolean hasNext() {
+                            return sorted.hasNext();
+                        }
+
+                        @Override
+                        public Pair<DataBox, RecordId> next() {
+                            Record entry = sorted.next();
+                            DataBox key = IndexEntryScanOperator.getKey(entry);
+                            if (key.equals(prevKey)) {
+                                throw new BPlusTreeException("A duplicate key is inserted");
+                            }
+                            prevKey = key;
+                            return new Pair<>(key, IndexEntryScanOperator.getRecordId(entry));
+                        }
+                    }, indexFillFactor);
+                } else {
+                    Table table = tableFromMetadata(tableMetadata);
+                    for (RecordId rid : (Iterable<RecordId>) table::ridIterator) {
+                        Record record = table.getRecord(rid);
+                        tree.put(IndexKey.of(metadata, s, record, rid), rid);
+                    }
+                }
+            });
         }
 
         @Override
         public void dropIndex(String tableName, String columnName) {
-            // We need exclusive write access on an index to drop it.
-            LockUtil.ensureSufficientLockHeld(getColumnIndexMetadataContext(tableName, columnName), LockType.X);
-            Pair<RecordId, BPlusTreeMetadata> pair = getColumnIndexMetadata(tableName, columnName);
-            if (pair == null) {
-                throw new DatabaseException("no index on " + tableName + "(" + columnName + ")");
-            }
-            indexMetadata.deleteRecord(pair.getFirst());
-            bufferManager.freePart(pair.getSecond().getPartNum());
+            rollbackOnDeadlock(() -> {
+                // We need exclusive write access on an index to drop it.
+                LockUtil.ensureSufficientLockHeld(getColumnIndexMetadataContext(tableName, columnName), LockType.X);
+                Pair<RecordId, BPlusTreeMetadata> pair = getColumnIndexMetadata(tableName, columnName);
+                if (pair == null) {
+                    throw new DatabaseException("no index on " + tableName + "(" + columnName + ")");
+                }
+                indexMetadata.deleteRecord(pair.getFirst());
+                bufferManager.freePart(pair.getSecond().getPartNum());
+            });
         }
 
         @Override
         public QueryPlan query(String tableName) {
-            return new QueryPlan(transactionContext, tableName);
+            return new TransactionQueryPlan(tableName, tableName);
         }
 
         @Override
         public QueryPlan query(String tableName, String alias) {
-            return new QueryPlan(transactionContext, tableName, alias);
+            return new TransactionQueryPlan(tableName, alias);
         }
 
         @Override
         public void insert(String tableName, Record values) {
-            transactionContext.addRecord(tableName, values);
+            rollbackOnDeadlock(() -> transactionContext.addRecord(tableName, values));
         }
 
         @Override
@@ -1186,24 +1549,25 @@ public class Database implements AutoCloseable {
         @Override
         public void update(String tableName, String targetColumnName, UnaryOperator<DataBox> targetValue,
                            String predColumnName, PredicateOperator predOperator, DataBox predValue) {
-            transactionContext.updateRecordWhere(tableName, targetColumnName, targetValue, predColumnName,
-                                                    predOperator, predValue);
+            rollbackOnDeadlock(() -> transactionContext.updateRecordWhere(tableName, targetColumnName, targetValue,
+                    predColumnName, predOperator, predValue));
         }
 
         @Override
         public void update(String tableName, String targetColumnName, Function<Record, DataBox> expr, Function<Record, DataBox> cond) {
-            transactionContext.updateRecordWhere(tableName, targetColumnName, expr, cond);
+            rollbackOnDeadlock(() -> transactionContext.updateRecordWhere(tableName, targetColumnName, expr, cond));
         }
 
         @Override
         public void delete(String tableName, String predColumnName, PredicateOperator predOperator,
                            DataBox predValue) {
-            transactionContext.deleteRecordWhere(tableName, predColumnName, predOperator, predValue);
+            rollbackOnDeadlock(() -> transactionContext.deleteRecordWhere(tableName, predColumnName, predOperator,
+                    predValue));
         }
 
         @Override
         public void delete(String tableName, Function<Record, DataBox> cond) {
-            transactionContext.deleteRecordWhere(tableName, cond);
+            rollbackOnDeadlock(() -> transactionContext.deleteRecordWhere(tableName, cond));
         }
 
         @Override
@@ -1214,6 +1578,7 @@ public class Database implements AutoCloseable {
         @Override
         public void rollbackToSavepoint(String savepointName) {
             recoveryManager.rollbackToSavepoint(transNum, savepointName);
+            transactionContext.resetIndexLatches();
         }
 
         @Override
@@ -1235,6 +1600,61 @@ public class Database implements AutoCloseable {
         public String toString() {
             return "Transaction " + transNum + " (" + getStatus().toString() + ")";
         }
+
+        // The transaction whose lock request was chosen to break a deadlock
+        // (see LockManager) is rolled back before the DeadlockException
+        // reaches the caller, rather than holding on to its locks, and
+        // blocking other transactions, until the caller rolls it back.
+        private <T> T rollbackOnDeadlock(Supplier<T> operation) {
+            try {
+                return operation.get();
+            } catch (DeadlockException e) {
+                // operations may nest (e.g. statements run through execute)
+                if (getStatus() == Status.RUNNING) {
+                    try {
+                        rollback();
+                    } catch (RuntimeException rollbackFailure) {
+                        // e.g. rollbacks aren't supported without a recovery
+                        // manager; the caller still needs to see the deadlock
+                        e.addSuppressed(rollbackFailure);
+                    }
+                }
+                throw e;
+            }
+        }
+
+        private void rollbackOnDeadlock(Runnable operation) {
+            rollbackOnDeadlock(() -> {
+                operation.run();
+                return null;
+            });
+        }
+
+        /**
+         * Query plan of the transaction, which may request locks both while
+         * planning and while its records are read.
+         */
+        private class TransactionQueryPlan extends QueryPlan {
+            private TransactionQueryPlan(String tableName, String alias) {
+                super(transactionContext, tableName, alias);
+            }
+
+            @Override
+            public Iterator<Record> execute() {
+                Iterator<Record> records = rollbackOnDeadlock(super::execute);
+                return new Iterator<Record>() {
+                    @Override
+                    public boolean hasNext() {
+                        return rollbackOnDeadlock(records::hasNext);
+                    }
+
+                    @Override
+                    public Record next() {
+                        return rollbackOnDeadlock(records::next);
+                    }
+                };
+            }
+        }
     }
 
     public void dropDemoTables() {
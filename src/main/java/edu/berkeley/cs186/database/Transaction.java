@@ -7,6 +7,8 @@ import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
@@ -146,11 +148,41 @@ public abstract class Transaction implements AutoCloseable {
      * be fully implemented. Bulk loading requires Project 3 Part 1 (Joins/Sorting) to be
      * fully implemented as well.
      *
+     * When bulk loading, the (key, record id) pairs of the table are sorted with an
+     * external sort and the tree is built bottom-up from them, filling leaves up to
+     * the database's index fill factor. Otherwise, the pairs are inserted into the
+     * tree one at a time.
+     *
+     * The index is unique: inserting a record whose value of columnName is
+     * already in the table fails.
+     *
      * @param tableName name of table to create index for
      * @param columnName name of column to create index on
      * @param bulkLoad whether to bulk load data
      */
-    public abstract void createIndex(String tableName, String columnName, boolean bulkLoad);
+    public void createIndex(String tableName, String columnName, boolean bulkLoad) {
+        createIndex(tableName, Collections.singletonList(columnName), true, bulkLoad);
+    }
+
+    /**
+     * Creates an index on one or more columns. Equivalent to
+     *      CREATE [UNIQUE] INDEX tableName_columnNames ON tableName (columnNames...)
+     * in postgres.
+     *
+     * A composite index (on several columns) orders records by their values of
+     * the first column, then of the second column, and so on, so that queries
+     * with predicates on the first few columns can scan a range of the index.
+     * A non-unique index allows several records with the same values of the
+     * indexed columns. The index is named after its columns, separated by
+     * commas (e.g. dropIndex(tableName, "a,b")).
+     *
+     * @param tableName name of table to create index for
+     * @param columnNames names of columns to create index on, in order
+     * @param unique whether no two records may have the same values of the columns
+     * @param bulkLoad whether to bulk load data
+     */
+    public abstract void createIndex(String tableName, List<String> columnNames, boolean unique,
+                                     boolean bulkLoad);
 
     /**
      * Drops an index. Equivalent to
@@ -158,7 +190,8 @@ public abstract class Transaction implements AutoCloseable {
      * in postgres.
      *
      * @param tableName name of table to drop index from
-     * @param columnName name of column to drop index from
+     * @param columnName name of column to drop index from, or the columns of
+     *                   a composite index separated by commas
      */
     public abstract void dropIndex(String tableName, String columnName);
 
@@ -5,12 +5,14 @@ import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Condition;
@@ -32,9 +34,18 @@ import java.util.function.UnaryOperator;
  * block() is called.
  */
 public abstract class TransactionContext implements AutoCloseable {
+    public static final long NO_SNAPSHOT = -1;
     static Map<Long, TransactionContext> threadTransactions = new ConcurrentHashMap<>();
     private boolean blocked = false;
     private boolean startBlock = false;
+    // Exception the pending block() call throws rather than returning, if any
+    private RuntimeException blockException = null;
+    // Longest time, in milliseconds, a lock request waits before failing;
+    // negative to wait indefinitely
+    private volatile long lockWaitTimeout = -1;
+    // Timestamp of the snapshot a read-only transaction reads (see
+    // VersionStore), or NO_SNAPSHOT if the transaction reads the latest data
+    private long snapshot = NO_SNAPSHOT;
     private final ReentrantLock transactionLock = new ReentrantLock();
     private final Condition unblocked = transactionLock.newCondition();
 
@@ -88,6 +99,30 @@ public abstract class TransactionContext implements AutoCloseable {
      */
     public abstract int getWorkMemSize();
 
+    /**
+     * @return timestamp of the snapshot the transaction reads, or NO_SNAPSHOT
+     * if it is not a snapshot transaction
+     */
+    public long getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Makes the transaction a read-only transaction that reads the given
+     * snapshot, without taking shared locks.
+     * @param snapshot timestamp of the snapshot (see VersionStore#beginSnapshot)
+     */
+    public void setSnapshot(long snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return whether the transaction is a read-only transaction that reads a snapshot
+     */
+    public boolean readsSnapshot() {
+        return this.snapshot != NO_SNAPSHOT;
+    }
+
     @Override
     public abstract void close();
 
@@ -128,6 +163,15 @@ public abstract class TransactionContext implements AutoCloseable {
      */
     public abstract boolean indexExists(String tableName, String columnName);
 
+    /**
+     * Returns the names of the indices on `tableName`: the column a single
+     * column index is on, or the columns of a composite index in order,
+     * separated by commas (e.g. "a,b"). An index's name can be used as the
+     * column name of indexExists, getTreeOrder, getTreeHeight, and the scans
+     * below.
+     */
+    public abstract List<String> getIndexNames(String tableName);
+
     public abstract void updateIndexMetadata(BPlusTreeMetadata metadata);
 
     // Scans ///////////////////////////////////////////////////////////////////
@@ -151,11 +195,40 @@ public abstract class TransactionContext implements AutoCloseable {
      */
     public abstract Iterator<Record> lookupKey(String tableName, String columnName, DataBox key);
 
+    /**
+     * Returns an iterator of the records in `tableName` whose values of the
+     * columns of index `indexName` (see getIndexNames) are between `low` and
+     * `high`, in ascending order of those values. `low` and `high` are values
+     * of the first few columns of the index (possibly none, which leaves
+     * that end of the range open): a record is included if its values of the
+     * first low.size() columns are at least `low` and its values of the first
+     * high.size() columns at most `high`, comparing column by column.
+     *
+     * For example, with an index on (a, b), indexRangeScan(t, "a,b", [1, 2],
+     * [1]) returns the records where a = 1 and b >= 2.
+     */
+    public abstract Iterator<Record> indexRangeScan(String tableName, String indexName,
+                                                    List<DataBox> low, List<DataBox> high);
+
+    /**
+     * Like indexRangeScan, but returns the values of the columns of index
+     * `indexName` only, as records with one value per column of the index in
+     * the order of its columns. The values are read from the index alone,
+     * without reading the records of the table.
+     */
+    public abstract Iterator<Record> indexOnlyScan(String tableName, String indexName,
+                                                   List<DataBox> low, List<DataBox> high);
+
     /**
      * Returns a backtracking iterator over all of the records in `tableName`.
      */
     public abstract BacktrackingIterator<Record> getRecordIterator(String tableName);
 
+    /**
+     * Returns an iterator over batches of all of the records in `tableName`.
+     */
+    public abstract Iterator<RecordBatch> getRecordBatchIterator(String tableName);
+
     public abstract boolean contains(String tableName, String columnName, DataBox key);
 
     // Record Operations ///////////////////////////////////////////////////////
@@ -251,12 +324,79 @@ public abstract class TransactionContext implements AutoCloseable {
             while (this.blocked) {
                 this.unblocked.awaitUninterruptibly();
             }
+            this.throwBlockException();
         } finally {
             this.startBlock = false;
             this.transactionLock.unlock();
         }
     }
 
+    /**
+     * Blocks the transaction (and thread) for at most `timeoutNanos`.
+     * prepareBlock() must be called first. If the timeout elapses, the
+     * transaction is left blocked until cancelBlock() is called.
+     *
+     * @return false if the timeout elapsed before the transaction was unblocked
+     */
+    public boolean block(long timeoutNanos) {
+        if (!this.startBlock) {
+            throw new IllegalStateException("prepareBlock() must be called before block()");
+        }
+        boolean interrupted = false;
+        try {
+            this.blocked = true;
+            long remaining = timeoutNanos;
+            while (this.blocked) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    remaining = this.unblocked.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            this.throwBlockException();
+            return true;
+        } finally {
+            this.startBlock = false;
+            this.transactionLock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Ends a block(timeoutNanos) call that timed out. If the transaction has
+     * been unblocked since, this behaves as if block had returned normally
+     * (throwing the exception passed to unblock, if any); otherwise, the
+     * transaction is marked unblocked.
+     *
+     * @return whether the transaction was unblocked since the timeout
+     */
+    public boolean cancelBlock() {
+        this.transactionLock.lock();
+        try {
+            if (this.blocked) {
+                this.blocked = false;
+                return false;
+            }
+            this.throwBlockException();
+            return true;
+        } finally {
+            this.transactionLock.unlock();
+        }
+    }
+
+    private void throwBlockException() {
+        if (this.blockException != null) {
+            RuntimeException e = this.blockException;
+            this.blockException = null;
+            throw e;
+        }
+    }
+
     /**
      * Unblocks the transaction (and thread running the transaction).
      */
@@ -270,6 +410,40 @@ public abstract class TransactionContext implements AutoCloseable {
         }
     }
 
+    /**
+     * Unblocks the transaction, making the block() call it is blocked in throw
+     * `e` rather than return (e.g. when its lock request is cancelled to break
+     * a deadlock).
+     */
+    public void unblock(RuntimeException e) {
+        this.transactionLock.lock();
+        try {
+            this.blockException = e;
+            this.blocked = false;
+            this.unblocked.signal();
+        } finally {
+            this.transactionLock.unlock();
+        }
+    }
+
+    /**
+     * @return longest time, in milliseconds, a lock request of the transaction
+     * waits before failing with a LockTimeoutException, or a negative number
+     * if lock requests wait indefinitely
+     */
+    public long getLockWaitTimeout() {
+        return this.lockWaitTimeout;
+    }
+
+    /**
+     * Sets how long lock requests of the transaction may wait, in
+     * milliseconds: 0 fails requests that cannot be granted immediately, and a
+     * negative number waits indefinitely (the default).
+     */
+    public void setLockWaitTimeout(long lockWaitTimeout) {
+        this.lockWaitTimeout = lockWaitTimeout;
+    }
+
     /**
      * @return if the transaction is blocked
      */
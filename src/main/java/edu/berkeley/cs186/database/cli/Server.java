@@ -38,7 +38,11 @@ public class Server {
     public static void main(String[] args) {
         // Note: you'll probably want to complete Project 4 before
         // attempting to run this.
-        Database db = new Database("demo", 25, new LockManager());
+        LockManager lockManager = new LockManager();
+        // Abort a transaction of each deadlock between clients, rather than
+        // leaving their connections hanging
+        lockManager.startDeadlockDetector(100);
+        Database db = new Database("demo", 25, lockManager);
         
         // Use the following after completing project 5 (recovery)
         // Database db = new Database("demo", 25, new LockManager(), new ClockEvictionPolicy(), true);
@@ -46,6 +50,7 @@ public class Server {
         Server server = new Server();
         server.listen(db);
         db.close();
+        lockManager.stopDeadlockDetector();
     }
 
     class ClientThread extends Thread {
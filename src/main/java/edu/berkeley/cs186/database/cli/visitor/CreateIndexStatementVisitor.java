@@ -5,6 +5,7 @@ import edu.berkeley.cs186.database.cli.parser.ASTColumnName;
 import edu.berkeley.cs186.database.cli.parser.ASTIdentifier;
 
 import java.io.PrintStream;
+import java.util.Collections;
 
 class CreateIndexStatementVisitor extends StatementVisitor {
     public String tableName;
@@ -12,7 +13,8 @@ class CreateIndexStatementVisitor extends StatementVisitor {
 
     @Override
     public void execute(Transaction transaction, PrintStream out) {
-        transaction.createIndex(tableName, columnName, false);
+        // like CREATE INDEX in SQL, the index allows duplicate values
+        transaction.createIndex(tableName, Collections.singletonList(columnName), false, true);
         out.printf("CREATE INDEX ON %s (%s)\n", tableName, columnName);
     }
 
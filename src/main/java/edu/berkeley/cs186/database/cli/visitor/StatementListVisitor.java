@@ -3,6 +3,8 @@ package edu.berkeley.cs186.database.cli.visitor;
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.Transaction;
 import edu.berkeley.cs186.database.cli.parser.*;
+import edu.berkeley.cs186.database.concurrency.DeadlockException;
+import edu.berkeley.cs186.database.concurrency.LockTimeoutException;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
@@ -63,7 +65,13 @@ public class StatementListVisitor extends RookieParserDefaultVisitor {
                 default:
                     if (currTransaction == null) {
                         try (Transaction tmp = database.beginTransaction()) {
-                            visitor.execute(tmp, out);
+                            try {
+                                visitor.execute(tmp, out);
+                            } catch (LockTimeoutException e) {
+                                // don't let close() commit the partial statement
+                                tmp.rollback();
+                                throw e;
+                            }
                             tmp.commit();
                         } catch (Exception e) {
                             e.printStackTrace(this.out);
@@ -72,6 +80,15 @@ public class StatementListVisitor extends RookieParserDefaultVisitor {
                     } else {
                         try {
                             visitor.execute(currTransaction, out);
+                        } catch (DeadlockException e) {
+                            // the transaction was rolled back before the exception was thrown
+                            this.out.println(e.getMessage());
+                            currTransaction = null;
+                            this.out.println("ROLLBACK");
+                        } catch (LockTimeoutException e) {
+                            // the transaction keeps its locks, and may retry
+                            this.out.println(e.getMessage());
+                            this.out.println("Operation failed.");
                         } catch (Exception e) {
                             e.printStackTrace(this.out);
                             this.out.println("Operation failed.");
@@ -0,0 +1,13 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * Thrown to a transaction chosen to be aborted to break (or prevent) a
+ * deadlock. The lock it requested was not granted, and the transaction should
+ * be rolled back.
+ */
+@SuppressWarnings("serial")
+public class DeadlockException extends RuntimeException {
+    DeadlockException(String message) {
+        super(message);
+    }
+}
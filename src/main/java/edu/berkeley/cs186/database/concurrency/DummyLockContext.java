@@ -32,6 +32,14 @@ public class DummyLockContext extends LockContext {
     @Override
     public void acquire(TransactionContext transaction, LockType lockType) { }
 
+    @Override
+    public void acquire(TransactionContext transaction, LockType lockType, long timeoutMillis) { }
+
+    @Override
+    public boolean tryAcquire(TransactionContext transaction, LockType lockType) {
+        return true;
+    }
+
     @Override
     public void release(TransactionContext transaction) { }
 
@@ -33,6 +33,16 @@ public class DummyLockManager extends LockManager {
     public void acquire(TransactionContext transaction, ResourceName name,
                         LockType lockType) throws DuplicateLockRequestException { }
 
+    @Override
+    public void acquire(TransactionContext transaction, ResourceName name,
+                        LockType lockType, long timeoutMillis) throws DuplicateLockRequestException { }
+
+    @Override
+    public boolean tryAcquire(TransactionContext transaction, ResourceName name,
+                              LockType lockType) throws DuplicateLockRequestException {
+        return true;
+    }
+
     @Override
     public void release(TransactionContext transaction, ResourceName name)
     throws NoLockHeldException { }
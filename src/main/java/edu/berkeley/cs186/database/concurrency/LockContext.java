@@ -15,6 +15,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * methods at a certain point in the hierarchy (database, table X, etc.)
  */
 public class LockContext {
+    // Contexts with fewer children than this are never escalated by the
+    // fraction of their children locked (see setEscalationThreshold)
+    public static final int MIN_ESCALATION_CAPACITY = 10;
+
     // You should not remove any of these fields. You may add additional
     // fields/methods as you see fit.
 
@@ -41,6 +45,18 @@ public class LockContext {
     // Whether or not any new child LockContexts should be marked readonly.
     protected boolean childLocksDisabled;
 
+    // The number of children of this context, if it differs from the number
+    // of child contexts created: a table only has contexts for the pages
+    // locked so far, but its capacity is its number of pages. Negative if
+    // not set.
+    protected volatile int capacity = -1;
+
+    // A transaction holding locks on at least escalationChildLocks children,
+    // or on at least escalationChildFraction of them, has its locks escalated
+    // to this context before it locks another child (0 disables either).
+    private volatile int escalationChildLocks = 0;
+    private volatile double escalationChildFraction = 0;
+
     public LockContext(LockManager lockman, LockContext parent, String name) {
         this(lockman, parent, name, false);
     }
@@ -109,6 +125,58 @@ public class LockContext {
      */
     public void acquire(TransactionContext transaction, LockType lockType)
             throws InvalidLockException, DuplicateLockRequestException {
+        checkAcquire(transaction, lockType);
+        lockman.acquire(transaction, getResourceName(), lockType);
+        if (parent != null) {
+            parentContext().updateChildLockNum(transaction.getTransNum(), 1);
+        }
+    }
+
+    /**
+     * Acquire a `lockType` lock, for transaction `transaction`, waiting at
+     * most `timeoutMillis` milliseconds (0 to not wait at all, or a negative
+     * number to wait indefinitely) instead of the transaction's lock wait
+     * timeout.
+     *
+     * @throws InvalidLockException if the request is invalid
+     * @throws DuplicateLockRequestException if a lock is already held by the
+     * transaction.
+     * @throws UnsupportedOperationException if context is readonly
+     * @throws LockTimeoutException if the lock was not granted in time
+     */
+    public void acquire(TransactionContext transaction, LockType lockType, long timeoutMillis)
+            throws InvalidLockException, DuplicateLockRequestException {
+        checkAcquire(transaction, lockType);
+        lockman.acquire(transaction, getResourceName(), lockType, timeoutMillis);
+        if (parent != null) {
+            parentContext().updateChildLockNum(transaction.getTransNum(), 1);
+        }
+    }
+
+    /**
+     * Acquire a `lockType` lock, for transaction `transaction`, only if it can
+     * be granted without waiting.
+     *
+     * @return whether the lock was acquired
+     * @throws InvalidLockException if the request is invalid
+     * @throws DuplicateLockRequestException if a lock is already held by the
+     * transaction.
+     * @throws UnsupportedOperationException if context is readonly
+     */
+    public boolean tryAcquire(TransactionContext transaction, LockType lockType)
+            throws InvalidLockException, DuplicateLockRequestException {
+        checkAcquire(transaction, lockType);
+        if (!lockman.tryAcquire(transaction, getResourceName(), lockType)) {
+            return false;
+        }
+        if (parent != null) {
+            parentContext().updateChildLockNum(transaction.getTransNum(), 1);
+        }
+        return true;
+    }
+
+    private void checkAcquire(TransactionContext transaction, LockType lockType)
+            throws InvalidLockException {
         if (readonly) {
             throw new UnsupportedOperationException("The context is readonly.");
         }
@@ -123,10 +191,6 @@ public class LockContext {
                 throw new InvalidLockException("parent's lock is not enough for such a child lock.");
             }
         }
-        lockman.acquire(transaction, getResourceName(), lockType);
-        if (parent != null) {
-            parentContext().updateChildLockNum(transaction.getTransNum(), 1);
-        }
     }
 
     /**
@@ -190,9 +254,12 @@ public class LockContext {
         LockType existingLockType = getExplicitLockType(transaction);
         if (newLockType.equals(LockType.SIX) && (existingLockType.equals(LockType.IS) || existingLockType.equals(LockType.IX))) {
             List<ResourceName> resourceNames = sisDescendants(transaction);
+            List<ResourceName> releaseNames = new ArrayList<>(resourceNames);
+            releaseNames.add(this.name);
+            // child lock counts are only updated once the locks are released,
+            // as the request may be aborted (e.g. to break a deadlock)
+            lockman.acquireAndRelease(transaction, this.name, newLockType, releaseNames);
             updateChildLockNum(transaction.getTransNum(), -1, resourceNames);
-            resourceNames.add(this.name);
-            lockman.acquireAndRelease(transaction, this.name, newLockType, resourceNames);
         } else {
             lockman.promote(transaction, this.name, newLockType);
         }
@@ -245,7 +312,6 @@ public class LockContext {
                     releaseNames.add(lock.name);
                 }
             }
-            updateChildLockNum(transaction.getTransNum(), -1, releaseNames);
 
             LockType targetType;
             if (existingLockType.equals(LockType.IS) || existingLockType.equals(LockType.S)) {
@@ -258,9 +324,11 @@ public class LockContext {
                     lockman.release(transaction, releaseName);
                 }
             } else {
-                releaseNames.add(this.name);
-                lockman.acquireAndRelease(transaction, this.name, targetType, releaseNames);
+                List<ResourceName> acquireReleaseNames = new ArrayList<>(releaseNames);
+                acquireReleaseNames.add(this.name);
+                lockman.acquireAndRelease(transaction, this.name, targetType, acquireReleaseNames);
             }
+            updateChildLockNum(transaction.getTransNum(), -1, releaseNames);
         }
     }
 
@@ -367,6 +435,65 @@ public class LockContext {
         return childContext(Long.toString(name));
     }
 
+    /**
+     * Sets the number of children of this context, e.g. the number of pages
+     * of a table, for when contexts are not created for all of them.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the number of children of this context.
+     */
+    public int capacity() {
+        int capacity = this.capacity;
+        return capacity < 0 ? this.children.size() : capacity;
+    }
+
+    /**
+     * Gets the fraction of children of this context `transaction` holds
+     * locks on.
+     */
+    public double saturation(TransactionContext transaction) {
+        int capacity = capacity();
+        return capacity == 0 ? 0 : (double) getNumChildren(transaction) / capacity;
+    }
+
+    /**
+     * Makes LockUtil#ensureSufficientLockHeld escalate a transaction's locks
+     * to this context when the transaction is about to lock another child,
+     * once it holds locks on at least `childLocks` children, or on at least
+     * `childFraction` of them (only for contexts with at least
+     * MIN_ESCALATION_CAPACITY children). 0 disables either threshold; both
+     * are disabled by default.
+     */
+    public void setEscalationThreshold(int childLocks, double childFraction) {
+        this.escalationChildLocks = childLocks;
+        this.escalationChildFraction = childFraction;
+    }
+
+    /**
+     * Returns whether `transaction`'s locks on children of this context
+     * reached an escalation threshold (see setEscalationThreshold).
+     */
+    public boolean shouldEscalate(TransactionContext transaction) {
+        if (readonly) {
+            return false;
+        }
+        int numChildren = getNumChildren(transaction);
+        if (numChildren == 0) {
+            return false;
+        }
+        int childLocks = this.escalationChildLocks;
+        if (childLocks > 0 && numChildren >= childLocks) {
+            return true;
+        }
+        double childFraction = this.escalationChildFraction;
+        return childFraction > 0 && capacity() >= MIN_ESCALATION_CAPACITY
+               && saturation(transaction) >= childFraction;
+    }
+
     /**
      * Gets the number of locks held on children a single transaction.
      */
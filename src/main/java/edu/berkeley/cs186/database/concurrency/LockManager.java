@@ -3,6 +3,10 @@ package edu.berkeley.cs186.database.concurrency;
 import edu.berkeley.cs186.database.TransactionContext;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * LockManager maintains the bookkeeping for what transactions have what locks
@@ -29,16 +33,88 @@ import java.util.*;
  *    queue: S(A) X(A) S(A)
  * only the first request should be removed from the queue when the queue is
  * processed.
+ *
+ * Resource entries are split into shards by the hash of their resource name,
+ * each guarded by its own latch, so that operations on unrelated resources do
+ * not contend. An operation on a single resource latches only that resource's
+ * shard. Operations that release locks on other resources (acquire-and-release,
+ * and releases whose queue holds acquire-and-release requests) may cascade
+ * across shards, and latch every shard, in order, instead.
+ *
+ * Blocked requests wait until granted, so transactions waiting on each other
+ * deadlock. Deadlocks can be broken by a deadlock detector, which periodically
+ * looks for cycles in the waits-for graph of blocked transactions and cancels
+ * the request of one transaction of each cycle (see startDeadlockDetector), or
+ * prevented with wait-die or wound-wait (see setDeadlockPrevention). Either
+ * way, the transaction chosen gets a DeadlockException from its lock request,
+ * and must be rolled back (Database transactions roll themselves back before
+ * the exception reaches their caller).
+ *
+ * A transaction may also bound how long its requests wait (see
+ * TransactionContext#setLockWaitTimeout): a request not granted in time is
+ * withdrawn, and fails with a LockTimeoutException.
  */
 public class LockManager {
+    // Number of shards resource entries are split into by default
+    public static final int DEFAULT_SHARDS = 64;
+
     // transactionLocks is a mapping from transaction number to a list of lock
-    // objects held by that transaction.
-    private Map<Long, List<Lock>> transactionLocks = new HashMap<>();
+    // objects held by that transaction. The lists are synchronized, since
+    // locks of a transaction may be granted or released under the latch of
+    // any shard.
+    private Map<Long, List<Lock>> transactionLocks = new ConcurrentHashMap<>();
 
-    // resourceEntries is a mapping from resource names to a ResourceEntry
-    // object, which contains a list of Locks on the object, as well as a
+    // shards split up the mapping from resource names to ResourceEntry
+    // objects, which contain a list of Locks on the object, as well as a
     // queue for requests on that resource.
-    private Map<ResourceName, ResourceEntry> resourceEntries = new HashMap<>();
+    private final Shard[] shards;
+
+    // Transactions blocked on a lock request, mapped to the resource whose
+    // queue holds the request
+    private final Map<Long, ResourceName> waitingOn = new ConcurrentHashMap<>();
+
+    // Transactions wounded under WOUND_WAIT while running, which abort instead
+    // of blocking on their next lock request
+    private final Set<Long> woundedTransactions = ConcurrentHashMap.newKeySet();
+
+    private volatile DeadlockPrevention deadlockPrevention = DeadlockPrevention.NONE;
+    private volatile DeadlockVictim deadlockVictim = DeadlockVictim.YOUNGEST;
+
+    // Background thread breaking deadlocks, or null if not started
+    private DeadlockDetector deadlockDetector;
+
+    /**
+     * Schemes for preventing deadlocks when a lock request would block. Older
+     * transactions are the ones with lower transaction numbers.
+     */
+    public enum DeadlockPrevention {
+        // requests always wait
+        NONE,
+        // a request that would wait for an older transaction aborts its
+        // transaction instead
+        WAIT_DIE,
+        // a request that would wait for younger transactions aborts them
+        // (if running, at their next request that blocks) and then waits
+        WOUND_WAIT
+    }
+
+    /**
+     * Which transaction of a deadlock the deadlock detector aborts.
+     */
+    public enum DeadlockVictim {
+        // the youngest transaction (highest transaction number)
+        YOUNGEST,
+        // the transaction holding the fewest locks, as the one that has likely
+        // done the least work; the youngest of those on ties
+        FEWEST_LOCKS
+    }
+
+    // A Shard maps the resource names hashing to it to their ResourceEntry.
+    // entries may only be accessed while holding latch.
+    private static class Shard {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<ResourceName, ResourceEntry> entries = new HashMap<>();
+    }
 
     // A ResourceEntry contains the list of locks on a resource, as well as
     // the queue for requests for locks on the resource.
@@ -80,13 +156,8 @@ public class LockManager {
             }
 
             locks.add(lock);
-            if (transactionLocks.containsKey(lock.transactionNum)) {
-                transactionLocks.get(lock.transactionNum).add(lock);
-            } else {
-                List<Lock> lockList = new ArrayList<>();
-                lockList.add(lock);
-                transactionLocks.put(lock.transactionNum, lockList);
-            }
+            transactionLocks.computeIfAbsent(lock.transactionNum,
+                    t -> Collections.synchronizedList(new ArrayList<>())).add(lock);
         }
 
         /**
@@ -111,6 +182,19 @@ public class LockManager {
             }
         }
 
+        /**
+         * Returns whether processing the queue may release locks on other
+         * resources, in which case every shard must be latched to process it.
+         */
+        public boolean queueReleasesLocks() {
+            for (LockRequest request : waitingQueue) {
+                if (!request.releasedLocks.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         /**
          * Grant locks to requests from front to back of the queue, stopping
          * when the next lock cannot be granted. Once a request is completely
@@ -126,6 +210,7 @@ public class LockManager {
                         getResourceEntry(releaseLock.name).releaseLock(releaseLock);
                     }
                     waitingQueue.removeFirst();
+                    waitingOn.remove(request.transaction.getTransNum());
                     request.transaction.unblock();
                 } else {
                     return;
@@ -133,6 +218,27 @@ public class LockManager {
             }
         }
 
+        /**
+         * Adds to `blockers` the transactions a request for `lock` waits for:
+         * transactions holding conflicting locks, and transactions with one of
+         * the first `ahead` requests of the queue.
+         */
+        public void addBlockers(Set<Long> blockers, Lock lock, int ahead) {
+            for (Lock held : locks) {
+                if (!held.transactionNum.equals(lock.transactionNum)
+                        && !LockType.compatible(lock.lockType, held.lockType)) {
+                    blockers.add(held.transactionNum);
+                }
+            }
+            Iterator<LockRequest> requests = waitingQueue.iterator();
+            for (int i = 0; i < ahead && requests.hasNext(); ++i) {
+                long transNum = requests.next().transaction.getTransNum();
+                if (transNum != lock.transactionNum) {
+                    blockers.add(transNum);
+                }
+            }
+        }
+
         /**
          * Gets the type of lock `transaction` has on this resource.
          */
@@ -155,13 +261,74 @@ public class LockManager {
     // You should not modify or use this directly.
     private Map<String, LockContext> contexts = new HashMap<>();
 
+    public LockManager() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param numShards number of shards to split resource entries into; with
+     * a single shard, all lock traffic goes through one latch
+     */
+    public LockManager(int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("need at least one shard");
+        }
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; ++i) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Returns the shard holding the resourceEntry corresponding to `name`.
+     */
+    private Shard getShard(ResourceName name) {
+        return shards[Math.floorMod(name.hashCode(), shards.length)];
+    }
+
+    /**
+     * Latches the shard of `name`, and returns it.
+     */
+    private Shard latch(ResourceName name) {
+        Shard shard = getShard(name);
+        shard.latch.lock();
+        return shard;
+    }
+
+    /**
+     * Latches every shard, in order.
+     */
+    private void latchAll() {
+        for (Shard shard : shards) {
+            shard.latch.lock();
+        }
+    }
+
+    private void unlatchAll() {
+        for (int i = shards.length - 1; i >= 0; --i) {
+            shards[i].latch.unlock();
+        }
+    }
+
     /**
      * Helper method to fetch the resourceEntry corresponding to `name`.
      * Inserts a new (empty) resourceEntry into the map if no entry exists yet.
+     * The shard of `name` must be latched.
      */
     private ResourceEntry getResourceEntry(ResourceName name) {
-        resourceEntries.putIfAbsent(name, new ResourceEntry());
-        return resourceEntries.get(name);
+        return getShard(name).entries.computeIfAbsent(name, n -> new ResourceEntry());
+    }
+
+    /**
+     * Returns the type of lock `transaction` has on `name`. The shard of
+     * `name` must be latched.
+     */
+    private LockType getLatchedLockType(TransactionContext transaction, ResourceName name) {
+        ResourceEntry resourceEntry = getShard(name).entries.get(name);
+        if (resourceEntry == null) {
+            return LockType.NL;
+        }
+        return resourceEntry.getTransactionLockType(transaction.getTransNum());
     }
 
     /**
@@ -190,14 +357,16 @@ public class LockManager {
     public void acquireAndRelease(TransactionContext transaction, ResourceName name,
                                   LockType lockType, List<ResourceName> releaseNames)
             throws DuplicateLockRequestException, NoLockHeldException {
+        long timeoutMillis = transaction.getLockWaitTimeout();
         boolean shouldBlock = false;
         List<Lock> releaseLocks = new ArrayList<>();
-        synchronized (this) {
-            if (getLockType(transaction, name).equals(lockType)) {
+        latchAll();
+        try {
+            if (getLatchedLockType(transaction, name).equals(lockType)) {
                 throw new DuplicateLockRequestException("Required lock has been here.");
             }
             for (ResourceName releaseName : releaseNames) {
-                LockType existingLockType = getLockType(transaction, releaseName);
+                LockType existingLockType = getLatchedLockType(transaction, releaseName);
                 Lock releaseLock = new Lock(releaseName, existingLockType, transaction.getTransNum());
                 releaseLocks.add(releaseLock);
                 if (existingLockType.equals(LockType.NL)) {
@@ -213,14 +382,19 @@ public class LockManager {
                     getResourceEntry(releaseLock.name).releaseLock(releaseLock);
                 }
             } else {
+                if (timeoutMillis == 0) {
+                    throw timedOut(transaction, name, timeoutMillis);
+                }
+                woundLatched(checkPrevention(transaction, resourceEntry, requiredLock, 0));
                 LockRequest request = new LockRequest(transaction, requiredLock, releaseLocks);
-                resourceEntry.addToQueue(request, true);
+                enqueue(resourceEntry, request, true);
                 shouldBlock = true;
-                transaction.prepareBlock();
             }
+        } finally {
+            unlatchAll();
         }
         if (shouldBlock) {
-            transaction.block();
+            waitFor(transaction, name, timeoutMillis);
         }
     }
 
@@ -237,26 +411,88 @@ public class LockManager {
      */
     public void acquire(TransactionContext transaction, ResourceName name,
                         LockType lockType) throws DuplicateLockRequestException {
-        boolean shouldBlock = false;
-        synchronized (this) {
-            if (!getLockType(transaction, name).equals(LockType.NL)) {
-                throw new DuplicateLockRequestException("A lock on `name` is held by `transaction`");
-            }
+        acquire(transaction, name, lockType, transaction.getLockWaitTimeout());
+    }
 
-            ResourceEntry resourceEntry = getResourceEntry(name);
-            Lock requiredLock = new Lock(name, lockType, transaction.getTransNum());
-            if (resourceEntry.checkCompatible(lockType, transaction.getTransNum()) && resourceEntry.waitingQueue.isEmpty()) {
-                resourceEntry.grantOrUpdateLock(requiredLock);
-            } else {
-                LockRequest request = new LockRequest(transaction, requiredLock);
-                resourceEntry.addToQueue(request, false);
-                shouldBlock = true;
-                transaction.prepareBlock();
+    /**
+     * Acquire a `lockType` lock on `name`, for transaction `transaction`,
+     * waiting at most `timeoutMillis` milliseconds (0 to not wait at all, or
+     * a negative number to wait indefinitely) instead of the transaction's
+     * lock wait timeout.
+     *
+     * @throws DuplicateLockRequestException if a lock on `name` is held by
+     * `transaction`
+     * @throws LockTimeoutException if the lock was not granted in time
+     */
+    public void acquire(TransactionContext transaction, ResourceName name,
+                        LockType lockType, long timeoutMillis) throws DuplicateLockRequestException {
+        Set<Long> toWound;
+        do {
+            Shard shard = latch(name);
+            try {
+                if (tryGrantLatched(transaction, name, lockType)) {
+                    return;
+                }
+                if (timeoutMillis == 0) {
+                    throw timedOut(transaction, name, timeoutMillis);
+                }
+
+                ResourceEntry resourceEntry = getResourceEntry(name);
+                Lock requiredLock = new Lock(name, lockType, transaction.getTransNum());
+                toWound = checkPrevention(transaction, resourceEntry, requiredLock,
+                        resourceEntry.waitingQueue.size());
+                if (toWound.isEmpty()) {
+                    LockRequest request = new LockRequest(transaction, requiredLock);
+                    enqueue(resourceEntry, request, false);
+                }
+            } finally {
+                shard.latch.unlock();
             }
+            // wounding may cancel requests on other shards, so is done with
+            // every shard latched before trying again
+            wound(toWound);
+        } while (!toWound.isEmpty());
+        waitFor(transaction, name, timeoutMillis);
+    }
+
+    /**
+     * Acquire a `lockType` lock on `name`, for transaction `transaction`, only
+     * if it can be granted immediately. The transaction never blocks.
+     *
+     * @return whether the lock was acquired
+     * @throws DuplicateLockRequestException if a lock on `name` is held by
+     * `transaction`
+     */
+    public boolean tryAcquire(TransactionContext transaction, ResourceName name,
+                              LockType lockType) throws DuplicateLockRequestException {
+        Shard shard = latch(name);
+        try {
+            return tryGrantLatched(transaction, name, lockType);
+        } finally {
+            shard.latch.unlock();
         }
-        if (shouldBlock) {
-            transaction.block();
+    }
+
+    /**
+     * Grants `transaction` a `lockType` lock on `name` if it is compatible
+     * with the locks held and no request is queued. The shard of `name` must
+     * be latched.
+     *
+     * @return whether the lock was granted
+     * @throws DuplicateLockRequestException if a lock on `name` is held by
+     * `transaction`
+     */
+    private boolean tryGrantLatched(TransactionContext transaction, ResourceName name,
+                                    LockType lockType) throws DuplicateLockRequestException {
+        if (!getLatchedLockType(transaction, name).equals(LockType.NL)) {
+            throw new DuplicateLockRequestException("A lock on `name` is held by `transaction`");
+        }
+        ResourceEntry resourceEntry = getResourceEntry(name);
+        if (resourceEntry.checkCompatible(lockType, transaction.getTransNum()) && resourceEntry.waitingQueue.isEmpty()) {
+            resourceEntry.grantOrUpdateLock(new Lock(name, lockType, transaction.getTransNum()));
+            return true;
         }
+        return false;
     }
 
     /**
@@ -271,14 +507,39 @@ public class LockManager {
      */
     public void release(TransactionContext transaction, ResourceName name)
             throws NoLockHeldException {
-        synchronized (this) {
-            ResourceEntry resourceEntry = getResourceEntry(name);
-            LockType releaseLockType = resourceEntry.getTransactionLockType(transaction.getTransNum());
-            if (releaseLockType.equals(LockType.NL)) {
-                throw new NoLockHeldException("No lock on `name` is held by `transaction'.");
-            } else {
-                Lock releaseLock = new Lock(name, releaseLockType, transaction.getTransNum());
-                resourceEntry.releaseLock(releaseLock);
+        Shard shard = latch(name);
+        try {
+            if (!getResourceEntry(name).queueReleasesLocks()) {
+                releaseLatched(transaction, name);
+                return;
+            }
+        } finally {
+            shard.latch.unlock();
+        }
+        // Processing the queue may release locks on other resources
+        latchAll();
+        try {
+            releaseLatched(transaction, name);
+        } finally {
+            unlatchAll();
+        }
+    }
+
+    /**
+     * Releases `transaction`'s lock on `name`, with every shard the release
+     * may touch latched.
+     */
+    private void releaseLatched(TransactionContext transaction, ResourceName name)
+            throws NoLockHeldException {
+        ResourceEntry resourceEntry = getResourceEntry(name);
+        LockType releaseLockType = resourceEntry.getTransactionLockType(transaction.getTransNum());
+        if (releaseLockType.equals(LockType.NL)) {
+            throw new NoLockHeldException("No lock on `name` is held by `transaction'.");
+        } else {
+            Lock releaseLock = new Lock(name, releaseLockType, transaction.getTransNum());
+            resourceEntry.releaseLock(releaseLock);
+            if (transactionLocks.get(transaction.getTransNum()).isEmpty()) {
+                woundedTransactions.remove(transaction.getTransNum());
             }
         }
     }
@@ -307,58 +568,442 @@ public class LockManager {
     public void promote(TransactionContext transaction, ResourceName name,
                         LockType newLockType)
             throws DuplicateLockRequestException, NoLockHeldException, InvalidLockException {
-        boolean shouldBlock = false;
-        synchronized (this) {
-            ResourceEntry resourceEntry = getResourceEntry(name);
-            LockType existingLockType = resourceEntry.getTransactionLockType(transaction.getTransNum());
+        long timeoutMillis = transaction.getLockWaitTimeout();
+        Set<Long> toWound;
+        do {
+            Shard shard = latch(name);
+            try {
+                ResourceEntry resourceEntry = getResourceEntry(name);
+                LockType existingLockType = resourceEntry.getTransactionLockType(transaction.getTransNum());
+
+                if (existingLockType.equals(newLockType)) {
+                    throw new DuplicateLockRequestException("`transaction` already has a `newLockType` lock on `name`.");
+                }
+                if (existingLockType.equals(LockType.NL)) {
+                    throw new NoLockHeldException("No lock on `name` is held by `transaction'.");
+                }
+                if (!LockType.substitutable(newLockType, existingLockType)) {
+                    throw new InvalidLockException("The requested lock type is not a promotion");
+                }
 
-            if (existingLockType.equals(newLockType)) {
-                throw new DuplicateLockRequestException("`transaction` already has a `newLockType` lock on `name`.");
+                Lock newLock = new Lock(name, newLockType, transaction.getTransNum());
+                if (resourceEntry.checkCompatible(newLockType, transaction.getTransNum())) {
+                    resourceEntry.grantOrUpdateLock(newLock);
+                    return;
+                }
+                if (timeoutMillis == 0) {
+                    throw timedOut(transaction, name, timeoutMillis);
+                }
+                toWound = checkPrevention(transaction, resourceEntry, newLock, 0);
+                if (toWound.isEmpty()) {
+                    LockRequest request = new LockRequest(transaction, newLock);
+                    enqueue(resourceEntry, request, true);
+                }
+            } finally {
+                shard.latch.unlock();
             }
-            if (existingLockType.equals(LockType.NL)) {
-                throw new NoLockHeldException("No lock on `name` is held by `transaction'.");
+            wound(toWound);
+        } while (!toWound.isEmpty());
+        waitFor(transaction, name, timeoutMillis);
+    }
+
+    /**
+     * Return the type of lock `transaction` has on `name` or NL if no lock is
+     * held.
+     */
+    public LockType getLockType(TransactionContext transaction, ResourceName name) {
+        Shard shard = latch(name);
+        try {
+            return getLatchedLockType(transaction, name);
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Returns the list of locks held on `name`, in order of acquisition.
+     */
+    public List<Lock> getLocks(ResourceName name) {
+        Shard shard = latch(name);
+        try {
+            ResourceEntry resourceEntry = shard.entries.get(name);
+            return resourceEntry == null ? new ArrayList<>() : new ArrayList<>(resourceEntry.locks);
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Returns the list of locks held by `transaction`, in order of acquisition.
+     */
+    public List<Lock> getLocks(TransactionContext transaction) {
+        List<Lock> locks = transactionLocks.get(transaction.getTransNum());
+        if (locks == null) {
+            return new ArrayList<>();
+        }
+        synchronized (locks) {
+            return new ArrayList<>(locks);
+        }
+    }
+
+    // Waiting //////////////////////////////////////////////////////////////////
+
+    /**
+     * Blocks `transaction`, which has a request queued on `name` and is
+     * prepared to block, until the request is granted or `timeoutMillis`
+     * milliseconds elapse (never, if negative). A request that times out is
+     * withdrawn.
+     *
+     * @throws LockTimeoutException if the request timed out
+     */
+    private void waitFor(TransactionContext transaction, ResourceName name, long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            transaction.block();
+            return;
+        }
+        if (transaction.block(TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) {
+            return;
+        }
+        // Withdrawing the request may let acquire-and-release requests behind
+        // it through, which release locks on other resources
+        Shard shard = latch(name);
+        boolean latchedAll = getResourceEntry(name).queueReleasesLocks();
+        if (latchedAll) {
+            shard.latch.unlock();
+            latchAll();
+        }
+        try {
+            removeRequest(transaction.getTransNum(), name);
+            // the request may have been granted (or cancelled to break a
+            // deadlock) since the timeout, in which case it was not queued
+            if (transaction.cancelBlock()) {
+                return;
+            }
+        } finally {
+            if (latchedAll) {
+                unlatchAll();
+            } else {
+                shard.latch.unlock();
+            }
+        }
+        throw timedOut(transaction, name, timeoutMillis);
+    }
+
+    private static LockTimeoutException timedOut(TransactionContext transaction, ResourceName name,
+                                                 long timeoutMillis) {
+        return new LockTimeoutException("T" + transaction.getTransNum() + " timed out after "
+                                        + timeoutMillis + "ms waiting for a lock on " + name);
+    }
+
+    /**
+     * Removes the queued request of `transNum` on `name`, if any, and
+     * processes the queue. The shards the queue may release locks on must be
+     * latched.
+     *
+     * @return the request removed, or null if there was none
+     */
+    private LockRequest removeRequest(long transNum, ResourceName name) {
+        ResourceEntry resourceEntry = getResourceEntry(name);
+        Iterator<LockRequest> requests = resourceEntry.waitingQueue.iterator();
+        while (requests.hasNext()) {
+            LockRequest request = requests.next();
+            if (request.transaction.getTransNum() == transNum) {
+                requests.remove();
+                waitingOn.remove(transNum);
+                // requests behind the removed one may now be grantable
+                resourceEntry.processQueue();
+                return request;
             }
-            if (!LockType.substitutable(newLockType, existingLockType)) {
-                throw new InvalidLockException("The requested lock type is not a promotion");
+        }
+        return null;
+    }
+
+    // Deadlocks ////////////////////////////////////////////////////////////////
+
+    /**
+     * Sets the scheme used to prevent deadlocks when a lock request would
+     * block (NONE by default).
+     */
+    public void setDeadlockPrevention(DeadlockPrevention deadlockPrevention) {
+        this.deadlockPrevention = deadlockPrevention;
+    }
+
+    /**
+     * Sets which transaction of a deadlock the deadlock detector aborts
+     * (YOUNGEST by default).
+     */
+    public void setDeadlockVictim(DeadlockVictim deadlockVictim) {
+        this.deadlockVictim = deadlockVictim;
+    }
+
+    /**
+     * Queues `request` on `resourceEntry`, and prepares its transaction to
+     * block. The shard of the resource must be latched.
+     *
+     * @throws DeadlockException if the transaction was wounded, and so must
+     * not wait
+     */
+    private void enqueue(ResourceEntry resourceEntry, LockRequest request, boolean addFront) {
+        long transNum = request.transaction.getTransNum();
+        if (woundedTransactions.remove(transNum)) {
+            throw new DeadlockException("T" + transNum + " was wounded by an older transaction");
+        }
+        resourceEntry.addToQueue(request, addFront);
+        waitingOn.put(transNum, request.lock.name);
+        request.transaction.prepareBlock();
+    }
+
+    /**
+     * Applies the deadlock prevention scheme to a request by `transaction`
+     * for `lock` that would wait on `resourceEntry` behind its first `ahead`
+     * queued requests. The shard of the resource must be latched.
+     *
+     * @return younger transactions the request would wait for that must be
+     * wounded first (only under WOUND_WAIT), excluding those already wounded
+     * @throws DeadlockException if the request would wait for an older
+     * transaction under WAIT_DIE
+     */
+    private Set<Long> checkPrevention(TransactionContext transaction, ResourceEntry resourceEntry,
+                                      Lock lock, int ahead) {
+        DeadlockPrevention prevention = deadlockPrevention;
+        if (prevention == DeadlockPrevention.NONE) {
+            return Collections.emptySet();
+        }
+        long transNum = transaction.getTransNum();
+        Set<Long> blockers = new HashSet<>();
+        resourceEntry.addBlockers(blockers, lock, ahead);
+        Set<Long> toWound = new HashSet<>();
+        for (long blocker : blockers) {
+            if (prevention == DeadlockPrevention.WAIT_DIE && blocker < transNum) {
+                throw new DeadlockException("T" + transNum + " would wait for older T" + blocker);
             }
+            if (prevention == DeadlockPrevention.WOUND_WAIT && blocker > transNum
+                    && !woundedTransactions.contains(blocker)) {
+                toWound.add(blocker);
+            }
+        }
+        return toWound;
+    }
+
+    /**
+     * Wounds the transactions in `toWound`, latching every shard.
+     */
+    private void wound(Set<Long> toWound) {
+        if (toWound.isEmpty()) {
+            return;
+        }
+        latchAll();
+        try {
+            woundLatched(toWound);
+        } finally {
+            unlatchAll();
+        }
+    }
 
-            Lock newLock = new Lock(name, newLockType, transaction.getTransNum());
-            if (resourceEntry.checkCompatible(newLockType, transaction.getTransNum())) {
-                resourceEntry.grantOrUpdateLock(newLock);
+    /**
+     * Wounds the transactions in `toWound`: the requests of blocked ones are
+     * cancelled, and running ones abort at their next request that blocks.
+     * Every shard must be latched.
+     */
+    private void woundLatched(Set<Long> toWound) {
+        for (long transNum : toWound) {
+            ResourceName name = waitingOn.get(transNum);
+            if (name != null) {
+                cancelRequest(transNum, name, "T" + transNum + " was wounded by an older transaction");
             } else {
-                LockRequest request = new LockRequest(transaction, newLock);
-                resourceEntry.addToQueue(request, true);
-                shouldBlock = true;
-                transaction.prepareBlock();
+                woundedTransactions.add(transNum);
             }
         }
-        if (shouldBlock) {
-            transaction.block();
+    }
+
+    /**
+     * Cancels the queued request of `transNum` on `name`, and unblocks its
+     * transaction with a DeadlockException. Every shard must be latched.
+     */
+    private void cancelRequest(long transNum, ResourceName name, String message) {
+        LockRequest request = removeRequest(transNum, name);
+        if (request != null) {
+            woundedTransactions.remove(transNum);
+            request.transaction.unblock(new DeadlockException(message));
         }
     }
 
     /**
-     * Return the type of lock `transaction` has on `name` or NL if no lock is
-     * held.
+     * Looks for deadlocks among blocked transactions, and breaks each one
+     * found by cancelling the request of one of its transactions (chosen
+     * according to the DeadlockVictim setting), which gets a DeadlockException.
+     *
+     * A blocked transaction waits for the transactions holding conflicting
+     * locks on the resource it requested, and for those with requests ahead
+     * of its own in the resource's queue.
+     *
+     * @return numbers of the transactions aborted
      */
-    public synchronized LockType getLockType(TransactionContext transaction, ResourceName name) {
-        ResourceEntry resourceEntry = getResourceEntry(name);
-        return resourceEntry.getTransactionLockType(transaction.getTransNum());
+    public List<Long> detectDeadlocks() {
+        List<Long> victims = new ArrayList<>();
+        latchAll();
+        try {
+            List<Long> cycle;
+            while ((cycle = findCycle(buildWaitsForGraph())) != null) {
+                long victim = chooseVictim(cycle);
+                cancelRequest(victim, waitingOn.get(victim), "T" + victim + " aborted to break deadlock " + cycle);
+                victims.add(victim);
+            }
+        } finally {
+            unlatchAll();
+        }
+        return victims;
     }
 
     /**
-     * Returns the list of locks held on `name`, in order of acquisition.
+     * Returns the waits-for graph of blocked transactions, as a mapping from
+     * each blocked transaction to the transactions it waits for. Every shard
+     * must be latched.
      */
-    public synchronized List<Lock> getLocks(ResourceName name) {
-        return new ArrayList<>(resourceEntries.getOrDefault(name, new ResourceEntry()).locks);
+    private Map<Long, Set<Long>> buildWaitsForGraph() {
+        Map<Long, Set<Long>> waitsFor = new HashMap<>();
+        for (Shard shard : shards) {
+            for (ResourceEntry resourceEntry : shard.entries.values()) {
+                int ahead = 0;
+                for (LockRequest request : resourceEntry.waitingQueue) {
+                    Set<Long> blockers = waitsFor.computeIfAbsent(request.transaction.getTransNum(),
+                            t -> new HashSet<>());
+                    resourceEntry.addBlockers(blockers, request.lock, ahead);
+                    ++ahead;
+                }
+            }
+        }
+        return waitsFor;
     }
 
     /**
-     * Returns the list of locks held by `transaction`, in order of acquisition.
+     * @return the transactions of some cycle of `waitsFor`, or null if there
+     * is no cycle
+     */
+    private static List<Long> findCycle(Map<Long, Set<Long>> waitsFor) {
+        Set<Long> visited = new HashSet<>();
+        for (long start : waitsFor.keySet()) {
+            List<Long> path = new ArrayList<>();
+            List<Long> cycle = findCycle(waitsFor, start, visited, path, new HashSet<>());
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Depth-first search for a cycle from `transNum`, where `path` holds the
+     * transactions (also in `onPath`) on the path to `transNum`.
+     */
+    private static List<Long> findCycle(Map<Long, Set<Long>> waitsFor, long transNum, Set<Long> visited,
+                                        List<Long> path, Set<Long> onPath) {
+        if (onPath.contains(transNum)) {
+            return new ArrayList<>(path.subList(path.indexOf(transNum), path.size()));
+        }
+        if (!visited.add(transNum)) {
+            return null;
+        }
+        path.add(transNum);
+        onPath.add(transNum);
+        for (long next : waitsFor.getOrDefault(transNum, Collections.emptySet())) {
+            List<Long> cycle = findCycle(waitsFor, next, visited, path, onPath);
+            if (cycle != null) {
+                return cycle;
+            }
+        }
+        path.remove(path.size() - 1);
+        onPath.remove(transNum);
+        return null;
+    }
+
+    /**
+     * @return the transaction of `cycle` to abort
      */
-    public synchronized List<Lock> getLocks(TransactionContext transaction) {
-        return new ArrayList<>(transactionLocks.getOrDefault(transaction.getTransNum(),
-                Collections.emptyList()));
+    private long chooseVictim(List<Long> cycle) {
+        long victim = cycle.get(0);
+        for (long transNum : cycle) {
+            if (deadlockVictim == DeadlockVictim.FEWEST_LOCKS) {
+                int locks = numLocks(transNum);
+                int victimLocks = numLocks(victim);
+                if (locks < victimLocks || (locks == victimLocks && transNum > victim)) {
+                    victim = transNum;
+                }
+            } else if (transNum > victim) {
+                victim = transNum;
+            }
+        }
+        return victim;
+    }
+
+    private int numLocks(long transNum) {
+        List<Lock> locks = transactionLocks.get(transNum);
+        return locks == null ? 0 : locks.size();
+    }
+
+    /**
+     * Starts a background thread that runs detectDeadlocks every
+     * intervalMillis milliseconds.
+     *
+     * @param intervalMillis time between deadlock checks, in milliseconds
+     */
+    public synchronized void startDeadlockDetector(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("deadlock detection interval must be positive");
+        }
+        if (this.deadlockDetector != null) {
+            throw new IllegalStateException("deadlock detector already started");
+        }
+        this.deadlockDetector = new DeadlockDetector(intervalMillis);
+        this.deadlockDetector.thread.start();
+    }
+
+    /**
+     * Stops the deadlock detector, if it was started, and waits for it to
+     * finish.
+     */
+    public synchronized void stopDeadlockDetector() {
+        if (this.deadlockDetector == null) {
+            return;
+        }
+        DeadlockDetector stopped = this.deadlockDetector;
+        this.deadlockDetector = null;
+        stopped.running = false;
+        LockSupport.unpark(stopped.thread);
+        try {
+            stopped.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Background thread looking for deadlocks at a fixed interval.
+     */
+    private class DeadlockDetector implements Runnable {
+        private final long intervalNanos;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        DeadlockDetector(long intervalMillis) {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.thread = new Thread(this, "lock-deadlock-detector");
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long nextCheck = System.nanoTime() + this.intervalNanos;
+            while (this.running) {
+                long delay = nextCheck - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(this, delay);
+                    continue;
+                }
+                detectDeadlocks();
+                nextCheck = System.nanoTime() + this.intervalNanos;
+            }
+        }
     }
 
     /**
@@ -0,0 +1,13 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * Thrown when a lock request is not granted within the transaction's lock
+ * wait timeout. The request is withdrawn, and the transaction keeps the locks
+ * it already held, so the operation may be retried.
+ */
+@SuppressWarnings("serial")
+public class LockTimeoutException extends RuntimeException {
+    LockTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.concurrency;
 
+import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.TransactionContext;
 
 /**
@@ -36,6 +37,15 @@ public class LockUtil {
         TransactionContext transaction = TransactionContext.getTransaction();
         if (transaction == null || lockContext == null) return;
 
+        // Snapshot transactions read old versions of pages instead of taking
+        // shared locks, and may only write to unlocked (e.g. temporary) data
+        if (transaction.readsSnapshot()) {
+            if (requestType == LockType.X && !(lockContext instanceof DummyLockContext)) {
+                throw new DatabaseException("snapshot transactions are read-only");
+            }
+            return;
+        }
+
         // You may find these variables useful
         LockContext parentContext = lockContext.parentContext();
         LockType effectiveLockType = lockContext.getEffectiveLockType(transaction);
@@ -45,6 +55,10 @@ public class LockUtil {
             if (requestType == LockType.NL) {
                 return;
             }
+            if (autoEscalate(parentContext, requestType, transaction)) {
+                // the parent's lock now covers this context
+                return;
+            }
             ensureParentLockHeld(parentContext, LockType.parentLock(requestType), transaction);
             if (explicitLockType.equals(LockType.IX) && requestType.equals(LockType.S)) {
                 lockContext.promote(transaction, LockType.SIX);
@@ -60,6 +74,66 @@ public class LockUtil {
         }
     }
 
+    /**
+     * Like ensureSufficientLockHeld(lockContext, requestType), but each lock
+     * request waits at most `timeoutMillis` milliseconds (0 to not wait at
+     * all) rather than the current transaction's lock wait timeout.
+     *
+     * @throws LockTimeoutException if a lock request timed out. Locks acquired
+     * before that are kept.
+     */
+    public static void ensureSufficientLockHeld(LockContext lockContext, LockType requestType,
+                                                long timeoutMillis) {
+        TransactionContext transaction = TransactionContext.getTransaction();
+        if (transaction == null || lockContext == null) return;
+
+        long previousTimeout = transaction.getLockWaitTimeout();
+        transaction.setLockWaitTimeout(timeoutMillis);
+        try {
+            ensureSufficientLockHeld(lockContext, requestType);
+        } finally {
+            transaction.setLockWaitTimeout(previousTimeout);
+        }
+    }
+
+    /**
+     * Like ensureSufficientLockHeld(lockContext, requestType), but never waits
+     * for a lock.
+     *
+     * @return whether sufficient locks are now held. If not, locks on some
+     * ancestors may still have been acquired.
+     */
+    public static boolean tryEnsureSufficientLockHeld(LockContext lockContext, LockType requestType) {
+        try {
+            ensureSufficientLockHeld(lockContext, requestType, 0);
+            return true;
+        } catch (LockTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Escalates `transaction`'s locks on descendants of `context` to `context`
+     * if the transaction, about to lock a child of `context`, holds enough
+     * child locks to reach the context's escalation threshold. The lock is
+     * made strong enough for a `requestType` lock on the child.
+     *
+     * @return whether the locks were escalated
+     */
+    private static boolean autoEscalate(LockContext context, LockType requestType,
+                                        TransactionContext transaction) {
+        if (context == null || !context.shouldEscalate(transaction)) {
+            return false;
+        }
+        context.escalate(transaction);
+        if (!LockType.substitutable(context.getEffectiveLockType(transaction), requestType)) {
+            // only read locks were held, so the escalated lock is S
+            ensureParentLockHeld(context.parentContext(), LockType.IX, transaction);
+            context.promote(transaction, requestType);
+        }
+        return true;
+    }
+
     public static void ensureParentLockHeld(LockContext parentContext, LockType requestType, TransactionContext transaction) {
         if (parentContext == null || requestType.equals(LockType.NL)) {
             return;
@@ -19,6 +19,8 @@ import java.util.List;
  */
 public class ResourceName {
     private final List<String> names;
+    // Cached hash of names, which never change after construction
+    private final int hash;
 
     public ResourceName(String name) {
         this(Collections.singletonList(name));
@@ -26,6 +28,7 @@ public class ResourceName {
 
     private ResourceName(List<String> names) {
         this.names = new ArrayList<>(names);
+        this.hash = this.names.hashCode();
     }
 
     /**
@@ -35,6 +38,7 @@ public class ResourceName {
     ResourceName(ResourceName parent, String name) {
         this.names = new ArrayList<>(parent.names);
         this.names.add(name);
+        this.hash = this.names.hashCode();
     }
 
     /**
@@ -88,7 +92,7 @@ public class ResourceName {
 
     @Override
     public int hashCode() {
-        return names.hashCode();
+        return hash;
     }
 
     @Override
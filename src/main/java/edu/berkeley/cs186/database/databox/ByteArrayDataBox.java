@@ -1,5 +1,7 @@
 package edu.berkeley.cs186.database.databox;
 
+import java.util.Arrays;
+
 public class ByteArrayDataBox extends DataBox {
     byte[] bytes;
 
@@ -20,14 +22,39 @@ public class ByteArrayDataBox extends DataBox {
         return TypeId.BYTE_ARRAY;
     }
 
+    @Override
+    public byte[] getByteArray() {
+        return this.bytes;
+    }
+
     @Override
     public byte[] toBytes() {
         return this.bytes;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteArrayDataBox)) return false;
+        ByteArrayDataBox other = (ByteArrayDataBox) o;
+        return Arrays.equals(this.bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    // Byte arrays are compared lexicographically, as unsigned bytes (see
+    // index.IndexKey, whose keys are ordered by this comparison).
     @Override
     public int compareTo(DataBox other) {
-        throw new RuntimeException("Cannot compare byte arrays");
+        if (!(other instanceof ByteArrayDataBox)) {
+            String err = String.format("Invalid comparison between %s and %s.",
+                                       toString(), other.toString());
+            throw new IllegalArgumentException(err);
+        }
+        return Arrays.compareUnsigned(this.bytes, ((ByteArrayDataBox) other).bytes);
     }
     @Override
     public String toString() {
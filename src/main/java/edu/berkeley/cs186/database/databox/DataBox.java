@@ -102,6 +102,26 @@ public abstract class DataBox implements Comparable<DataBox> {
         }
     }
 
+    /**
+     * Compares this DataBox to the DataBox of type `type` serialized at the
+     * current position of `buf`, and advances the position past it. This is
+     * equivalent to compareTo(DataBox.fromBytes(buf, type)), except that
+     * booleans, integers, floats, and longs are compared without constructing
+     * a DataBox for the serialized value.
+     */
+    public int compareToBytes(Buffer buf, Type type) {
+        if (getTypeId() == type.getTypeId()) {
+            switch (type.getTypeId()) {
+                case BOOL: return Boolean.compare(getBool(), buf.get() == 1);
+                case INT: return Integer.compare(getInt(), buf.getInt());
+                case FLOAT: return Float.compare(getFloat(), buf.getFloat());
+                case LONG: return Long.compare(getLong(), buf.getLong());
+                default: break;
+            }
+        }
+        return compareTo(fromBytes(buf, type));
+    }
+
     public static DataBox fromString(Type type, String s) {
         String raw = s;
         s = s.toLowerCase().trim();
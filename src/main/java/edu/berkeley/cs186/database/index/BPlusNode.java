@@ -271,4 +271,35 @@ abstract class BPlusNode {
             p.unpin();
         }
     }
+
+    /**
+     * BPlusNode.fetchLeafPage(m, b, c, pageNum, k) returns the page of the leaf
+     * on which k may reside when queried from the node on page `pageNum` (i.e.
+     * the page of n.get(k)), or the page of the leftmost leaf if k is null
+     * (i.e. the page of n.getLeftmostLeaf()). Unlike n.get(k), the nodes
+     * visited are not loaded with fromBytes: each inner node is binary
+     * searched on its page, and only the child pointer followed is read. The
+     * returned page is pinned, and must be unpinned by the caller.
+     */
+    static Page fetchLeafPage(BPlusTreeMetadata metadata, BufferManager bufferManager,
+                              LockContext treeContext, long pageNum, DataBox key) {
+        while (true) {
+            Page p = bufferManager.fetchPage(treeContext, pageNum);
+            try {
+                Buffer buf = p.getBuffer();
+                byte b = buf.get();
+                if (b == 1) {
+                    p.pin();
+                    return p;
+                } else if (b == 0) {
+                    pageNum = InnerNode.getChildPageNum(metadata, buf, key);
+                } else {
+                    String msg = String.format("Unexpected byte %b.", b);
+                    throw new IllegalArgumentException(msg);
+                }
+            } finally {
+                p.unpin();
+            }
+        }
+    }
 }
@@ -9,12 +9,14 @@ import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
 import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.Page;
 import edu.berkeley.cs186.database.table.RecordId;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * A persistent B+ tree.
@@ -63,6 +65,19 @@ public class BPlusTree {
     // lock context for the B+ tree
     private LockContext lockContext;
 
+    // latch of the B+ tree, shared with the other BPlusTree objects of the tree
+    private BPlusTreeLatch latch;
+
+    // value of latch.getVersion() when root was loaded: the inner nodes of
+    // the tree, and thus root if it is an inner node, have not changed as long
+    // as the version has not changed since
+    private long rootVersion;
+
+    // whether the tree is read by a snapshot transaction, which reads the tree
+    // as of its snapshot, from the root in its metadata, and never follows
+    // splits made since (see rootPageNum)
+    private boolean readsSnapshot;
+
     // Constructors ////////////////////////////////////////////////////////////
     /**
      * Construct a new B+ tree with metadata `metadata` and lock context `lockContext`.
@@ -111,19 +126,28 @@ public class BPlusTree {
         this.bufferManager = bufferManager;
         this.lockContext = lockContext;
         this.metadata = metadata;
+        TransactionContext transaction = TransactionContext.getTransaction();
+        this.readsSnapshot = transaction != null && transaction.readsSnapshot();
 
         if (this.metadata.getRootPageNum() != DiskSpaceManager.INVALID_PAGE_NUM) {
-            this.root = BPlusNode.fromBytes(this.metadata, bufferManager, lockContext,
-                    this.metadata.getRootPageNum());
+            this.latch = BPlusTreeLatch.of(bufferManager, metadata);
+            latch.lockShared();
+            try {
+                loadRoot();
+            } finally {
+                latch.unlockShared();
+            }
         } else {
             // We're creating the root, which means we need exclusive access
             // on the tree
             LockUtil.ensureSufficientLockHeld(lockContext, LockType.X);
+            this.latch = BPlusTreeLatch.create(bufferManager, metadata);
             // Construct the root.
             List<DataBox> keys = new ArrayList<>();
             List<RecordId> rids = new ArrayList<>();
             Optional<Long> rightSibling = Optional.empty();
             this.updateRoot(new LeafNode(this.metadata, bufferManager, keys, rids, rightSibling, lockContext));
+            this.rootVersion = latch.getVersion();
         }
     }
 
@@ -145,7 +169,7 @@ public class BPlusTree {
         // TODO(proj4_integration): Update the following line
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.NL);
 
-        return root.get(key).getKey(key);
+        return withLeaf(key, false, leaf -> LeafNode.getKeyOnPage(metadata, leaf, key));
     }
 
     /**
@@ -199,7 +223,7 @@ public class BPlusTree {
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.NL);
 
         if (root != null) {
-            return new BPlusTreeIterator(root.getLeftmostLeaf());
+            return new BPlusTreeIterator(loadLeaf(null), 0);
         } else {
             return Collections.emptyIterator();
         }
@@ -233,12 +257,67 @@ public class BPlusTree {
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.S);
 
         if (root != null) {
-            return new BPlusTreeIterator(root.get(key), key);
+            LeafNode leaf = loadLeaf(key);
+            return new BPlusTreeIterator(leaf, InnerNode.numLessThan(key, leaf.getKeys()));
         } else {
             return Collections.emptyIterator();
         }
     }
 
+    /**
+     * Returns an iterator over the RecordIds stored in the B+ tree whose keys
+     * are between `lowKey` and `highKey` (inclusive), in ascending order of
+     * their keys. A null bound leaves its end of the range open, so that
+     * scanRange(k, null) is equivalent to scanGreaterEqual(k), and
+     * scanRange(null, null) to scanAll(). Like scanGreaterEqual, the iterator
+     * scans the leaves lazily, and reads no leaves past the one holding the
+     * last key in the range.
+     */
+    public Iterator<RecordId> scanRange(DataBox lowKey, DataBox highKey) {
+        BPlusTreeIterator iter = rangeIterator(lowKey, highKey);
+        return iter == null ? Collections.emptyIterator() : iter;
+    }
+
+    /**
+     * Returns an iterator over the keys stored in the B+ tree that are between
+     * `lowKey` and `highKey` (inclusive), in ascending order. This scans the
+     * same entries as scanRange(lowKey, highKey), but yields their keys
+     * rather than their RecordIds, for callers that only need the values of
+     * the indexed columns.
+     */
+    public Iterator<DataBox> scanKeys(DataBox lowKey, DataBox highKey) {
+        BPlusTreeIterator iter = rangeIterator(lowKey, highKey);
+        if (iter == null) {
+            return Collections.emptyIterator();
+        }
+        return new Iterator<DataBox>() {
+            @Override
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            @Override
+            public DataBox next() {
+                return iter.nextKey();
+            }
+        };
+    }
+
+    // Returns an iterator over the entries with keys between lowKey and
+    // highKey, or null if the tree is empty
+    private BPlusTreeIterator rangeIterator(DataBox lowKey, DataBox highKey) {
+        if (lowKey != null) typecheck(lowKey);
+        if (highKey != null) typecheck(highKey);
+        LockUtil.ensureSufficientLockHeld(lockContext, LockType.S);
+
+        if (root == null) {
+            return null;
+        }
+        LeafNode leaf = loadLeaf(lowKey);
+        int index = lowKey == null ? 0 : InnerNode.numLessThan(lowKey, leaf.getKeys());
+        return new BPlusTreeIterator(leaf, index, highKey);
+    }
+
     /**
      * Inserts a (key, rid) pair into a B+ tree. If the key already exists in
      * the B+ tree, then the pair is not inserted and an exception is raised.
@@ -252,16 +331,30 @@ public class BPlusTree {
         typecheck(key);
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.X);
 
-        Optional <Pair<DataBox, Long>> returnNode = root.put(key, rid);
+        // Inserts that do not split a leaf are done in place on the leaf's
+        // page, in parallel with other operations on other leaves. Inserts
+        // that split nodes are redone through the nodes, with the whole tree
+        // latched.
+        if (withLeaf(key, true, leaf -> LeafNode.putOnPage(metadata, leaf, key, rid))) {
+            return;
+        }
 
-        if (returnNode.isPresent()) {
-            List<DataBox> newKeys = new ArrayList<>();
-            List<Long> newChildren = new ArrayList<>();
-            newKeys.add(returnNode.get().getFirst());
-            newChildren.add(this.root.getPage().getPageNum());
-            newChildren.add(returnNode.get().getSecond());
-            InnerNode newRoot = new InnerNode(metadata, bufferManager, newKeys, newChildren, this.lockContext);
-            updateRoot(newRoot);
+        latch.lockExclusive();
+        try {
+            loadRoot();
+            Optional <Pair<DataBox, Long>> returnNode = root.put(key, rid);
+
+            if (returnNode.isPresent()) {
+                List<DataBox> newKeys = new ArrayList<>();
+                List<Long> newChildren = new ArrayList<>();
+                newKeys.add(returnNode.get().getFirst());
+                newChildren.add(this.root.getPage().getPageNum());
+                newChildren.add(returnNode.get().getSecond());
+                InnerNode newRoot = new InnerNode(metadata, bufferManager, newKeys, newChildren, this.lockContext);
+                updateRoot(newRoot);
+            }
+        } finally {
+            latch.unlockExclusive();
         }
     }
 
@@ -287,18 +380,24 @@ public class BPlusTree {
     public void bulkLoad(Iterator<Pair<DataBox, RecordId>> data, float fillFactor) {
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.X);
 
-        while (data.hasNext()) {
-            Optional <Pair<DataBox, Long>> returnNode = root.bulkLoad(data, fillFactor);
-
-            if (returnNode.isPresent()) {
-                List<DataBox> newKeys = new ArrayList<>();
-                List<Long> newChildren = new ArrayList<>();
-                newKeys.add(returnNode.get().getFirst());
-                newChildren.add(this.root.getPage().getPageNum());
-                newChildren.add(returnNode.get().getSecond());
-                InnerNode newRoot = new InnerNode(metadata, bufferManager, newKeys, newChildren, lockContext);
-                updateRoot(newRoot);
+        latch.lockExclusive();
+        try {
+            loadRoot();
+            while (data.hasNext()) {
+                Optional <Pair<DataBox, Long>> returnNode = root.bulkLoad(data, fillFactor);
+
+                if (returnNode.isPresent()) {
+                    List<DataBox> newKeys = new ArrayList<>();
+                    List<Long> newChildren = new ArrayList<>();
+                    newKeys.add(returnNode.get().getFirst());
+                    newChildren.add(this.root.getPage().getPageNum());
+                    newChildren.add(returnNode.get().getSecond());
+                    InnerNode newRoot = new InnerNode(metadata, bufferManager, newKeys, newChildren, lockContext);
+                    updateRoot(newRoot);
+                }
             }
+        } finally {
+            latch.unlockExclusive();
         }
     }
 
@@ -317,7 +416,10 @@ public class BPlusTree {
         typecheck(key);
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.X);
 
-        root.remove(key);
+        withLeaf(key, true, leaf -> {
+            LeafNode.removeOnPage(metadata, leaf, key);
+            return null;
+        });
     }
 
     // Helpers /////////////////////////////////////////////////////////////////
@@ -327,7 +429,14 @@ public class BPlusTree {
      */
     public String toSexp() {
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.X);
-        return root.toSexp();
+
+        latch.lockExclusive();
+        try {
+            loadRoot();
+            return root.toSexp();
+        } finally {
+            latch.unlockExclusive();
+        }
     }
 
     /**
@@ -348,7 +457,13 @@ public class BPlusTree {
         List<String> strings = new ArrayList<>();
         strings.add("digraph g {" );
         strings.add("  node [shape=record, height=0.1];");
-        strings.add(root.toDot());
+        latch.lockExclusive();
+        try {
+            loadRoot();
+            strings.add(root.toDot());
+        } finally {
+            latch.unlockExclusive();
+        }
         strings.add("}");
         return String.join("\n", strings);
     }
@@ -398,6 +513,21 @@ public class BPlusTree {
         return Math.min(leafOrder, innerOrder);
     }
 
+    /**
+     * Resets the latch of the tree described by `metadata` after a rollback,
+     * which may undo splits of the root and restore the tree's metadata: the
+     * root becomes the root in `metadata`. If `metadata` is null, the tree no
+     * longer exists (the rollback undid its creation), and its latch on
+     * partition `partNum` is dropped.
+     */
+    public static void resetLatch(BufferManager bufferManager, int partNum, BPlusTreeMetadata metadata) {
+        if (metadata == null) {
+            BPlusTreeLatch.drop(bufferManager, partNum);
+        } else {
+            BPlusTreeLatch.reset(bufferManager, metadata);
+        }
+    }
+
     /** Returns the partition number that the B+ tree resides on. */
     public int getPartNum() {
         return metadata.getPartNum();
@@ -410,6 +540,7 @@ public class BPlusTree {
         this.root = newRoot;
 
         metadata.setRootPageNum(this.root.getPage().getPageNum());
+        latch.setRootPageNum(this.root.getPage().getPageNum());
         metadata.incrementHeight();
         TransactionContext transaction = TransactionContext.getTransaction();
         if (transaction != null) {
@@ -417,6 +548,120 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * Loads the root of the tree. The structure latch must be held.
+     */
+    private void loadRoot() {
+        long pageNum = rootPageNum();
+        // the root may be a leaf, which others may be writing to
+        latch.lockLeaf(pageNum, false);
+        try {
+            this.root = BPlusNode.fromBytes(metadata, bufferManager, lockContext, pageNum);
+        } finally {
+            latch.unlockLeaf(pageNum, false);
+        }
+        metadata.setRootPageNum(pageNum);
+        this.rootVersion = latch.getVersion();
+    }
+
+    /**
+     * Returns the page number of the root to start from. The latch keeps the
+     * current root, which may have split since the metadata was read; but a
+     * snapshot transaction sees the tree as of its snapshot, in which the
+     * current root may not exist, so it starts from the root in its metadata.
+     * The structure latch must be held.
+     */
+    private long rootPageNum() {
+        return readsSnapshot ? metadata.getRootPageNum() : latch.getRootPageNum();
+    }
+
+    /**
+     * Returns the page number of the leaf on which `key` may reside (or of the
+     * leftmost leaf if `key` is null). See BPlusNode.fetchLeafPage. The
+     * structure latch must be held.
+     */
+    private long getLeafPageNum(DataBox key) {
+        long pageNum;
+        if (root instanceof InnerNode && (readsSnapshot || rootVersion == latch.getVersion())) {
+            // The loaded root is up to date, so the search starts from the
+            // child of the root that it leads to.
+            pageNum = ((InnerNode) root).getChildPageNum(key);
+        } else {
+            pageNum = rootPageNum();
+        }
+        Page leaf = BPlusNode.fetchLeafPage(metadata, bufferManager, lockContext, pageNum, key);
+        try {
+            return leaf.getPageNum();
+        } finally {
+            leaf.unpin();
+        }
+    }
+
+    /**
+     * Applies `f` to the page of the leaf on which `key` may reside, with the
+     * structure latch held in shared mode and the leaf latched (in exclusive
+     * mode if `f` writes to the leaf).
+     *
+     * A pinned page holds the lock of its buffer frame, so leaves are always
+     * latched before their page is pinned, and never while a page is pinned.
+     * The leaf cannot split between finding it and latching it, since splits
+     * need the structure latch in exclusive mode.
+     */
+    private <T> T withLeaf(DataBox key, boolean exclusive, Function<Page, T> f) {
+        latch.lockShared();
+        try {
+            long pageNum = getLeafPageNum(key);
+            latch.lockLeaf(pageNum, exclusive);
+            try {
+                Page leaf = bufferManager.fetchPage(lockContext, pageNum);
+                try {
+                    return f.apply(leaf);
+                } finally {
+                    leaf.unpin();
+                }
+            } finally {
+                latch.unlockLeaf(pageNum, exclusive);
+            }
+        } finally {
+            latch.unlockShared();
+        }
+    }
+
+    /**
+     * Loads the leaf on which `key` may reside (or the leftmost leaf if `key`
+     * is null).
+     */
+    private LeafNode loadLeaf(DataBox key) {
+        latch.lockShared();
+        try {
+            return loadLeafLatched(getLeafPageNum(key));
+        } finally {
+            latch.unlockShared();
+        }
+    }
+
+    /**
+     * Loads the leaf on page `pageNum`.
+     */
+    private LeafNode loadLeaf(long pageNum) {
+        latch.lockShared();
+        try {
+            return loadLeafLatched(pageNum);
+        } finally {
+            latch.unlockShared();
+        }
+    }
+
+    // Loads the leaf on page `pageNum`, with the structure latch held.
+    private LeafNode loadLeafLatched(long pageNum) {
+        latch.lockLeaf(pageNum, false);
+        try {
+            return LeafNode.fromBytes(metadata, bufferManager, lockContext, pageNum);
+        } finally {
+            latch.unlockLeaf(pageNum, false);
+        }
+    }
+
     private void typecheck(DataBox key) {
         Type t = metadata.getKeySchema();
         if (!key.type().equals(t)) {
@@ -428,32 +673,48 @@ public class BPlusTree {
     // Iterator ////////////////////////////////////////////////////////////////
     private class BPlusTreeIterator implements Iterator<RecordId> {
         private LeafNode leaf;
-        private  List<RecordId> rids;
         private int index;
-        public BPlusTreeIterator(LeafNode leafNode, DataBox key) {
-            leaf = leafNode;
-            rids = leafNode.getRids();
-            index = leafNode.getKeys().indexOf(key);
+        // The largest key to return, or null to return every key up to the
+        // end of the last leaf
+        private DataBox highKey;
+
+        public BPlusTreeIterator(LeafNode leafNode, int index) {
+            this(leafNode, index, null);
         }
-        public BPlusTreeIterator(LeafNode leftMost) {
-            leaf = leftMost;
-            rids = leftMost.getRids();
-            index = 0;
+
+        public BPlusTreeIterator(LeafNode leafNode, int index, DataBox highKey) {
+            this.leaf = leafNode;
+            this.index = index;
+            this.highKey = highKey;
         }
+
         @Override
         public boolean hasNext() {
-            return (index < rids.size() || (leaf.getRightSibling().isPresent()));
+            // move on to the next leaf that isn't empty (leaves may be left
+            // empty by deletes)
+            while (index == leaf.getKeys().size() && leaf.getRightSiblingPageNum().isPresent()) {
+                index = 0;
+                leaf = loadLeaf(leaf.getRightSiblingPageNum().get());
+            }
+            if (index == leaf.getKeys().size()) {
+                return false;
+            }
+            return highKey == null || leaf.getKeys().get(index).compareTo(highKey) <= 0;
         }
 
         @Override
         public RecordId next() {
             if (hasNext()) {
-                if (index == rids.size()) {
-                    index = 0;
-                    leaf = leaf.getRightSibling().get();
-                    rids = leaf.getRids();
-                }
-                return rids.get(index++);
+                return leaf.getRids().get(index++);
+            } else {
+                throw new NoSuchElementException();
+            }
+        }
+
+        // Like next, but returns the key of the entry
+        DataBox nextKey() {
+            if (hasNext()) {
+                return leaf.getKeys().get(index++);
             } else {
                 throw new NoSuchElementException();
             }
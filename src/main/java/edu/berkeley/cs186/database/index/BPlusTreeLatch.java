@@ -0,0 +1,193 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.memory.BufferManager;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Latches that let several threads use a B+ tree at the same time. A tree has
+ * one BPlusTreeLatch, shared by all the BPlusTree objects of the tree (see
+ * BPlusTreeLatch.of).
+ *
+ * Operations that change at most one leaf (lookups, scans, and inserts and
+ * deletes that do not split a leaf) hold the structure latch in shared mode,
+ * and latch the leaf they read or write. Inner nodes only change while the
+ * structure latch is held in exclusive mode, so they are read without
+ * latching them, and operations on different leaves run in parallel. Inserts
+ * that split a node, and bulk loads, hold the structure latch in exclusive
+ * mode, which excludes every other operation on the tree; since a split
+ * happens about once every d inserts, this is rare.
+ *
+ * The latch also keeps the page number of the root, so that BPlusTree objects
+ * loaded before the root split find the new root (snapshot transactions start
+ * from the root of their snapshot instead). A rollback may undo a
+ * split, after which the root is reset to the root in the restored metadata
+ * (see BPlusTree.resetLatch).
+ *
+ * Latches are held only for the duration of an operation on the tree, and
+ * are independent of the locks on the tree: BPlusTree acquires the lock an
+ * operation needs before latching. A transaction that modifies the tree holds
+ * an X lock on it, so that it never waits for a lock held by another
+ * transaction while latching the tree. Likewise, a thread never latches a
+ * leaf while it has a page pinned (pinning a page holds the lock of its
+ * buffer frame), so a leaf is latched before its page is pinned.
+ */
+class BPlusTreeLatch {
+    // Number of leaf latches. Leaves are latched by the latch of their page
+    // number modulo this; a thread holds at most one leaf latch at a time.
+    private static final int NUM_LEAF_LATCHES = 64;
+
+    // Latches of the trees of each buffer manager, by partition number
+    private static final Map<BufferManager, Map<Integer, BPlusTreeLatch>> latches =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final ReentrantReadWriteLock structureLatch = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] leafLatches = new ReentrantReadWriteLock[NUM_LEAF_LATCHES];
+
+    // Page number of the root of the tree, which BPlusTree objects that were
+    // constructed before the root last split may not know about.
+    private long rootPageNum;
+
+    // Number of times the structure latch was acquired in exclusive mode,
+    // i.e. of times inner nodes may have changed.
+    private long version = 0;
+
+    private BPlusTreeLatch(long rootPageNum) {
+        this.rootPageNum = rootPageNum;
+        for (int i = 0; i < NUM_LEAF_LATCHES; ++i) {
+            this.leafLatches[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Returns the latch of the tree on partition `metadata.getPartNum()`,
+     * creating it if the tree has none yet.
+     */
+    static BPlusTreeLatch of(BufferManager bufferManager, BPlusTreeMetadata metadata) {
+        Map<Integer, BPlusTreeLatch> partLatches;
+        synchronized (latches) {
+            partLatches = latches.computeIfAbsent(bufferManager, b -> new HashMap<>());
+        }
+        synchronized (partLatches) {
+            return partLatches.computeIfAbsent(metadata.getPartNum(),
+                                               p -> new BPlusTreeLatch(metadata.getRootPageNum()));
+        }
+    }
+
+    /**
+     * Creates the latch of a new tree on partition `metadata.getPartNum()`,
+     * replacing the latch of any tree that used the partition before.
+     */
+    static BPlusTreeLatch create(BufferManager bufferManager, BPlusTreeMetadata metadata) {
+        Map<Integer, BPlusTreeLatch> partLatches;
+        synchronized (latches) {
+            partLatches = latches.computeIfAbsent(bufferManager, b -> new HashMap<>());
+        }
+        BPlusTreeLatch latch = new BPlusTreeLatch(metadata.getRootPageNum());
+        synchronized (partLatches) {
+            partLatches.put(metadata.getPartNum(), latch);
+        }
+        return latch;
+    }
+
+    /**
+     * Sets the root of the tree on partition `metadata.getPartNum()` to the
+     * root in `metadata`, if the tree has a latch.
+     */
+    static void reset(BufferManager bufferManager, BPlusTreeMetadata metadata) {
+        BPlusTreeLatch latch = get(bufferManager, metadata.getPartNum());
+        if (latch != null) {
+            latch.lockExclusive();
+            try {
+                latch.setRootPageNum(metadata.getRootPageNum());
+            } finally {
+                latch.unlockExclusive();
+            }
+        }
+    }
+
+    /**
+     * Forgets the latch of the tree on partition `partNum`, if any.
+     */
+    static void drop(BufferManager bufferManager, int partNum) {
+        Map<Integer, BPlusTreeLatch> partLatches = latches.get(bufferManager);
+        if (partLatches != null) {
+            synchronized (partLatches) {
+                partLatches.remove(partNum);
+            }
+        }
+    }
+
+    private static BPlusTreeLatch get(BufferManager bufferManager, int partNum) {
+        Map<Integer, BPlusTreeLatch> partLatches = latches.get(bufferManager);
+        if (partLatches == null) {
+            return null;
+        }
+        synchronized (partLatches) {
+            return partLatches.get(partNum);
+        }
+    }
+
+    void lockShared() {
+        structureLatch.readLock().lock();
+    }
+
+    void unlockShared() {
+        structureLatch.readLock().unlock();
+    }
+
+    void lockExclusive() {
+        structureLatch.writeLock().lock();
+        ++version;
+    }
+
+    void unlockExclusive() {
+        structureLatch.writeLock().unlock();
+    }
+
+    /**
+     * Latches the leaf on page `pageNum`, in exclusive mode if the leaf is to
+     * be written. The structure latch must be held in shared mode.
+     */
+    void lockLeaf(long pageNum, boolean exclusive) {
+        ReentrantReadWriteLock latch = leafLatches[(int) Math.floorMod(pageNum, (long) NUM_LEAF_LATCHES)];
+        if (exclusive) {
+            latch.writeLock().lock();
+        } else {
+            latch.readLock().lock();
+        }
+    }
+
+    void unlockLeaf(long pageNum, boolean exclusive) {
+        ReentrantReadWriteLock latch = leafLatches[(int) Math.floorMod(pageNum, (long) NUM_LEAF_LATCHES)];
+        if (exclusive) {
+            latch.writeLock().unlock();
+        } else {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the page number of the root. The structure latch must be held.
+     */
+    long getRootPageNum() {
+        return rootPageNum;
+    }
+
+    /**
+     * Sets the page number of the root. The structure latch must be held in
+     * exclusive mode (or the tree must not be shared yet).
+     */
+    void setRootPageNum(long rootPageNum) {
+        this.rootPageNum = rootPageNum;
+    }
+
+    /**
+     * Returns the number of times the structure latch was acquired in
+     * exclusive mode. The structure latch must be held.
+     */
+    long getVersion() {
+        return version;
+    }
+}
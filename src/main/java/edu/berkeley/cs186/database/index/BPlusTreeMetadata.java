@@ -4,16 +4,22 @@ import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.table.Record;
 
+import java.util.Arrays;
+import java.util.List;
+
 /** Metadata about a B+ tree. */
 public class BPlusTreeMetadata {
     // Table for which this B+ tree is for
     private final String tableName;
 
-    // Column that this B+ tree uses as a search key
+    // Column that this B+ tree uses as a search key. The columns of a
+    // composite key are separated by commas (e.g. "a,b").
     private final String colName;
 
     // B+ trees map keys (of some type) to record ids. This is the type of the
-    // keys.
+    // keys: the type of the indexed column, or for composite and non-unique
+    // indices, the byte array type of their encoded keys (see IndexKey), from
+    // which whether the index is unique can be told.
     private final Type keySchema;
 
     // The order of the tree. Given a tree of order d, its inner nodes store
@@ -75,6 +81,13 @@ public class BPlusTreeMetadata {
         return colName;
     }
 
+    /**
+     * @return the columns this B+ tree uses as a search key, in order
+     */
+    public List<String> getColNames() {
+        return Arrays.asList(colName.split(","));
+    }
+
     public String getName() {
         return tableName + "," + colName;
     }
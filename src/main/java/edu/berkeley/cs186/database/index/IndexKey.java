@@ -0,0 +1,193 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.Schema;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keys of composite and non-unique indices. A B+ tree maps each key to a
+ * single record id, so an index on several columns, or on a column whose
+ * values may repeat, is built on keys that encode the values of the indexed
+ * columns of a record followed, for a non-unique index, by the record's id.
+ * The record id keeps the keys of records with equal values distinct.
+ *
+ * Keys are encoded as byte arrays, such that comparing two encoded keys byte
+ * by byte (see ByteArrayDataBox#compareTo) orders them the same way as
+ * comparing their values column by column:
+ *
+ *   - booleans are encoded as a byte that is 0 or 1,
+ *   - integers and longs are encoded big-endian with the sign bit flipped,
+ *   - floats are encoded as their bits, with the sign bit flipped for
+ *     positive floats and every bit flipped for negative floats, and
+ *   - strings are encoded as their serialized, null padded bytes.
+ *
+ * Every value of a column is encoded to the same number of bytes, so the keys
+ * whose first k values are v_1, ..., v_k are exactly the keys between
+ * lowerBound(.., [v_1, ..., v_k]) and upperBound(.., [v_1, ..., v_k]).
+ */
+public class IndexKey {
+    // Size of an encoded record id: its page number and entry number
+    private static final int RECORD_ID_SIZE = Long.BYTES + Short.BYTES;
+
+    /**
+     * @return the type of the encoded keys of an index on columns of types
+     * `columnTypes`
+     */
+    public static Type keySchema(List<Type> columnTypes, boolean unique) {
+        int size = unique ? 0 : RECORD_ID_SIZE;
+        for (Type type : columnTypes) {
+            if (type.getTypeId() == TypeId.BYTE_ARRAY) {
+                throw new IllegalArgumentException("Byte array columns cannot be indexed.");
+            }
+            size += type.getSizeInBytes();
+        }
+        return Type.byteArrayType(size);
+    }
+
+    /**
+     * @return the key of `record` (with id `rid`) in the index described by
+     * `metadata`, where `schema` is the schema of the indexed table. This is
+     * the value of the indexed column if the index is unique and on a single
+     * column, and the encoded key otherwise.
+     */
+    public static DataBox of(BPlusTreeMetadata metadata, Schema schema, Record record, RecordId rid) {
+        List<Type> types = new ArrayList<>();
+        List<DataBox> values = new ArrayList<>();
+        for (String colName : metadata.getColNames()) {
+            int i = schema.findField(colName);
+            types.add(schema.getFieldType(i));
+            values.add(record.getValue(i));
+        }
+        if (!isEncoded(metadata, types)) {
+            return values.get(0);
+        }
+        return encode(types, values, isUnique(metadata, types) ? null : rid);
+    }
+
+    /**
+     * @return whether the keys of the index described by `metadata`, on
+     * columns of types `columnTypes`, are encoded rather than being the
+     * values of the indexed column: true for composite and non-unique indices.
+     */
+    public static boolean isEncoded(BPlusTreeMetadata metadata, List<Type> columnTypes) {
+        // the encoded keys of a single column are longer than its values,
+        // since they end with a record id
+        return columnTypes.size() > 1 || !metadata.getKeySchema().equals(columnTypes.get(0));
+    }
+
+    /**
+     * @return whether no two records may have the same values of the columns,
+     * of types `columnTypes`, indexed by the index described by `metadata`.
+     */
+    public static boolean isUnique(BPlusTreeMetadata metadata, List<Type> columnTypes) {
+        // only the keys of non-unique indices end with a record id
+        return !isEncoded(metadata, columnTypes)
+               || metadata.getKeySchema().getSizeInBytes() == keySchema(columnTypes, true).getSizeInBytes();
+    }
+
+    /**
+     * Encodes the values of the indexed columns, of types `columnTypes`, of
+     * a record with id `rid`. `rid` is null for unique indices.
+     */
+    public static DataBox encode(List<Type> columnTypes, List<DataBox> values, RecordId rid) {
+        if (values.size() != columnTypes.size()) {
+            String msg = String.format("Expected %d values, got %d.", columnTypes.size(), values.size());
+            throw new IllegalArgumentException(msg);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(keySchema(columnTypes, rid == null).getSizeInBytes());
+        putValues(buf, columnTypes, values);
+        if (rid != null) {
+            buf.putLong(rid.getPageNum() ^ Long.MIN_VALUE);
+            buf.putShort((short) (rid.getEntryNum() ^ Short.MIN_VALUE));
+        }
+        return new ByteArrayDataBox(buf.array(), buf.capacity());
+    }
+
+    /**
+     * @return the smallest key of type `keySchema` whose first values are
+     * `prefix`, for an index on columns of types `columnTypes`
+     */
+    public static DataBox lowerBound(Type keySchema, List<Type> columnTypes, List<DataBox> prefix) {
+        return bound(keySchema, columnTypes, prefix, (byte) 0);
+    }
+
+    /**
+     * @return the largest key of type `keySchema` whose first values are
+     * `prefix`, for an index on columns of types `columnTypes`
+     */
+    public static DataBox upperBound(Type keySchema, List<Type> columnTypes, List<DataBox> prefix) {
+        return bound(keySchema, columnTypes, prefix, (byte) 0xFF);
+    }
+
+    private static DataBox bound(Type keySchema, List<Type> columnTypes, List<DataBox> prefix, byte fill) {
+        ByteBuffer buf = ByteBuffer.allocate(keySchema.getSizeInBytes());
+        putValues(buf, columnTypes.subList(0, prefix.size()), prefix);
+        while (buf.hasRemaining()) {
+            buf.put(fill);
+        }
+        return new ByteArrayDataBox(buf.array(), buf.capacity());
+    }
+
+    /**
+     * @return the values of the indexed columns, of types `columnTypes`,
+     * that `key` encodes
+     */
+    public static List<DataBox> decode(List<Type> columnTypes, DataBox key) {
+        ByteBuffer buf = ByteBuffer.wrap(key.getByteArray());
+        List<DataBox> values = new ArrayList<>();
+        for (Type type : columnTypes) {
+            switch (type.getTypeId()) {
+                case BOOL: values.add(new BoolDataBox(buf.get() == 1)); break;
+                case INT: values.add(new IntDataBox(buf.getInt() ^ Integer.MIN_VALUE)); break;
+                case LONG: values.add(new LongDataBox(buf.getLong() ^ Long.MIN_VALUE)); break;
+                case FLOAT: {
+                    int bits = buf.getInt();
+                    bits = bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits;
+                    values.add(new FloatDataBox(Float.intBitsToFloat(bits)));
+                    break;
+                }
+                case STRING: {
+                    byte[] bytes = new byte[type.getSizeInBytes()];
+                    buf.get(bytes);
+                    String value = new String(bytes, Charset.forName("UTF-8"));
+                    values.add(new StringDataBox(value, type.getSizeInBytes()));
+                    break;
+                }
+                default: throw new IllegalArgumentException("Unhandled type " + type);
+            }
+        }
+        return values;
+    }
+
+    private static void putValues(ByteBuffer buf, List<Type> columnTypes, List<DataBox> values) {
+        for (int i = 0; i < values.size(); ++i) {
+            Type type = columnTypes.get(i);
+            DataBox value = values.get(i);
+            if (value.getTypeId() != type.getTypeId()) {
+                String msg = String.format("DataBox %s is not of type %s", value, type);
+                throw new IllegalArgumentException(msg);
+            }
+            switch (type.getTypeId()) {
+                case BOOL: buf.put((byte) (value.getBool() ? 1 : 0)); break;
+                case INT: buf.putInt(value.getInt() ^ Integer.MIN_VALUE); break;
+                case LONG: buf.putLong(value.getLong() ^ Long.MIN_VALUE); break;
+                case FLOAT: {
+                    int bits = Float.floatToIntBits(value.getFloat());
+                    buf.putInt(bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE);
+                    break;
+                }
+                case STRING: {
+                    buf.put(new StringDataBox(value.getString(), type.getSizeInBytes()).toBytes());
+                    break;
+                }
+                default: throw new IllegalArgumentException("Unhandled type " + type);
+            }
+        }
+    }
+}
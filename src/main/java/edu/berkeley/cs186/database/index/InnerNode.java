@@ -26,6 +26,9 @@ import java.util.*;
  *    /     |    |     \
  */
 class InnerNode extends BPlusNode {
+    // Offset of the keys in the serialization of an inner node (see toBytes).
+    private static final int KEYS_OFFSET = 5;
+
     // Metadata about the B+ tree that this node belongs to.
     private BPlusTreeMetadata metadata;
 
@@ -187,6 +190,41 @@ class InnerNode extends BPlusNode {
         return BPlusNode.fromBytes(metadata, bufferManager, treeContext, pageNum);
     }
 
+    /**
+     * Returns the page number of the child that get(key) visits, or of the
+     * leftmost child if `key` is null.
+     */
+    long getChildPageNum(DataBox key) {
+        return children.get(key == null ? 0 : numLessThanEqual(key, keys));
+    }
+
+    /**
+     * Returns the page number of the child to visit when searching for `key`
+     * from the inner node serialized in `buf` (see toBytes). This is the same
+     * child as get(key) visits, but the keys are binary searched in place and
+     * only the child pointer visited is read. If `key` is null, returns the
+     * page number of the leftmost child.
+     */
+    static long getChildPageNum(BPlusTreeMetadata metadata, Buffer buf, DataBox key) {
+        Type keySchema = metadata.getKeySchema();
+        int keySize = keySchema.getSizeInBytes();
+        int n = buf.getInt(1);
+
+        // Find numLessThanEqual(key, keys).
+        int lo = 0;
+        int hi = key == null ? 0 : n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            buf.position(KEYS_OFFSET + mid * keySize);
+            if (key.compareToBytes(buf, keySchema) >= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return buf.getLong(KEYS_OFFSET + n * keySize + lo * Long.BYTES);
+    }
+
     private void sync() {
         page.pin();
         try {
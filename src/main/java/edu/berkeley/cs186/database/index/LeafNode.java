@@ -26,6 +26,11 @@ import java.util.*;
  *   +-------+-------+-------+-------+     +-------+-------+-------+-------+
  */
 class LeafNode extends BPlusNode {
+    // Offsets of the number of entries and of the entries in the serialization
+    // of a leaf node (see toBytes).
+    private static final int NUM_ENTRIES_OFFSET = 9;
+    private static final int ENTRIES_OFFSET = 13;
+
     // Metadata about the B+ tree that this node belongs to.
     private BPlusTreeMetadata metadata;
 
@@ -219,6 +224,9 @@ class LeafNode extends BPlusNode {
     @Override
     public void remove(DataBox key) {
         int index = keys.indexOf(key);
+        if (index == -1) {
+            return;
+        }
         keys.remove(index);
         rids.remove(index);
         sync();
@@ -249,12 +257,120 @@ class LeafNode extends BPlusNode {
         return rids.subList(index, rids.size()).iterator();
     }
 
+    // Page-resident access ////////////////////////////////////////////////////
+    // The following methods operate directly on a leaf serialized on a page
+    // (see toBytes) rather than on a LeafNode loaded with fromBytes: the keys
+    // are binary searched in place, and only the entries that are returned or
+    // moved are read or written. The page must be pinned by the caller.
+    //
+    // Note that they do not update the keys and rids cached by any LeafNode
+    // object of the page (see the comment above keys and rids).
+
+    /** Returns the record id associated with `key` in the leaf on `page`. */
+    static Optional<RecordId> getKeyOnPage(BPlusTreeMetadata metadata, Page page, DataBox key) {
+        Buffer buf = page.getBuffer();
+        int index = search(metadata, buf, buf.getInt(NUM_ENTRIES_OFFSET), key);
+        if (index < 0) {
+            return Optional.empty();
+        }
+        int keySize = metadata.getKeySchema().getSizeInBytes();
+        buf.position(ENTRIES_OFFSET + index * entrySize(metadata) + keySize);
+        return Optional.of(new RecordId(buf.getLong(), buf.getShort()));
+    }
+
+    /**
+     * Inserts (key, rid) into the leaf on `page` if the leaf has room for it,
+     * shifting the entries after it by one. Returns false, leaving the leaf
+     * unchanged, if the leaf is full (i.e. the insert would split it). Like
+     * put, raises a BPlusTreeException if the key is already in the leaf.
+     */
+    static boolean putOnPage(BPlusTreeMetadata metadata, Page page, DataBox key, RecordId rid) {
+        Buffer buf = page.getBuffer();
+        int n = buf.getInt(NUM_ENTRIES_OFFSET);
+        int index = search(metadata, buf, n, key);
+        if (index >= 0) {
+            throw new BPlusTreeException("A duplicate key is inserted");
+        }
+        if (n == 2 * metadata.getOrder()) {
+            return false;
+        }
+        index = -index - 1;
+
+        int entrySize = entrySize(metadata);
+        int offset = ENTRIES_OFFSET + index * entrySize;
+        byte[] tail = new byte[(n - index) * entrySize];
+        buf.position(offset).get(tail);
+        ByteBuffer entries = ByteBuffer.allocate(entrySize + tail.length);
+        entries.put(key.toBytes());
+        entries.put(rid.toBytes());
+        entries.put(tail);
+        buf.position(offset).put(entries.array());
+        buf.putInt(NUM_ENTRIES_OFFSET, n + 1);
+        return true;
+    }
+
+    /**
+     * Removes the entry with key `key` from the leaf on `page`, if there is
+     * one, shifting the entries after it back by one.
+     */
+    static void removeOnPage(BPlusTreeMetadata metadata, Page page, DataBox key) {
+        Buffer buf = page.getBuffer();
+        int n = buf.getInt(NUM_ENTRIES_OFFSET);
+        int index = search(metadata, buf, n, key);
+        if (index < 0) {
+            return;
+        }
+
+        int entrySize = entrySize(metadata);
+        int offset = ENTRIES_OFFSET + index * entrySize;
+        byte[] tail = new byte[(n - index - 1) * entrySize];
+        if (tail.length > 0) {
+            buf.position(offset + entrySize).get(tail);
+            buf.position(offset).put(tail);
+        }
+        buf.putInt(NUM_ENTRIES_OFFSET, n - 1);
+    }
+
+    /**
+     * Binary searches the n entries of the leaf serialized in `buf` for `key`.
+     * Like Collections.binarySearch, returns the index of the entry with key
+     * `key` if there is one, and (-(insertion point) - 1) otherwise.
+     */
+    private static int search(BPlusTreeMetadata metadata, Buffer buf, int n, DataBox key) {
+        Type keySchema = metadata.getKeySchema();
+        int entrySize = entrySize(metadata);
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            buf.position(ENTRIES_OFFSET + mid * entrySize);
+            int cmp = key.compareToBytes(buf, keySchema);
+            if (cmp > 0) {
+                lo = mid + 1;
+            } else if (cmp < 0) {
+                hi = mid;
+            } else {
+                return mid;
+            }
+        }
+        return -lo - 1;
+    }
+
+    private static int entrySize(BPlusTreeMetadata metadata) {
+        return metadata.getKeySchema().getSizeInBytes() + RecordId.getSizeInBytes();
+    }
+
     // Helpers /////////////////////////////////////////////////////////////////
     @Override
     public Page getPage() {
         return page;
     }
 
+    /** Returns the page number of the right sibling of this leaf, if it has one. */
+    Optional<Long> getRightSiblingPageNum() {
+        return rightSibling;
+    }
+
     /** Returns the right sibling of this leaf, if it has one. */
     Optional<LeafNode> getRightSibling() {
         if (!rightSibling.isPresent()) {
@@ -5,9 +5,9 @@ import edu.berkeley.cs186.database.recovery.RecoveryManager;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -44,11 +44,30 @@ import java.util.concurrent.locks.ReentrantLock;
  * - the second header page follows
  * - the next 32K pages are data pages managed by the second header page
  * - etc.
+ *
+ * By default, every page access holds the lock on its partition, so reads of
+ * different pages in the same partition are serialized. Passing IOMode.POSITIONAL or
+ * IOMode.MAPPED to the constructor lets data page reads proceed without the
+ * partition lock (and without the lock on the entire manager), using either
+ * positional FileChannel reads or read-only memory mappings of the partition file.
+ * Writes and allocation still hold the partition lock in every mode.
  */
 public class DiskSpaceManagerImpl implements DiskSpaceManager {
     static final int MAX_HEADER_PAGES = PAGE_SIZE / 2; // 2 bytes per header page
     static final int DATA_PAGES_PER_HEADER = PAGE_SIZE * 8; // 1 bit per data page
 
+    /**
+     * How data pages are read from partition files.
+     */
+    public enum IOMode {
+        // reads hold the partition lock
+        LOCKED,
+        // reads use positional FileChannel reads, without the partition lock
+        POSITIONAL,
+        // reads copy from read-only memory mappings of the file, without the partition lock
+        MAPPED
+    }
+
     // Name of base directory.
     private String dbDir;
 
@@ -64,6 +83,9 @@ public class DiskSpaceManagerImpl implements DiskSpaceManager {
     // recovery manager
     private RecoveryManager recoveryManager;
 
+    // How data pages are read.
+    private IOMode ioMode;
+
     /**
      * Initialize the disk space manager using the given directory. Creates the directory
      * if not present.
@@ -71,9 +93,22 @@ public class DiskSpaceManagerImpl implements DiskSpaceManager {
      * @param dbDir base directory of the database
      */
     public DiskSpaceManagerImpl(String dbDir, RecoveryManager recoveryManager) {
+        this(dbDir, recoveryManager, IOMode.LOCKED);
+    }
+
+    /**
+     * Initialize the disk space manager using the given directory and I/O mode. Creates
+     * the directory if not present.
+     *
+     * @param dbDir base directory of the database
+     * @param ioMode how data pages are read
+     */
+    public DiskSpaceManagerImpl(String dbDir, RecoveryManager recoveryManager, IOMode ioMode) {
         this.dbDir = dbDir;
         this.recoveryManager = recoveryManager;
-        this.partInfo = new HashMap<>();
+        this.ioMode = ioMode;
+        // concurrent, so that lock-free reads can look up partitions without the manager lock
+        this.partInfo = new ConcurrentHashMap<>();
         this.partNumCounter = new AtomicInteger(0);
         this.managerLock = new ReentrantLock();
 
@@ -98,7 +133,7 @@ public class DiskSpaceManagerImpl implements DiskSpaceManager {
                 int fileNum = Integer.parseInt(f.getName());
                 maxFileNum = Math.max(maxFileNum, fileNum);
 
-                PartitionHandle pi = new PartitionHandle(fileNum, recoveryManager);
+                PartitionHandle pi = new PartitionHandle(fileNum, recoveryManager, ioMode);
                 pi.open(dbDir + "/" + f.getName());
                 this.partInfo.put(fileNum, pi);
             }
@@ -137,7 +172,7 @@ public class DiskSpaceManagerImpl implements DiskSpaceManager {
                 throw new IllegalStateException("partition number " + partNum + " already exists");
             }
 
-            pi = new PartitionHandle(partNum, recoveryManager);
+            pi = new PartitionHandle(partNum, recoveryManager, ioMode);
             this.partInfo.put(partNum, pi);
 
             pi.partitionLock.lock();
@@ -271,6 +306,14 @@ public class DiskSpaceManagerImpl implements DiskSpaceManager {
         }
         int partNum = DiskSpaceManager.getPartNum(page);
         int pageNum = DiskSpaceManager.getPageNum(page);
+        if (this.ioMode != IOMode.LOCKED) {
+            try {
+                getPartInfo(partNum).readPage(pageNum, buf);
+                return;
+            } catch (IOException e) {
+                throw new PageException("could not read partition " + partNum + ": " + e.getMessage());
+            }
+        }
         this.managerLock.lock();
         PartitionHandle pi;
         try {
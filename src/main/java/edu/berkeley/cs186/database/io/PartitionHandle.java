@@ -8,6 +8,7 @@ import edu.berkeley.cs186.database.recovery.RecoveryManager;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.NoSuchElementException;
@@ -25,6 +26,13 @@ class PartitionHandle implements AutoCloseable {
     private RandomAccessFile file;
     private FileChannel fileChannel;
 
+    // How data pages are read.
+    private final DiskSpaceManagerImpl.IOMode ioMode;
+
+    // Read-only mappings of the data pages managed by each header page (MAPPED
+    // mode only), covering as much of each range as existed in the file when mapped.
+    private final MappedByteBuffer[] dataWindows;
+
     // Contents of the master page of this partition
     // Ideally would be an unsigned short array but Java doesn't have unsigned types
     private int[] masterPage;
@@ -39,6 +47,13 @@ class PartitionHandle implements AutoCloseable {
     private int partNum;
 
     PartitionHandle(int partNum, RecoveryManager recoveryManager) {
+        this(partNum, recoveryManager, DiskSpaceManagerImpl.IOMode.LOCKED);
+    }
+
+    PartitionHandle(int partNum, RecoveryManager recoveryManager, DiskSpaceManagerImpl.IOMode ioMode) {
+        this.ioMode = ioMode;
+        this.dataWindows = ioMode == DiskSpaceManagerImpl.IOMode.MAPPED
+                           ? new MappedByteBuffer[MAX_HEADER_PAGES] : null;
         this.masterPage = new int[MAX_HEADER_PAGES];
         this.headerPages = new byte[MAX_HEADER_PAGES][];
         this.partitionLock = new ReentrantLock();
@@ -84,6 +99,9 @@ class PartitionHandle implements AutoCloseable {
         this.partitionLock.lock();
         try {
             Arrays.fill(this.headerPages, null);
+            if (this.dataWindows != null) {
+                Arrays.fill(this.dataWindows, null);
+            }
             this.file.close();
             this.fileChannel.close();
         } finally {
@@ -231,7 +249,8 @@ class PartitionHandle implements AutoCloseable {
     }
 
     /**
-     * Reads in a data page. Assumes that the partition lock is held.
+     * Reads in a data page. Assumes that the partition lock is held, unless the
+     * partition uses the POSITIONAL or MAPPED I/O mode.
      * @param pageNum data page number to read in
      * @param buf output buffer to be filled with page - assumed to be page size
      */
@@ -239,8 +258,49 @@ class PartitionHandle implements AutoCloseable {
         if (this.isNotAllocatedPage(pageNum)) {
             throw new PageException("page " + pageNum + " is not allocated");
         }
+        if (this.ioMode == DiskSpaceManagerImpl.IOMode.MAPPED) {
+            this.readMappedPage(pageNum, buf);
+            return;
+        }
         ByteBuffer b = ByteBuffer.wrap(buf);
-        this.fileChannel.read(b, PartitionHandle.dataPageOffset(pageNum));
+        long offset = PartitionHandle.dataPageOffset(pageNum);
+        // positional reads may return early, so keep reading until the page is full
+        while (b.hasRemaining()) {
+            if (this.fileChannel.read(b, offset + b.position()) < 0) {
+                throw new PageException("page " + pageNum + " is past the end of the file");
+            }
+        }
+    }
+
+    /**
+     * Copies a data page out of the mapping of its header page's data pages,
+     * remapping if the page was allocated after the mapping was made.
+     * @param pageNum data page number to read in
+     * @param buf output buffer to be filled with page - assumed to be page size
+     */
+    private void readMappedPage(int pageNum, byte[] buf) throws IOException {
+        int headerIndex = pageNum / DATA_PAGES_PER_HEADER;
+        long windowStart = PartitionHandle.headerPageOffset(headerIndex) + PAGE_SIZE;
+        int position = (int) (PartitionHandle.dataPageOffset(pageNum) - windowStart);
+        MappedByteBuffer window = this.dataWindows[headerIndex];
+        if (window == null || window.capacity() < position + PAGE_SIZE) {
+            synchronized (this.dataWindows) {
+                window = this.dataWindows[headerIndex];
+                if (window == null || window.capacity() < position + PAGE_SIZE) {
+                    long size = Math.min((long) DATA_PAGES_PER_HEADER * PAGE_SIZE,
+                                         this.fileChannel.size() - windowStart);
+                    if (size < position + PAGE_SIZE) {
+                        throw new PageException("page " + pageNum + " is past the end of the file");
+                    }
+                    window = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+                    this.dataWindows[headerIndex] = window;
+                }
+            }
+        }
+        // duplicate so that concurrent readers don't share a position
+        ByteBuffer b = window.duplicate();
+        b.position(position);
+        b.get(buf, 0, PAGE_SIZE);
     }
 
     /**
@@ -1,5 +1,7 @@
 package edu.berkeley.cs186.database.memory;
 
+import edu.berkeley.cs186.database.TransactionContext;
+
 /**
  * Buffer frame.
  */
@@ -55,6 +57,18 @@ abstract class BufferFrame {
      */
     abstract void readBytes(short position, short num, byte[] buf);
 
+    /**
+     * Read from the buffer frame the contents of the page in the snapshot read
+     * by a transaction. Frames without old versions read the latest contents.
+     * @param transaction snapshot transaction
+     * @param position position in buffer frame to start reading
+     * @param num number of bytes to read
+     * @param buf output buffer
+     */
+    void readSnapshotBytes(TransactionContext transaction, short position, short num, byte[] buf) {
+        readBytes(position, num, buf);
+    }
+
     /**
      * Write to the buffer frame, and mark frame as dirtied.
      * @param position position in buffer frame to start writing
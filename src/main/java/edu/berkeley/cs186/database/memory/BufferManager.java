@@ -10,8 +10,16 @@ import edu.berkeley.cs186.database.recovery.RecoveryManager;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 /**
  * Implementation of a buffer manager, with configurable page replacement policies.
@@ -19,6 +27,28 @@ import java.util.function.BiConsumer;
  * to the page loaded (evicting and loading a new page into the frame will result in
  * a new Frame object, with the same underlying byte array), with old Frame objects
  * backed by the same byte array marked as invalid.
+ *
+ * Frames are divided into one or more stripes. Every page hashes to exactly one
+ * stripe, and each stripe has its own free list, eviction policy and lock, which is
+ * only taken to load a page into (or remove a page from) that stripe. Lookups of pages
+ * that are already resident go through a concurrent page table and never take a
+ * stripe lock, so with several stripes, page hits from many threads do not serialize
+ * on a single lock. With a single stripe, every load and eviction is serialized as in
+ * a classic single-lock buffer pool.
+ *
+ * Sequential scans may ask for pages to be read ahead (see setReadAhead and prefetch).
+ * Prefetched pages are loaded by background threads into the buffer (evicting unpinned
+ * pages if necessary) ahead of the scan that will fetch them, so that the scan does not
+ * stall on every cold page read.
+ *
+ * Dirty pages are normally only written when they are evicted, so that whoever
+ * triggers the eviction pays for the write. A background page cleaner may be started
+ * (see startPageCleaner), which writes dirty pages out whenever too much of the buffer
+ * is dirty, so that eviction usually finds clean victims.
+ *
+ * Page versions may be enabled (see enableVersions), in which case the contents of a
+ * page are saved before each transaction first writes to it, so that read-only
+ * snapshot transactions read pages as of their snapshot (see VersionStore).
  */
 public class BufferManager implements AutoCloseable {
     // We reserve 36 bytes on each page for bookkeeping for recovery
@@ -29,29 +59,76 @@ public class BufferManager implements AutoCloseable {
     // Effective page size available to users of buffer manager.
     public static final short EFFECTIVE_PAGE_SIZE = (short) (DiskSpaceManager.PAGE_SIZE - RESERVED_SPACE);
 
-    // Buffer frames
-    private Frame[] frames;
+    // Stripes of buffer frames
+    private Stripe[] stripes;
 
     // Reference to the disk space manager underneath this buffer manager instance.
     private DiskSpaceManager diskSpaceManager;
 
-    // Map of page number to frame index
-    private Map<Long, Integer> pageToFrame;
-
-    // Lock on buffer manager
-    private ReentrantLock managerLock;
-
-    // Eviction policy
-    private EvictionPolicy evictionPolicy;
-
-    // Index of first free frame
-    private int firstFreeIndex;
+    // Map of page number to the frame the page is loaded in
+    private Map<Long, Frame> pageToFrame;
 
     // Recovery manager
     private RecoveryManager recoveryManager;
 
     // Count of number of I/Os
-    private long numIOs = 0;
+    private AtomicLong numIOs = new AtomicLong();
+
+    // Count of number of I/Os done to read pages ahead of a scan
+    private AtomicLong numPrefetchIOs = new AtomicLong();
+
+    // Number of background threads used to read pages ahead
+    private static final int NUM_PREFETCH_THREADS = 2;
+
+    // Number of pages scans should read ahead of the page they are on, 0 if read-ahead is disabled
+    private volatile int readAheadPages = 0;
+
+    // Background threads reading pages ahead, created when read-ahead is first enabled
+    private volatile ExecutorService prefetchExecutor;
+
+    // Page numbers of pages currently queued to be read ahead
+    private Set<Long> pendingPrefetches = ConcurrentHashMap.newKeySet();
+
+    // Count of number of page writes done by threads using the buffer manager
+    private AtomicLong numForegroundWrites = new AtomicLong();
+
+    // Count of number of page writes done by the page cleaner
+    private AtomicLong numBackgroundWrites = new AtomicLong();
+
+    // Background page cleaner, if started
+    private volatile PageCleaner pageCleaner;
+
+    // Old versions of pages read by snapshot transactions, null if page versions are disabled
+    private volatile VersionStore versionStore;
+
+    /**
+     * A stripe of the buffer pool: a fixed subset of the frames, along with the
+     * free list, eviction policy, and lock used when loading pages into or
+     * removing pages from those frames.
+     */
+    private class Stripe {
+        // Frames of this stripe
+        Frame[] frames;
+
+        // Index (within this stripe) of first free frame
+        int firstFreeIndex;
+
+        // Eviction policy for frames of this stripe
+        EvictionPolicy evictionPolicy;
+
+        // Lock on this stripe
+        ReentrantLock lock;
+
+        Stripe(int numFrames, EvictionPolicy evictionPolicy) {
+            this.frames = new Frame[numFrames];
+            for (int i = 0; i < numFrames; ++i) {
+                this.frames[i] = new Frame(new byte[DiskSpaceManager.PAGE_SIZE], i + 1, this);
+            }
+            this.firstFreeIndex = 0;
+            this.evictionPolicy = evictionPolicy;
+            this.lock = new ReentrantLock();
+        }
+    }
 
     /**
      * Buffer frame, containing information about the loaded page, wrapped around the
@@ -67,21 +144,23 @@ public class BufferManager implements AutoCloseable {
         private boolean dirty;
         private ReentrantLock frameLock;
         private boolean logPage;
+        private Stripe stripe;
 
-        Frame(byte[] contents, int nextFree) {
-            this(contents, ~nextFree, DiskSpaceManager.INVALID_PAGE_NUM);
+        Frame(byte[] contents, int nextFree, Stripe stripe) {
+            this(contents, ~nextFree, DiskSpaceManager.INVALID_PAGE_NUM, stripe);
         }
 
         Frame(Frame frame) {
-            this(frame.contents, frame.index, frame.pageNum);
+            this(frame.contents, frame.index, frame.pageNum, frame.stripe);
         }
 
-        Frame(byte[] contents, int index, long pageNum) {
+        Frame(byte[] contents, int index, long pageNum, Stripe stripe) {
             this.contents = contents;
             this.index = index;
             this.pageNum = pageNum;
             this.dirty = false;
             this.frameLock = new ReentrantLock();
+            this.stripe = stripe;
             int partNum = DiskSpaceManager.getPartNum(pageNum);
             this.logPage = partNum == LogManager.LOG_PARTITION;
         }
@@ -143,8 +222,8 @@ public class BufferManager implements AutoCloseable {
             if (isFreed()) {
                 throw new IllegalStateException("cannot free free frame");
             }
-            int nextFreeIndex = firstFreeIndex;
-            firstFreeIndex = this.index;
+            int nextFreeIndex = stripe.firstFreeIndex;
+            stripe.firstFreeIndex = this.index;
             this.index = ~nextFreeIndex;
         }
 
@@ -152,8 +231,8 @@ public class BufferManager implements AutoCloseable {
             if (!isFreed()) {
                 throw new IllegalStateException("cannot unfree used frame");
             }
-            int index = firstFreeIndex;
-            firstFreeIndex = ~this.index;
+            int index = stripe.firstFreeIndex;
+            stripe.firstFreeIndex = ~this.index;
             this.index = index;
         }
 
@@ -170,6 +249,14 @@ public class BufferManager implements AutoCloseable {
          */
         @Override
         void flush() {
+            this.flush(false);
+        }
+
+        /**
+         * Flushes this buffer frame to disk, but does not unload it.
+         * @param background whether the write is done by the page cleaner
+         */
+        private void flush(boolean background) {
             this.frameLock.lock();
             super.pin();
             try {
@@ -184,6 +271,11 @@ public class BufferManager implements AutoCloseable {
                 }
                 BufferManager.this.diskSpaceManager.writePage(pageNum, contents);
                 BufferManager.this.incrementIOs();
+                if (background) {
+                    BufferManager.this.numBackgroundWrites.incrementAndGet();
+                } else {
+                    BufferManager.this.numForegroundWrites.incrementAndGet();
+                }
                 this.dirty = false;
             } finally {
                 super.unpin();
@@ -205,7 +297,43 @@ public class BufferManager implements AutoCloseable {
                     throw new IllegalStateException("reading from invalid buffer frame");
                 }
                 System.arraycopy(this.contents, position + dataOffset(), buf, 0, num);
-                BufferManager.this.evictionPolicy.hit(this);
+                stripe.evictionPolicy.hit(this);
+            } finally {
+                this.unpin();
+            }
+        }
+
+        /**
+         * Read from the buffer frame the contents of the page in the snapshot of a
+         * snapshot transaction (zeros if the page did not exist in the snapshot).
+         * @param transaction snapshot transaction
+         * @param position position in buffer frame to start reading
+         * @param num number of bytes to read
+         * @param buf output buffer
+         */
+        @Override
+        void readSnapshotBytes(TransactionContext transaction, short position, short num, byte[] buf) {
+            VersionStore versions = BufferManager.this.versionStore;
+            if (versions == null || logPage) {
+                this.readBytes(position, num, buf);
+                return;
+            }
+            this.pin();
+            try {
+                if (!this.isValid()) {
+                    throw new IllegalStateException("reading from invalid buffer frame");
+                }
+                // the frame lock, held while pinned, keeps writers from saving a
+                // version and changing the contents until we are done
+                byte[] version = versions.getVersion(pageNum, transaction.getSnapshot(), transaction.getTransNum());
+                if (version == null) {
+                    System.arraycopy(this.contents, position + dataOffset(), buf, 0, num);
+                } else if (version.length == 0) {
+                    Arrays.fill(buf, 0, num, (byte) 0);
+                } else {
+                    System.arraycopy(version, position + dataOffset(), buf, 0, num);
+                }
+                stripe.evictionPolicy.hit(this);
             } finally {
                 this.unpin();
             }
@@ -226,21 +354,32 @@ public class BufferManager implements AutoCloseable {
                 }
                 int offset = position + dataOffset();
                 TransactionContext transaction = TransactionContext.getTransaction();
+                VersionStore versions = BufferManager.this.versionStore;
+                if (versions != null && transaction != null && !transaction.readsSnapshot() && !logPage) {
+                    versions.saveVersion(transaction.getTransNum(), pageNum, this.contents);
+                }
                 if (transaction != null && !logPage) {
                     List<Pair<Integer, Integer>> changedRanges = getChangedBytes(offset, num, buf);
-                    for (Pair<Integer, Integer> range : changedRanges) {
-                        int start = range.getFirst();
-                        int len = range.getSecond();
-                        byte[] before = Arrays.copyOfRange(contents, start + offset, start + offset + len);
-                        byte[] after = Arrays.copyOfRange(buf, start, start + len);
-                        long pageLSN = recoveryManager.logPageWrite(transaction.getTransNum(), pageNum, (short) (start + position), before,
-                                       after);
+                    int numRanges = changedRanges.size();
+                    if (numRanges > 0) {
+                        short[] offsets = new short[numRanges];
+                        byte[][] befores = new byte[numRanges][];
+                        byte[][] afters = new byte[numRanges][];
+                        for (int i = 0; i < numRanges; ++i) {
+                            int start = changedRanges.get(i).getFirst();
+                            int len = changedRanges.get(i).getSecond();
+                            offsets[i] = (short) (start + position);
+                            befores[i] = Arrays.copyOfRange(contents, start + offset, start + offset + len);
+                            afters[i] = Arrays.copyOfRange(buf, start, start + len);
+                        }
+                        long pageLSN = recoveryManager.logPageWrites(transaction.getTransNum(), pageNum, offsets, befores,
+                                       afters);
                         this.setPageLSN(pageLSN);
                     }
                 }
                 System.arraycopy(buf, 0, this.contents, offset, num);
                 this.dirty = true;
-                BufferManager.this.evictionPolicy.hit(this);
+                stripe.evictionPolicy.hit(this);
             } finally {
                 this.unpin();
             }
@@ -342,7 +481,7 @@ public class BufferManager implements AutoCloseable {
     }
 
     /**
-     * Creates a new buffer manager.
+     * Creates a new buffer manager with a single stripe.
      *
      * @param diskSpaceManager the underlying disk space manager
      * @param bufferSize size of buffer (in pages)
@@ -350,42 +489,79 @@ public class BufferManager implements AutoCloseable {
      */
     public BufferManager(DiskSpaceManager diskSpaceManager, RecoveryManager recoveryManager,
                          int bufferSize, EvictionPolicy evictionPolicy) {
-        this.frames = new Frame[bufferSize];
-        for (int i = 0; i < bufferSize; ++i) {
-            this.frames[i] = new Frame(new byte[DiskSpaceManager.PAGE_SIZE], i + 1);
+        this(diskSpaceManager, recoveryManager, bufferSize, 1, () -> evictionPolicy);
+    }
+
+    /**
+     * Creates a new buffer manager with its frames split into numStripes stripes.
+     * Each stripe gets its own eviction policy instance from evictionPolicyFactory.
+     *
+     * @param diskSpaceManager the underlying disk space manager
+     * @param bufferSize size of buffer (in pages)
+     * @param numStripes number of stripes to split the buffer into (capped at bufferSize)
+     * @param evictionPolicyFactory creates the eviction policy of each stripe
+     */
+    public BufferManager(DiskSpaceManager diskSpaceManager, RecoveryManager recoveryManager,
+                         int bufferSize, int numStripes, Supplier<EvictionPolicy> evictionPolicyFactory) {
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("buffer manager needs at least one stripe");
+        }
+        numStripes = Math.max(1, Math.min(numStripes, bufferSize));
+        this.stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; ++i) {
+            // spread any remainder over the first few stripes
+            int stripeSize = bufferSize / numStripes + (i < bufferSize % numStripes ? 1 : 0);
+            this.stripes[i] = new Stripe(stripeSize, evictionPolicyFactory.get());
         }
-        this.firstFreeIndex = 0;
         this.diskSpaceManager = diskSpaceManager;
-        this.pageToFrame = new HashMap<>();
-        this.managerLock = new ReentrantLock();
-        this.evictionPolicy = evictionPolicy;
+        this.pageToFrame = new ConcurrentHashMap<>();
         this.recoveryManager = recoveryManager;
     }
 
     @Override
     public void close() {
-        this.managerLock.lock();
+        this.stopPageCleaner();
+        ExecutorService executor = this.prefetchExecutor;
+        if (executor != null) {
+            // don't interrupt reads in progress, since interrupting a FileChannel closes it
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.lockAllStripes();
         try {
-            for (Frame frame : this.frames) {
-                frame.frameLock.lock();
-                try {
-                    if (frame.isPinned()) {
-                        throw new IllegalStateException("closing buffer manager but frame still pinned");
+            for (Stripe stripe : this.stripes) {
+                for (Frame frame : stripe.frames) {
+                    frame.frameLock.lock();
+                    try {
+                        if (frame.isPinned()) {
+                            throw new IllegalStateException("closing buffer manager but frame still pinned");
+                        }
+                        if (!frame.isValid()) {
+                            continue;
+                        }
+                        stripe.evictionPolicy.cleanup(frame);
+                        frame.invalidate();
+                    } finally {
+                        frame.frameLock.unlock();
                     }
-                    if (!frame.isValid()) {
-                        continue;
-                    }
-                    evictionPolicy.cleanup(frame);
-                    frame.invalidate();
-                } finally {
-                    frame.frameLock.unlock();
                 }
             }
         } finally {
-            this.managerLock.unlock();
+            this.unlockAllStripes();
         }
     }
 
+    /**
+     * @return number of stripes the buffer is split into
+     */
+    public int getNumStripes() {
+        return this.stripes.length;
+    }
+
     /**
      * Fetches a buffer frame with data for the specified page. Reuses existing
      * buffer frame if page already loaded in memory. Pins the buffer frame.
@@ -395,57 +571,368 @@ public class BufferManager implements AutoCloseable {
      * @return buffer frame with specified page loaded
      */
     Frame fetchPageFrame(long pageNum) {
-        this.managerLock.lock();
-        Frame newFrame;
-        Frame evictedFrame;
-        // figure out what frame to load data to, and update manager state
-        try {
-            if (!this.diskSpaceManager.pageAllocated(pageNum)) {
-                throw new PageException("page " + pageNum + " not allocated");
+        return this.fetchPageFrame(pageNum, false);
+    }
+
+    /**
+     * Fetches a buffer frame with data for the specified page. When prefetching, a page
+     * that is already loaded is left alone (and null is returned), and the read is counted
+     * as a prefetch I/O rather than a demand I/O.
+     *
+     * @param pageNum page number
+     * @param prefetch whether the page is being read ahead of its use
+     * @return buffer frame with specified page loaded
+     */
+    private Frame fetchPageFrame(long pageNum, boolean prefetch) {
+        Stripe stripe = this.stripeFor(pageNum);
+        while (true) {
+            if (prefetch && this.pageToFrame.containsKey(pageNum)) {
+                return null;
+            }
+            // page hits only need the frame's lock
+            Frame residentFrame = prefetch ? null : this.pinResidentFrame(pageNum);
+            if (residentFrame != null) {
+                return residentFrame;
             }
-            if (this.pageToFrame.containsKey(pageNum)) {
-                newFrame = this.frames[this.pageToFrame.get(pageNum)];
+
+            Frame newFrame;
+            Frame evictedFrame;
+            // figure out what frame to load data to, and update stripe state
+            stripe.lock.lock();
+            try {
+                if (!this.diskSpaceManager.pageAllocated(pageNum)) {
+                    throw new PageException("page " + pageNum + " not allocated");
+                }
+                if (this.pageToFrame.containsKey(pageNum)) {
+                    // loaded by another thread since we checked - pin it without the stripe lock
+                    if (prefetch) {
+                        return null;
+                    }
+                    continue;
+                }
+                // prioritize free frames over eviction
+                if (stripe.firstFreeIndex < stripe.frames.length) {
+                    evictedFrame = stripe.frames[stripe.firstFreeIndex];
+                    evictedFrame.setUsed();
+                    evictedFrame.frameLock.lock();
+                } else {
+                    evictedFrame = (Frame) stripe.evictionPolicy.evict(stripe.frames);
+                    // a page hit may have pinned the victim after it was chosen; the victim
+                    // only leaves the page table while we hold its lock, so retry if we can't
+                    // get the lock rather than waiting on the pin with the stripe locked
+                    if (!evictedFrame.frameLock.tryLock()) {
+                        continue;
+                    }
+                    if (evictedFrame.isPinned()) {
+                        evictedFrame.frameLock.unlock();
+                        continue;
+                    }
+                    this.pageToFrame.remove(evictedFrame.pageNum, evictedFrame);
+                    stripe.evictionPolicy.cleanup(evictedFrame);
+                    if (evictedFrame.dirty && this.pageCleaner != null) {
+                        // evicting a dirty page means the cleaner is falling behind
+                        this.pageCleaner.wakeUp();
+                    }
+                }
+                int frameIndex = evictedFrame.index;
+                newFrame = stripe.frames[frameIndex] = new Frame(evictedFrame.contents, frameIndex, pageNum, stripe);
+                stripe.evictionPolicy.init(newFrame);
+
+                newFrame.frameLock.lock();
+
+                this.pageToFrame.put(pageNum, newFrame);
+            } finally {
+                stripe.lock.unlock();
+            }
+            // flush evicted frame
+            try {
+                evictedFrame.invalidate();
+            } finally {
+                evictedFrame.frameLock.unlock();
+            }
+            // read new page into frame
+            try {
+                newFrame.pageNum = pageNum;
                 newFrame.pin();
+                BufferManager.this.diskSpaceManager.readPage(pageNum, newFrame.contents);
+                this.incrementIOs();
+                if (prefetch) {
+                    this.numPrefetchIOs.incrementAndGet();
+                }
                 return newFrame;
+            } catch (PageException e) {
+                newFrame.unpin();
+                throw e;
+            } finally {
+                newFrame.frameLock.unlock();
             }
-            // prioritize free frames over eviction
-            if (this.firstFreeIndex < this.frames.length) {
-                evictedFrame = this.frames[this.firstFreeIndex];
-                evictedFrame.setUsed();
-            } else {
-                evictedFrame = (Frame) evictionPolicy.evict(frames);
-                this.pageToFrame.remove(evictedFrame.pageNum, evictedFrame.index);
-                evictionPolicy.cleanup(evictedFrame);
+        }
+    }
+
+    /**
+     * Pins the frame holding the specified page, if the page is loaded, without
+     * taking the lock of the page's stripe.
+     *
+     * @param pageNum page number
+     * @return pinned frame holding the page, or null if the page is not loaded
+     */
+    private Frame pinResidentFrame(long pageNum) {
+        Frame frame = this.pageToFrame.get(pageNum);
+        if (frame == null) {
+            return null;
+        }
+        frame.frameLock.lock();
+        try {
+            // the frame may have been evicted or freed between the lookup and locking it
+            if (!frame.isValid() || frame.pageNum != pageNum || this.pageToFrame.get(pageNum) != frame) {
+                return null;
             }
-            int frameIndex = evictedFrame.index;
-            newFrame = this.frames[frameIndex] = new Frame(evictedFrame.contents, frameIndex, pageNum);
-            evictionPolicy.init(newFrame);
+            frame.pin();
+            return frame;
+        } finally {
+            frame.frameLock.unlock();
+        }
+    }
 
-            evictedFrame.frameLock.lock();
-            newFrame.frameLock.lock();
+    /**
+     * Sets the number of pages that sequential scans read ahead of the page they are
+     * currently on. Setting this to 0 (the default) disables read-ahead.
+     *
+     * @param numPages number of pages to read ahead
+     */
+    public synchronized void setReadAhead(int numPages) {
+        if (numPages < 0) {
+            throw new IllegalArgumentException("cannot read ahead a negative number of pages");
+        }
+        if (numPages > 0 && this.prefetchExecutor == null) {
+            this.prefetchExecutor = Executors.newFixedThreadPool(NUM_PREFETCH_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "buffer-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.readAheadPages = numPages;
+    }
 
-            this.pageToFrame.put(pageNum, frameIndex);
-        } finally {
-            this.managerLock.unlock();
+    /**
+     * @return number of pages that sequential scans read ahead, 0 if read-ahead is disabled
+     */
+    public int getReadAhead() {
+        return this.readAheadPages;
+    }
+
+    /**
+     * Asks for the specified page to be loaded into the buffer in the background, if
+     * read-ahead is enabled. The page is not pinned, and this is only a hint: nothing
+     * happens if the page is already loaded or queued, is not allocated, or if every
+     * frame it could be loaded into is pinned.
+     *
+     * @param pageNum page number of page to read ahead
+     */
+    public void prefetch(long pageNum) {
+        ExecutorService executor = this.prefetchExecutor;
+        if (this.readAheadPages == 0 || executor == null || this.pageToFrame.containsKey(pageNum)) {
+            return;
+        }
+        if (!this.pendingPrefetches.add(pageNum)) {
+            return;
         }
-        // flush evicted frame
         try {
-            evictedFrame.invalidate();
-        } finally {
-            evictedFrame.frameLock.unlock();
+            executor.execute(() -> {
+                try {
+                    if (executor.isShutdown()) {
+                        return;
+                    }
+                    Frame frame = this.fetchPageFrame(pageNum, true);
+                    if (frame != null) {
+                        frame.unpin();
+                    }
+                } catch (RuntimeException e) {
+                    // read-ahead is best effort - the scan will read the page itself
+                } finally {
+                    this.pendingPrefetches.remove(pageNum);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.pendingPrefetches.remove(pageNum);
+        }
+    }
+
+    /**
+     * Starts a background thread that writes dirty pages to disk. Every intervalMillis
+     * milliseconds (or sooner, if a dirty page had to be evicted), the cleaner checks what
+     * fraction of the buffer is dirty, and if it is above highDirtyRatio, flushes unpinned
+     * dirty pages until at most lowDirtyRatio of the buffer is dirty. Log pages are left to
+     * the log manager, and pages are flushed through the same path as on eviction, so the
+     * log is always flushed up to a page's pageLSN before the page is written.
+     *
+     * @param highDirtyRatio fraction of dirty frames above which the cleaner starts writing
+     * @param lowDirtyRatio fraction of dirty frames the cleaner writes down to
+     * @param intervalMillis how often the cleaner checks the buffer, in milliseconds
+     */
+    public synchronized void startPageCleaner(double highDirtyRatio, double lowDirtyRatio, long intervalMillis) {
+        if (lowDirtyRatio < 0 || lowDirtyRatio > highDirtyRatio || highDirtyRatio > 1) {
+            throw new IllegalArgumentException("need 0 <= lowDirtyRatio <= highDirtyRatio <= 1");
+        }
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("page cleaner interval must be positive");
+        }
+        if (this.pageCleaner != null) {
+            throw new IllegalStateException("page cleaner already started");
+        }
+        this.pageCleaner = new PageCleaner(highDirtyRatio, lowDirtyRatio, intervalMillis);
+        this.pageCleaner.thread.start();
+    }
+
+    /**
+     * Stops the background page cleaner, if it was started, and waits for it to finish.
+     */
+    public synchronized void stopPageCleaner() {
+        if (this.pageCleaner == null) {
+            return;
         }
-        // read new page into frame
+        PageCleaner cleaner = this.pageCleaner;
+        this.pageCleaner = null;
+        cleaner.running = false;
+        cleaner.wakeUp();
         try {
-            newFrame.pageNum = pageNum;
-            newFrame.pin();
-            BufferManager.this.diskSpaceManager.readPage(pageNum, newFrame.contents);
-            this.incrementIOs();
-            return newFrame;
-        } catch (PageException e) {
-            newFrame.unpin();
-            throw e;
-        } finally {
-            newFrame.frameLock.unlock();
+            cleaner.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Background writer of dirty pages. Sweeps over the frames like a clock hand, writing
+     * out unpinned dirty pages while too much of the buffer is dirty.
+     */
+    private class PageCleaner implements Runnable {
+        private final double highDirtyRatio;
+        private final double lowDirtyRatio;
+        private final long intervalNanos;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        // next stripe and frame within the stripe to look at
+        private int stripeIndex = 0;
+        private int frameIndex = 0;
+
+        PageCleaner(double highDirtyRatio, double lowDirtyRatio, long intervalMillis) {
+            this.highDirtyRatio = highDirtyRatio;
+            this.lowDirtyRatio = lowDirtyRatio;
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.thread = new Thread(this, "buffer-page-cleaner");
+            this.thread.setDaemon(true);
+        }
+
+        void wakeUp() {
+            LockSupport.unpark(this.thread);
+        }
+
+        @Override
+        public void run() {
+            while (this.running) {
+                LockSupport.parkNanos(this, this.intervalNanos);
+                if (!this.running) {
+                    return;
+                }
+                int numFrames = 0;
+                int numDirty = 0;
+                for (Stripe stripe : stripes) {
+                    for (Frame frame : stripe.frames) {
+                        ++numFrames;
+                        // racy read: this only needs to be approximately right
+                        if (frame.dirty && frame.isValid()) {
+                            ++numDirty;
+                        }
+                    }
+                }
+                if (numDirty <= this.highDirtyRatio * numFrames) {
+                    continue;
+                }
+                int target = (int) (this.lowDirtyRatio * numFrames);
+                // at most one full sweep per wakeup, since pinned pages can't be flushed
+                for (int i = 0; i < numFrames && numDirty > target && this.running; ++i) {
+                    if (this.cleanNextFrame()) {
+                        --numDirty;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Flushes the frame under the clock hand if it is dirty, unpinned and not
+         * a log page, and advances the hand.
+         * @return whether a page was written
+         */
+        private boolean cleanNextFrame() {
+            Stripe stripe = stripes[this.stripeIndex];
+            Frame frame = stripe.frames[this.frameIndex];
+            if (++this.frameIndex == stripe.frames.length) {
+                this.frameIndex = 0;
+                this.stripeIndex = (this.stripeIndex + 1) % stripes.length;
+            }
+            if (!frame.dirty || frame.logPage) {
+                return false;
+            }
+            // never wait on a frame: if it is locked, it is pinned or being evicted
+            if (!frame.frameLock.tryLock()) {
+                return false;
+            }
+            try {
+                if (!frame.isValid() || frame.isPinned() || !frame.dirty) {
+                    return false;
+                }
+                frame.flush(true);
+                return true;
+            } finally {
+                frame.frameLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Enables page versions: from now on, the contents of a page are saved before
+     * each transaction first writes to it, so that snapshot transactions can read
+     * the page as of their snapshot. Pages written by transactions that started
+     * before this call are not versioned until those transactions end.
+     */
+    public synchronized void enableVersions() {
+        if (this.versionStore == null) {
+            this.versionStore = new VersionStore();
+        }
+    }
+
+    /**
+     * @return store of old versions of pages, or null if page versions are disabled
+     */
+    public VersionStore getVersionStore() {
+        return this.versionStore;
+    }
+
+    /**
+     * @param pageNum page number
+     * @return whether the page existed in the snapshot read by the current
+     * transaction; true if the current transaction does not read a snapshot
+     */
+    public boolean inSnapshot(long pageNum) {
+        VersionStore versions = this.versionStore;
+        TransactionContext transaction = TransactionContext.getTransaction();
+        if (versions == null || transaction == null || !transaction.readsSnapshot()) {
+            return true;
+        }
+        byte[] version = versions.getVersion(pageNum, transaction.getSnapshot(), transaction.getTransNum());
+        return version == null || version.length > 0;
+    }
+
+    // records that the current transaction allocated the page, so that snapshots
+    // that do not see the transaction's changes do not see the page either
+    private void saveNewPage(long pageNum) {
+        VersionStore versions = this.versionStore;
+        TransactionContext transaction = TransactionContext.getTransaction();
+        if (versions != null && transaction != null && !transaction.readsSnapshot()
+                && DiskSpaceManager.getPartNum(pageNum) != LogManager.LOG_PARTITION) {
+            versions.saveNewPage(transaction.getTransNum(), pageNum);
         }
     }
 
@@ -460,6 +947,27 @@ public class BufferManager implements AutoCloseable {
         return this.frameToPage(parentContext, pageNum, this.fetchPageFrame(pageNum));
     }
 
+    /**
+     * Fetches the specified page, with a loaded and pinned buffer frame, optionally
+     * hinting to the eviction policy that the page will only be used once (e.g. because
+     * it is being read by a sequential scan).
+     *
+     * @param parentContext lock context of the **parent** of the page being fetched
+     * @param pageNum       page number
+     * @param useOnce       whether the page is only expected to be used once
+     * @return specified page
+     */
+    public Page fetchPage(LockContext parentContext, long pageNum, boolean useOnce) {
+        Frame frame = this.fetchPageFrame(pageNum);
+        EvictionPolicy policy = frame.stripe.evictionPolicy;
+        if (useOnce && policy.wantsUseOnceHints()) {
+            // like a hit, the hint only needs the frame pinned, and not the stripe
+            // lock, which must not be taken while holding a frame's lock
+            policy.useOnce(frame);
+        }
+        return this.frameToPage(parentContext, pageNum, frame);
+    }
+
     /**
      * Fetches a buffer frame for a new page. Pins the buffer frame. Cannot be used outside the package.
      *
@@ -468,12 +976,7 @@ public class BufferManager implements AutoCloseable {
      */
     Frame fetchNewPageFrame(int partNum) {
         long pageNum = this.diskSpaceManager.allocPage(partNum);
-        this.managerLock.lock();
-        try {
-            return fetchPageFrame(pageNum);
-        } finally {
-            this.managerLock.unlock();
-        }
+        return fetchPageFrame(pageNum);
     }
 
     /**
@@ -485,6 +988,20 @@ public class BufferManager implements AutoCloseable {
      */
     public Page fetchNewPage(LockContext parentContext, int partNum) {
         Frame newFrame = this.fetchNewPageFrame(partNum);
+        this.saveNewPage(newFrame.getPageNum());
+        return this.frameToPage(parentContext, newFrame.getPageNum(), newFrame);
+    }
+
+    /**
+     * Allocates the specified page and fetches it, with a loaded and pinned buffer frame.
+     *
+     * @param parentContext parent lock context of the new page
+     * @param pageNum       page number of the new page, which must not be allocated
+     * @return the new page
+     */
+    public Page fetchNewPage(LockContext parentContext, long pageNum) {
+        Frame newFrame = this.fetchPageFrame(this.diskSpaceManager.allocPage(pageNum));
+        this.saveNewPage(newFrame.getPageNum());
         return this.frameToPage(parentContext, newFrame.getPageNum(), newFrame);
     }
 
@@ -496,24 +1013,63 @@ public class BufferManager implements AutoCloseable {
      * @param page page to free
      */
     public void freePage(Page page) {
-        this.managerLock.lock();
+        Stripe stripe = this.stripeFor(page.getPageNum());
+        stripe.lock.lock();
         try {
             TransactionContext transaction = TransactionContext.getTransaction();
-            int frameIndex = this.pageToFrame.get(page.getPageNum());
+            Frame frame = this.pageToFrame.get(page.getPageNum());
+            int frameIndex = frame.index;
 
-            Frame frame = this.frames[frameIndex];
             if (transaction != null) page.flush();
-            this.pageToFrame.remove(page.getPageNum(), frameIndex);
-            evictionPolicy.cleanup(frame);
+            this.pageToFrame.remove(page.getPageNum(), frame);
+            stripe.evictionPolicy.cleanup(frame);
             frame.setFree();
 
-            this.frames[frameIndex] = new Frame(frame);
+            stripe.frames[frameIndex] = new Frame(frame);
             diskSpaceManager.freePage(page.getPageNum());
         } finally {
-            this.managerLock.unlock();
+            stripe.lock.unlock();
         }
     }
 
+    /**
+     * Frees a page without loading it. If the page is loaded, waits for it to be
+     * unpinned and drops it from the cache without flushing it; either way, tells
+     * the disk space manager that the page is no longer needed.
+     *
+     * @param pageNum page number of page to free
+     */
+    public void freePage(long pageNum) {
+        Stripe stripe = this.stripeFor(pageNum);
+        stripe.lock.lock();
+        try {
+            Frame frame = this.pageToFrame.get(pageNum);
+            if (frame != null) {
+                frame.frameLock.lock();
+                try {
+                    int frameIndex = frame.index;
+                    this.pageToFrame.remove(pageNum, frame);
+                    stripe.evictionPolicy.cleanup(frame);
+                    frame.setFree();
+                    stripe.frames[frameIndex] = new Frame(frame);
+                } finally {
+                    frame.frameLock.unlock();
+                }
+            }
+            diskSpaceManager.freePage(pageNum);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @param pageNum page number
+     * @return whether the page is allocated on disk
+     */
+    public boolean pageAllocated(long pageNum) {
+        return this.diskSpaceManager.pageAllocated(pageNum);
+    }
+
     /**
      * Frees a partition - evicts all relevant pages from cache, and tells the disk space manager
      * that the partition is no longer needed. No pages in the partition may be pinned before this call,
@@ -522,22 +1078,25 @@ public class BufferManager implements AutoCloseable {
      * @param partNum partition number to free
      */
     public void freePart(int partNum) {
-        this.managerLock.lock();
+        this.lockAllStripes();
         try {
-            for (int i = 0; i < frames.length; ++i) {
-                Frame frame = frames[i];
-                if (DiskSpaceManager.getPartNum(frame.pageNum) == partNum) {
-                    this.pageToFrame.remove(frame.getPageNum(), i);
-                    evictionPolicy.cleanup(frame);
-                    frame.flush();
-                    frame.setFree();
-                    frames[i] = new Frame(frame);
+            for (Stripe stripe : this.stripes) {
+                Frame[] frames = stripe.frames;
+                for (int i = 0; i < frames.length; ++i) {
+                    Frame frame = frames[i];
+                    if (DiskSpaceManager.getPartNum(frame.pageNum) == partNum) {
+                        this.pageToFrame.remove(frame.getPageNum(), frame);
+                        stripe.evictionPolicy.cleanup(frame);
+                        frame.flush();
+                        frame.setFree();
+                        frames[i] = new Frame(frame);
+                    }
                 }
             }
 
             diskSpaceManager.freePart(partNum);
         } finally {
-            this.managerLock.unlock();
+            this.unlockAllStripes();
         }
     }
 
@@ -547,27 +1106,32 @@ public class BufferManager implements AutoCloseable {
      * @param pageNum page number of page to evict
      */
     public void evict(long pageNum) {
-        managerLock.lock();
+        Stripe stripe = this.stripeFor(pageNum);
+        stripe.lock.lock();
         try {
-            if (!pageToFrame.containsKey(pageNum)) {
+            Frame frame = pageToFrame.get(pageNum);
+            if (frame == null) {
                 return;
             }
-            evict(pageToFrame.get(pageNum));
+            evict(stripe, frame.index);
         } finally {
-            managerLock.unlock();
+            stripe.lock.unlock();
         }
     }
 
-    private void evict(int i) {
-        Frame frame = frames[i];
+    private void evict(Stripe stripe, int i) {
+        Frame frame = stripe.frames[i];
         frame.frameLock.lock();
         try {
             if (frame.isValid() && !frame.isPinned()) {
-                this.pageToFrame.remove(frame.pageNum, frame.index);
-                evictionPolicy.cleanup(frame);
+                // flush while the frame still owns its buffer: the flush hook may
+                // load pages (e.g. the log tail), which could land in a free frame
+                frame.flush();
+                this.pageToFrame.remove(frame.pageNum, frame);
+                stripe.evictionPolicy.cleanup(frame);
 
-                frames[i] = new Frame(frame.contents, this.firstFreeIndex);
-                this.firstFreeIndex = i;
+                stripe.frames[i] = new Frame(frame.contents, stripe.firstFreeIndex, stripe);
+                stripe.firstFreeIndex = i;
 
                 frame.invalidate();
             }
@@ -580,8 +1144,15 @@ public class BufferManager implements AutoCloseable {
      * Calls evict on every frame in sequence.
      */
     public void evictAll() {
-        for (int i = 0; i < frames.length; ++i) {
-            evict(i);
+        for (Stripe stripe : this.stripes) {
+            stripe.lock.lock();
+            try {
+                for (int i = 0; i < stripe.frames.length; ++i) {
+                    evict(stripe, i);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
         }
     }
 
@@ -592,14 +1163,16 @@ public class BufferManager implements AutoCloseable {
      *                (has an unflushed change).
      */
     public void iterPageNums(BiConsumer<Long, Boolean> process) {
-        for (Frame frame : frames) {
-            frame.frameLock.lock();
-            try {
-                if (frame.isValid()) {
-                    process.accept(frame.pageNum, frame.dirty);
+        for (Stripe stripe : this.stripes) {
+            for (Frame frame : stripe.frames) {
+                frame.frameLock.lock();
+                try {
+                    if (frame.isValid()) {
+                        process.accept(frame.pageNum, frame.dirty);
+                    }
+                } finally {
+                    frame.frameLock.unlock();
                 }
-            } finally {
-                frame.frameLock.unlock();
             }
         }
     }
@@ -611,7 +1184,42 @@ public class BufferManager implements AutoCloseable {
      * @return number of I/Os
      */
     public long getNumIOs() {
-        return numIOs;
+        return numIOs.get();
+    }
+
+    /**
+     * Get the number of I/Os since the buffer manager was started that read pages ahead of a
+     * scan. These are included in getNumIOs(); demand reads and writes are the difference.
+     * @return number of prefetch I/Os
+     */
+    public long getNumPrefetchIOs() {
+        return numPrefetchIOs.get();
+    }
+
+    /**
+     * Get the number of pages written since the buffer manager was started by threads using
+     * the buffer manager (on eviction, or when explicitly flushed).
+     * @return number of foreground writes
+     */
+    public long getNumForegroundWrites() {
+        return numForegroundWrites.get();
+    }
+
+    /**
+     * Get the number of pages written since the buffer manager was started by the background
+     * page cleaner.
+     * @return number of background writes
+     */
+    public long getNumBackgroundWrites() {
+        return numBackgroundWrites.get();
+    }
+
+    /**
+     * Get the number of I/Os since the buffer manager was started that were not prefetches.
+     * @return number of demand I/Os
+     */
+    public long getNumDemandIOs() {
+        return getNumIOs() - getNumPrefetchIOs();
     }
 
     public static boolean logIOs;
@@ -626,7 +1234,28 @@ public class BufferManager implements AutoCloseable {
                 }
             }
         }
-        ++numIOs;
+        numIOs.incrementAndGet();
+    }
+
+    /**
+     * @param pageNum page number
+     * @return the stripe that the page is loaded into
+     */
+    private Stripe stripeFor(long pageNum) {
+        return this.stripes[(int) Math.floorMod(pageNum, (long) this.stripes.length)];
+    }
+
+    // Locks every stripe, always in the same order.
+    private void lockAllStripes() {
+        for (Stripe stripe : this.stripes) {
+            stripe.lock.lock();
+        }
+    }
+
+    private void unlockAllStripes() {
+        for (int i = this.stripes.length - 1; i >= 0; --i) {
+            this.stripes[i].lock.unlock();
+        }
     }
 
     /**
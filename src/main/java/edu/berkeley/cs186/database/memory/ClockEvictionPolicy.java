@@ -66,4 +66,20 @@ public class ClockEvictionPolicy implements EvictionPolicy {
      */
     @Override
     public void cleanup(BufferFrame frame) {}
+
+    /**
+     * Called when the page in a frame is not expected to be used again soon.
+     * This policy does not distinguish such pages.
+     * @param frame frame whose page is only used once
+     */
+    @Override
+    public void useOnce(BufferFrame frame) {}
+
+    /**
+     * @return false, since useOnce does nothing
+     */
+    @Override
+    public boolean wantsUseOnceHints() {
+        return false;
+    }
 }
@@ -31,4 +31,19 @@ public interface EvictionPolicy {
      * @param frame frame being removed
      */
     void cleanup(BufferFrame frame);
+
+    /**
+     * Called when the page in a frame is not expected to be used again soon
+     * (e.g. a page read by a sequential scan), so that it may be evicted before
+     * pages that are more likely to be reused. Like hit, this is called while
+     * the frame is pinned, without holding the lock of the frame's stripe.
+     * @param frame frame whose page is only used once
+     */
+    void useOnce(BufferFrame frame);
+
+    /**
+     * @return whether useOnce does anything, so that the buffer manager only
+     * passes the hint on to policies that use it
+     */
+    boolean wantsUseOnceHints();
 }
@@ -92,4 +92,20 @@ public class LRUEvictionPolicy implements EvictionPolicy {
         frameTag.next.prev = frameTag.prev;
         frameTag.prev = frameTag.next = frameTag;
     }
+
+    /**
+     * Called when the page in a frame is not expected to be used again soon.
+     * This policy does not distinguish such pages.
+     * @param frame frame whose page is only used once
+     */
+    @Override
+    public void useOnce(BufferFrame frame) {}
+
+    /**
+     * @return false, since useOnce does nothing
+     */
+    @Override
+    public boolean wantsUseOnceHints() {
+        return false;
+    }
 }
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.memory;
 
+import edu.berkeley.cs186.database.TransactionContext;
 import edu.berkeley.cs186.database.common.AbstractBuffer;
 import edu.berkeley.cs186.database.common.Buffer;
 import edu.berkeley.cs186.database.concurrency.DummyLockContext;
@@ -19,6 +20,9 @@ public class Page {
     // buffer manager frame for this page's data (potentially invalidated)
     private BufferFrame frame;
 
+    // whether snapshot transactions read the latest contents of the page
+    private boolean snapshotReadsDisabled = false;
+
     /**
      * Create a page handle with the given buffer frame
      *
@@ -38,6 +42,7 @@ public class Page {
     protected Page(Page page) {
         this.lockContext = page.lockContext;
         this.frame = page.frame;
+        this.snapshotReadsDisabled = page.snapshotReadsDisabled;
     }
 
     /**
@@ -47,6 +52,14 @@ public class Page {
         this.lockContext = new DummyLockContext("_dummyPage");
     }
 
+    /**
+     * Makes snapshot transactions read the latest contents of the page through
+     * this page handle, rather than its contents in their snapshot.
+     */
+    public void disableSnapshotReads() {
+        this.snapshotReadsDisabled = true;
+    }
+
     /**
      * Gets a Buffer object for more convenient access to the page.
      *
@@ -74,7 +87,12 @@ public class Page {
             throw new PageException("num bytes to read is longer than buffer");
         }
 
-        this.frame.readBytes((short) position, (short) num, buf);
+        TransactionContext transaction = TransactionContext.getTransaction();
+        if (transaction != null && transaction.readsSnapshot() && !this.snapshotReadsDisabled) {
+            this.frame.readSnapshotBytes(transaction, (short) position, (short) num, buf);
+        } else {
+            this.frame.readBytes((short) position, (short) num, buf);
+        }
     }
 
     /**
@@ -0,0 +1,200 @@
+package edu.berkeley.cs186.database.memory;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Implementation of the 2Q eviction policy (Johnson and Shasha, 1994), which resists
+ * having frequently used pages flushed out of the buffer by large scans.
+ *
+ * Newly loaded pages go into a FIFO queue (A1in). Hits on a page in A1in shortly
+ * after it was loaded (before a few other pages have been loaded) are treated as
+ * part of the same, correlated, reference - e.g. a scan reading every record on a
+ * page. A later hit means the page has been used more than once, and moves it into
+ * the main LRU queue (Am). When a page is evicted from A1in, its page number is
+ * remembered in a ghost queue (A1out), and a page that is loaded again while it is
+ * still remembered in A1out goes straight into Am. Pages are evicted from A1in while
+ * it holds more than a quarter of the frames, and from Am otherwise, so a scan can
+ * only ever displace the pages in A1in.
+ *
+ * Pages hinted as use-once (see useOnce) are moved from A1in into a separate FIFO
+ * ring, which is always evicted from first and never remembered in A1out, so a scan
+ * that hints its pages only ever reuses a handful of frames.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+    // Queues a frame can be in.
+    private enum Queue { RING, A1IN, AM }
+
+    private final Tag ringHead;
+    private final Tag a1inHead;
+    private final Tag amHead;
+    private int a1inSize;
+
+    // Page numbers of pages recently evicted from A1in, in order of eviction.
+    private final Set<Long> a1out;
+
+    // Number of frames in the buffer (learnt from the last call to evict).
+    private int numFrames;
+
+    // Number of pages loaded so far, used to tell correlated hits apart.
+    private long numLoads;
+
+    // Node in one of the (circular, doubly-linked) queues.
+    private static class Tag {
+        Tag prev = this;
+        Tag next = this;
+        BufferFrame cur = null;
+        Queue queue = null;
+        long loadedAt = 0;
+
+        @Override
+        public String toString() {
+            return (cur == null ? "null" : cur.toString()) + " (" + queue + ")";
+        }
+    }
+
+    public TwoQueueEvictionPolicy() {
+        this.ringHead = new Tag();
+        this.a1inHead = new Tag();
+        this.amHead = new Tag();
+        this.a1inSize = 0;
+        this.a1out = new LinkedHashSet<>();
+        this.numFrames = Integer.MAX_VALUE;
+        this.numLoads = 0;
+    }
+
+    /**
+     * Called to initiaize a new buffer frame.
+     * @param frame new frame to be initialized
+     */
+    @Override
+    public synchronized void init(BufferFrame frame) {
+        Tag frameTag = new Tag();
+        frameTag.cur = frame;
+        frameTag.loadedAt = ++this.numLoads;
+        frame.tag = frameTag;
+        if (this.a1out.remove(frame.getPageNum())) {
+            append(this.amHead, frameTag, Queue.AM);
+        } else {
+            append(this.a1inHead, frameTag, Queue.A1IN);
+        }
+    }
+
+    /**
+     * Called when a frame is hit.
+     * @param frame Frame object that is being read from/written to
+     */
+    @Override
+    public synchronized void hit(BufferFrame frame) {
+        Tag frameTag = (Tag) frame.tag;
+        if (frameTag.queue == Queue.AM) {
+            unlink(frameTag);
+            append(this.amHead, frameTag, Queue.AM);
+        } else if (frameTag.queue == Queue.A1IN &&
+                   this.numLoads - frameTag.loadedAt > Math.max(1, this.numFrames / 16)) {
+            // not correlated with the reference that loaded the page
+            unlink(frameTag);
+            append(this.amHead, frameTag, Queue.AM);
+        }
+    }
+
+    /**
+     * Called when a frame needs to be evicted.
+     * @param frames Array of all frames (same length every call)
+     * @return index of frame to be evicted
+     * @throws IllegalStateException if everything is pinned
+     */
+    @Override
+    public synchronized BufferFrame evict(BufferFrame[] frames) {
+        this.numFrames = frames.length;
+        BufferFrame victim = firstUnpinned(this.ringHead);
+        if (victim == null && this.a1inSize > Math.max(1, frames.length / 4)) {
+            victim = firstUnpinned(this.a1inHead);
+        }
+        if (victim == null) {
+            victim = firstUnpinned(this.amHead);
+        }
+        if (victim == null) {
+            victim = firstUnpinned(this.a1inHead);
+        }
+        if (victim == null) {
+            throw new IllegalStateException("cannot evict anything - everything pinned");
+        }
+        return victim;
+    }
+
+    /**
+     * Called when a frame is removed, either because it
+     * was returned from a call to evict, or because of other constraints
+     * (e.g. if the page is deleted on disk).
+     * @param frame frame being removed
+     */
+    @Override
+    public synchronized void cleanup(BufferFrame frame) {
+        Tag frameTag = (Tag) frame.tag;
+        if (frameTag.queue == Queue.A1IN) {
+            this.a1out.add(frame.getPageNum());
+            // A1out remembers at most half as many pages as there are frames
+            Iterator<Long> iter = this.a1out.iterator();
+            while (this.a1out.size() > Math.max(1, this.numFrames / 2)) {
+                iter.next();
+                iter.remove();
+            }
+        }
+        unlink(frameTag);
+    }
+
+    /**
+     * Called when the page in a frame is not expected to be used again soon.
+     * Moves the frame to the use-once ring, unless the page is already known
+     * to be frequently used.
+     * @param frame frame whose page is only used once
+     */
+    @Override
+    public synchronized void useOnce(BufferFrame frame) {
+        Tag frameTag = (Tag) frame.tag;
+        if (frameTag.queue == Queue.A1IN) {
+            unlink(frameTag);
+            append(this.ringHead, frameTag, Queue.RING);
+        }
+    }
+
+    /**
+     * @return true, since pages hinted as use-once go into the ring
+     */
+    @Override
+    public boolean wantsUseOnceHints() {
+        return true;
+    }
+
+    private BufferFrame firstUnpinned(Tag head) {
+        for (Tag frameTag = head.next; frameTag != head; frameTag = frameTag.next) {
+            if (!frameTag.cur.isPinned()) {
+                return frameTag.cur;
+            }
+        }
+        return null;
+    }
+
+    private void append(Tag head, Tag frameTag, Queue queue) {
+        frameTag.next = head;
+        frameTag.prev = head.prev;
+        head.prev.next = frameTag;
+        head.prev = frameTag;
+        frameTag.queue = queue;
+        if (queue == Queue.A1IN) {
+            ++this.a1inSize;
+        }
+    }
+
+    private void unlink(Tag frameTag) {
+        if (frameTag.queue == Queue.A1IN) {
+            --this.a1inSize;
+        }
+        frameTag.prev.next = frameTag.next;
+        frameTag.next.prev = frameTag.prev;
+        frameTag.prev = frameTag.next = frameTag;
+        frameTag.queue = null;
+    }
+}
@@ -0,0 +1,249 @@
+package edu.berkeley.cs186.database.memory;
+
+import java.util.*;
+
+/**
+ * Old versions of pages, kept so that read-only transactions can read a
+ * consistent snapshot of the database without taking locks.
+ *
+ * Before a transaction first writes to a page (or when it allocates a page),
+ * the contents of the page are saved as a version of the page tagged with the
+ * writing transaction. When the writer commits it is given a commit timestamp,
+ * and a snapshot taken at timestamp s sees the changes of exactly the
+ * transactions that committed at or before s. The contents of a page in a
+ * snapshot are found by walking the versions of the page from newest to oldest
+ * until reaching a version whose writer is visible in the snapshot: the
+ * contents saved by the last writer passed over are the contents of the page
+ * in the snapshot (or, if no writer was passed over, the latest contents).
+ *
+ * This relies on the writers of a page being serialized, as they are by the X
+ * locks on pages held until commit, so that each version contains the changes
+ * of exactly the writers before it. Pages that are written without locks (e.g.
+ * page directory header pages) should be read at their latest contents.
+ *
+ * The versions of a transaction that aborts are dropped when it ends, since
+ * its changes have been rolled back by then. Versions that no snapshot can
+ * reach anymore are dropped when their writer commits or when the oldest
+ * snapshot ends.
+ */
+public class VersionStore {
+    // Contents of a version of a page that did not exist yet
+    private static final byte[] NO_PAGE = new byte[0];
+
+    /**
+     * A transaction that saved versions of pages.
+     */
+    private static class Writer {
+        private final long transNum;
+        // commit timestamp, or -1 if the transaction has not committed
+        private long commitTimestamp = -1;
+        // pages this transaction saved a version of
+        private final Set<Long> pageNums = new HashSet<>();
+
+        private Writer(long transNum) {
+            this.transNum = transNum;
+        }
+    }
+
+    /**
+     * A version of a page: the contents of the page before its writer first
+     * wrote to it.
+     */
+    private static class Version {
+        private final Writer writer;
+        private final byte[] contents;
+        private Version older;
+
+        private Version(Writer writer, byte[] contents, Version older) {
+            this.writer = writer;
+            this.contents = contents;
+            this.older = older;
+        }
+
+        // whether the changes of this version's writer are visible to the given snapshot
+        private boolean visibleTo(long snapshot, long transNum) {
+            return writer.transNum == transNum
+                   || (writer.commitTimestamp >= 0 && writer.commitTimestamp <= snapshot);
+        }
+    }
+
+    // Timestamp of the last commit of a writer
+    private long timestamp = 0;
+
+    // Running transactions that saved versions, by transaction number
+    private Map<Long, Writer> writers = new HashMap<>();
+
+    // Newest version of each page with versions, by page number
+    private Map<Long, Version> versions = new HashMap<>();
+
+    // Number of active snapshots at each timestamp
+    private TreeMap<Long, Integer> snapshots = new TreeMap<>();
+
+    /**
+     * Takes a snapshot of the database, which must be released with
+     * endSnapshot once no longer used.
+     *
+     * @return timestamp of the snapshot
+     */
+    public synchronized long beginSnapshot() {
+        this.snapshots.merge(this.timestamp, 1, Integer::sum);
+        return this.timestamp;
+    }
+
+    /**
+     * Releases a snapshot taken with beginSnapshot.
+     *
+     * @param snapshot timestamp of the snapshot
+     */
+    public synchronized void endSnapshot(long snapshot) {
+        long oldest = this.snapshots.firstKey();
+        if (this.snapshots.merge(snapshot, -1, Integer::sum) == 0) {
+            this.snapshots.remove(snapshot);
+        }
+        if (this.snapshots.isEmpty() || this.snapshots.firstKey() != oldest) {
+            for (long pageNum : new ArrayList<>(this.versions.keySet())) {
+                prune(pageNum);
+            }
+        }
+    }
+
+    /**
+     * Saves the contents of a page as a version, unless the transaction
+     * already saved a version of the page. Must be called before each write of
+     * the transaction to the page, with the frame of the page locked.
+     *
+     * @param transNum transaction about to write to the page
+     * @param pageNum page number
+     * @param contents current contents of the page
+     */
+    synchronized void saveVersion(long transNum, long pageNum, byte[] contents) {
+        Writer writer = this.writers.computeIfAbsent(transNum, Writer::new);
+        if (writer.pageNums.add(pageNum)) {
+            this.versions.put(pageNum, new Version(writer, contents.clone(), this.versions.get(pageNum)));
+        }
+    }
+
+    /**
+     * Records that a transaction allocated a page, so that snapshots that do
+     * not see the transaction's changes do not see the page.
+     *
+     * @param transNum transaction that allocated the page
+     * @param pageNum page number
+     */
+    synchronized void saveNewPage(long transNum, long pageNum) {
+        Writer writer = this.writers.computeIfAbsent(transNum, Writer::new);
+        if (writer.pageNums.add(pageNum)) {
+            this.versions.put(pageNum, new Version(writer, NO_PAGE, this.versions.get(pageNum)));
+        }
+    }
+
+    /**
+     * Makes the changes of a transaction visible to snapshots taken from now on.
+     *
+     * @param transNum transaction that committed
+     */
+    public synchronized void commit(long transNum) {
+        Writer writer = this.writers.remove(transNum);
+        if (writer == null) {
+            return;
+        }
+        writer.commitTimestamp = ++this.timestamp;
+        for (long pageNum : writer.pageNums) {
+            prune(pageNum);
+        }
+    }
+
+    /**
+     * Drops the versions of a transaction that ended without committing. Must
+     * be called after the transaction's changes are rolled back.
+     *
+     * @param transNum transaction that aborted
+     */
+    public synchronized void abort(long transNum) {
+        Writer writer = this.writers.remove(transNum);
+        if (writer == null) {
+            return;
+        }
+        for (long pageNum : writer.pageNums) {
+            Version newer = null;
+            Version version = this.versions.get(pageNum);
+            while (version != null && version.writer != writer) {
+                newer = version;
+                version = version.older;
+            }
+            if (version == null) {
+                continue;
+            }
+            if (newer == null) {
+                setNewest(pageNum, version.older);
+            } else {
+                newer.older = version.older;
+            }
+            prune(pageNum);
+        }
+    }
+
+    /**
+     * Finds the contents of a page in a snapshot.
+     *
+     * @param pageNum page number
+     * @param snapshot timestamp of the snapshot
+     * @param transNum transaction reading the snapshot, whose own changes are visible
+     * @return contents of the page in the snapshot, an empty array if the page
+     * did not exist in the snapshot, or null if the latest contents of the
+     * page are the contents in the snapshot
+     */
+    synchronized byte[] getVersion(long pageNum, long snapshot, long transNum) {
+        byte[] contents = null;
+        for (Version version = this.versions.get(pageNum); version != null; version = version.older) {
+            if (version.visibleTo(snapshot, transNum)) {
+                break;
+            }
+            contents = version.contents;
+        }
+        return contents;
+    }
+
+    /**
+     * @return number of versions currently kept
+     */
+    public synchronized int getNumVersions() {
+        int numVersions = 0;
+        for (Version version : this.versions.values()) {
+            for (; version != null; version = version.older) {
+                ++numVersions;
+            }
+        }
+        return numVersions;
+    }
+
+    // drops the versions of the page that no snapshot taken now or still active can reach
+    private void prune(long pageNum) {
+        long oldest = this.snapshots.isEmpty() ? this.timestamp : this.snapshots.firstKey();
+        Version newer = null;
+        Version version = this.versions.get(pageNum);
+        // the walk of every snapshot stops at (and does not use) the first
+        // version whose writer committed at or before the oldest snapshot
+        while (version != null && !(version.writer.commitTimestamp >= 0
+                                    && version.writer.commitTimestamp <= oldest)) {
+            newer = version;
+            version = version.older;
+        }
+        if (version == null) {
+            return;
+        }
+        if (newer == null) {
+            setNewest(pageNum, null);
+        } else {
+            newer.older = null;
+        }
+    }
+
+    private void setNewest(long pageNum, Version version) {
+        if (version == null) {
+            this.versions.remove(pageNum);
+        } else {
+            this.versions.put(pageNum, version);
+        }
+    }
+}
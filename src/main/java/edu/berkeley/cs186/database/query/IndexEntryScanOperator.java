@@ -0,0 +1,98 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
+import edu.berkeley.cs186.database.index.IndexKey;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.Iterator;
+
+/**
+ * Scans a table and produces an index entry for each of its records: a record
+ * (key, pageNum, entryNum) of the key of the record in an index (see
+ * IndexKey.of) and the record id of the record. Sorting the entries on the
+ * key gives the sorted input that BPlusTree.bulkLoad expects.
+ */
+public class IndexEntryScanOperator extends QueryOperator {
+    // Name of the key field of the entries
+    public static final String KEY_FIELD = "key";
+
+    private TransactionContext transaction;
+    private String tableName;
+    private BPlusTreeMetadata metadata;
+
+    public IndexEntryScanOperator(TransactionContext transaction, String tableName,
+                                  BPlusTreeMetadata metadata) {
+        super(OperatorType.SEQ_SCAN);
+        this.transaction = transaction;
+        this.tableName = tableName;
+        this.metadata = metadata;
+        this.setOutputSchema(this.computeSchema());
+
+        this.stats = this.estimateStats();
+    }
+
+    /**
+     * @return the key of an index entry
+     */
+    public static DataBox getKey(Record entry) {
+        return entry.getValue(0);
+    }
+
+    /**
+     * @return the record id of an index entry
+     */
+    public static RecordId getRecordId(Record entry) {
+        return new RecordId(entry.getValue(1).getLong(), (short) entry.getValue(2).getInt());
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        Table table = this.transaction.getTable(this.tableName);
+        Schema schema = table.getSchema();
+        Iterator<RecordId> rids = table.ridIterator();
+        return new Iterator<Record>() {
+            @Override
+            public boolean hasNext() {
+                return rids.hasNext();
+            }
+
+            @Override
+            public Record next() {
+                RecordId rid = rids.next();
+                DataBox key = IndexKey.of(metadata, schema, table.getRecord(rid), rid);
+                return new Record(key, rid.getPageNum(), (int) rid.getEntryNum());
+            }
+        };
+    }
+
+    @Override
+    public Schema computeSchema() {
+        return new Schema()
+                .add(KEY_FIELD, this.metadata.getKeySchema())
+                .add("pageNum", Type.longType())
+                .add("entryNum", Type.intType());
+    }
+
+    @Override
+    public String str() {
+        return "Index Entry Scan on " + this.tableName + "(" + this.metadata.getColName() + ") (cost=" +
+               this.estimateIOCost() + ")";
+    }
+
+    @Override
+    public TableStats estimateStats() {
+        return this.transaction.getStats(this.tableName);
+    }
+
+    @Override
+    public int estimateIOCost() {
+        return this.transaction.getNumDataPages(this.tableName);
+    }
+}
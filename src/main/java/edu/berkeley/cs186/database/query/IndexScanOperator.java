@@ -7,19 +7,25 @@ import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.*;
 
 class IndexScanOperator extends QueryOperator {
     private TransactionContext transaction;
     private String tableName;
-    private String columnName;
+    // Name of the index (see TransactionContext#getIndexNames)
+    private String indexName;
+    private List<String> indexColumns;
+    // Values that the first prefix.size() columns of the index are equal to
+    private List<DataBox> prefix;
+    // Predicate on the column of the index after the prefix, or null
     private PredicateOperator predicate;
     private DataBox value;
+    // Whether this is an index-only scan, which yields the values of the
+    // columns of the index from the index alone, without reading the records
+    private boolean covering;
 
-    private int columnIndex;
+    // Indices of the columns of the index in the output schema
+    private List<Integer> columnIndices;
 
     /**
      * An index scan operator.
@@ -33,14 +39,74 @@ class IndexScanOperator extends QueryOperator {
                       String columnName,
                       PredicateOperator predicate,
                       DataBox value) {
+        this(transaction, tableName, columnName, Collections.emptyList(), predicate, value);
+    }
+
+    /**
+     * An index scan operator over every record of a table, which yields the
+     * records in order of the indexed column.
+     *
+     * @param transaction the transaction containing this operator
+     * @param tableName the table to iterate over
+     * @param columnName the name of the column the index is on
+     */
+    IndexScanOperator(TransactionContext transaction,
+                      String tableName,
+                      String columnName) {
+        this(transaction, tableName, columnName, null, null);
+    }
+
+    /**
+     * An index scan operator over a (possibly composite) index, which yields
+     * the records whose values of the first prefix.size() columns of the index
+     * are equal to `prefix`, and whose value of the next column satisfies
+     * `predicate` (if it isn't null). For example, with an index on (a, b),
+     * prefix [1] and predicate b > 2 select the records where a = 1 AND b > 2.
+     *
+     * @param transaction the transaction containing this operator
+     * @param tableName the table to iterate over
+     * @param indexName the name of the index (see TransactionContext#getIndexNames)
+     */
+    IndexScanOperator(TransactionContext transaction,
+                      String tableName,
+                      String indexName,
+                      List<DataBox> prefix,
+                      PredicateOperator predicate,
+                      DataBox value) {
+        this(transaction, tableName, indexName, prefix, predicate, value, false);
+    }
+
+    /**
+     * Like the operator above, but if `covering` is true, the operator is an
+     * index-only scan: it yields records of the values of the columns of the
+     * index only (in the order of the columns of the index), which it reads
+     * from the keys of the index rather than from the records of the table.
+     * A query that uses no other columns of the table doesn't need to fetch
+     * a data page for every record the scan yields.
+     *
+     * @param covering whether to yield the values of the columns of the index only
+     */
+    IndexScanOperator(TransactionContext transaction,
+                      String tableName,
+                      String indexName,
+                      List<DataBox> prefix,
+                      PredicateOperator predicate,
+                      DataBox value,
+                      boolean covering) {
         super(OperatorType.INDEX_SCAN);
         this.tableName = tableName;
         this.transaction = transaction;
-        this.columnName = columnName;
+        this.indexName = indexName;
+        this.indexColumns = Arrays.asList(indexName.split(","));
+        this.prefix = prefix;
         this.predicate = predicate;
         this.value = value;
+        this.covering = covering;
         this.setOutputSchema(this.computeSchema());
-        this.columnIndex = this.getSchema().findField(columnName);
+        this.columnIndices = new ArrayList<>();
+        for (String column : this.indexColumns) {
+            this.columnIndices.add(this.getSchema().findField(column));
+        }
         this.stats = this.estimateStats();
     }
 
@@ -49,11 +115,29 @@ class IndexScanOperator extends QueryOperator {
         return true;
     }
 
+    /**
+     * @return whether this is an index-only scan
+     */
+    public boolean isCovering() {
+        return this.covering;
+    }
+
     @Override
     public String str() {
-        return String.format("Index Scan for %s%s%s on %s (cost=%d)",
-            this.columnName, this.predicate.toSymbol(), this.value, this.tableName,
-            this.estimateIOCost());
+        String scan = this.covering ? "Index Only Scan" : "Index Scan";
+        if (this.predicate == null && this.prefix.isEmpty()) {
+            return String.format("%s on %s ordered by %s (cost=%d)",
+                scan, this.tableName, this.indexColumns.get(0), this.estimateIOCost());
+        }
+        List<String> conditions = new ArrayList<>();
+        for (int i = 0; i < this.prefix.size(); i++) {
+            conditions.add(this.indexColumns.get(i) + PredicateOperator.EQUALS.toSymbol() + this.prefix.get(i));
+        }
+        if (this.predicate != null) {
+            conditions.add(this.indexColumns.get(this.prefix.size()) + this.predicate.toSymbol() + this.value);
+        }
+        return String.format("%s for %s on %s (cost=%d)",
+            scan, String.join(" AND ", conditions), this.tableName, this.estimateIOCost());
     }
 
     /**
@@ -62,28 +146,47 @@ class IndexScanOperator extends QueryOperator {
      * @return columnName
      */
     public String getColumnName() {
-        return this.columnName;
+        return this.indexColumns.get(0);
     }
 
     @Override
     public TableStats estimateStats() {
         TableStats stats = this.transaction.getStats(this.tableName);
-        return stats.copyWithPredicate(this.columnIndex,
-                                       this.predicate,
-                                       this.value);
+        // the statistics of the table are on the columns of the table, which
+        // an index-only scan projects to the columns of the index
+        Schema tableSchema = this.transaction.getFullyQualifiedSchema(this.tableName);
+        List<Integer> tableIndices = new ArrayList<>();
+        for (String column : this.indexColumns) {
+            tableIndices.add(tableSchema.findField(column));
+        }
+        for (int i = 0; i < this.prefix.size(); i++) {
+            stats = stats.copyWithPredicate(tableIndices.get(i),
+                                            PredicateOperator.EQUALS,
+                                            this.prefix.get(i));
+        }
+        if (this.predicate != null) {
+            stats = stats.copyWithPredicate(tableIndices.get(this.prefix.size()),
+                                            this.predicate,
+                                            this.value);
+        }
+        if (this.covering) {
+            stats = stats.copyWithProjection(tableIndices, this.getSchema());
+        }
+        return stats;
     }
 
     @Override
     public int estimateIOCost() {
-        int height = transaction.getTreeHeight(tableName, columnName);
-        int order = transaction.getTreeOrder(tableName, columnName);
-        TableStats tableStats = transaction.getStats(tableName);
+        int height = transaction.getTreeHeight(tableName, indexName);
+        int order = transaction.getTreeOrder(tableName, indexName);
 
-        int count = tableStats.getHistograms().get(columnIndex).copyWithPredicate(predicate,
-                    value).getCount();
+        int count = estimateStats().getNumRecords();
         // 2 * order entries/leaf node, but leaf nodes are 50-100% full; we use a fill factor of
         // 75% as a rough estimate
-        return (int) (height + Math.ceil(count / (1.5 * order)) + count);
+        int leafIOs = (int) Math.ceil(count / (1.5 * order));
+        // an index-only scan reads the leaves only, and a scan that yields
+        // whole records also reads a data page per record
+        return height + leafIOs + (this.covering ? 0 : count);
     }
 
     @Override
@@ -93,12 +196,25 @@ class IndexScanOperator extends QueryOperator {
 
     @Override
     public Schema computeSchema() {
-        return this.transaction.getFullyQualifiedSchema(this.tableName);
+        Schema schema = this.transaction.getFullyQualifiedSchema(this.tableName);
+        if (!this.covering) return schema;
+        Schema indexSchema = new Schema();
+        for (String column : this.indexColumns) {
+            int i = schema.findField(column);
+            indexSchema.add(schema.getFieldName(i), schema.getFieldType(i));
+        }
+        return indexSchema;
     }
 
     @Override
     public List<String> sortedBy() {
-        return Collections.singletonList(this.columnName);
+        // the columns of the prefix are constant, so the records are also
+        // sorted on the column after them
+        List<String> sortedBy = new ArrayList<>();
+        for (int i = 0; i <= this.prefix.size() && i < this.indexColumns.size(); i++) {
+            sortedBy.add(this.getSchema().getFieldName(this.columnIndices.get(i)));
+        }
+        return sortedBy;
     }
 
     /**
@@ -110,35 +226,30 @@ class IndexScanOperator extends QueryOperator {
 
         private IndexScanIterator() {
             this.nextRecord = null;
-            if (IndexScanOperator.this.predicate == PredicateOperator.EQUALS) {
-                this.sourceIterator = IndexScanOperator.this.transaction.lookupKey(
-                                          IndexScanOperator.this.tableName,
-                                          IndexScanOperator.this.columnName,
-                                          IndexScanOperator.this.value);
-            } else if (IndexScanOperator.this.predicate == PredicateOperator.LESS_THAN ||
-                       IndexScanOperator.this.predicate == PredicateOperator.LESS_THAN_EQUALS) {
-                this.sourceIterator = IndexScanOperator.this.transaction.sortedScan(
-                                          IndexScanOperator.this.tableName,
-                                          IndexScanOperator.this.columnName);
-            } else if (IndexScanOperator.this.predicate == PredicateOperator.GREATER_THAN) {
-                this.sourceIterator = IndexScanOperator.this.transaction.sortedScanFrom(
+            // The range of the index to scan: records equal to the prefix, and
+            // bounded by the value of the predicate on the next column.
+            List<DataBox> low = new ArrayList<>(prefix);
+            List<DataBox> high = new ArrayList<>(prefix);
+            if (predicate == PredicateOperator.EQUALS ||
+                    predicate == PredicateOperator.GREATER_THAN ||
+                    predicate == PredicateOperator.GREATER_THAN_EQUALS) {
+                low.add(value);
+            }
+            if (predicate == PredicateOperator.EQUALS ||
+                    predicate == PredicateOperator.LESS_THAN ||
+                    predicate == PredicateOperator.LESS_THAN_EQUALS) {
+                high.add(value);
+            }
+            if (covering) {
+                this.sourceIterator = IndexScanOperator.this.transaction.indexOnlyScan(
                                           IndexScanOperator.this.tableName,
-                                          IndexScanOperator.this.columnName,
-                                          IndexScanOperator.this.value);
-                while (this.sourceIterator.hasNext()) {
-                    Record r = this.sourceIterator.next();
-
-                    if (r.getValue(IndexScanOperator.this.columnIndex)
-                            .compareTo(IndexScanOperator.this.value) > 0) {
-                        this.nextRecord = r;
-                        break;
-                    }
-                }
-            } else if (IndexScanOperator.this.predicate == PredicateOperator.GREATER_THAN_EQUALS) {
-                this.sourceIterator = IndexScanOperator.this.transaction.sortedScanFrom(
+                                          IndexScanOperator.this.indexName,
+                                          low, high);
+            } else {
+                this.sourceIterator = IndexScanOperator.this.transaction.indexRangeScan(
                                           IndexScanOperator.this.tableName,
-                                          IndexScanOperator.this.columnName,
-                                          IndexScanOperator.this.value);
+                                          IndexScanOperator.this.indexName,
+                                          low, high);
             }
         }
 
@@ -148,19 +259,19 @@ class IndexScanOperator extends QueryOperator {
          */
         @Override
         public boolean hasNext() {
-            if (this.nextRecord != null) return true;
-            if (!this.sourceIterator.hasNext()) return false;
-            Record r = this.sourceIterator.next();
-            if (predicate == PredicateOperator.LESS_THAN) {
-                if (r.getValue(columnIndex).compareTo(value) < 0) {
+            while (this.nextRecord == null && this.sourceIterator.hasNext()) {
+                Record r = this.sourceIterator.next();
+                // the range includes the records equal to the value, which
+                // strict inequalities exclude
+                if (predicate != PredicateOperator.LESS_THAN &&
+                        predicate != PredicateOperator.GREATER_THAN) {
                     this.nextRecord = r;
-                }
-            } else if (predicate == PredicateOperator.LESS_THAN_EQUALS) {
-                if (r.getValue(columnIndex).compareTo(value) <= 0) {
+                } else if (predicate.evaluate(r.getValue(columnIndices.get(prefix.size())), value)) {
                     this.nextRecord = r;
+                } else if (predicate == PredicateOperator.LESS_THAN) {
+                    // the rest of the range is equal to the value
+                    this.sourceIterator = Collections.emptyIterator();
                 }
-            } else  {
-                this.nextRecord = r;
             }
             return this.nextRecord != null;
         }
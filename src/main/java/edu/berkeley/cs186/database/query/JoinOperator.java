@@ -13,7 +13,9 @@ public abstract class JoinOperator extends QueryOperator {
         BNLJ,
         SORTMERGE,
         SHJ,
-        GHJ
+        GHJ,
+        HHJ,
+        INLJ
     }
     protected JoinType joinType;
 
@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.query;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.query.expr.Expression;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
@@ -99,6 +100,64 @@ public class ProjectOperator extends QueryOperator {
         return new ProjectIterator();
     }
 
+    /**
+     * Projections without aggregates or grouping are applied a batch at a
+     * time: fields that are plain column references reuse the source batch's
+     * column vectors, and any other expressions are evaluated record by record
+     * into new column vectors. Aggregates fall back to the records of iterator().
+     */
+    @Override
+    public Iterator<RecordBatch> batchIterator() {
+        for (Expression expression : this.expressions) {
+            if (expression.hasAgg()) return super.batchIterator();
+        }
+        if (this.groupByColumns.size() != 0) return super.batchIterator();
+
+        Iterator<RecordBatch> sourceIterator = this.getSource().batchIterator();
+        return new Iterator<RecordBatch>() {
+            @Override
+            public boolean hasNext() {
+                return sourceIterator.hasNext();
+            }
+
+            @Override
+            public RecordBatch next() {
+                return project(sourceIterator.next());
+            }
+        };
+    }
+
+    @Override
+    public boolean isVectorized() {
+        for (Expression expression : this.expressions) {
+            if (expression.hasAgg()) return false;
+        }
+        return this.groupByColumns.size() == 0 && this.getSource().isVectorized();
+    }
+
+    private RecordBatch project(RecordBatch batch) {
+        int numColumns = this.expressions.size();
+        int[] columnIndices = new int[numColumns];
+        boolean allColumns = true;
+        for (int i = 0; i < numColumns; ++i) {
+            columnIndices[i] = this.expressions.get(i).getColumnIndex();
+            allColumns &= columnIndices[i] >= 0;
+        }
+        if (allColumns) {
+            return batch.project(columnIndices, this.outputSchema);
+        }
+        RecordBatch projected = new RecordBatch(this.outputSchema, batch.size());
+        for (int i = 0; i < batch.size(); ++i) {
+            Record record = batch.getRecord(i);
+            List<DataBox> values = new ArrayList<>(numColumns);
+            for (Expression expression : this.expressions) {
+                values.add(expression.evaluate(record));
+            }
+            projected.append(new Record(values));
+        }
+        return projected;
+    }
+
     @Override
     public String str() {
         String columns = "(" + String.join(", ", this.outputColumns) + ")";
@@ -106,6 +165,28 @@ public class ProjectOperator extends QueryOperator {
                 "\n\tcolumns: " + columns;
     }
 
+    /**
+     * Without aggregates or grouping, records are output in the order of the
+     * source's records, so this operator is sorted on any output column that
+     * is a plain reference to a column the source is sorted on.
+     */
+    @Override
+    public List<String> sortedBy() {
+        for (Expression expression : this.expressions) {
+            if (expression.hasAgg()) return Collections.emptyList();
+        }
+        if (this.groupByColumns.size() != 0) return Collections.emptyList();
+        List<String> sourceSortedBy = this.getSource().sortedBy();
+        List<String> sortedBy = new ArrayList<>();
+        for (int i = 0; i < this.expressions.size(); ++i) {
+            int index = this.expressions.get(i).getColumnIndex();
+            if (index >= 0 && sourceSortedBy.contains(this.sourceSchema.getFieldName(index))) {
+                sortedBy.add(this.outputSchema.getFieldName(i));
+            }
+        }
+        return sortedBy;
+    }
+
     @Override
     public TableStats estimateStats() {
         return this.getSource().estimateStats();
@@ -5,6 +5,7 @@ import edu.berkeley.cs186.database.common.iterator.ArrayBacktrackingIterator;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.table.PageDirectory;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
@@ -151,6 +152,27 @@ public abstract class QueryOperator implements Iterable<Record> {
      */
     public abstract Iterator<Record> iterator();
 
+    /**
+     * Batch-at-a-time counterpart of iterator(). Operators that can work on a
+     * whole batch of records at once (reading values out of the batch's column
+     * vectors rather than out of individual Records) override this; by default,
+     * the records of iterator() are grouped into batches.
+     *
+     * @return an iterator over batches of the output records of this operator
+     */
+    public Iterator<RecordBatch> batchIterator() {
+        return RecordBatch.toBatches(this.iterator(), this.getSchema());
+    }
+
+    /**
+     * @return true if batchIterator() works a batch at a time all the way down
+     * to the operator's scans, rather than grouping the records of some
+     * operator's iterator() into batches.
+     */
+    public boolean isVectorized() {
+        return false;
+    }
+
     /**
      * @return true if the records of this query operator are materialized in a
      * table.
@@ -1,12 +1,19 @@
 package edu.berkeley.cs186.database.query;
 
 import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.query.expr.Expression;
 import edu.berkeley.cs186.database.query.join.BNLJOperator;
+import edu.berkeley.cs186.database.query.join.HHJOperator;
+import edu.berkeley.cs186.database.query.join.INLJOperator;
 import edu.berkeley.cs186.database.query.join.SNLJOperator;
+import edu.berkeley.cs186.database.query.join.SortMergeOperator;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 
 import java.util.*;
@@ -43,6 +50,10 @@ public class QueryPlan {
     private int limit;
     // An offset to the records yielded (OFFSET clause)
     private int offset;
+    // For each set of tables, the lowest cost operator over those tables whose
+    // output is sorted on each interesting column (see interestingOrders),
+    // keyed by the lowercased, fully qualified column name
+    private Map<Set<String>, Map<String, QueryOperator>> orderedPlans;
 
     /**
      * Creates a new QueryPlan within `transaction` with base table
@@ -85,6 +96,7 @@ public class QueryPlan {
         this.groupByColumns = new ArrayList<>();
         this.limit = -1;
         this.offset = 0;
+        this.orderedPlans = new HashMap<>();
 
         // This will be set after calling execute()
         this.finalOperator = null;
@@ -314,7 +326,7 @@ public class QueryPlan {
      */
     private void addSort() {
         if (this.sortColumn == null) return;
-        if (this.finalOperator.sortedBy().contains(sortColumn.toLowerCase())) {
+        if (isSortedOn(this.finalOperator, this.sortColumn)) {
             return; // already sorted
         }
         this.finalOperator = new SortOperator(
@@ -509,7 +521,11 @@ public class QueryPlan {
     /**
      * Gets all select predicates for which there exists an index on the column
      * referenced in that predicate for the given table and where the predicate
-     * operator can be used in an index scan.
+     * operator can be used in an index scan. A predicate on a column of a
+     * composite index can be used if every column before it in the index has
+     * an equality predicate, so that the matching records form a range of the
+     * index: with an index on (a, b), predicates on a are eligible, and so are
+     * predicates on b if the query has a predicate a = v.
      *
      * @return a list of indices of eligible selection predicates in
      * this.selectPredicates
@@ -517,16 +533,131 @@ public class QueryPlan {
     private List<Integer> getEligibleIndexColumns(String table) {
         List<Integer> result = new ArrayList<>();
         for (int i = 0; i < this.selectPredicates.size(); i++) {
-            SelectPredicate p = this.selectPredicates.get(i);
-            // ignore if the selection predicate is for a different table
-            if (!p.tableName.equals(table)) continue;
-            boolean indexExists = this.transaction.indexExists(table, p.column);
-            boolean canScan = p.operator != PredicateOperator.NOT_EQUALS;
-            if (indexExists && canScan) result.add(i);
+            if (!getIndexScans(table, i).isEmpty()) result.add(i);
         }
         return result;
     }
 
+    /**
+     * Returns the index scans of the given table that apply the select
+     * predicate at index i of this.selectPredicates, each with the indices of
+     * the select predicates that the scan applies: for every index that the
+     * predicate is eligible for (see getEligibleIndexColumns), a scan for the
+     * predicate and equality predicates on the columns before its column, and
+     * an index-only version of the scan if the index covers the query (see
+     * coversQuery).
+     */
+    private List<Pair<QueryOperator, List<Integer>>> getIndexScans(String table, int i) {
+        List<Pair<QueryOperator, List<Integer>>> result = new ArrayList<>();
+        SelectPredicate p = this.selectPredicates.get(i);
+        // ignore if the selection predicate is for a different table
+        if (!p.tableName.equals(table)) return result;
+        if (p.operator == PredicateOperator.NOT_EQUALS || !canScanFor(p)) return result;
+        for (String index : this.transaction.getIndexNames(table)) {
+            List<String> columns = Arrays.asList(index.split(","));
+            List<DataBox> prefix = new ArrayList<>();
+            List<Integer> applied = new ArrayList<>();
+            for (String column : columns) {
+                if (column.equalsIgnoreCase(p.column)) {
+                    applied.add(i);
+                    result.add(new Pair<>(new IndexScanOperator(this.transaction, table, index, prefix,
+                                                                p.operator, p.value), applied));
+                    if (coversQuery(table, index)) {
+                        result.add(new Pair<>(new IndexScanOperator(this.transaction, table, index, prefix,
+                                                                    p.operator, p.value, true), applied));
+                    }
+                    break;
+                }
+                int equality = getEqualityPredicate(table, column);
+                if (equality == -1) break;
+                prefix.add(this.selectPredicates.get(equality).value);
+                applied.add(equality);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the index in this.selectPredicates of an equality predicate on
+     * table.column that an index scan can apply, or -1 if there is none
+     */
+    private int getEqualityPredicate(String table, String column) {
+        for (int i = 0; i < this.selectPredicates.size(); i++) {
+            SelectPredicate p = this.selectPredicates.get(i);
+            if (p.tableName.equals(table) && p.column.equalsIgnoreCase(column) &&
+                    p.operator == PredicateOperator.EQUALS && canScanFor(p)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the lowercased names of the columns of the given table that
+     * this query uses: in its projection (including the arguments of
+     * aggregates), select predicates, join predicates, GROUP BY clause and
+     * ORDER BY column.
+     * Returns null if the query may use every column of the table, such as
+     * for a query without a projection (SELECT *).
+     */
+    private Set<String> getUsedColumns(String table) {
+        if (this.projectColumns.isEmpty()) return null;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < this.projectColumns.size(); i++) {
+            Expression expression = this.projectFunctions == null
+                    ? Expression.fromString(this.projectColumns.get(i))
+                    : this.projectFunctions.get(i);
+            names.addAll(expression.getDependencies());
+        }
+        for (JoinPredicate p : this.joinPredicates) {
+            names.add(p.leftColumn);
+            names.add(p.rightColumn);
+        }
+        names.addAll(this.groupByColumns);
+        if (this.sortColumn != null) names.add(this.sortColumn);
+
+        Set<String> columns = new HashSet<>();
+        for (SelectPredicate p : this.selectPredicates) {
+            if (p.tableName.equals(table)) columns.add(p.column.toLowerCase());
+        }
+        for (String name : names) {
+            String key = orderKey(name);
+            // a column we can't attribute to a table might be any column
+            if (key == null) return null;
+            if (key.startsWith(table.toLowerCase() + ".")) {
+                columns.add(key.substring(table.length() + 1));
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return whether every column of the given table that this query uses
+     * (see getUsedColumns) is a column of the given index, so that the query
+     * can read the table through an index-only scan of the index
+     */
+    private boolean coversQuery(String table, String index) {
+        Set<String> used = getUsedColumns(table);
+        if (used == null) return false;
+        Set<String> columns = new HashSet<>();
+        for (String column : index.split(",")) {
+            columns.add(column.toLowerCase());
+        }
+        return columns.containsAll(used);
+    }
+
+    /**
+     * @return whether the value of a select predicate can be looked up in an
+     * index on its column: the value must have the type of the column (index
+     * keys are not converted between types), and fit in it if it's a string
+     */
+    private boolean canScanFor(SelectPredicate p) {
+        Schema schema = this.transaction.getSchema(p.tableName);
+        Type type = schema.getFieldType(schema.findField(p.column));
+        if (p.value.getTypeId() != type.getTypeId()) return false;
+        return type.getTypeId() != TypeId.STRING || p.value.getString().length() <= type.getSizeInBytes();
+    }
+
     /**
      * Applies all eligible select predicates to a given source, except for the
      * predicate at index except. The purpose of except is because there might
@@ -541,8 +672,17 @@ public class QueryPlan {
      * @return a new query operator after select predicates have been applied
      */
     private QueryOperator addEligibleSelections(QueryOperator source, int except) {
+        return addEligibleSelections(source, Collections.singletonList(except));
+    }
+
+    /**
+     * Applies all eligible select predicates to a given source, except for
+     * the predicates at the indices in except, which were already applied
+     * by an index scan.
+     */
+    private QueryOperator addEligibleSelections(QueryOperator source, List<Integer> except) {
         for (int i = 0; i < this.selectPredicates.size(); i++) {
-            if (i == except) continue;
+            if (except.contains(i)) continue;
             SelectPredicate curr = this.selectPredicates.get(i);
             try {
                 String colName = source.getSchema().matchFieldName(curr.tableName + "." + curr.column);
@@ -563,11 +703,16 @@ public class QueryPlan {
      * index scan. Keep track of the minimum cost operation and push down
      * eligible select predicates.
      *
-     * If an index scan was chosen, exclude the redundant select predicate when
-     * pushing down selects. This method will be called during the first pass of
+     * If an index scan was chosen, exclude the redundant select predicates
+     * (the predicates the scan applies) when pushing down selects. This method will be called during the first pass of
      * the search algorithm to determine the most efficient way to access each
      * table.
      *
+     * If an index covers the query (every column of the table the query uses
+     * is a column of the index), index-only scans of the index are
+     * considered as well, including one over the whole index, which reads
+     * the leaves of the index instead of the pages of the table.
+     *
      * @return a QueryOperator that has the lowest cost of scanning the given
      * table which is either a SequentialScanOperator or an IndexScanOperator
      * nested within any possible pushed down select operators. Ties for the
@@ -575,32 +720,197 @@ public class QueryPlan {
      */
     public QueryOperator minCostSingleAccess(String table) {
         QueryOperator minOp = new SequentialScanOperator(this.transaction, table);
-        int except = -1;
-        for (int index : getEligibleIndexColumns(table)) {
-            SelectPredicate predicate = selectPredicates.get(index);
-            QueryOperator indexScanOp = new IndexScanOperator(transaction, table, predicate.column, predicate.operator, predicate.value);
+        List<Integer> except = Collections.emptyList();
+        for (String index : this.transaction.getIndexNames(table)) {
+            if (!coversQuery(table, index)) continue;
+            QueryOperator indexScanOp = new IndexScanOperator(this.transaction, table, index,
+                    Collections.emptyList(), null, null, true);
             if (minOp.estimateIOCost() > indexScanOp.estimateIOCost()) {
                 minOp = indexScanOp;
-                except = index;
+            }
+        }
+        for (int index : getEligibleIndexColumns(table)) {
+            for (Pair<QueryOperator, List<Integer>> indexScan : getIndexScans(table, index)) {
+                QueryOperator indexScanOp = indexScan.getFirst();
+                if (minOp.estimateIOCost() > indexScanOp.estimateIOCost()) {
+                    minOp = indexScanOp;
+                    except = indexScan.getSecond();
+                }
             }
         }
         return addEligibleSelections(minOp, except);
     }
 
+    // Interesting Orders //////////////////////////////////////////////////////
+
+    /**
+     * @return true if the records of operator are sorted on column
+     */
+    private static boolean isSortedOn(QueryOperator operator, String column) {
+        try {
+            return operator.sortedBy().contains(operator.getSchema().matchFieldName(column));
+        } catch (RuntimeException err) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether column is a column of operator's output
+     */
+    private static boolean hasColumn(QueryOperator operator, String column) {
+        try {
+            operator.getSchema().matchFieldName(column);
+            return true;
+        } catch (RuntimeException err) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the lowercased, fully qualified name of column, or null if the
+     * column doesn't belong to exactly one table of this query
+     */
+    private String orderKey(String column) {
+        if (column.contains(".")) return column.toLowerCase();
+        try {
+            return (resolveColumn(column) + "." + column).toLowerCase();
+        } catch (RuntimeException err) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the columns for which it is worth keeping a plan sorted on that
+     * column, even if it isn't the cheapest plan: columns that a later merge
+     * join could use without sorting, and the ORDER BY column
+     */
+    private List<String> interestingOrders() {
+        List<String> columns = new ArrayList<>();
+        for (JoinPredicate predicate : this.joinPredicates) {
+            columns.add(predicate.leftColumn);
+            columns.add(predicate.rightColumn);
+        }
+        if (this.sortColumn != null) columns.add(this.sortColumn);
+        return columns;
+    }
+
+    /**
+     * @return the lowest cost operator seen so far over the given tables that
+     * is sorted on column, or null if there isn't one
+     */
+    private QueryOperator orderedPlan(Set<String> tables, String column) {
+        String key = orderKey(column);
+        Map<String, QueryOperator> plans = this.orderedPlans.get(tables);
+        if (key == null || plans == null) return null;
+        return plans.get(key);
+    }
+
+    /**
+     * Keeps operator as the plan for the given tables for every interesting
+     * order it is sorted on, if it is cheaper than the plan seen so far.
+     */
+    private void recordOrders(Set<String> tables, QueryOperator operator) {
+        for (String column : interestingOrders()) {
+            String key = orderKey(column);
+            if (key == null || !isSortedOn(operator, column)) continue;
+            Map<String, QueryOperator> plans = this.orderedPlans.computeIfAbsent(
+                    new HashSet<>(tables), k -> new HashMap<>());
+            QueryOperator current = plans.get(key);
+            if (current == null || operator.estimateIOCost() < current.estimateIOCost()) {
+                plans.put(key, operator);
+            }
+        }
+    }
+
+    /**
+     * Records the lowest cost ways to access the given table in each
+     * interesting order: minOp if it happens to be sorted, or a scan over
+     * an index on the column (or a composite index whose first column it is),
+     * which yields records in order of the column.
+     *
+     * @param minOp the lowest cost access of the table, from minCostSingleAccess
+     */
+    private void addOrderedAccesses(String table, QueryOperator minOp) {
+        Set<String> tables = Collections.singleton(table);
+        recordOrders(tables, minOp);
+        for (String column : interestingOrders()) {
+            String key = orderKey(column);
+            if (key == null || !key.startsWith(table.toLowerCase() + ".")) continue;
+            String columnName = column.contains(".") ? column.split("\\.")[1] : column;
+            for (String index : this.transaction.getIndexNames(table)) {
+                // composite indices are sorted on their first column
+                if (!index.split(",")[0].equalsIgnoreCase(columnName)) continue;
+                QueryOperator indexScan = new IndexScanOperator(this.transaction, table, index,
+                        Collections.emptyList(), null, null, coversQuery(table, index));
+                recordOrders(tables, addEligibleSelections(indexScan, -1));
+            }
+        }
+    }
+
+    /**
+     * If this query has an ORDER BY and no GROUP BY, looks for a plan over
+     * every table that is already sorted on the ORDER BY column, and returns
+     * it instead of minOp if it costs no more than sorting minOp's output.
+     *
+     * @param minOp the lowest cost plan over every table
+     * @return the plan to apply grouping, projection, sorting and limits to
+     */
+    private QueryOperator minCostOrderedOperator(QueryOperator minOp) {
+        if (this.sortColumn == null || !this.groupByColumns.isEmpty()) return minOp;
+        if (isSortedOn(minOp, this.sortColumn)) return minOp;
+        QueryOperator sorted = orderedPlan(new HashSet<>(this.tableNames), this.sortColumn);
+        if (sorted == null) return minOp;
+        int sortCost = new SortOperator(this.transaction, minOp, this.sortColumn).estimateIOCost();
+        return sorted.estimateIOCost() <= sortCost ? sorted : minOp;
+    }
+
     // Task 6: Join Selection //////////////////////////////////////////////////
 
+    /**
+     * @return true if an index nested loop join can look up the records of
+     * rightTable matching the left records of leftOp: there is an index on
+     * rightTable's join column, and the join columns have the same type.
+     */
+    private boolean canProbeIndex(QueryOperator leftOp, String rightTable,
+                                  String leftColumn, String rightColumn) {
+        String indexColumn = rightColumn.contains(".") ? rightColumn.split("\\.")[1] : rightColumn;
+        if (!this.transaction.indexExists(rightTable, indexColumn)) return false;
+        Schema leftSchema = leftOp.getSchema();
+        Schema rightSchema = this.transaction.getFullyQualifiedSchema(rightTable);
+        return leftSchema.getFieldType(leftSchema.findField(leftColumn))
+                .equals(rightSchema.getFieldType(rightSchema.findField(rightColumn)));
+    }
+
+    /**
+     * Applies every select predicate on the given table to source. Used on
+     * joins that read the table directly rather than through its pass 1
+     * access, which would otherwise have applied them.
+     */
+    private QueryOperator addTableSelections(QueryOperator source, String table) {
+        for (SelectPredicate curr : this.selectPredicates) {
+            if (!curr.tableName.equals(table)) continue;
+            String colName = source.getSchema().matchFieldName(curr.tableName + "." + curr.column);
+            source = new SelectOperator(source, colName, curr.operator, curr.value);
+        }
+        return source;
+    }
+
     /**
      * Given a join predicate between left and right operators, finds the lowest
-     * cost join operator out of join types in JoinOperator.JoinType. By default
-     * only considers SNLJ and BNLJ to prevent dependencies on GHJ, Sort and SMJ.
+     * cost join operator out of join types in JoinOperator.JoinType. Considers
+     * SNLJ, BNLJ and HHJ, and INLJ if the right side is a single table with an
+     * index on its join column. Merge joins are considered separately by
+     * minCostJoins, since they depend on which sorted inputs are available.
      *
-     * Reminder: Your implementation does not need to consider cartesian products
-     * and does not need to keep track of interesting orders.
+     * Cartesian products are not considered.
      *
+     * @param rightTable the table rightOp accesses, or null if rightOp is a
+     *                   join of several tables
      * @return lowest cost join QueryOperator between the input operators
      */
     private QueryOperator minCostJoinType(QueryOperator leftOp,
                                           QueryOperator rightOp,
+                                          String rightTable,
                                           String leftColumn,
                                           String rightColumn) {
         QueryOperator bestOperator = null;
@@ -608,6 +918,12 @@ public class QueryPlan {
         List<QueryOperator> allJoins = new ArrayList<>();
         allJoins.add(new SNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
         allJoins.add(new BNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
+        allJoins.add(new HHJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
+        if (rightTable != null && canProbeIndex(leftOp, rightTable, leftColumn, rightColumn)) {
+            allJoins.add(addTableSelections(
+                    new INLJOperator(leftOp, rightTable, leftColumn, rightColumn, this.transaction),
+                    rightTable));
+        }
         for (QueryOperator join : allJoins) {
             int joinCost = join.estimateIOCost();
             if (joinCost < minimumCost) {
@@ -624,6 +940,13 @@ public class QueryPlan {
      * with a new table. If so, find the minimum cost join. Return a map from
      * each set of table names being joined to its lowest cost join operator.
      *
+     * Plans sorted on an interesting order are tracked alongside (see
+     * orderedPlans). A merge join is also considered for each predicate, using
+     * the cheapest inputs already sorted on the join columns where there are
+     * any, and sorting the other inputs. Every join that is sorted on an
+     * interesting column is kept as the plan for that order if it's cheapest,
+     * even if it isn't the cheapest plan over its tables.
+     *
      * Join predicates are stored as elements of `this.joinPredicates`.
      *
      * @param prevMap  maps a set of tables to a query operator over the set of
@@ -643,25 +966,42 @@ public class QueryPlan {
             QueryOperator nowQueryOp = prevMap.get(nowSet);
             for (JoinPredicate joinPredicate : joinPredicates) {
                 Set<String> nextSet = new HashSet<>();
+                Set<String> leftSet, rightSet;
                 QueryOperator leftOp, rightOp;
 
                 if (nowSet.contains(joinPredicate.leftTable) && !nowSet.contains(joinPredicate.rightTable)) {
                     nextSet.add(joinPredicate.rightTable);
                     rightOp = pass1Map.get(nextSet);
                     leftOp = nowQueryOp;
+                    leftSet = nowSet;
+                    rightSet = Collections.singleton(joinPredicate.rightTable);
                 } else if (!nowSet.contains(joinPredicate.leftTable) && nowSet.contains(joinPredicate.rightTable)) {
                     nextSet.add(joinPredicate.leftTable);
                     rightOp = nowQueryOp;
                     leftOp = pass1Map.get(nextSet);
+                    leftSet = Collections.singleton(joinPredicate.leftTable);
+                    rightSet = nowSet;
                 } else {
                     continue;
                 }
 
-                QueryOperator nextOp = minCostJoinType(leftOp, rightOp, joinPredicate.leftColumn, joinPredicate.rightColumn);
+                String rightTable = rightSet.size() == 1 ? rightSet.iterator().next() : null;
+                QueryOperator nextOp = minCostJoinType(leftOp, rightOp, rightTable,
+                        joinPredicate.leftColumn, joinPredicate.rightColumn);
                 nextSet.addAll(nowSet);
-                if (nextOp != null) {
-                    result.put(nextSet, nextOp);
-                }
+                if (nextOp == null) continue;
+                recordOrders(nextSet, nextOp);
+
+                QueryOperator leftSorted = orderedPlan(leftSet, joinPredicate.leftColumn);
+                QueryOperator rightSorted = orderedPlan(rightSet, joinPredicate.rightColumn);
+                QueryOperator mergeOp = new SortMergeOperator(
+                        leftSorted != null ? leftSorted : leftOp,
+                        rightSorted != null ? rightSorted : rightOp,
+                        joinPredicate.leftColumn, joinPredicate.rightColumn, this.transaction);
+                recordOrders(nextSet, mergeOp);
+                if (mergeOp.estimateIOCost() < nextOp.estimateIOCost()) nextOp = mergeOp;
+
+                result.put(nextSet, nextOp);
             }
         }
         return result;
@@ -701,13 +1041,16 @@ public class QueryPlan {
      */
     public Iterator<Record> execute() {
         this.transaction.setAliasMap(this.aliases);
+        this.orderedPlans = new HashMap<>();
 
         // pass 1
         Map<Set<String>, QueryOperator> initialOp = new HashMap<>();
         for (String tableName : tableNames) {
             Set<String> set = new HashSet<>();
             set.add(tableName);
-            initialOp.put(set, minCostSingleAccess(tableName));
+            QueryOperator minOp = minCostSingleAccess(tableName);
+            initialOp.put(set, minOp);
+            addOrderedAccesses(tableName, minOp);
         }
 
         // pass 2
@@ -716,14 +1059,37 @@ public class QueryPlan {
             nowOp = minCostJoins(nowOp, initialOp);
         }
 
-        finalOperator = minCostOperator(nowOp);
+        finalOperator = minCostOrderedOperator(minCostOperator(nowOp));
         addGroupBy();
-        addProject();
-        addSort();
+        addProjectAndSort();
         addLimit();
+        // plans that can run a batch at a time do, and their batches are only
+        // turned back into records at the root
+        if (finalOperator.isVectorized()) {
+            return RecordBatch.toRecords(finalOperator.batchIterator());
+        }
         return finalOperator.iterator();
     }
 
+    /**
+     * Adds the projection and the sort to the final operator. The sort
+     * normally goes last, but if the ORDER BY column isn't projected, the
+     * records are sorted before the projection drops the column; the
+     * projection keeps them in order.
+     */
+    private void addProjectAndSort() {
+        QueryOperator unprojected = this.finalOperator;
+        addProject();
+        if (this.sortColumn != null && this.groupByColumns.isEmpty()
+                && !hasColumn(this.finalOperator, this.sortColumn)) {
+            this.finalOperator = unprojected;
+            addSort();
+            addProject();
+        } else {
+            addSort();
+        }
+    }
+
     // EXECUTE NAIVE ///////////////////////////////////////////////////////////
     // The following functions are used to generate a naive query plan. You're
     // free to look to them for guidance, but you shouldn't need to use any of
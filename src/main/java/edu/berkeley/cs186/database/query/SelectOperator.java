@@ -2,11 +2,15 @@ package edu.berkeley.cs186.database.query;
 
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.TypeId;
+import edu.berkeley.cs186.database.table.ColumnVector;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class SelectOperator extends QueryOperator {
@@ -72,9 +76,103 @@ public class SelectOperator extends QueryOperator {
         return this.getSource().estimateIOCost();
     }
 
+    @Override
+    public List<String> sortedBy() {
+        return this.getSource().sortedBy();
+    }
+
     @Override
     public Iterator<Record> iterator() { return new SelectIterator(); }
 
+    @Override
+    public Iterator<RecordBatch> batchIterator() { return new SelectBatchIterator(); }
+
+    @Override
+    public boolean isVectorized() { return this.getSource().isVectorized(); }
+
+    /**
+     * @param cmp the result of comparing a value to this.value
+     * @return whether a value that compared as cmp satisfies the predicate
+     */
+    private boolean satisfies(int cmp) {
+        switch (this.operator) {
+        case EQUALS: return cmp == 0;
+        case NOT_EQUALS: return cmp != 0;
+        case LESS_THAN: return cmp < 0;
+        case LESS_THAN_EQUALS: return cmp <= 0;
+        case GREATER_THAN: return cmp > 0;
+        case GREATER_THAN_EQUALS: return cmp >= 0;
+        default: return false;
+        }
+    }
+
+    /**
+     * Filters a batch, by computing a selection vector of the rows of the
+     * batch that satisfy the predicate.
+     */
+    private RecordBatch filter(RecordBatch batch) {
+        ColumnVector column = batch.getColumn(this.columnIndex);
+        int[] selection = new int[batch.size()];
+        int numSelected = 0;
+        // compare unboxed values if the column and the value have the same primitive type
+        TypeId typeId = column.getType().getTypeId() == this.value.getTypeId() ? this.value.getTypeId() : null;
+        for (int i = 0; i < batch.size(); ++i) {
+            int row = batch.getRowIndex(i);
+            int cmp;
+            if (typeId == TypeId.INT) {
+                cmp = Integer.compare(column.getInt(row), this.value.getInt());
+            } else if (typeId == TypeId.LONG) {
+                cmp = Long.compare(column.getLong(row), this.value.getLong());
+            } else if (typeId == TypeId.FLOAT) {
+                cmp = Float.compare(column.getFloat(row), this.value.getFloat());
+            } else if (typeId == TypeId.BOOL) {
+                cmp = Boolean.compare(column.getBool(row), this.value.getBool());
+            } else if (this.operator == PredicateOperator.EQUALS || this.operator == PredicateOperator.NOT_EQUALS) {
+                // same as the row-at-a-time iterator, which uses equals for these
+                cmp = column.get(row).equals(this.value) ? 0 : 1;
+            } else {
+                cmp = column.get(row).compareTo(this.value);
+            }
+            if (this.satisfies(cmp)) {
+                selection[numSelected++] = row;
+            }
+        }
+        return batch.select(selection, numSelected);
+    }
+
+    /**
+     * An implementation of Iterator that filters the batches of the source
+     * operator, skipping batches with no records left in them.
+     */
+    private class SelectBatchIterator implements Iterator<RecordBatch> {
+        private Iterator<RecordBatch> sourceIterator;
+        private RecordBatch nextBatch;
+
+        private SelectBatchIterator() {
+            this.sourceIterator = SelectOperator.this.getSource().batchIterator();
+            this.nextBatch = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.nextBatch == null || this.nextBatch.isEmpty()) {
+                if (!this.sourceIterator.hasNext()) {
+                    return false;
+                }
+                this.nextBatch = SelectOperator.this.filter(this.sourceIterator.next());
+            }
+            return true;
+        }
+
+        @Override
+        public RecordBatch next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            RecordBatch batch = this.nextBatch;
+            this.nextBatch = null;
+            return batch;
+        }
+    }
+
     /**
      * An implementation of Iterator that provides an iterator interface for this operator.
      */
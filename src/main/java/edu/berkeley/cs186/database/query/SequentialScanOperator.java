@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.query;
 import edu.berkeley.cs186.database.TransactionContext;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
@@ -52,6 +53,16 @@ public class SequentialScanOperator extends QueryOperator {
         return this.backtrackingIterator();
     }
 
+    @Override
+    public Iterator<RecordBatch> batchIterator() {
+        return this.transaction.getRecordBatchIterator(tableName);
+    }
+
+    @Override
+    public boolean isVectorized() {
+        return true;
+    }
+
     @Override
     public boolean materialized() { return true; }
 
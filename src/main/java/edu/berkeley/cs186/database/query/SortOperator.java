@@ -4,19 +4,41 @@ import edu.berkeley.cs186.database.TransactionContext;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.query.disk.Run;
+import edu.berkeley.cs186.database.table.PageDirectory;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SortOperator extends QueryOperator {
+    // Maximum number of merges of the same pass that run at the same time
+    static final int MAX_MERGE_THREADS = 4;
+
+    // Shared by all sorts, for the chunks of pass 0 and the merges after it;
+    // workers only read and write temporary runs, and each sort keeps its
+    // work within its own buffers (see sortRunsInParallel and mergePass)
+    private static final ExecutorService mergeExecutor = Executors.newFixedThreadPool(MAX_MERGE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "sort-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     protected Comparator<Record> comparator;
     private TransactionContext transaction;
     private Run sortedRecords;
     private int numBuffers;
     private int sortColumnIndex;
     private String sortColumnName;
+    // Number of runs produced by pass 0 and total number of passes of the
+    // last sort, or -1 if the records haven't been sorted yet
+    private int numInitialRuns = -1;
+    private int numPasses = -1;
 
     public SortOperator(TransactionContext transaction, QueryOperator source,
                         String columnName) {
@@ -48,14 +70,29 @@ public class SortOperator extends QueryOperator {
     @Override
     public int estimateIOCost() {
         int N = getSource().estimateStats().getNumPages();
-        double pass0Runs = Math.ceil(N / (double)numBuffers);
-        double numPasses = 1 + Math.ceil(Math.log(pass0Runs) / Math.log(numBuffers - 1));
-        return (int) (2 * N * numPasses) + getSource().estimateIOCost();
+        return 2 * N * estimateNumPasses() + getSource().estimateIOCost();
+    }
+
+    /**
+     * Replacement selection produces runs averaging twice the size of memory
+     * on unordered input, so pass 0 produces about N / 2B runs. Each merge
+     * pass after that merges B - 1 runs at a time.
+     *
+     * @return the estimated number of passes over the data, including pass 0
+     */
+    int estimateNumPasses() {
+        int N = getSource().estimateStats().getNumPages();
+        double pass0Runs = Math.max(1, Math.ceil(N / (2.0 * numBuffers)));
+        return 1 + (int) Math.ceil(Math.log(pass0Runs) / Math.log(numBuffers - 1));
     }
 
     @Override
     public String str() {
-        return "Sort (cost=" + estimateIOCost() + ")";
+        String str = "Sort (cost=" + estimateIOCost() + ", passes=" + estimateNumPasses();
+        if (this.numPasses >= 0) {
+            str += ", actual runs=" + this.numInitialRuns + ", actual passes=" + this.numPasses;
+        }
+        return str + ")";
     }
 
     @Override
@@ -94,6 +131,123 @@ public class SortOperator extends QueryOperator {
         return makeRun(recordList);
     }
 
+    /**
+     * Returns the initial sorted runs of the records from the input iterator,
+     * using replacement selection. A heap holds up to B pages worth of
+     * records. The smallest record that can still extend the current run is
+     * repeatedly moved from the heap to the run and replaced by the next input
+     * record. An input record smaller than the last record written has to wait
+     * for the next run. On unordered input the runs are about twice the size
+     * of memory, and already sorted input comes out as a single run.
+     *
+     * @return a list of sorted runs containing all the records from the input
+     * iterator
+     */
+    public List<Run> replacementSelection(Iterator<Record> records) {
+        int maxRecords = numBuffers * Table.computeNumRecordsPerPage(
+                PageDirectory.EFFECTIVE_PAGE_SIZE, getSchema());
+        PriorityQueue<Pair<Integer, Record>> heap = new PriorityQueue<>(new RunRecordComparator());
+        while (heap.size() < maxRecords && records.hasNext()) {
+            heap.add(new Pair<>(0, records.next()));
+        }
+
+        List<Run> runs = new ArrayList<>();
+        Run run = null;
+        int runIndex = -1;
+        while (!heap.isEmpty()) {
+            Pair<Integer, Record> min = heap.poll();
+            if (min.getFirst() != runIndex) {
+                run = makeRun();
+                runs.add(run);
+                runIndex = min.getFirst();
+            }
+            run.add(min.getSecond());
+            if (records.hasNext()) {
+                Record next = records.next();
+                boolean fitsRun = comparator.compare(next, min.getSecond()) >= 0;
+                heap.add(new Pair<>(fitsRun ? runIndex : runIndex + 1, next));
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Returns the initial sorted runs of the records from the input iterator,
+     * splitting the B buffers into `parallelism` chunks of B / parallelism
+     * pages. The calling thread reads the input one chunk at a time, and each
+     * full chunk is sorted and written out to its run on the merge threads
+     * while the next chunk is read. At most `parallelism` chunks are held at
+     * once. Each run is allocated by the calling thread before its chunk is
+     * submitted, while earlier chunks are being written, which the
+     * transaction's concurrent map of temporary tables allows.
+     *
+     * Runs are only B / parallelism pages long, but pass 0 then sorts
+     * `parallelism` chunks at the same time.
+     *
+     * @return a list of sorted runs containing all the records from the input
+     * iterator
+     */
+    List<Run> sortRunsInParallel(Iterator<Record> records, int parallelism) {
+        int chunkRecords = (numBuffers / parallelism) * Table.computeNumRecordsPerPage(
+                PageDirectory.EFFECTIVE_PAGE_SIZE, getSchema());
+        List<Run> runs = new ArrayList<>();
+        Deque<Future<Run>> sorts = new ArrayDeque<>();
+        while (records.hasNext()) {
+            if (sorts.size() == parallelism) {
+                runs.add(await(sorts.poll()));
+            }
+            List<Record> chunk = new ArrayList<>(chunkRecords);
+            while (chunk.size() < chunkRecords && records.hasNext()) {
+                chunk.add(records.next());
+            }
+            Run run = makeRun();
+            run.allocate();
+            sorts.add(mergeExecutor.submit(() -> {
+                chunk.sort(comparator);
+                run.addAll(chunk);
+                return run;
+            }));
+        }
+        while (!sorts.isEmpty()) {
+            runs.add(await(sorts.poll()));
+        }
+        return runs;
+    }
+
+    /**
+     * Returns the number of chunks to sort at a time in pass 0 over `numPages`
+     * pages (see sortRunsInParallel). Sorting p chunks of B / p pages at a
+     * time makes runs shorter than those of replacement selection, about 2B
+     * pages on unordered input, so p is only raised while that doesn't add a
+     * merge pass. 1 means pass 0 uses replacement selection, as it does for
+     * inputs estimated to fit in memory.
+     */
+    int pass0Parallelism(int numPages) {
+        if (numPages <= numBuffers) return 1;
+        int selectionRuns = (int) Math.ceil(numPages / (2.0 * numBuffers));
+        int passes = numMergePasses(selectionRuns, numBuffers - 1);
+        int parallelism = 1;
+        for (int p = 2; p <= MAX_MERGE_THREADS && numBuffers / p >= 1; p++) {
+            int runs = (numPages + numBuffers / p - 1) / (numBuffers / p);
+            if (numMergePasses(runs, numBuffers - 1) > passes) break;
+            parallelism = p;
+        }
+        return parallelism;
+    }
+
+    /**
+     * Orders (run index, record) pairs by run index first, so that no record
+     * of the next run is output before the current run is finished.
+     */
+    private class RunRecordComparator implements Comparator<Pair<Integer, Record>> {
+        @Override
+        public int compare(Pair<Integer, Record> o1, Pair<Integer, Record> o2) {
+            int cmp = Integer.compare(o1.getFirst(), o2.getFirst());
+            if (cmp != 0) return cmp;
+            return SortOperator.this.comparator.compare(o1.getSecond(), o2.getSecond());
+        }
+    }
+
     /**
      * Given a list of sorted runs, returns a new run that is the result of
      * merging the input runs. You should use a Priority Queue (java.util.PriorityQueue)
@@ -110,11 +264,20 @@ public class SortOperator extends QueryOperator {
      * @return a single sorted run obtained by merging the input runs
      */
     public Run mergeSortedRuns(List<Run> runs) {
+        return mergeSortedRuns(runs, makeRun());
+    }
+
+    /**
+     * Merges the input runs into `output`, writing records out as they are
+     * merged instead of holding the whole result in memory.
+     *
+     * @return `output`
+     */
+    private Run mergeSortedRuns(List<Run> runs, Run output) {
         assert (runs.size() <= this.numBuffers - 1);
 
         PriorityQueue<Pair<Record, Integer>> minHeap = new PriorityQueue<>(runs.size(), new RecordPairComparator());
         List<Iterator<Record>> iterators = new ArrayList<>();
-        List<Record> sortedRecords = new ArrayList<>();
 
         for (int i = 0; i < runs.size(); i++) {
             Iterator<Record> iterator = runs.get(i).iterator();
@@ -130,10 +293,10 @@ public class SortOperator extends QueryOperator {
             if (iterator.hasNext()) {
                 minHeap.add(new Pair<>(iterator.next(), minRecord.getSecond()));
             }
-            sortedRecords.add(minRecord.getFirst());
+            output.add(minRecord.getFirst());
         }
 
-        return makeRun(sortedRecords);
+        return output;
     }
 
     /**
@@ -157,27 +320,112 @@ public class SortOperator extends QueryOperator {
      * @return a list of sorted runs obtained by merging the input runs
      */
     public List<Run> mergePass(List<Run> runs) {
-        List<Run> mergedRuns = new ArrayList<>();
+        return mergePass(runs, numBuffers - 1);
+    }
 
-        for (int i = 0; i < (int) runs.size() / (numBuffers - 1); i++) {
+    /**
+     * Like mergePass(runs), but merges `fanIn` of the input runs at a time.
+     * Each merge needs fanIn + 1 buffers, so numBuffers / (fanIn + 1) merges
+     * (at most MAX_MERGE_THREADS) run at the same time, which together use
+     * no more than the B buffers of the sort.
+     *
+     * The output runs are created by the calling thread before any merge
+     * starts, so the merge workers only append records to existing temporary
+     * tables of this transaction, which are neither locked nor logged, and
+     * don't change the transaction's set of temporary tables.
+     */
+    List<Run> mergePass(List<Run> runs, int fanIn) {
+        List<List<Run>> groups = new ArrayList<>();
+
+        for (int i = 0; i < (int) runs.size() / fanIn; i++) {
             List<Run> mergeRuns = new ArrayList<>();
-            for (int j = 0; j < numBuffers - 1; j++) {
-                mergeRuns.add(runs.get(i * (numBuffers - 1) + j));
+            for (int j = 0; j < fanIn; j++) {
+                mergeRuns.add(runs.get(i * fanIn + j));
             }
-            mergedRuns.add(mergeSortedRuns(mergeRuns));
+            groups.add(mergeRuns);
         }
 
-        if (runs.size() % (numBuffers - 1) != 0) {
+        if (runs.size() % fanIn != 0) {
             List<Run> mergeRuns = new ArrayList<>();
-            for (int i = 0; i < runs.size() % (numBuffers - 1); i++) {
+            for (int i = 0; i < runs.size() % fanIn; i++) {
                 mergeRuns.add(runs.get(runs.size() - 1 - i));
             }
-            mergedRuns.add(mergeSortedRuns(mergeRuns));
+            groups.add(mergeRuns);
         }
 
+        List<Run> mergedRuns = new ArrayList<>();
+        int parallelism = Math.min(MAX_MERGE_THREADS, numBuffers / (fanIn + 1));
+        if (groups.size() == 1 || parallelism <= 1) {
+            for (List<Run> group : groups) {
+                mergedRuns.add(mergeSortedRuns(group));
+            }
+            return mergedRuns;
+        }
+
+        List<Run> outputs = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            Run output = makeRun();
+            output.allocate();
+            outputs.add(output);
+        }
+        for (int start = 0; start < groups.size(); start += parallelism) {
+            List<Future<Run>> merges = new ArrayList<>();
+            for (int i = start; i < Math.min(start + parallelism, groups.size()); i++) {
+                List<Run> group = groups.get(i);
+                Run output = outputs.get(i);
+                merges.add(mergeExecutor.submit(() -> mergeSortedRuns(group, output)));
+            }
+            for (Future<Run> merge : merges) {
+                mergedRuns.add(await(merge));
+            }
+        }
         return mergedRuns;
     }
 
+    // Waits for a run produced on the merge threads, rethrowing what the
+    // worker threw
+    private static Run await(Future<Run> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of runs to merge at a time in a merge pass over
+     * `numRuns` runs. Merging numBuffers - 1 runs at a time needs the fewest
+     * passes, but leaves room for only one merge at a time. Dividing the
+     * buffers between p merges lowers the fan-in to numBuffers / p - 1, which
+     * is used if it doesn't add a pass.
+     */
+    int mergeFanIn(int numRuns) {
+        int fanIn = numBuffers - 1;
+        int passes = numMergePasses(numRuns, fanIn);
+        for (int p = 2; p <= MAX_MERGE_THREADS; p++) {
+            int pFanIn = numBuffers / p - 1;
+            if (pFanIn < 2 || numMergePasses(numRuns, pFanIn) > passes) break;
+            fanIn = pFanIn;
+        }
+        return fanIn;
+    }
+
+    // Number of merge passes needed to merge `numRuns` runs into one,
+    // merging `fanIn` runs at a time
+    private static int numMergePasses(int numRuns, int fanIn) {
+        int passes = 0;
+        while (numRuns > 1) {
+            numRuns = (numRuns + fanIn - 1) / fanIn;
+            ++passes;
+        }
+        return passes;
+    }
+
     /**
      * Does an external merge sort over the records of the source operator.
      * You may find the getBlockIterator method of the QueryOperator class useful
@@ -189,17 +437,21 @@ public class SortOperator extends QueryOperator {
     public Run sort() {
         // Iterator over the records of the relation we want to sort
         Iterator<Record> sourceIterator = getSource().iterator();
-        List<Run> nowRuns = new ArrayList<>();
 
-        // pass 1
-        while (sourceIterator.hasNext()) {
-            nowRuns.add(sortRun(getBlockIterator(sourceIterator, getSchema(), numBuffers)));
-        }
+        // pass 0
+        int parallelism = pass0Parallelism(getSource().estimateStats().getNumPages());
+        List<Run> nowRuns = parallelism > 1 ? sortRunsInParallel(sourceIterator, parallelism)
+                                            : replacementSelection(sourceIterator);
+        if (nowRuns.isEmpty()) nowRuns.add(makeRun());
+        this.numInitialRuns = nowRuns.size();
+        int passes = 1;
 
-        // pass 2
+        // merge passes
         while (nowRuns.size() != 1) {
-            nowRuns = mergePass(nowRuns);
+            nowRuns = mergePass(nowRuns, mergeFanIn(nowRuns.size()));
+            ++passes;
         }
+        this.numPasses = passes;
 
         return nowRuns.get(0);
     }
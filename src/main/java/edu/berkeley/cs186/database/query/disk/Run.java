@@ -27,13 +27,22 @@ public class Run implements Iterable<Record> {
     }
 
     /**
-     * Adds a record to this run.
-     * @param record the record to add
+     * Creates the temporary table backing this run if it doesn't exist yet.
+     * This happens on the first add otherwise; calling it up front lets the
+     * records be added from another thread.
      */
-    public void add(Record record) {
+    public void allocate() {
         if (this.tempTableName == null) {
             this.tempTableName = transaction.createTempTable(schema);
         }
+    }
+
+    /**
+     * Adds a record to this run.
+     * @param record the record to add
+     */
+    public void add(Record record) {
+        this.allocate();
         this.transaction.addRecord(this.tempTableName, record);
     }
 
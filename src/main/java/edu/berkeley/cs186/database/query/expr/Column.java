@@ -26,6 +26,11 @@ class Column extends Expression {
         return schema.getFieldType(this.col);
     }
 
+    @Override
+    public int getColumnIndex() {
+        return this.col;
+    }
+
     @Override
     public DataBox evaluate(Record record) {
         return record.getValue(this.col);
@@ -104,6 +104,14 @@ public abstract class Expression {
         return this.dependencies;
     }
 
+    /**
+     * @return If this expression is just a reference to a column, the index
+     * of that column in the schema set with setSchema(). Otherwise, -1.
+     */
+    public int getColumnIndex() {
+        return -1;
+    }
+
     // Aggregate related methods
     /**
      * @return Whether or not the given expression contains an aggregate
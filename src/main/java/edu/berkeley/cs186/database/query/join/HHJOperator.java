@@ -0,0 +1,310 @@
+package edu.berkeley.cs186.database.query.join;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.common.HashFunc;
+import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.query.JoinOperator;
+import edu.berkeley.cs186.database.query.QueryOperator;
+import edu.berkeley.cs186.database.query.disk.Partition;
+import edu.berkeley.cs186.database.query.disk.Run;
+import edu.berkeley.cs186.database.table.PageDirectory;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+
+import java.util.*;
+
+/**
+ * Hybrid hash join. The smaller input (by estimated number of pages) is the
+ * build side, and the other input is the probe side.
+ *
+ * If the build side fits in B-2 pages of memory, the whole build side is
+ * loaded into an in memory hash table and the probe side is streamed past it
+ * once. Otherwise, both sides are hash partitioned, like in grace hash join,
+ * except that the first partition of the build side is kept in memory (as long
+ * as it fits in the buffers left over by the other partitions), so that probe
+ * records hashing to it are joined straight away instead of being written out
+ * and read back. Each pair of spilled partitions is then joined recursively,
+ * with a different hash function on every pass.
+ *
+ * Repartitioning cannot split up a partition whose records all have the same
+ * join value, so a partition that doesn't shrink (or that is still too large
+ * after MAX_PASSES passes) is instead joined a memory sized chunk of build
+ * records at a time, scanning its probe records once per chunk.
+ */
+public class HHJOperator extends JoinOperator {
+    // Maximum number of partitioning passes before falling back to chunks.
+    static final int MAX_PASSES = 5;
+
+    private int numBuffers;
+    private boolean buildLeft;
+    private Run joinedRecords;
+
+    public HHJOperator(QueryOperator leftSource,
+                       QueryOperator rightSource,
+                       String leftColumnName,
+                       String rightColumnName,
+                       TransactionContext transaction) {
+        super(leftSource, rightSource, leftColumnName, rightColumnName, transaction, JoinType.HHJ);
+        this.numBuffers = transaction.getWorkMemSize();
+        this.buildLeft = leftSource.estimateStats().getNumPages() <= rightSource.estimateStats().getNumPages();
+        this.stats = this.estimateStats();
+        this.joinedRecords = null;
+    }
+
+    @Override
+    public String str() {
+        return super.str() + " (build " + (this.buildLeft ? "left" : "right") + ")";
+    }
+
+    /**
+     * Both inputs are read once. If the build side doesn't fit in memory, the
+     * part of both inputs that isn't in the in memory partition is written
+     * out and read back once per partitioning pass.
+     */
+    @Override
+    public int estimateIOCost() {
+        QueryOperator build = this.buildLeft ? getLeftSource() : getRightSource();
+        QueryOperator probe = this.buildLeft ? getRightSource() : getLeftSource();
+        long buildPages = build.estimateStats().getNumPages();
+        long probePages = probe.estimateStats().getNumPages();
+        long cost = (long) build.estimateIOCost() + probe.estimateIOCost();
+        if (buildPages > this.numBuffers - 2) {
+            int numPartitions = numPartitions(this.numBuffers);
+            // the fraction of both inputs that is written out and read back
+            double spilled = 1.0;
+            if ((double) buildPages / numPartitions <= residentPages(this.numBuffers)) {
+                spilled -= 1.0 / numPartitions;
+            }
+            cost += (long) Math.ceil(2 * spilled * (buildPages + probePages));
+            // each further pass over partitions that still don't fit
+            double partitionPages = (double) buildPages / numPartitions;
+            for (int pass = 2; pass <= MAX_PASSES && partitionPages > this.numBuffers - 2; ++pass) {
+                cost += 2 * (buildPages + probePages);
+                partitionPages /= numPartitions;
+            }
+        }
+        return (int) Math.min(cost, Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * @return the number of partitions that records are split into by a
+     * partitioning pass with numBuffers buffers. One buffer reads input, and
+     * every spilled partition needs an output buffer.
+     */
+    private static int numPartitions(int numBuffers) {
+        return Math.max(2, numBuffers / 2);
+    }
+
+    /**
+     * @return the number of pages of buffer left over to hold the in memory
+     * partition during a partitioning pass
+     */
+    private static int residentPages(int numBuffers) {
+        return Math.max(1, numBuffers - numPartitions(numBuffers));
+    }
+
+    @Override
+    public boolean materialized() { return true; }
+
+    @Override
+    public BacktrackingIterator<Record> backtrackingIterator() {
+        if (joinedRecords == null) {
+            // Accumulate all of our joined records in this run and return an
+            // iterator over it once the algorithm completes
+            this.joinedRecords = new Run(getTransaction(), getSchema());
+            if (this.buildLeft) {
+                this.run(getLeftSource(), getRightSource(), 1, Integer.MAX_VALUE);
+            } else {
+                this.run(getRightSource(), getLeftSource(), 1, Integer.MAX_VALUE);
+            }
+        }
+        return joinedRecords.iterator();
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return backtrackingIterator();
+    }
+
+    private Schema buildSchema() {
+        return this.buildLeft ? getLeftSource().getSchema() : getRightSource().getSchema();
+    }
+
+    private Schema probeSchema() {
+        return this.buildLeft ? getRightSource().getSchema() : getLeftSource().getSchema();
+    }
+
+    private DataBox buildValue(Record record) {
+        return record.getValue(this.buildLeft ? getLeftColumnIndex() : getRightColumnIndex());
+    }
+
+    private DataBox probeValue(Record record) {
+        return record.getValue(this.buildLeft ? getRightColumnIndex() : getLeftColumnIndex());
+    }
+
+    /**
+     * @return the maximum number of build records to hold in memory in pages
+     * of buffer
+     */
+    private int maxRecords(int pages) {
+        return pages * Table.computeNumRecordsPerPage(PageDirectory.EFFECTIVE_PAGE_SIZE, buildSchema());
+    }
+
+    private static void insert(Map<DataBox, List<Record>> hashTable, DataBox value, Record record) {
+        hashTable.computeIfAbsent(value, k -> new ArrayList<>()).add(record);
+    }
+
+    /**
+     * Probes hashTable with probeRecord, adding any joined records to this.joinedRecords.
+     */
+    private void probe(Map<DataBox, List<Record>> hashTable, Record probeRecord) {
+        List<Record> matches = hashTable.get(probeValue(probeRecord));
+        if (matches == null) return;
+        for (Record buildRecord : matches) {
+            joinedRecords.add(this.buildLeft ? buildRecord.concat(probeRecord) : probeRecord.concat(buildRecord));
+        }
+    }
+
+    private int partitionIndex(DataBox value, int pass, int numPartitions) {
+        int partitionIndex = HashFunc.hashDataBox(value, pass) % numPartitions;
+        if (partitionIndex < 0) {
+            partitionIndex += numPartitions;
+        }
+        return partitionIndex;
+    }
+
+    /**
+     * Joins buildRecords with probeRecords, adding the joined records to
+     * this.joinedRecords.
+     *
+     * @param pass the partitioning pass, used to pick the hash function
+     * @param buildPages the number of pages of build records, or
+     *                   Integer.MAX_VALUE if it isn't known
+     */
+    private void run(Iterable<Record> buildRecords, Iterable<Record> probeRecords, int pass, int buildPages) {
+        // Try to load every build record into memory
+        Map<DataBox, List<Record>> hashTable = new HashMap<>();
+        List<Record> loaded = new ArrayList<>();
+        Iterator<Record> buildIterator = buildRecords.iterator();
+        int maxInMemory = maxRecords(this.numBuffers - 2);
+        while (buildIterator.hasNext() && loaded.size() < maxInMemory) {
+            Record record = buildIterator.next();
+            loaded.add(record);
+            insert(hashTable, buildValue(record), record);
+        }
+        if (!buildIterator.hasNext()) {
+            for (Record probeRecord : probeRecords) {
+                probe(hashTable, probeRecord);
+            }
+            return;
+        }
+        hashTable.clear();
+
+        // The build records don't fit, partition both sides, keeping the
+        // first build partition in memory for as long as it fits
+        int numPartitions = numPartitions(this.numBuffers);
+        int maxResident = maxRecords(residentPages(this.numBuffers));
+        Partition[] buildPartitions = createPartitions(numPartitions, buildSchema());
+        Partition[] probePartitions = createPartitions(numPartitions, probeSchema());
+        Map<DataBox, List<Record>> resident = new HashMap<>();
+        List<Record> residentRecords = new ArrayList<>();
+        boolean residentSpilled = false;
+        Iterator<Record> allBuildRecords = new ConcatIterator(loaded.iterator(), buildIterator);
+        while (allBuildRecords.hasNext()) {
+            Record record = allBuildRecords.next();
+            DataBox value = buildValue(record);
+            int index = partitionIndex(value, pass, numPartitions);
+            if (index == 0 && !residentSpilled) {
+                residentRecords.add(record);
+                insert(resident, value, record);
+                if (residentRecords.size() > maxResident) {
+                    // the first partition doesn't fit either, spill it like the others
+                    buildPartitions[0].addAll(residentRecords);
+                    residentRecords.clear();
+                    resident.clear();
+                    residentSpilled = true;
+                }
+            } else {
+                buildPartitions[index].add(record);
+            }
+        }
+        loaded.clear();
+        for (Record probeRecord : probeRecords) {
+            int index = partitionIndex(probeValue(probeRecord), pass, numPartitions);
+            if (index == 0 && !residentSpilled) {
+                probe(resident, probeRecord);
+            } else {
+                probePartitions[index].add(probeRecord);
+            }
+        }
+        resident.clear();
+        residentRecords.clear();
+
+        for (int i = residentSpilled ? 0 : 1; i < numPartitions; ++i) {
+            Partition build = buildPartitions[i];
+            Partition probe = probePartitions[i];
+            if (build.getNumPages() == 0 || probe.getNumPages() == 0) {
+                continue;
+            }
+            if (pass < MAX_PASSES && build.getNumPages() < buildPages) {
+                run(build, probe, pass + 1, build.getNumPages());
+            } else {
+                // skewed partition - every record probably has the same join value
+                chunkedBuildAndProbe(build, probe);
+            }
+        }
+    }
+
+    /**
+     * Joins buildRecords with probeRecords by loading B-2 pages worth of build
+     * records into an in memory hash table at a time, and probing it with every
+     * probe record.
+     */
+    private void chunkedBuildAndProbe(Iterable<Record> buildRecords, Iterable<Record> probeRecords) {
+        Iterator<Record> buildIterator = buildRecords.iterator();
+        int maxInMemory = maxRecords(this.numBuffers - 2);
+        while (buildIterator.hasNext()) {
+            Map<DataBox, List<Record>> hashTable = new HashMap<>();
+            for (int i = 0; i < maxInMemory && buildIterator.hasNext(); ++i) {
+                Record record = buildIterator.next();
+                insert(hashTable, buildValue(record), record);
+            }
+            for (Record probeRecord : probeRecords) {
+                probe(hashTable, probeRecord);
+            }
+        }
+    }
+
+    private Partition[] createPartitions(int numPartitions, Schema schema) {
+        Partition[] partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitions[i] = new Partition(getTransaction(), schema);
+        }
+        return partitions;
+    }
+
+    /**
+     * Iterator over the records of one iterator followed by another.
+     */
+    private static class ConcatIterator implements Iterator<Record> {
+        private Iterator<Record> first;
+        private Iterator<Record> second;
+
+        private ConcatIterator(Iterator<Record> first, Iterator<Record> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.first.hasNext() || this.second.hasNext();
+        }
+
+        @Override
+        public Record next() {
+            return this.first.hasNext() ? this.first.next() : this.second.next();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package edu.berkeley.cs186.database.query.join;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.query.JoinOperator;
+import edu.berkeley.cs186.database.query.QueryOperator;
+import edu.berkeley.cs186.database.query.SequentialScanOperator;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.stats.Histogram;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Index nested loop join. For each record of the left source, looks up the
+ * records of the right table with a matching join value in the B+ tree index
+ * on the right table's join column, instead of scanning the right table.
+ *
+ * The right side of this join must be a base table with an index on its join
+ * column. The right source of this operator is a sequential scan over that
+ * table, which is only used for its schema and statistics; it is never
+ * iterated over.
+ */
+public class INLJOperator extends JoinOperator {
+    private String rightTableName;
+    // Name of the indexed column, without the table name
+    private String rightIndexColumn;
+
+    public INLJOperator(QueryOperator leftSource,
+                        String rightTableName,
+                        String leftColumnName,
+                        String rightColumnName,
+                        TransactionContext transaction) {
+        super(leftSource, new SequentialScanOperator(transaction, rightTableName),
+              leftColumnName, rightColumnName, transaction, JoinType.INLJ);
+        this.rightTableName = rightTableName;
+        String fieldName = getRightSource().getSchema().getFieldName(getRightColumnIndex());
+        this.rightIndexColumn = fieldName.substring(fieldName.lastIndexOf('.') + 1);
+        this.stats = this.estimateStats();
+    }
+
+    @Override
+    public String str() {
+        return String.format("INLJ on %s=%s using index on %s.%s (cost=%d)",
+                getLeftColumnName(), getRightColumnName(), this.rightTableName,
+                this.rightIndexColumn, this.estimateIOCost());
+    }
+
+    @Override
+    public String toString() {
+        // the right source is never scanned, so don't show it in the plan
+        String r = this.str();
+        r += ("\n-> " + getLeftSource().toString()).replaceAll("\n", "\n\t");
+        return r;
+    }
+
+    /**
+     * Matches are looked up in order of the left records, so the output is in
+     * the same order as the left source.
+     */
+    @Override
+    public List<String> sortedBy() {
+        return getLeftSource().sortedBy();
+    }
+
+    /**
+     * Producing the left records, plus one index lookup per left record. Each
+     * lookup reads the tree from the root down to a leaf, any further leaves
+     * holding matching entries, and one page per matching record.
+     */
+    @Override
+    public int estimateIOCost() {
+        TransactionContext transaction = getTransaction();
+        int height = transaction.getTreeHeight(this.rightTableName, this.rightIndexColumn);
+        int order = transaction.getTreeOrder(this.rightTableName, this.rightIndexColumn);
+        TableStats rightStats = getRightSource().estimateStats();
+        Histogram histogram = rightStats.getHistograms().get(getRightColumnIndex());
+        double matchesPerProbe = (double) rightStats.getNumRecords() / Math.max(1, histogram.getNumDistinct());
+        double probeCost = height + Math.ceil(matchesPerProbe / (1.5 * order)) + matchesPerProbe;
+        long numLeftRecords = getLeftSource().estimateStats().getNumRecords();
+        long cost = getLeftSource().estimateIOCost() + (long) Math.ceil(numLeftRecords * probeCost);
+        return (int) Math.min(cost, Integer.MAX_VALUE - 1);
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new INLJIterator();
+    }
+
+    /**
+     * Iterator over the joined records, probing the index once per left
+     * record.
+     */
+    private class INLJIterator implements Iterator<Record> {
+        // Iterator over all the records of the left source
+        private Iterator<Record> leftSourceIterator;
+        // The current record from the left relation
+        private Record leftRecord;
+        // Iterator over the right records matching leftRecord
+        private Iterator<Record> matchIterator;
+        // The next record to return
+        private Record nextRecord;
+
+        private INLJIterator() {
+            super();
+            this.leftSourceIterator = getLeftSource().iterator();
+            this.leftRecord = null;
+            this.matchIterator = null;
+            this.nextRecord = null;
+        }
+
+        /**
+         * Returns the next record that should be yielded from this join,
+         * or null if there are no more records to join.
+         */
+        private Record fetchNextRecord() {
+            while (this.matchIterator == null || !this.matchIterator.hasNext()) {
+                if (!this.leftSourceIterator.hasNext()) return null;
+                this.leftRecord = this.leftSourceIterator.next();
+                this.matchIterator = getTransaction().lookupKey(INLJOperator.this.rightTableName,
+                        INLJOperator.this.rightIndexColumn, this.leftRecord.getValue(getLeftColumnIndex()));
+            }
+            return this.leftRecord.concat(this.matchIterator.next());
+        }
+
+        /**
+         * @return true if this iterator has another record to yield, otherwise
+         * false
+         */
+        @Override
+        public boolean hasNext() {
+            if (this.nextRecord == null) this.nextRecord = fetchNextRecord();
+            return this.nextRecord != null;
+        }
+
+        /**
+         * @return the next record from this iterator
+         * @throws NoSuchElementException if there are no more records to yield
+         */
+        @Override
+        public Record next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            Record nextRecord = this.nextRecord;
+            this.nextRecord = null;
+            return nextRecord;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import edu.berkeley.cs186.database.query.QueryOperator;
 import edu.berkeley.cs186.database.query.disk.Partition;
 import edu.berkeley.cs186.database.query.disk.Run;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.Schema;
 
 import java.util.*;
@@ -61,6 +62,25 @@ public class SHJOperator extends JoinOperator {
         return backtrackingIterator();
     }
 
+    /**
+     * Batch-at-a-time version of the join. The left records are partitioned
+     * as usual, and then each partition's hash table is probed with the
+     * batches of the right source: join values are read straight out of the
+     * right batches, and joined records are appended to output batches as
+     * they are produced, rather than being accumulated in a run first.
+     */
+    @Override
+    public Iterator<RecordBatch> batchIterator() {
+        Partition[] partitions = createPartitions();
+        this.partition(partitions, () -> RecordBatch.toRecords(getLeftSource().batchIterator()));
+        return new SHJBatchIterator(partitions);
+    }
+
+    @Override
+    public boolean isVectorized() {
+        return true;
+    }
+
     /**
      * Partition stage. For every record in the left record iterator, hashes the
      * value we are joining on and adds that record to the correct partition.
@@ -87,6 +107,29 @@ public class SHJOperator extends JoinOperator {
      * @param rightRecords An iterable of records from the right relation
      */
     private void buildAndProbe(Partition partition, Iterable<Record> rightRecords) {
+        Map<DataBox, List<Record>> hashTable = this.build(partition);
+
+        // Probing stage
+        for (Record rightRecord: rightRecords) {
+            DataBox rightJoinValue = rightRecord.getValue(getRightColumnIndex());
+            if (!hashTable.containsKey(rightJoinValue)) continue;
+            // We have to join the right record with each left record with
+            // a matching key
+            for (Record lRecord : hashTable.get(rightJoinValue)) {
+                Record joinedRecord = lRecord.concat(rightRecord);
+                // Accumulate joined records in this.joinedRecords
+                this.joinedRecords.add(joinedRecord);
+            }
+        }
+    }
+
+    /**
+     * Builds the in memory hash table of a partition of left records.
+     *
+     * @param partition a partition
+     * @return a map from join value to the left records with that join value
+     */
+    private Map<DataBox, List<Record>> build(Partition partition) {
         if (partition.getNumPages() > this.numBuffers - 2) {
             throw new IllegalArgumentException(
                     "The records in this partition cannot fit in B-2 pages of memory."
@@ -105,19 +148,7 @@ public class SHJOperator extends JoinOperator {
             }
             hashTable.get(leftJoinValue).add(leftRecord);
         }
-
-        // Probing stage
-        for (Record rightRecord: rightRecords) {
-            DataBox rightJoinValue = rightRecord.getValue(getRightColumnIndex());
-            if (!hashTable.containsKey(rightJoinValue)) continue;
-            // We have to join the right record with each left record with
-            // a matching key
-            for (Record lRecord : hashTable.get(rightJoinValue)) {
-                Record joinedRecord = lRecord.concat(rightRecord);
-                // Accumulate joined records in this.joinedRecords
-                this.joinedRecords.add(joinedRecord);
-            }
-        }
+        return hashTable;
     }
 
     /**
@@ -155,5 +186,81 @@ public class SHJOperator extends JoinOperator {
         }
         return partitions;
     }
-}
 
+    /**
+     * Iterator over the output batches of the batch-at-a-time join. Probes
+     * the hash table of one partition at a time with every record of the
+     * right source.
+     */
+    private class SHJBatchIterator implements Iterator<RecordBatch> {
+        private Partition[] partitions;
+        private int partitionIndex;
+        private Map<DataBox, List<Record>> hashTable;
+        private Iterator<RecordBatch> rightBatches;
+        // The right record being probed, as a batch and an index into it,
+        // and the left records it joins with.
+        private RecordBatch rightBatch;
+        private int rightIndex;
+        private List<Record> matches;
+        private int matchIndex;
+        private RecordBatch nextBatch;
+
+        private SHJBatchIterator(Partition[] partitions) {
+            this.partitions = partitions;
+            this.partitionIndex = -1;
+            this.rightBatches = Collections.emptyIterator();
+            this.rightBatch = null;
+            this.rightIndex = 0;
+            this.matches = Collections.emptyList();
+            this.matchIndex = 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.nextBatch == null) {
+                this.nextBatch = this.fetchNextBatch();
+            }
+            return !this.nextBatch.isEmpty();
+        }
+
+        @Override
+        public RecordBatch next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            RecordBatch batch = this.nextBatch;
+            this.nextBatch = null;
+            return batch;
+        }
+
+        /**
+         * @return the next batch of joined records, which is empty once every
+         * partition has been probed with every right record
+         */
+        private RecordBatch fetchNextBatch() {
+            RecordBatch output = new RecordBatch(getSchema(), RecordBatch.DEFAULT_CAPACITY);
+            while (!output.isFull()) {
+                if (this.matchIndex < this.matches.size()) {
+                    output.appendConcat(this.matches.get(this.matchIndex++), this.rightBatch, this.rightIndex);
+                } else if (this.rightBatch != null && this.rightIndex + 1 < this.rightBatch.size()) {
+                    // probe with the next right record
+                    ++this.rightIndex;
+                    int row = this.rightBatch.getRowIndex(this.rightIndex);
+                    DataBox rightJoinValue = this.rightBatch.getColumn(getRightColumnIndex()).get(row);
+                    this.matches = this.hashTable.getOrDefault(rightJoinValue, Collections.emptyList());
+                    this.matchIndex = 0;
+                } else if (this.rightBatches.hasNext()) {
+                    this.rightBatch = this.rightBatches.next();
+                    this.rightIndex = -1;
+                } else if (this.partitionIndex + 1 < this.partitions.length) {
+                    // build the next partition's hash table and scan the right records again
+                    ++this.partitionIndex;
+                    this.hashTable = build(this.partitions[this.partitionIndex]);
+                    this.rightBatches = getRightSource().batchIterator();
+                    this.rightBatch = null;
+                } else {
+                    break;
+                }
+            }
+            return output;
+        }
+    }
+}
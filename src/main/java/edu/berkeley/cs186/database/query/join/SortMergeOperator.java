@@ -7,6 +7,7 @@ import edu.berkeley.cs186.database.query.MaterializeOperator;
 import edu.berkeley.cs186.database.query.QueryOperator;
 import edu.berkeley.cs186.database.query.SortOperator;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
 
 import java.util.Arrays;
 import java.util.Iterator;
@@ -64,13 +65,36 @@ public class SortMergeOperator extends JoinOperator {
 
     @Override
     public List<String> sortedBy() {
-        return Arrays.asList(getLeftColumnName(), getRightColumnName());
+        Schema schema = getSchema();
+        return Arrays.asList(
+            schema.getFieldName(getLeftColumnIndex()),
+            schema.getFieldName(getLeftSource().getSchema().size() + getRightColumnIndex())
+        );
     }
 
+    /**
+     * The cost of producing both inputs, plus reading back the inputs that
+     * had to be sorted or materialized first. Backtracking over the right
+     * input for duplicate join values is assumed to stay within the buffer.
+     */
     @Override
     public int estimateIOCost() {
-        //does nothing
-        return 0;
+        long cost = (long) inputCost(getLeftSource()) + inputCost(getRightSource());
+        return (int) Math.min(cost, Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * @return the cost of streaming the records of a source into the merge
+     */
+    private static long inputCost(QueryOperator source) {
+        if (source instanceof SortOperator) {
+            // sorting, then reading back the sorted run
+            return (long) source.estimateIOCost() + source.estimateStats().getNumPages();
+        } else if (source instanceof MaterializeOperator) {
+            // producing the source's records, then reading back the table
+            return (long) source.getSource().estimateIOCost() + source.estimateIOCost();
+        }
+        return source.estimateIOCost();
     }
 
     /**
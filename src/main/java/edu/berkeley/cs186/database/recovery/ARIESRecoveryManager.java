@@ -1,6 +1,7 @@
 package edu.berkeley.cs186.database.recovery;
 
 import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
@@ -10,6 +11,13 @@ import edu.berkeley.cs186.database.recovery.records.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
 
 /**
@@ -35,6 +43,23 @@ public class ARIESRecoveryManager implements RecoveryManager {
     // to prevent DPT entries from being flushed during restartRedo.
     boolean redoComplete;
 
+    // Maximum number of records the redo pass hands to redo threads ahead of
+    // them redoing the records
+    static final int MAX_QUEUED_REDO_RECORDS = 4096;
+    // Number of threads the redo pass uses
+    private int redoThreads = 1;
+    // Number of slots of the log partition log pages are stored in
+    private int numLogPages = LogManager.DEFAULT_LOG_PAGES;
+
+    // Held while taking a checkpoint, so that master records are written in
+    // the order of their checkpoints
+    private final Object checkpointLock = new Object();
+    // Background thread taking periodic checkpoints, or null if not started
+    private Checkpointer checkpointer;
+    // Whether writes to a page are logged as one compact UpdatePageRangesLogRecord
+    // rather than one UpdatePageLogRecord per changed range
+    private volatile boolean compactPageUpdates = true;
+
     public ARIESRecoveryManager(Function<Long, Transaction> newTransaction) {
         this.newTransaction = newTransaction;
     }
@@ -64,7 +89,21 @@ public class ARIESRecoveryManager implements RecoveryManager {
     public void setManagers(DiskSpaceManager diskSpaceManager, BufferManager bufferManager) {
         this.diskSpaceManager = diskSpaceManager;
         this.bufferManager = bufferManager;
-        this.logManager = new LogManager(bufferManager);
+        this.logManager = new LogManager(bufferManager, numLogPages);
+    }
+
+    /**
+     * Sets the number of slots of the log partition that log pages are stored
+     * in (see LogManager), which bounds the size of the log. Must be called
+     * before setManagers, with the same number every time the log is opened.
+     *
+     * @param numLogPages number of log page slots
+     */
+    public void setNumLogPages(int numLogPages) {
+        if (numLogPages < 2) {
+            throw new IllegalArgumentException("invalid number of log pages: " + numLogPages);
+        }
+        this.numLogPages = numLogPages;
     }
 
     // Forward Processing //////////////////////////////////////////////////////
@@ -78,7 +117,9 @@ public class ARIESRecoveryManager implements RecoveryManager {
      */
     @Override
     public synchronized void startTransaction(Transaction transaction) {
-        this.transactionTable.put(transaction.getTransNum(), new TransactionTableEntry(transaction));
+        TransactionTableEntry transactionEntry = new TransactionTableEntry(transaction);
+        transactionEntry.firstLSN = logManager.getTailLSN();
+        this.transactionTable.put(transaction.getTransNum(), transactionEntry);
     }
 
     /**
@@ -94,7 +135,7 @@ public class ARIESRecoveryManager implements RecoveryManager {
     public long commit(long transNum) {
         LogRecord commitLog = new CommitTransactionLogRecord(transNum, transactionTable.get(transNum).lastLSN);
         long commitLSN = logManager.appendToLog(commitLog);
-        flushToLSN(commitLSN);
+        logManager.flushCommit(commitLSN);
         transactionTable.get(transNum).lastLSN = commitLSN;
         transactionTable.get(transNum).transaction.setStatus(Transaction.Status.COMMITTING);
         return commitLSN;
@@ -179,7 +220,15 @@ public class ARIESRecoveryManager implements RecoveryManager {
                 LogRecord undoRecord = currentRecord.undo(transactionEntry.lastLSN);
                 long undoLSN = logManager.appendToLog(undoRecord);
                 transactionEntry.lastLSN = undoLSN;
-                undoRecord.redo(this, diskSpaceManager, bufferManager);
+                // the CLR is the only record of the undo, so its writes must
+                // not be logged again as updates of the transaction
+                TransactionContext transaction = TransactionContext.getTransaction();
+                if (transaction != null) TransactionContext.unsetTransaction();
+                try {
+                    undoRecord.redo(this, diskSpaceManager, bufferManager);
+                } finally {
+                    if (transaction != null) TransactionContext.setTransaction(transaction);
+                }
                 if (undoRecord.type.equals(LogType.UNDO_ALLOC_PAGE)) {
                     logManager.flushToLSN(undoLSN);
                 }
@@ -235,6 +284,8 @@ public class ARIESRecoveryManager implements RecoveryManager {
     @Override
     public long logPageWrite(long transNum, long pageNum, short pageOffset, byte[] before,
                              byte[] after) {
+        // Ignore if part of the log (e.g. a log page freed by truncation).
+        if (DiskSpaceManager.getPartNum(pageNum) == 0) return -1L;
         assert (before.length == after.length);
         assert (before.length <= BufferManager.EFFECTIVE_PAGE_SIZE / 2);
 
@@ -246,6 +297,68 @@ public class ARIESRecoveryManager implements RecoveryManager {
         return logLSN;
     }
 
+    /**
+     * Called when a write to a page changes several ranges of the page.
+     *
+     * The ranges are logged in as few UpdatePageRangesLogRecords as fit on
+     * log pages; a range too large to be logged this way is logged with
+     * logPageWrite instead. If compact page updates are disabled, every range
+     * is logged with logPageWrite.
+     *
+     * @param transNum transaction performing the write
+     * @param pageNum page number of page being written
+     * @param pageOffsets offset into page where each range begins
+     * @param befores bytes of each range before the write
+     * @param afters bytes of each range after the write
+     * @return LSN of last record written to log
+     */
+    @Override
+    public long logPageWrites(long transNum, long pageNum, short[] pageOffsets, byte[][] befores,
+                              byte[][] afters) {
+        // Ignore if part of the log (e.g. a log page freed by truncation).
+        if (DiskSpaceManager.getPartNum(pageNum) == 0) return -1L;
+        assert (pageOffsets.length == befores.length && befores.length == afters.length);
+
+        long logLSN = -1L;
+        int maxRecordSize = DiskSpaceManager.PAGE_SIZE - UpdatePageRangesLogRecord.MAX_HEADER_SIZE;
+        int start = 0;
+        while (start < pageOffsets.length) {
+            if (!compactPageUpdates
+                    || UpdatePageRangesLogRecord.maxRangeSize(afters[start].length) > maxRecordSize) {
+                logLSN = logPageWrite(transNum, pageNum, pageOffsets[start], befores[start], afters[start]);
+                ++start;
+                continue;
+            }
+            int end = start;
+            int size = 0;
+            while (end < pageOffsets.length
+                    && size + UpdatePageRangesLogRecord.maxRangeSize(afters[end].length) <= maxRecordSize) {
+                size += UpdatePageRangesLogRecord.maxRangeSize(afters[end].length);
+                ++end;
+            }
+            TransactionTableEntry transactionEntry = transactionTable.get(transNum);
+            LogRecord record = new UpdatePageRangesLogRecord(transNum, pageNum, transactionEntry.lastLSN,
+                    Arrays.copyOfRange(pageOffsets, start, end), Arrays.copyOfRange(befores, start, end),
+                    Arrays.copyOfRange(afters, start, end));
+            logLSN = logManager.appendToLog(record);
+            transactionEntry.lastLSN = logLSN;
+            dirtyPageTable.putIfAbsent(pageNum, logLSN);
+            start = end;
+        }
+        return logLSN;
+    }
+
+    /**
+     * Sets whether writes that change several ranges of a page are logged as
+     * compact UpdatePageRangesLogRecords (the default) or as one
+     * UpdatePageLogRecord per range.
+     *
+     * @param compact whether to log compact page updates
+     */
+    public void setCompactPageUpdates(boolean compact) {
+        this.compactPageUpdates = compact;
+    }
+
     /**
      * Called when a new partition is allocated. A log flush is necessary,
      * since changes are visible on disk immediately after this returns.
@@ -433,9 +546,26 @@ public class ARIESRecoveryManager implements RecoveryManager {
      *
      * Finally, the master record should be rewritten with the LSN of the
      * begin checkpoint record.
+     *
+     * Checkpoints are fuzzy: transactions keep running (and appending to the
+     * log) while one is taken. Once the master record points at the new
+     * checkpoint, log pages that restart and rollback can no longer need are
+     * truncated (see truncateLog).
      */
     @Override
-    public synchronized void checkpoint() {
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            long beginLSN = writeCheckpoint();
+            truncateLog(beginLSN);
+        }
+    }
+
+    /**
+     * Writes the begin and end checkpoint records, and points the master
+     * record at them.
+     * @return LSN of the begin checkpoint record
+     */
+    private long writeCheckpoint() {
         // Create begin checkpoint log record and write to log
         LogRecord beginRecord = new BeginCheckpointLogRecord();
         long beginLSN = logManager.appendToLog(beginRecord);
@@ -450,13 +580,21 @@ public class ARIESRecoveryManager implements RecoveryManager {
             int numTxnTableRecords = 0;
             boolean ableToAdd = true;
             while (ableToAdd) {
+                // entries may be removed while we iterate over the tables
                 if (dptIterator.hasNext()) {
                     Long pageNum = dptIterator.next();
-                    chkptDPT.put(pageNum, dirtyPageTable.get(pageNum));
+                    Long recLSN = dirtyPageTable.get(pageNum);
+                    if (recLSN == null) {
+                        continue;
+                    }
+                    chkptDPT.put(pageNum, recLSN);
                     numDPTRecords++;
                 } else if (txnIterator.hasNext()) {
                     Long txnNum = txnIterator.next();
                     TransactionTableEntry txnEntry = transactionTable.get(txnNum);
+                    if (txnEntry == null) {
+                        continue;
+                    }
                     chkptTxnTable.put(txnNum, new Pair<>(txnEntry.transaction.getStatus(), txnEntry.lastLSN));
                     numTxnTableRecords++;
                 } else {
@@ -486,6 +624,30 @@ public class ARIESRecoveryManager implements RecoveryManager {
         // Update master record
         MasterLogRecord masterRecord = new MasterLogRecord(beginLSN);
         logManager.rewriteMasterRecord(masterRecord);
+        return beginLSN;
+    }
+
+    /**
+     * Truncates the log before the oldest record that may still be needed:
+     * restart starts its scan at the checkpoint (or at the oldest recLSN in
+     * the DPT, for redo), and rolling back a transaction reads its records
+     * back to its first one.
+     *
+     * The transaction table is read before the DPT: a transaction that ends
+     * in between has added its pages to the DPT before ending, and one that
+     * starts in between only logs records after the checkpoint.
+     *
+     * @param beginLSN LSN of the begin record of the last checkpoint
+     */
+    private void truncateLog(long beginLSN) {
+        long truncateLSN = beginLSN;
+        for (TransactionTableEntry txnEntry : transactionTable.values()) {
+            truncateLSN = Math.min(truncateLSN, txnEntry.firstLSN);
+        }
+        for (Long recLSN : dirtyPageTable.values()) {
+            truncateLSN = Math.min(truncateLSN, recLSN);
+        }
+        logManager.truncate(truncateLSN);
     }
 
     /**
@@ -510,10 +672,77 @@ public class ARIESRecoveryManager implements RecoveryManager {
 
     @Override
     public void close() {
+        this.stopCheckpointer();
         this.checkpoint();
         this.logManager.close();
     }
 
+    /**
+     * Starts a background thread that takes a checkpoint (and so truncates the
+     * log) every intervalMillis milliseconds. This keeps both the log and the
+     * part of it restart has to scan bounded while the database is in use.
+     *
+     * @param intervalMillis time between checkpoints, in milliseconds
+     */
+    public synchronized void startCheckpointer(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        }
+        if (this.checkpointer != null) {
+            throw new IllegalStateException("checkpointer already started");
+        }
+        this.checkpointer = new Checkpointer(intervalMillis);
+        this.checkpointer.thread.start();
+    }
+
+    /**
+     * Stops the background checkpointer, if it was started, and waits for it
+     * to finish.
+     */
+    public synchronized void stopCheckpointer() {
+        if (this.checkpointer == null) {
+            return;
+        }
+        Checkpointer stopped = this.checkpointer;
+        this.checkpointer = null;
+        stopped.running = false;
+        LockSupport.unpark(stopped.thread);
+        try {
+            stopped.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Background thread taking a checkpoint at a fixed interval.
+     */
+    private class Checkpointer implements Runnable {
+        private final long intervalNanos;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Checkpointer(long intervalMillis) {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.thread = new Thread(this, "aries-checkpointer");
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long nextCheckpoint = System.nanoTime() + this.intervalNanos;
+            while (this.running) {
+                long delay = nextCheckpoint - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(this, delay);
+                    continue;
+                }
+                checkpoint();
+                nextCheckpoint = System.nanoTime() + this.intervalNanos;
+            }
+        }
+    }
+
     // Restart Recovery ////////////////////////////////////////////////////////
 
     /**
@@ -525,6 +754,9 @@ public class ARIESRecoveryManager implements RecoveryManager {
      * dirty page table of non-dirty pages (pages that aren't dirty in the
      * buffer manager) between redo and undo, and perform a checkpoint after
      * undo.
+     *
+     * From then on, an append that finds the log full takes a checkpoint to
+     * truncate it.
      */
     @Override
     public void restart() {
@@ -534,6 +766,7 @@ public class ARIESRecoveryManager implements RecoveryManager {
         this.cleanDPT();
         this.restartUndo();
         this.checkpoint();
+        this.logManager.setLogFullHandler(this::checkpoint);
     }
 
     /**
@@ -610,7 +843,7 @@ public class ARIESRecoveryManager implements RecoveryManager {
                 }
             }
             if (log.getPageNum().isPresent()) {
-                if (log.type.equals(LogType.UNDO_UPDATE_PAGE) || log.type.equals(LogType.UPDATE_PAGE)) {
+                if (isPageUpdate(log.type)) {
                     dirtyPageTable.putIfAbsent(log.getPageNum().get(), log.LSN);
                 } else if (log.type.equals(LogType.FREE_PAGE) || log.type.equals(LogType.UNDO_ALLOC_PAGE)) {
                     dirtyPageTable.remove(log.getPageNum().get());
@@ -684,6 +917,12 @@ public class ARIESRecoveryManager implements RecoveryManager {
      * - modifies a page (Update/UndoUpdate/Free/UndoAlloc....Page) in
      *   the dirty page table with LSN >= recLSN, the page is fetched from disk,
      *   the pageLSN is checked, and the record is redone if needed.
+     *
+     * With more than one redo thread (see setRedoThreads), records of each
+     * page are handed to the redo thread for that page, which redoes them in
+     * LSN order. The log scan asks the buffer manager to read ahead the
+     * pages they modify (see BufferManager#setReadAhead). Partition-related
+     * records wait for all earlier records to be redone.
      */
     void restartRedo() {
         if (dirtyPageTable.isEmpty()) {
@@ -691,31 +930,164 @@ public class ARIESRecoveryManager implements RecoveryManager {
         }
         Long earliestLSN = Collections.min(dirtyPageTable.values());
         Iterator<LogRecord> logRecords = logManager.scanFrom(earliestLSN);
+        if (redoThreads > 1) {
+            parallelRedo(logRecords);
+            return;
+        }
         while (logRecords.hasNext()) {
             LogRecord logRecord = logRecords.next();
-            if (logRecord.isRedoable()) {
-                LogType logType = logRecord.type;
-                if (logType.equals(LogType.ALLOC_PART) || logType.equals(LogType.UNDO_ALLOC_PART) || logType.equals(LogType.FREE_PART) || logType.equals(LogType.UNDO_FREE_PART)) {
-                    logRecord.redo(this, diskSpaceManager, bufferManager);
-                } else if (logType.equals(LogType.ALLOC_PAGE) || logType.equals(LogType.UNDO_FREE_PAGE)) {
-                    logRecord.redo(this, diskSpaceManager, bufferManager);
-                } else if (logType.equals(LogType.UPDATE_PAGE) || logType.equals(LogType.UNDO_UPDATE_PAGE) || logType.equals(LogType.UNDO_ALLOC_PAGE) || logType.equals(LogType.FREE_PAGE)) {
-                    Long pageNum = logRecord.getPageNum().get();
-                    if (dirtyPageTable.containsKey(pageNum)) {
-                        if (logRecord.LSN >= dirtyPageTable.get(pageNum)) {
-                            Page page = bufferManager.fetchPage(new DummyLockContext(), pageNum);
-                            try {
-                                if (logRecord.LSN > page.getPageLSN()) {
-                                    logRecord.redo(this, diskSpaceManager, bufferManager);
-                                }
-                            } finally {
-                                page.unpin();
-                            }
-                        }
+            if (isPartitionRedo(logRecord) || isPageRedo(logRecord)) {
+                redoRecord(logRecord);
+            }
+        }
+    }
+
+    /**
+     * Redo pass over logRecords using redoThreads threads.
+     */
+    private void parallelRedo(Iterator<LogRecord> logRecords) {
+        List<ExecutorService> lanes = new ArrayList<>();
+        for (int i = 0; i < redoThreads; ++i) {
+            lanes.add(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "aries-redo");
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+        // Records handed to a lane that haven't been redone yet; bounds how far
+        // the log scan gets ahead of the redo threads
+        Semaphore queued = new Semaphore(MAX_QUEUED_REDO_RECORDS);
+        // Last record handed to each lane
+        List<Future<?>> lastRedo = new ArrayList<>(Collections.nCopies(redoThreads, null));
+        try {
+            while (logRecords.hasNext()) {
+                LogRecord logRecord = logRecords.next();
+                if (isPartitionRedo(logRecord)) {
+                    awaitRedo(lastRedo);
+                    redoRecord(logRecord);
+                } else if (isPageRedo(logRecord)) {
+                    long pageNum = logRecord.getPageNum().get();
+                    if (needsPageFetch(logRecord)) {
+                        bufferManager.prefetch(pageNum);
                     }
+                    int lane = Math.floorMod(Long.hashCode(pageNum), redoThreads);
+                    queued.acquireUninterruptibly();
+                    lastRedo.set(lane, lanes.get(lane).submit(() -> {
+                        try {
+                            redoRecord(logRecord);
+                        } finally {
+                            queued.release();
+                        }
+                    }));
+                }
+            }
+            awaitRedo(lastRedo);
+        } finally {
+            for (ExecutorService lane : lanes) {
+                lane.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Waits for the given redo tasks, and everything queued before them on
+     * their lanes, to finish.
+     */
+    private static void awaitRedo(List<Future<?>> lastRedo) {
+        for (Future<?> redo : lastRedo) {
+            if (redo == null) {
+                continue;
+            }
+            try {
+                redo.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted during redo", e);
+            }
+        }
+    }
+
+    /**
+     * @return whether logRecord is a partition-related record to redo
+     */
+    private static boolean isPartitionRedo(LogRecord logRecord) {
+        LogType logType = logRecord.type;
+        return logRecord.isRedoable() && (logType.equals(LogType.ALLOC_PART) || logType.equals(LogType.UNDO_ALLOC_PART)
+                || logType.equals(LogType.FREE_PART) || logType.equals(LogType.UNDO_FREE_PART));
+    }
+
+    /**
+     * @return whether logRecord is a page-related record that may need redoing
+     */
+    private boolean isPageRedo(LogRecord logRecord) {
+        LogType logType = logRecord.type;
+        if (!logRecord.isRedoable()) {
+            return false;
+        }
+        if (logType.equals(LogType.ALLOC_PAGE) || logType.equals(LogType.UNDO_FREE_PAGE)) {
+            return true;
+        }
+        return needsPageFetch(logRecord);
+    }
+
+    /**
+     * @return whether logRecord modifies a page in the dirty page table with
+     * LSN >= recLSN, so that the page must be fetched to check its pageLSN
+     */
+    private boolean needsPageFetch(LogRecord logRecord) {
+        LogType logType = logRecord.type;
+        if (!(isPageUpdate(logType)
+                || logType.equals(LogType.UNDO_ALLOC_PAGE) || logType.equals(LogType.FREE_PAGE))) {
+            return false;
+        }
+        Long recLSN = dirtyPageTable.get(logRecord.getPageNum().get());
+        return recLSN != null && logRecord.LSN >= recLSN;
+    }
+
+    /**
+     * @return whether records of type logType write bytes of a page
+     */
+    private static boolean isPageUpdate(LogType logType) {
+        return logType.equals(LogType.UPDATE_PAGE) || logType.equals(LogType.UNDO_UPDATE_PAGE)
+               || logType.equals(LogType.UPDATE_PAGE_RANGES) || logType.equals(LogType.UNDO_UPDATE_PAGE_RANGES);
+    }
+
+    /**
+     * Redoes a record selected by isPartitionRedo or isPageRedo, checking the
+     * pageLSN first if the record modifies a page.
+     */
+    private void redoRecord(LogRecord logRecord) {
+        if (!needsPageFetch(logRecord)) {
+            logRecord.redo(this, diskSpaceManager, bufferManager);
+            return;
+        }
+        Page page = bufferManager.fetchPage(new DummyLockContext(), logRecord.getPageNum().get());
+        try {
+            if (logRecord.LSN > page.getPageLSN()) {
+                logRecord.redo(this, diskSpaceManager, bufferManager);
             }
+        } finally {
+            page.unpin();
+        }
+    }
+
+    /**
+     * Sets the number of threads the redo pass of restart recovery uses. With
+     * one thread (the default), records are redone in log order on the
+     * calling thread.
+     *
+     * @param numThreads number of redo threads
+     */
+    public void setRedoThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("need at least one redo thread");
         }
+        this.redoThreads = numThreads;
     }
 
     /**
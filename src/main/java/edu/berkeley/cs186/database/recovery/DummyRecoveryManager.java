@@ -51,6 +51,12 @@ public class DummyRecoveryManager implements RecoveryManager {
         return 0L;
     }
 
+    @Override
+    public long logPageWrites(long transNum, long pageNum, short[] pageOffsets, byte[][] befores,
+                              byte[][] afters) {
+        return 0L;
+    }
+
     @Override
     public long logAllocPart(long transNum, int partNum) {
         return 0L;
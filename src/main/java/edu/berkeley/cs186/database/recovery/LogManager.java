@@ -1,6 +1,7 @@
 package edu.berkeley.cs186.database.recovery;
 
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterable;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.iterator.ConcatBacktrackingIterator;
@@ -13,11 +14,16 @@ import edu.berkeley.cs186.database.memory.Page;
 import edu.berkeley.cs186.database.recovery.records.MasterLogRecord;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The LogManager is responsible for interfacing with the log itself. The log is stored
- * on its own partition (partition 0). Since log pages are never deleted, the page number
- * is always increasing, so we assign LSNs as follow:
+ * on its own partition (partition 0). Log pages are numbered in the order they are written,
+ * so the log page number is always increasing, and we assign LSNs as follow:
  * - page 1: [ LSN 10000, LSN 10040, LSN 10080, ...]
  * - page 2: [ LSN 20000, LSN 20030, LSN 20055, ...]
  * - page 3: [ LSN 30000, LSN 30047, LSN 30090, ...]
@@ -28,32 +34,352 @@ import java.util.*;
  * by an empty begin and end checkpoint record. The master record is the only record in the
  * entire log that may be rewritten.
  *
+ * Log pages that are no longer needed for recovery are freed by truncate, oldest first.
+ * The other log pages are stored in a fixed number of slots of the log partition, log
+ * page n in slot 1 + (n - 1) % numLogPages, so the log partition does not grow past
+ * numLogPages + 1 pages. At least one slot is always left free, so the log pages in use
+ * are in consecutive slots between two free ones; since the page of the last checkpoint
+ * is never truncated, a restarted LogManager finds them by starting at that page.
+ *
+ * When an append finds every slot in use, it runs the log full handler (see
+ * setLogFullHandler), which takes a checkpoint and so truncates the log, and
+ * then retries. A quarter of the slots is kept for the records the handler
+ * itself appends.
+ *
+ * A transaction that has logged undoable records must always be able to roll
+ * back, even if the log can't be truncated (which it can't past the
+ * transaction's first record). So each undoable record reserves space for
+ * the CLR that undoes it, until its transaction commits or ends. Appending an
+ * undoable record fails when the log is full once the reserved space is left
+ * free, while other records, such as CLRs, may use the reserved space.
+ *
  * The LogManager is also responsible for writing pageLSNs onto pages and flushing the log
  * when pages are flushed, and therefore has a few methods that must be called by the buffer
  * manager when pages are fetched and evicted (fetchPageHook, fetchNewPageHook, and pageEvictHook).
  * These must be called from the buffer manager to ensure that pageLSN is up to date, and
  * that flushedLSN >= any pageLSN on disk.
+ *
+ * Commits flush the log through flushCommit. With group commit enabled (the
+ * default), committers waiting at the same time share log flushes: one of
+ * them flushes the log up to the highest LSN any of them is waiting on, and
+ * every waiter whose LSN is then durable returns without writing a page.
+ *
+ * Appending does not take the LogManager's monitor. Records are copied into
+ * an in-memory image of the log tail page: a writer reserves space for its
+ * record (and with it, the record's LSN) by atomically advancing the tail's
+ * position, then copies its bytes into the reserved range concurrently with
+ * other writers. The tail is sealed when it fills up or when it has to be
+ * flushed or read as a page: new reservations then go to a new page, and
+ * once every reserved range has been copied the image is written into the
+ * buffer manager's page. Sealing, allocating a new tail and flushing are
+ * done while holding the monitor.
  */
 public class LogManager implements Iterable<LogRecord>, AutoCloseable {
     private BufferManager bufferManager;
-    private Deque<Page> unflushedLogTail;
-    private Page logTail;
-    private Buffer logTailBuffer;
-    private boolean logTailPinned = false;
-    private long flushedLSN;
+    private Deque<LogTail> unflushedLogTail;
+    // The page records are currently appended to, or null if the next
+    // append has to start a new page
+    private volatile LogTail logTail;
+    private volatile long flushedLSN;
+
+    // How long a committer about to flush waits for others to join its group,
+    // when other transactions are committing at the same time
+    static final long GROUP_COMMIT_DELAY_NANOS = 100_000L;
+
+    // Whether committers share log flushes
+    private volatile boolean groupCommit = true;
+    // Guards the group commit state below, and is held by committers waiting for a flush
+    private final ReentrantLock groupCommitLock = new ReentrantLock();
+    // Signalled after every group flush
+    private final Condition groupFlushed = groupCommitLock.newCondition();
+    // Highest LSN a committer is waiting to be flushed
+    private long pendingCommitLSN = -1L;
+    // Whether some committer is currently flushing the log for the group
+    private boolean groupFlushing = false;
+    // Number of committers waiting in flushCommit
+    private int numCommitWaiters = 0;
+    // Number of committers made durable by the last group flush
+    private int lastGroupSize = 0;
 
     public static final int LOG_PARTITION = 0;
 
+    // Default number of slots log pages after the master page are stored in
+    public static final int DEFAULT_LOG_PAGES = 1 << 18;
+
+    // Number of slots log pages after the master page are stored in
+    private final int numLogPages;
+    // Oldest log page after the master page that has not been truncated
+    private volatile long firstLogPage;
+    // Log page the next log tail is started on
+    private volatile long nextLogPage;
+    // Run when the log is full, to take a checkpoint, or null
+    private volatile Runnable logFullHandler;
+    // Whether the current thread is running the log full handler, and so may
+    // use the slots kept for it
+    private final ThreadLocal<Boolean> inLogFullHandler = ThreadLocal.withInitial(() -> false);
+    // Bytes reserved for the CLRs of each transaction that logged undoable
+    // records and has neither committed nor ended, and their total
+    private final Map<Long, Long> undoReservations = new ConcurrentHashMap<>();
+    private final AtomicLong reservedUndoBytes = new AtomicLong(0L);
+
     LogManager(BufferManager bufferManager) {
+        this(bufferManager, DEFAULT_LOG_PAGES);
+    }
+
+    LogManager(BufferManager bufferManager, int numLogPages) {
+        if (numLogPages < 2) {
+            throw new IllegalArgumentException("invalid number of log pages: " + numLogPages);
+        }
         this.bufferManager = bufferManager;
+        this.numLogPages = numLogPages;
         this.unflushedLogTail = new ArrayDeque<>();
+        this.firstLogPage = 1L;
+        this.nextLogPage = 0L;
+
+        if (bufferManager.pageAllocated(getLogPageNum(0L))) {
+            // the log already exists: find the slots in use around the page of
+            // the last checkpoint
+            long checkpointPage = readCheckpointPage();
+            this.firstLogPage = Math.max(checkpointPage, 1L);
+            this.nextLogPage = this.firstLogPage;
+            while (this.nextLogPage - this.firstLogPage < numLogPages - 1
+                    && bufferManager.pageAllocated(getLogPageNum(this.nextLogPage))) {
+                ++this.nextLogPage;
+            }
+            while (this.firstLogPage > 1L && this.nextLogPage - this.firstLogPage < numLogPages - 1
+                    && bufferManager.pageAllocated(getLogPageNum(this.firstLogPage - 1L))) {
+                --this.firstLogPage;
+            }
+        }
+
+        if (this.logFull(false)) {
+            throw new IllegalStateException("log is full: no log page has been truncated since LSN "
+                                            + makeLSN(firstLogPage, 0));
+        }
+        this.startLogTail();
+        this.flushedLSN = maxLSN(this.logTail.logPage - 1L);
+    }
+
+    /**
+     * Reads the log page of the last checkpoint off the master record.
+     * @return log page of the last checkpoint, or 0 if there is no master record
+     */
+    private long readCheckpointPage() {
+        Page masterPage = bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), getLogPageNum(0L));
+        try {
+            Optional<LogRecord> record = LogRecord.fromBytes(masterPage.getBuffer());
+            if (record.isPresent() && record.get() instanceof MasterLogRecord) {
+                return Math.max(getLSNPage(((MasterLogRecord) record.get()).lastCheckpointLSN), 0L);
+            }
+            return 0L;
+        } finally {
+            masterPage.unpin();
+        }
+    }
+
+    /**
+     * Gets the page of the log partition that a log page is stored on.
+     * @param logPage log page number
+     * @return page number of the slot holding the log page
+     */
+    private long getLogPageNum(long logPage) {
+        long slot = logPage == 0L ? 0L : 1L + (logPage - 1L) % numLogPages;
+        return DiskSpaceManager.getVirtualPageNum(LOG_PARTITION, (int) slot);
+    }
+
+    /**
+     * In-memory image of the log page records are being appended to. Sealed
+     * log tails stay in unflushedLogTail until their page is flushed.
+     */
+    private static class LogTail {
+        // Value of position once no more space can be reserved
+        private static final int SEALED = -1;
+
+        private final Page page;
+        // Log page number of the page
+        private final long logPage;
+        // LSN of the first record on the page
+        private final long firstLSN;
+        private final byte[] bytes = new byte[DiskSpaceManager.PAGE_SIZE];
+        // Offset of the first byte not yet reserved, or SEALED
+        private final AtomicInteger position = new AtomicInteger(0);
+        // Number of reserved bytes copied in so far
+        private final AtomicInteger copied = new AtomicInteger(0);
+
+        private LogTail(Page page, long logPage) {
+            this.page = page;
+            this.logPage = logPage;
+            this.firstLSN = makeLSN(logPage, 0);
+        }
+
+        /**
+         * Reserves length bytes on this page.
+         * @return offset of the reserved bytes, or -1 if they don't fit or the
+         * page is sealed
+         */
+        private int reserve(int length) {
+            while (true) {
+                int pos = position.get();
+                if (pos == SEALED || pos + length > bytes.length) return -1;
+                if (position.compareAndSet(pos, pos + length)) return pos;
+            }
+        }
+
+        /**
+         * Stops further reservations, waits for the reserved bytes to be
+         * copied in, and writes them to the page.
+         */
+        private void seal() {
+            int end = position.getAndSet(SEALED);
+            // copies into reserved space are short and never block, but the
+            // writer may have been descheduled in between, so let it run
+            while (copied.get() != end) Thread.yield();
+            if (end == 0) return;
+            page.pin();
+            try {
+                page.getBuffer().put(bytes, 0, end);
+            } finally {
+                page.unpin();
+            }
+        }
+    }
 
-        this.logTail = bufferManager.fetchNewPage(new DummyLockContext("_dummyLogPageRecord"), LOG_PARTITION);
-        this.unflushedLogTail.add(this.logTail);
-        this.logTailBuffer = this.logTail.getBuffer();
-        this.logTail.unpin();
+    /**
+     * Sets what to run when an append finds every slot of the log in use. The
+     * handler should take a checkpoint, so that the log is truncated; it may
+     * append to the log itself. Without a handler, or if the log is still full
+     * after running it, appending throws IllegalStateException.
+     *
+     * @param handler log full handler, or null for none
+     */
+    public void setLogFullHandler(Runnable handler) {
+        this.logFullHandler = handler;
+    }
 
-        this.flushedLSN = maxLSN(this.logTail.getPageNum() - 1L);
+    /**
+     * @param undoable whether the new log tail is for an undoable record
+     * @return whether a new log tail can't be started by the current thread
+     */
+    private boolean logFull(boolean undoable) {
+        // one slot is left free to mark where the log ends, and with a handler
+        // a quarter of the slots are only used by the handler
+        long usable = numLogPages - 1;
+        if (logFullHandler != null && !inLogFullHandler.get()) {
+            usable -= (numLogPages - 1) / 4;
+        }
+        if (undoable) {
+            usable -= getReservedUndoPages();
+        }
+        return nextLogPage - firstLogPage >= usable;
+    }
+
+    /**
+     * @return number of log pages the CLRs reserved for fit on
+     */
+    private long getReservedUndoPages() {
+        long bytes = reservedUndoBytes.get();
+        if (bytes == 0L) return 0L;
+        // each page but the last is more than half full, since a record that
+        // doesn't fit on a page is no larger than a page; and the undoable
+        // records appended to the log tail since it was started, which are
+        // up to a page, were not reserved when it was
+        return 2L * bytes / DiskSpaceManager.PAGE_SIZE + 3L;
+    }
+
+    /**
+     * Updates the space reserved for rolling back the transaction of a record
+     * just appended.
+     */
+    private void reserveUndo(LogRecord record, int length) {
+        Optional<Long> transNum = record.getTransNum();
+        if (!transNum.isPresent()) return;
+        LogType type = record.getType();
+        if (record.isUndoable()) {
+            // the CLR undoing a record is no larger than the record, but for
+            // its undoNextLSN
+            long reserved = length + Long.BYTES;
+            undoReservations.merge(transNum.get(), reserved, Long::sum);
+            reservedUndoBytes.addAndGet(reserved);
+        } else if (type == LogType.COMMIT_TRANSACTION || type == LogType.END_TRANSACTION) {
+            Long reserved = undoReservations.remove(transNum.get());
+            if (reserved != null) {
+                reservedUndoBytes.addAndGet(-reserved);
+            }
+        }
+    }
+
+    /**
+     * Runs the log full handler so that appending can go on. Must be called
+     * without holding the monitor.
+     * @param undoable whether the log is full for an undoable record
+     */
+    private void handleLogFull(boolean undoable) {
+        long firstPage = firstLogPage;
+        Runnable handler = logFullHandler;
+        if (handler != null && !inLogFullHandler.get()) {
+            inLogFullHandler.set(true);
+            try {
+                handler.run();
+            } finally {
+                inLogFullHandler.set(false);
+            }
+        }
+        synchronized (this) {
+            // other appends may have used up the space freed in the meantime,
+            // but if none was freed, the log can't be truncated any further
+            if (firstLogPage == firstPage && logTail == null && logFull(undoable)) {
+                throw new IllegalStateException("log is full: no log page has been truncated since LSN "
+                                                + makeLSN(firstLogPage, 0));
+            }
+        }
+    }
+
+    /**
+     * Allocates a new log page and makes it the log tail. Must be called
+     * while holding the monitor, with no current log tail, and with the log
+     * not full.
+     */
+    private void startLogTail() {
+        long logPage = nextLogPage;
+        long pageNum = getLogPageNum(logPage);
+        // allocating may evict a dirty page, which flushes the log up to that
+        // page's LSN; that must not find a half initialized log tail
+        Page page = bufferManager.fetchNewPage(new DummyLockContext("_dummyLogPageRecord"), pageNum);
+        page.unpin();
+        LogTail tail = new LogTail(page, logPage);
+        unflushedLogTail.add(tail);
+        nextLogPage = logPage + 1L;
+        logTail = tail;
+    }
+
+    /**
+     * Seals the current log tail, if there is one, so that its records are
+     * on its page. Must be called while holding the monitor.
+     */
+    private void sealLogTail() {
+        LogTail tail = logTail;
+        if (tail == null) return;
+        tail.seal();
+        logTail = null;
+    }
+
+    /**
+     * Replaces the given log tail, which has no space left for a record, by a
+     * new one. Does nothing if another writer already did.
+     * @param undoable whether the new log tail is for an undoable record
+     * @return false if the log is full, so that no new log tail was started
+     */
+    private synchronized boolean advanceLogTail(LogTail full, boolean undoable) {
+        if (logTail == full) {
+            sealLogTail();
+        }
+        if (logTail == null) {
+            if (logFull(undoable)) {
+                return false;
+            }
+            startLogTail();
+        }
+        return true;
     }
 
     /**
@@ -61,7 +387,12 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
      * @param record log record to replace first record with
      */
     public synchronized void rewriteMasterRecord(MasterLogRecord record) {
-        Page firstPage = bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), LOG_PARTITION);
+        // the first page may still be the log tail, which would overwrite it when sealed
+        LogTail tail = logTail;
+        if (tail != null && tail.logPage == 0L) {
+            sealLogTail();
+        }
+        Page firstPage = bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), getLogPageNum(0L));
         try {
             firstPage.getBuffer().put(record.toBytes());
             firstPage.flush();
@@ -75,32 +406,27 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
      * @param record log record to append to the log
      * @return LSN of new log record
      */
-    public synchronized long appendToLog(LogRecord record) {
+    public long appendToLog(LogRecord record) {
         byte[] bytes = record.toBytes();
-        // loop in case accessing log tail requires flushing the log in order to evict dirty page to load log tail
-        do {
-            if (logTailBuffer == null || bytes.length > DiskSpaceManager.PAGE_SIZE - logTailBuffer.position()) {
-                logTailPinned = true;
-                logTail = bufferManager.fetchNewPage(new DummyLockContext("_dummyLogPageRecord"), LOG_PARTITION);
-                unflushedLogTail.add(logTail);
-                logTailBuffer = logTail.getBuffer();
-            } else {
-                logTailPinned = true;
-                logTail.pin();
-                if (logTailBuffer == null) {
-                    logTail.unpin();
+        if (bytes.length > DiskSpaceManager.PAGE_SIZE) {
+            throw new IllegalArgumentException("log record does not fit on a log page");
+        }
+        boolean undoable = record.isUndoable();
+        while (true) {
+            LogTail tail = logTail;
+            int pos = tail == null ? -1 : tail.reserve(bytes.length);
+            if (pos < 0) {
+                if (!advanceLogTail(tail, undoable)) {
+                    handleLogFull(undoable);
                 }
+                continue;
             }
-        } while (logTailBuffer == null);
-        try {
-            int pos = logTailBuffer.position();
-            logTailBuffer.put(bytes);
-            long LSN = makeLSN(unflushedLogTail.getLast().getPageNum(), pos);
+            System.arraycopy(bytes, 0, tail.bytes, pos, bytes.length);
+            tail.copied.addAndGet(bytes.length);
+            long LSN = tail.firstLSN + pos;
             record.LSN = LSN;
+            reserveUndo(record, bytes.length);
             return LSN;
-        } finally {
-            logTail.unpin();
-            logTailPinned = false;
         }
     }
 
@@ -110,16 +436,31 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
      * @return log record with the specified LSN
      */
     public LogRecord fetchLogRecord(long LSN) {
+        long logPage = getLSNPage(LSN);
+        if (logPage != 0L && (logPage < firstLogPage || logPage >= nextLogPage)) {
+            // truncated, or not written yet
+            return null;
+        }
+        LogTail tail = logTail;
+        if (tail != null && logPage == tail.logPage) {
+            // the record is on the page being appended to, and was copied in
+            // before its LSN was handed out
+            Buffer buf = ByteBuffer.wrap(tail.bytes);
+            buf.position(getLSNIndex(LSN));
+            Optional<LogRecord> record = LogRecord.fromBytes(buf);
+            record.ifPresent((LogRecord e) -> e.setLSN(LSN));
+            return record.orElse(null);
+        }
         try {
-            Page logPage = bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), getLSNPage(LSN));
+            Page page = bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), getLogPageNum(logPage));
             try {
-                Buffer buf = logPage.getBuffer();
+                Buffer buf = page.getBuffer();
                 buf.position(getLSNIndex(LSN));
                 Optional<LogRecord> record = LogRecord.fromBytes(buf);
                 record.ifPresent((LogRecord e) -> e.setLSN(LSN));
                 return record.orElse(null);
             } finally {
-                logPage.unpin();
+                page.unpin();
             }
         } catch (PageException e) {
             return null;
@@ -133,22 +474,142 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
      * @param LSN LSN up to which the log should be flushed
      */
     public synchronized void flushToLSN(long LSN) {
-        Iterator<Page> iter = unflushedLogTail.iterator();
         long pageNum = getLSNPage(LSN);
+        LogTail tail = logTail;
+        if (tail != null && tail.logPage <= pageNum) {
+            sealLogTail();
+        }
+        Iterator<LogTail> iter = unflushedLogTail.iterator();
         while (iter.hasNext()) {
-            Page page = iter.next();
-            if (page.getPageNum() > pageNum) {
+            LogTail unflushed = iter.next();
+            if (unflushed.logPage > pageNum) {
                 break;
             }
-            page.flush();
+            unflushed.page.flush();
             iter.remove();
         }
         flushedLSN = Math.max(flushedLSN, maxLSN(pageNum));
-        if (unflushedLogTail.size() == 0) {
-            if (!logTailPinned) {
-                logTail = null;
+    }
+
+    /**
+     * Flushes the log to at least the specified commit record. Without group
+     * commit, this is the same as flushToLSN. With group commit, the caller
+     * either waits for a flush in progress to finish or, if none is, flushes
+     * the log up to the highest LSN any committer is waiting on. Commits that
+     * arrive during a flush are made durable together by the next one.
+     *
+     * @param LSN LSN of the commit record
+     */
+    public void flushCommit(long LSN) {
+        if (!groupCommit) {
+            flushToLSN(LSN);
+            return;
+        }
+        groupCommitLock.lock();
+        ++numCommitWaiters;
+        try {
+            pendingCommitLSN = Math.max(pendingCommitLSN, LSN);
+            while (flushedLSN < LSN) {
+                if (groupFlushing) {
+                    groupFlushed.awaitUninterruptibly();
+                } else {
+                    flushGroup();
+                }
             }
-            logTailBuffer = null;
+        } finally {
+            --numCommitWaiters;
+            groupCommitLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the log up to the highest LSN a committer is waiting on, and
+     * wakes up all waiting committers. Must be called with groupCommitLock
+     * held, which is released during the flush.
+     */
+    private void flushGroup() {
+        groupFlushing = true;
+        try {
+            // Each flush moves the log tail to a new page, so flushing right
+            // away while others are about to commit would cost each of them
+            // a page. Give them a moment to append their commit records.
+            if (numCommitWaiters > 1 || lastGroupSize > 1) {
+                try {
+                    groupFlushed.awaitNanos(GROUP_COMMIT_DELAY_NANOS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            long target = pendingCommitLSN;
+            lastGroupSize = numCommitWaiters;
+            groupCommitLock.unlock();
+            try {
+                flushToLSN(target);
+            } finally {
+                groupCommitLock.lock();
+            }
+        } finally {
+            groupFlushing = false;
+            groupFlushed.signalAll();
+        }
+    }
+
+    /**
+     * Frees the log pages before the page with the given LSN. Records before
+     * that LSN must no longer be needed, either for restart or for rolling
+     * back transactions, and the master record must point at a checkpoint
+     * no older than it. The master page and the last log page are never
+     * freed, and neither are unflushed pages.
+     *
+     * @param LSN LSN of the oldest record that must be kept
+     */
+    public synchronized void truncate(long LSN) {
+        long endPage = Math.min(getLSNPage(LSN), nextLogPage - 1L);
+        LogTail oldestUnflushed = unflushedLogTail.peekFirst();
+        if (oldestUnflushed != null) {
+            endPage = Math.min(endPage, oldestUnflushed.logPage);
+        }
+        // oldest first, so that the pages left after a crash are still consecutive
+        while (firstLogPage < endPage) {
+            long logPage = firstLogPage;
+            firstLogPage = logPage + 1L;
+            bufferManager.freePage(getLogPageNum(logPage));
+        }
+    }
+
+    /**
+     * @return LSN of the oldest record that has not been truncated
+     */
+    public long getFirstLSN() {
+        return makeLSN(firstLogPage, 0);
+    }
+
+    /**
+     * @return an LSN no greater than the LSN of any record appended after this
+     * call returns
+     */
+    public long getTailLSN() {
+        // records are appended to the last log page started, or to a new one
+        return makeLSN(Math.max(nextLogPage - 1L, 0L), 0);
+    }
+
+    /**
+     * Enables or disables group commit.
+     * @param enabled whether committers should share log flushes
+     */
+    public void setGroupCommit(boolean enabled) {
+        this.groupCommit = enabled;
+    }
+
+    /**
+     * @return number of committers currently waiting in flushCommit
+     */
+    int getNumCommitWaiters() {
+        groupCommitLock.lock();
+        try {
+            return numCommitWaiters;
+        } finally {
+            groupCommitLock.unlock();
         }
     }
 
@@ -202,6 +663,10 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
      * @return iterator over log entries from LSN
      */
     public Iterator<LogRecord> scanFrom(long LSN) {
+        // scans read log pages through the buffer manager
+        synchronized (this) {
+            sealLogTail();
+        }
         return new ConcatBacktrackingIterator<>(new LogPagesIterator(LSN));
     }
 
@@ -217,17 +682,19 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
     @Override
     public synchronized void close() {
         if (!this.unflushedLogTail.isEmpty()) {
-            this.flushToLSN(maxLSN(unflushedLogTail.getLast().getPageNum()));
+            this.flushToLSN(maxLSN(unflushedLogTail.getLast().logPage));
         }
     }
 
     private class LogPageIterator extends IndexBacktrackingIterator<LogRecord> {
         private Page logPage;
+        private long logPageNum;
         private int startIndex;
 
-        private LogPageIterator(Page logPage, int startIndex) {
+        private LogPageIterator(Page logPage, long logPageNum, int startIndex) {
             super(DiskSpaceManager.PAGE_SIZE);
             this.logPage = logPage;
+            this.logPageNum = logPageNum;
             this.startIndex = startIndex;
             this.logPage.unpin();
         }
@@ -263,7 +730,7 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
                 Buffer buf = logPage.getBuffer();
                 buf.position(index);
                 LogRecord record = LogRecord.fromBytes(buf).orElseThrow(NoSuchElementException::new);
-                record.setLSN(makeLSN(logPage.getPageNum(), index));
+                record.setLSN(makeLSN(logPageNum, index));
                 return record;
             } finally {
                 logPage.unpin();
@@ -277,11 +744,20 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
 
         private LogPagesIterator(long startLSN) {
             nextIndex = getLSNPage(startLSN);
-            try {
-                Page page = bufferManager.fetchPage(new DummyLockContext(), nextIndex);
-                nextIter = new LogPageIterator(page, getLSNIndex(startLSN));
-            } catch (PageException e) {
-                nextIter = null;
+            int startIndex = getLSNIndex(startLSN);
+            if (nextIndex != 0L && nextIndex < firstLogPage) {
+                // the log was truncated past startLSN
+                nextIndex = firstLogPage;
+                startIndex = 0;
+            }
+            nextIter = null;
+            if (nextIndex < nextLogPage) {
+                try {
+                    Page page = bufferManager.fetchPage(new DummyLockContext(), getLogPageNum(nextIndex));
+                    nextIter = new LogPageIterator(page, nextIndex, startIndex);
+                } catch (PageException e) {
+                    nextIter = null;
+                }
             }
         }
 
@@ -313,11 +789,22 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
 
                 nextIter = null;
                 do {
-                    ++nextIndex;
+                    // skips from the master page to the oldest log page, and past
+                    // pages truncated during the scan
+                    nextIndex = Math.max(nextIndex + 1L, firstLogPage);
+                    long endIndex = nextLogPage;
+                    if (nextIndex >= endIndex) {
+                        nextIter = null;
+                        break;
+                    }
+                    for (int i = 1; i <= bufferManager.getReadAhead() && nextIndex + i < endIndex; ++i) {
+                        bufferManager.prefetch(getLogPageNum(nextIndex + i));
+                    }
                     try {
-                        Page page = bufferManager.fetchPage(new DummyLockContext(), nextIndex);
-                        nextIter = new LogPageIterator(page, 0);
+                        Page page = bufferManager.fetchPage(new DummyLockContext(), getLogPageNum(nextIndex));
+                        nextIter = new LogPageIterator(page, nextIndex, 0);
                     } catch (PageException e) {
+                        nextIter = null;
                         break;
                     }
                 } while (!nextIter.hasNext());
@@ -217,6 +217,10 @@ public abstract class LogRecord {
             return UndoAllocPartLogRecord.fromBytes(buf);
         case UNDO_FREE_PART:
             return UndoFreePartLogRecord.fromBytes(buf);
+        case UPDATE_PAGE_RANGES:
+            return UpdatePageRangesLogRecord.fromBytes(buf);
+        case UNDO_UPDATE_PAGE_RANGES:
+            return UndoUpdatePageRangesLogRecord.fromBytes(buf);
         default:
             throw new UnsupportedOperationException("bad log type");
         }
@@ -33,7 +33,11 @@ public enum LogType {
     // compensation log record for undoing a partition alloc
     UNDO_ALLOC_PART,
     // compensation log record for undoing a partition free
-    UNDO_FREE_PART;
+    UNDO_FREE_PART,
+    // log record for updating several ranges of a page, compactly encoded
+    UPDATE_PAGE_RANGES,
+    // compensation log record for undoing an update of several ranges of a page
+    UNDO_UPDATE_PAGE_RANGES;
 
     private static LogType[] values = LogType.values();
 
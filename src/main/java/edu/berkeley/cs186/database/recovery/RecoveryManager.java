@@ -81,6 +81,23 @@ public interface RecoveryManager extends AutoCloseable {
     long logPageWrite(long transNum, long pageNum, short pageOffset, byte[] before,
                       byte[] after);
 
+    /**
+     * Called when a write to a page changes several ranges of the page.
+     *
+     * This method is never called on a log page. Each range's before and after
+     * arguments must be the same length, and ranges must be in increasing order
+     * of offset.
+     *
+     * @param transNum transaction performing the write
+     * @param pageNum page number of page being written
+     * @param pageOffsets offset into page where each range begins
+     * @param befores bytes of each range before the write
+     * @param afters bytes of each range after the write
+     * @return LSN of last record written to log
+     */
+    long logPageWrites(long transNum, long pageNum, short[] pageOffsets, byte[][] befores,
+                       byte[][] afters);
+
     /**
      * Called when a new partition is allocated. A log flush is necessary,
      * since changes are visible on disk immediately after this returns.
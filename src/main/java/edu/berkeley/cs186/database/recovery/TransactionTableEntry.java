@@ -12,6 +12,9 @@ class TransactionTableEntry {
     Transaction transaction;
     // lastLSN of transaction, or 0 if no log entries for the transaction exist.
     long lastLSN = 0;
+    // LSN no greater than that of any log entry of the transaction, or 0 if
+    // unknown (e.g. for transactions found during restart analysis).
+    long firstLSN = 0;
     // map of transaction's savepoints
     private Map<String, Long> savepoints = new HashMap<>();
 
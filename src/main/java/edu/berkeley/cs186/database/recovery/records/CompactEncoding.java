@@ -0,0 +1,167 @@
+package edu.berkeley.cs186.database.recovery.records;
+
+import edu.berkeley.cs186.database.common.Buffer;
+
+/**
+ * Helpers for the compact encoding of page update records.
+ *
+ * Numbers are written as variable-length integers: zigzag encoded (so that
+ * small negative numbers stay small), 7 bits per byte, with the high bit set
+ * on every byte but the last.
+ *
+ * Byte images are written as a sequence of runs, each starting with a control
+ * byte holding the kind of run in its top 2 bits and its length minus one in
+ * the bottom 6 bits:
+ * - LITERAL: the next length bytes are the bytes of the image
+ * - ZEROS: length zero bytes
+ * - SAME: length bytes equal to the bytes at the same position of a base image
+ *   (e.g. the before image of an update can be encoded against its after image)
+ */
+final class CompactEncoding {
+    private static final int LITERAL = 0;
+    private static final int ZEROS = 1;
+    private static final int SAME = 2;
+
+    // Maximum length of a run
+    private static final int MAX_RUN = 64;
+
+    private CompactEncoding() {}
+
+    /**
+     * @return number of bytes putVarLong writes for value
+     */
+    static int varLongSize(long value) {
+        long v = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    static void putVarLong(Buffer buf, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    static long getVarLong(Buffer buf) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * @return number of bytes putImage writes for image
+     */
+    static int imageSize(byte[] image, byte[] base) {
+        int size = 0;
+        int i = 0;
+        while (i < image.length) {
+            int run = nextRun(image, base, i);
+            int length = run & 0xFF;
+            size += (run >>> 8) == LITERAL ? 1 + length : 1;
+            i += length;
+        }
+        return size;
+    }
+
+    /**
+     * Writes image as a sequence of runs.
+     * @param base image that SAME runs refer to, or null for none
+     */
+    static void putImage(Buffer buf, byte[] image, byte[] base) {
+        int i = 0;
+        while (i < image.length) {
+            int run = nextRun(image, base, i);
+            int kind = run >>> 8;
+            int length = run & 0xFF;
+            buf.put((byte) ((kind << 6) | (length - 1)));
+            // Buffer.put(byte[], int, int) takes an offset into the buffer on
+            // some buffers, so literals are copied byte by byte
+            for (int j = 0; kind == LITERAL && j < length; ++j) {
+                buf.put(image[i + j]);
+            }
+            i += length;
+        }
+    }
+
+    /**
+     * Reads an image of the given length written by putImage.
+     * @param base image that SAME runs refer to, or null for none
+     */
+    static byte[] getImage(Buffer buf, int length, byte[] base) {
+        byte[] image = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int control = buf.get() & 0xFF;
+            int run = (control & (MAX_RUN - 1)) + 1;
+            switch (control >>> 6) {
+            case LITERAL:
+                for (int j = 0; j < run; ++j) {
+                    image[i + j] = buf.get();
+                }
+                break;
+            case ZEROS:
+                break;
+            case SAME:
+                System.arraycopy(base, i, image, i, run);
+                break;
+            default:
+                throw new IllegalStateException("bad image run: " + control);
+            }
+            i += run;
+        }
+        return image;
+    }
+
+    /**
+     * Finds the run starting at position start of image. Runs of zeros and of
+     * bytes equal to base are used when at least 2 bytes long (zeros winning
+     * ties), and literal runs extend up to the start of such a run.
+     *
+     * @return kind of the run in the second byte, length in the first byte
+     */
+    private static int nextRun(byte[] image, byte[] base, int start) {
+        int end = Math.min(image.length, start + MAX_RUN);
+        int zeros = 0;
+        while (start + zeros < end && image[start + zeros] == 0) {
+            ++zeros;
+        }
+        int same = 0;
+        while (base != null && start + same < end && image[start + same] == base[start + same]) {
+            ++same;
+        }
+        if (zeros >= 2 && zeros >= same) {
+            return (ZEROS << 8) | zeros;
+        }
+        if (same >= 2) {
+            return (SAME << 8) | same;
+        }
+        int i = start + 1;
+        while (i < end && !startsRun(image, base, i)) {
+            ++i;
+        }
+        return (LITERAL << 8) | (i - start);
+    }
+
+    private static boolean startsRun(byte[] image, byte[] base, int i) {
+        if (i + 1 >= image.length) {
+            return false;
+        }
+        if (image[i] == 0 && image[i + 1] == 0) {
+            return true;
+        }
+        return base != null && image[i] == base[i] && image[i + 1] == base[i + 1];
+    }
+}
@@ -0,0 +1,159 @@
+package edu.berkeley.cs186.database.recovery.records;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.Page;
+import edu.berkeley.cs186.database.recovery.LogRecord;
+import edu.berkeley.cs186.database.recovery.LogType;
+import edu.berkeley.cs186.database.recovery.RecoveryManager;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+
+public class UndoUpdatePageRangesLogRecord extends LogRecord {
+    private long transNum;
+    private long pageNum;
+    private long prevLSN;
+    private long undoNextLSN;
+    public short[] offsets;
+    public byte[][] after;
+
+    public UndoUpdatePageRangesLogRecord(long transNum, long pageNum, long prevLSN, long undoNextLSN,
+                                         short[] offsets, byte[][] after) {
+        super(LogType.UNDO_UPDATE_PAGE_RANGES);
+        this.transNum = transNum;
+        this.pageNum = pageNum;
+        this.prevLSN = prevLSN;
+        this.undoNextLSN = undoNextLSN;
+        this.offsets = offsets;
+        this.after = after;
+    }
+
+    @Override
+    public Optional<Long> getTransNum() {
+        return Optional.of(transNum);
+    }
+
+    @Override
+    public Optional<Long> getPrevLSN() {
+        return Optional.of(prevLSN);
+    }
+
+    @Override
+    public Optional<Long> getPageNum() {
+        return Optional.of(pageNum);
+    }
+
+    @Override
+    public Optional<Long> getUndoNextLSN() {
+        return Optional.of(undoNextLSN);
+    }
+
+    @Override
+    public boolean isRedoable() {
+        return true;
+    }
+
+    @Override
+    public void redo(RecoveryManager rm, DiskSpaceManager dsm, BufferManager bm) {
+        super.redo(rm, dsm, bm);
+
+        Page page = bm.fetchPage(new DummyLockContext("_dummyUndoUpdatePageRangesRecord"), pageNum);
+        try {
+            Buffer buf = page.getBuffer();
+            for (int i = 0; i < offsets.length; ++i) {
+                buf.position(offsets[i]).put(after[i]);
+            }
+            page.setPageLSN(getLSN());
+        } finally {
+            page.unpin();
+        }
+        rm.dirtyPage(pageNum, getLSN());
+    }
+
+    @Override
+    public byte[] toBytes() {
+        int size = 1 + CompactEncoding.varLongSize(transNum) + CompactEncoding.varLongSize(pageNum)
+                   + CompactEncoding.varLongSize(prevLSN) + CompactEncoding.varLongSize(undoNextLSN)
+                   + CompactEncoding.varLongSize(offsets.length);
+        int end = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            size += CompactEncoding.varLongSize(offsets[i] - end) + CompactEncoding.varLongSize(after[i].length)
+                    + CompactEncoding.imageSize(after[i], null);
+            end = offsets[i] + after[i].length;
+        }
+        byte[] b = new byte[size];
+        Buffer buf = ByteBuffer.wrap(b).put((byte) getType().getValue());
+        CompactEncoding.putVarLong(buf, transNum);
+        CompactEncoding.putVarLong(buf, pageNum);
+        CompactEncoding.putVarLong(buf, prevLSN);
+        CompactEncoding.putVarLong(buf, undoNextLSN);
+        CompactEncoding.putVarLong(buf, offsets.length);
+        end = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            CompactEncoding.putVarLong(buf, offsets[i] - end);
+            CompactEncoding.putVarLong(buf, after[i].length);
+            CompactEncoding.putImage(buf, after[i], null);
+            end = offsets[i] + after[i].length;
+        }
+        return b;
+    }
+
+    public static Optional<LogRecord> fromBytes(Buffer buf) {
+        long transNum = CompactEncoding.getVarLong(buf);
+        long pageNum = CompactEncoding.getVarLong(buf);
+        long prevLSN = CompactEncoding.getVarLong(buf);
+        long undoNextLSN = CompactEncoding.getVarLong(buf);
+        int numRanges = (int) CompactEncoding.getVarLong(buf);
+        short[] offsets = new short[numRanges];
+        byte[][] after = new byte[numRanges][];
+        int end = 0;
+        for (int i = 0; i < numRanges; ++i) {
+            offsets[i] = (short) (end + CompactEncoding.getVarLong(buf));
+            int length = (int) CompactEncoding.getVarLong(buf);
+            after[i] = CompactEncoding.getImage(buf, length, null);
+            end = offsets[i] + length;
+        }
+        return Optional.of(new UndoUpdatePageRangesLogRecord(transNum, pageNum, prevLSN, undoNextLSN,
+                           offsets, after));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) { return true; }
+        if (o == null || getClass() != o.getClass()) { return false; }
+        if (!super.equals(o)) { return false; }
+        UndoUpdatePageRangesLogRecord that = (UndoUpdatePageRangesLogRecord) o;
+        return transNum == that.transNum &&
+               pageNum == that.pageNum &&
+               prevLSN == that.prevLSN &&
+               undoNextLSN == that.undoNextLSN &&
+               Arrays.equals(offsets, that.offsets) &&
+               Arrays.deepEquals(after, that.after);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(super.hashCode(), transNum, pageNum, prevLSN, undoNextLSN);
+        result = 31 * result + Arrays.hashCode(offsets);
+        result = 31 * result + Arrays.deepHashCode(after);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "UndoUpdatePageRangesLogRecord{" +
+               "transNum=" + transNum +
+               ", pageNum=" + pageNum +
+               ", prevLSN=" + prevLSN +
+               ", undoNextLSN=" + undoNextLSN +
+               ", offsets=" + Arrays.toString(offsets) +
+               ", after=" + Arrays.deepToString(after) +
+               ", LSN=" + LSN +
+               '}';
+    }
+}
@@ -0,0 +1,194 @@
+package edu.berkeley.cs186.database.recovery.records;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.Page;
+import edu.berkeley.cs186.database.recovery.LogRecord;
+import edu.berkeley.cs186.database.recovery.LogType;
+import edu.berkeley.cs186.database.recovery.RecoveryManager;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Log record for updating several ranges of a page at once, e.g. all the
+ * ranges changed by a single write to a page. Serves the same purpose as
+ * a sequence of UpdatePageLogRecords, but is encoded compactly: numbers are
+ * written as variable-length integers, offsets relative to the end of the
+ * previous range, and before images relative to after images (see
+ * CompactEncoding).
+ */
+public class UpdatePageRangesLogRecord extends LogRecord {
+    // Upper bound on the bytes taken by the type, transNum, pageNum, prevLSN
+    // and number of ranges
+    public static final int MAX_HEADER_SIZE = 36;
+
+    private long transNum; // transaction that updated the page
+    private long pageNum; // page that was updated
+    private long prevLSN; // previous log's LSN
+    public short[] offsets; // position of first changed byte of each range
+    public byte[][] before; // old bytes of each range (before update)
+    public byte[][] after; // new bytes of each range (after update)
+
+    /**
+     * @param transNum transaction number of transaction that updated the page
+     * @param pageNum the page that was updated
+     * @param prevLSN previous log's LSN
+     * @param offsets position of first changed byte of each range, in increasing order
+     * @param before old bytes of each range (before update)
+     * @param after new bytes of each range (after update)
+     */
+    public UpdatePageRangesLogRecord(long transNum, long pageNum, long prevLSN, short[] offsets,
+                                     byte[][] before, byte[][] after) {
+        super(LogType.UPDATE_PAGE_RANGES);
+        this.transNum = transNum;
+        this.pageNum = pageNum;
+        this.prevLSN = prevLSN;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @param length number of bytes changed in a range
+     * @return upper bound on the bytes a range of the given length takes in
+     * this record
+     */
+    public static int maxRangeSize(int length) {
+        // offset and length take at most 3 bytes each; each image takes at
+        // most one control byte per 64 bytes plus one more for a short literal
+        // run before the end of the image
+        return 6 + 2 * (length + length / 64 + 2);
+    }
+
+    @Override
+    public Optional<Long> getTransNum() {
+        return Optional.of(transNum);
+    }
+
+    @Override
+    public Optional<Long> getPrevLSN() {
+        return Optional.of(prevLSN);
+    }
+
+    @Override
+    public Optional<Long> getPageNum() {
+        return Optional.of(pageNum);
+    }
+
+    @Override
+    public boolean isUndoable() { return true; }
+
+    @Override
+    public boolean isRedoable() { return true; }
+
+    @Override
+    public LogRecord undo(long lastLSN) {
+        if (!isUndoable()) {
+            throw new UnsupportedOperationException("cannot undo this record: " + this);
+        }
+        return new UndoUpdatePageRangesLogRecord(transNum, pageNum, lastLSN, prevLSN, offsets, before);
+    }
+
+    @Override
+    public void redo(RecoveryManager rm, DiskSpaceManager dsm, BufferManager bm) {
+        super.redo(rm, dsm, bm);
+
+        Page page = bm.fetchPage(new DummyLockContext("_dummyUpdatePageRangesRecord"), pageNum);
+        try {
+            Buffer buf = page.getBuffer();
+            for (int i = 0; i < offsets.length; ++i) {
+                buf.position(offsets[i]).put(after[i]);
+            }
+            page.setPageLSN(getLSN());
+        } finally {
+            page.unpin();
+        }
+    }
+
+    @Override
+    public byte[] toBytes() {
+        int size = 1 + CompactEncoding.varLongSize(transNum) + CompactEncoding.varLongSize(pageNum)
+                   + CompactEncoding.varLongSize(prevLSN) + CompactEncoding.varLongSize(offsets.length);
+        int end = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            size += CompactEncoding.varLongSize(offsets[i] - end) + CompactEncoding.varLongSize(after[i].length)
+                    + CompactEncoding.imageSize(after[i], null) + CompactEncoding.imageSize(before[i], after[i]);
+            end = offsets[i] + after[i].length;
+        }
+        byte[] b = new byte[size];
+        Buffer buf = ByteBuffer.wrap(b).put((byte) getType().getValue());
+        CompactEncoding.putVarLong(buf, transNum);
+        CompactEncoding.putVarLong(buf, pageNum);
+        CompactEncoding.putVarLong(buf, prevLSN);
+        CompactEncoding.putVarLong(buf, offsets.length);
+        end = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            CompactEncoding.putVarLong(buf, offsets[i] - end);
+            CompactEncoding.putVarLong(buf, after[i].length);
+            CompactEncoding.putImage(buf, after[i], null);
+            CompactEncoding.putImage(buf, before[i], after[i]);
+            end = offsets[i] + after[i].length;
+        }
+        return b;
+    }
+
+    public static Optional<LogRecord> fromBytes(Buffer buf) {
+        long transNum = CompactEncoding.getVarLong(buf);
+        long pageNum = CompactEncoding.getVarLong(buf);
+        long prevLSN = CompactEncoding.getVarLong(buf);
+        int numRanges = (int) CompactEncoding.getVarLong(buf);
+        short[] offsets = new short[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        int end = 0;
+        for (int i = 0; i < numRanges; ++i) {
+            offsets[i] = (short) (end + CompactEncoding.getVarLong(buf));
+            int length = (int) CompactEncoding.getVarLong(buf);
+            after[i] = CompactEncoding.getImage(buf, length, null);
+            before[i] = CompactEncoding.getImage(buf, length, after[i]);
+            end = offsets[i] + length;
+        }
+        return Optional.of(new UpdatePageRangesLogRecord(transNum, pageNum, prevLSN, offsets, before, after));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) { return true; }
+        if (o == null || getClass() != o.getClass()) { return false; }
+        if (!super.equals(o)) { return false; }
+        UpdatePageRangesLogRecord that = (UpdatePageRangesLogRecord) o;
+        return transNum == that.transNum &&
+               pageNum == that.pageNum &&
+               prevLSN == that.prevLSN &&
+               Arrays.equals(offsets, that.offsets) &&
+               Arrays.deepEquals(before, that.before) &&
+               Arrays.deepEquals(after, that.after);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(super.hashCode(), transNum, pageNum, prevLSN);
+        result = 31 * result + Arrays.hashCode(offsets);
+        result = 31 * result + Arrays.deepHashCode(before);
+        result = 31 * result + Arrays.deepHashCode(after);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "UpdatePageRangesLogRecord{" +
+               "transNum=" + transNum +
+               ", pageNum=" + pageNum +
+               ", offsets=" + Arrays.toString(offsets) +
+               ", before=" + Arrays.deepToString(before) +
+               ", after=" + Arrays.deepToString(after) +
+               ", prevLSN=" + prevLSN +
+               ", LSN=" + LSN +
+               '}';
+    }
+}
@@ -0,0 +1,123 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.databox.*;
+
+/**
+ * A ColumnVector holds the values of a single column for a batch of records
+ * (see RecordBatch). Values of INT, LONG, FLOAT and BOOL columns are stored
+ * unboxed in an array of the corresponding primitive type, so that operators
+ * working on a whole batch at a time can read them without allocating a
+ * DataBox per value. Values of other types are stored as DataBoxes.
+ */
+public class ColumnVector {
+    private Type type;
+    private int size;
+
+    // Exactly one of these is non-null, depending on the type of the column.
+    private int[] ints;
+    private long[] longs;
+    private float[] floats;
+    private boolean[] bools;
+    private DataBox[] values;
+
+    public ColumnVector(Type type, int capacity) {
+        this.type = type;
+        this.size = 0;
+        switch (type.getTypeId()) {
+            case INT: this.ints = new int[capacity]; break;
+            case LONG: this.longs = new long[capacity]; break;
+            case FLOAT: this.floats = new float[capacity]; break;
+            case BOOL: this.bools = new boolean[capacity]; break;
+            default: this.values = new DataBox[capacity]; break;
+        }
+    }
+
+    /**
+     * @return the type of the values in this vector
+     */
+    public Type getType() {
+        return this.type;
+    }
+
+    /**
+     * @return the number of values in this vector
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public int getInt(int i) {
+        return this.ints[i];
+    }
+
+    public long getLong(int i) {
+        return this.longs[i];
+    }
+
+    public float getFloat(int i) {
+        return this.floats[i];
+    }
+
+    public boolean getBool(int i) {
+        return this.bools[i];
+    }
+
+    /**
+     * @return the i-th value of this vector, boxed in a new DataBox if the
+     * vector stores primitive values
+     */
+    public DataBox get(int i) {
+        switch (this.type.getTypeId()) {
+            case INT: return new IntDataBox(this.ints[i]);
+            case LONG: return new LongDataBox(this.longs[i]);
+            case FLOAT: return new FloatDataBox(this.floats[i]);
+            case BOOL: return new BoolDataBox(this.bools[i]);
+            default: return this.values[i];
+        }
+    }
+
+    /**
+     * Appends a value to the end of this vector.
+     */
+    public void append(DataBox d) {
+        switch (this.type.getTypeId()) {
+            case INT: this.ints[this.size] = d.getInt(); break;
+            case LONG: this.longs[this.size] = d.getLong(); break;
+            case FLOAT: this.floats[this.size] = d.getFloat(); break;
+            case BOOL: this.bools[this.size] = d.getBool(); break;
+            default: this.values[this.size] = d; break;
+        }
+        ++this.size;
+    }
+
+    /**
+     * Appends the i-th value of another vector of the same type to the end of
+     * this vector, without boxing it.
+     */
+    public void append(ColumnVector other, int i) {
+        switch (this.type.getTypeId()) {
+            case INT: this.ints[this.size] = other.ints[i]; break;
+            case LONG: this.longs[this.size] = other.longs[i]; break;
+            case FLOAT: this.floats[this.size] = other.floats[i]; break;
+            case BOOL: this.bools[this.size] = other.bools[i]; break;
+            default: this.values[this.size] = other.values[i]; break;
+        }
+        ++this.size;
+    }
+
+    /**
+     * Decodes a serialized value (in the format of DataBox.toBytes) from buf,
+     * and appends it to the end of this vector.
+     */
+    void append(Buffer buf) {
+        switch (this.type.getTypeId()) {
+            case INT: this.ints[this.size] = buf.getInt(); break;
+            case LONG: this.longs[this.size] = buf.getLong(); break;
+            case FLOAT: this.floats[this.size] = buf.getFloat(); break;
+            case BOOL: this.bools[this.size] = buf.get() == 1; break;
+            default: this.values[this.size] = DataBox.fromBytes(buf, this.type); break;
+        }
+        ++this.size;
+    }
+}
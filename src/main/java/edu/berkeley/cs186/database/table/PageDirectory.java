@@ -247,6 +247,11 @@ public class PageDirectory implements BacktrackingIterable<Page> {
             // really matter, as the only observable effect is that a transaction may be told to use a different
             // data page, which is perfectly fine.
             this.page.disableLocking();
+            // For the same reason, header pages have no consistent old versions, so snapshot transactions
+            // read their latest contents, and skip the data pages that did not exist in their snapshot.
+            // Data pages are not freed while page versions are enabled, so that the data pages of a
+            // snapshot are always still listed.
+            this.page.disableSnapshotReads();
             this.numDataPages = 0;
             long nextPageNum;
             try {
@@ -302,7 +307,8 @@ public class PageDirectory implements BacktrackingIterable<Page> {
             this.page.pin();
             try {
                 this.nextPage = new HeaderPage(page.getPageNum(), headerOffset + 1, false);
-                this.page.getBuffer().position(1).putLong(page.getPageNum());
+                // the next header page pointer follows the valid byte and page directory id
+                this.page.getBuffer().position(5).putLong(page.getPageNum());
             } finally {
                 this.page.unpin();
                 page.unpin();
@@ -366,7 +372,8 @@ public class PageDirectory implements BacktrackingIterable<Page> {
         private void updateSpace(Page dataPage, short index, short newFreeSpace) {
             this.page.pin();
             try {
-                if (newFreeSpace < EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize) {
+                if (newFreeSpace < EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize
+                        || bufferManager.getVersionStore() != null) {
                     // write new free space to disk
                     Buffer b = this.page.getBuffer();
                     b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * index);
@@ -393,6 +400,9 @@ public class PageDirectory implements BacktrackingIterable<Page> {
 
         // iterator over the data pages managed by this header page
         private class HeaderPageIterator extends IndexBacktrackingIterator<Page> {
+            // index of the last data page entry that was read ahead
+            private int readAheadIndex = -1;
+
             private HeaderPageIterator() {
                 super(HEADER_ENTRY_COUNT);
             }
@@ -405,7 +415,7 @@ public class PageDirectory implements BacktrackingIterable<Page> {
                     b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * ++currentIndex);
                     for (int i = currentIndex; i < HEADER_ENTRY_COUNT; ++i) {
                         DataPageEntry dpe = DataPageEntry.fromBytes(b);
-                        if (dpe.isValid()) {
+                        if (dpe.isValid() && bufferManager.inSnapshot(dpe.pageNum)) {
                             return i;
                         }
                     }
@@ -422,11 +432,35 @@ public class PageDirectory implements BacktrackingIterable<Page> {
                     Buffer b = HeaderPage.this.page.getBuffer();
                     b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * index);
                     DataPageEntry dpe = DataPageEntry.fromBytes(b);
-                    return new DataPage(pageDirectoryId, bufferManager.fetchPage(lockContext, dpe.pageNum));
+                    readAhead(b, index);
+                    // pages read by a scan are hinted as use-once, so that scans don't
+                    // flush frequently used pages out of the buffer
+                    return new DataPage(pageDirectoryId, bufferManager.fetchPage(lockContext, dpe.pageNum, true));
                 } finally {
                     HeaderPage.this.page.unpin();
                 }
             }
+
+            // asks the buffer manager to prefetch the next few data pages after the one at index,
+            // skipping any that were already requested; b must be positioned after entry index
+            private void readAhead(Buffer b, int index) {
+                int readAheadPages = bufferManager.getReadAhead();
+                if (readAheadPages == 0) {
+                    return;
+                }
+                int found = 0;
+                for (int i = index + 1; i < HEADER_ENTRY_COUNT && found < readAheadPages; ++i) {
+                    DataPageEntry dpe = DataPageEntry.fromBytes(b);
+                    if (!dpe.isValid()) {
+                        continue;
+                    }
+                    ++found;
+                    if (i > readAheadIndex) {
+                        bufferManager.prefetch(dpe.pageNum);
+                        readAheadIndex = i;
+                    }
+                }
+            }
         }
     }
 
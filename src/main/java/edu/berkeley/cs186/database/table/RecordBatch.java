@@ -0,0 +1,257 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.databox.DataBox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A RecordBatch is a batch of records stored column by column, with one
+ * ColumnVector per field of the batch's schema. Query operators that support
+ * batch-at-a-time execution (see QueryOperator#batchIterator) pass these
+ * between each other instead of individual Records.
+ *
+ * A batch may carry a selection vector: an array of the indices of the rows
+ * of its column vectors that are actually part of the batch. Filtering a batch
+ * only creates a new selection vector, and projecting a batch only picks out
+ * some of its column vectors, so neither copies any values. The i-th record
+ * of a batch is the row at index getRowIndex(i) of its column vectors.
+ */
+public class RecordBatch implements Iterable<Record> {
+    // Default number of records in a batch.
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private Schema schema;
+    private ColumnVector[] columns;
+    private int capacity;
+
+    // Indices of the rows in this batch, or null if every row is in this batch.
+    private int[] selection;
+    private int size;
+
+    /**
+     * Creates an empty batch with room for capacity records of the given schema.
+     */
+    public RecordBatch(Schema schema, int capacity) {
+        this.schema = schema;
+        this.capacity = capacity;
+        this.columns = new ColumnVector[schema.size()];
+        for (int i = 0; i < this.columns.length; ++i) {
+            this.columns[i] = new ColumnVector(schema.getFieldType(i), capacity);
+        }
+        this.selection = null;
+        this.size = 0;
+    }
+
+    private RecordBatch(Schema schema, ColumnVector[] columns, int capacity, int[] selection, int size) {
+        this.schema = schema;
+        this.columns = columns;
+        this.capacity = capacity;
+        this.selection = selection;
+        this.size = size;
+    }
+
+    public Schema getSchema() {
+        return this.schema;
+    }
+
+    /**
+     * @return the number of records in this batch
+     */
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return true if no more records can be appended to this batch
+     */
+    public boolean isFull() {
+        return this.selection != null || this.size == this.capacity;
+    }
+
+    /**
+     * @return the number of records that can still be appended to this batch
+     */
+    public int remainingCapacity() {
+        return this.isFull() ? 0 : this.capacity - this.size;
+    }
+
+    /**
+     * @return the vector holding the values of the i-th field of this batch's
+     * records. Index it with getRowIndex, not with the index of a record.
+     */
+    public ColumnVector getColumn(int i) {
+        return this.columns[i];
+    }
+
+    /**
+     * @return the index in the column vectors of the i-th record of this batch
+     */
+    public int getRowIndex(int i) {
+        return this.selection == null ? i : this.selection[i];
+    }
+
+    /**
+     * @return the i-th record of this batch
+     */
+    public Record getRecord(int i) {
+        int row = this.getRowIndex(i);
+        List<DataBox> values = new ArrayList<>(this.columns.length);
+        for (ColumnVector column : this.columns) {
+            values.add(column.get(row));
+        }
+        return new Record(values);
+    }
+
+    /**
+     * Appends a record to the end of this batch.
+     */
+    public void append(Record record) {
+        this.checkCanAppend();
+        for (int i = 0; i < this.columns.length; ++i) {
+            this.columns[i].append(record.getValue(i));
+        }
+        ++this.size;
+    }
+
+    /**
+     * Appends the concatenation of a record and the i-th record of another
+     * batch to the end of this batch. The values from the other batch are
+     * copied without being boxed.
+     */
+    public void appendConcat(Record left, RecordBatch right, int i) {
+        this.checkCanAppend();
+        int numLeft = left.size();
+        for (int j = 0; j < numLeft; ++j) {
+            this.columns[j].append(left.getValue(j));
+        }
+        int row = right.getRowIndex(i);
+        for (int j = 0; j < right.columns.length; ++j) {
+            this.columns[numLeft + j].append(right.columns[j], row);
+        }
+        ++this.size;
+    }
+
+    /**
+     * Decodes a serialized record (in the format of Record.toBytes) from buf,
+     * and appends it to the end of this batch.
+     */
+    void append(Buffer buf) {
+        this.checkCanAppend();
+        for (ColumnVector column : this.columns) {
+            column.append(buf);
+        }
+        ++this.size;
+    }
+
+    private void checkCanAppend() {
+        if (this.isFull()) {
+            throw new IllegalStateException("cannot append to a full or filtered batch");
+        }
+    }
+
+    /**
+     * @param selection indices (into the column vectors) of the rows to keep,
+     *                  in increasing order
+     * @param size number of entries of selection to use
+     * @return a batch sharing this batch's column vectors, which only contains
+     * the given rows
+     */
+    public RecordBatch select(int[] selection, int size) {
+        return new RecordBatch(this.schema, this.columns, this.capacity, selection, size);
+    }
+
+    /**
+     * @param columnIndices indices of the fields to keep, in their new order
+     * @param schema schema of the projected records
+     * @return a batch with the same records as this batch, sharing this
+     * batch's column vectors, but only containing the given fields
+     */
+    public RecordBatch project(int[] columnIndices, Schema schema) {
+        ColumnVector[] columns = new ColumnVector[columnIndices.length];
+        for (int i = 0; i < columnIndices.length; ++i) {
+            columns[i] = this.columns[columnIndices[i]];
+        }
+        return new RecordBatch(schema, columns, this.capacity, this.selection, this.size);
+    }
+
+    /**
+     * @return an iterator over the records of this batch
+     */
+    @Override
+    public Iterator<Record> iterator() {
+        return new Iterator<Record>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < RecordBatch.this.size;
+            }
+
+            @Override
+            public Record next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                return RecordBatch.this.getRecord(this.index++);
+            }
+        };
+    }
+
+    /**
+     * @param records an iterator of records
+     * @param schema the schema of the records yielded from `records`
+     * @return an iterator over batches of the records of `records`, each with
+     * up to DEFAULT_CAPACITY records
+     */
+    public static Iterator<RecordBatch> toBatches(Iterator<Record> records, Schema schema) {
+        return new Iterator<RecordBatch>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public RecordBatch next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                RecordBatch batch = new RecordBatch(schema, DEFAULT_CAPACITY);
+                while (!batch.isFull() && records.hasNext()) {
+                    batch.append(records.next());
+                }
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * @param batches an iterator of batches
+     * @return an iterator over the records of every batch of `batches`
+     */
+    public static Iterator<Record> toRecords(Iterator<RecordBatch> batches) {
+        return new Iterator<Record>() {
+            private RecordBatch batch = null;
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.batch == null || this.index == this.batch.size()) {
+                    if (!batches.hasNext()) return false;
+                    this.batch = batches.next();
+                    this.index = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public Record next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                return this.batch.getRecord(this.index++);
+            }
+        };
+    }
+}
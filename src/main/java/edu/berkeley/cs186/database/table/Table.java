@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.table;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.common.Bits;
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterable;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.iterator.ConcatBacktrackingIterator;
@@ -17,6 +18,7 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * # Overview
@@ -123,6 +125,8 @@ public class Table implements BacktrackingIterable<Record> {
         this.pageDirectory = pageDirectory;
         this.schema = schema;
         this.tableContext = lockContext;
+        // page contexts are only created as pages are locked
+        this.tableContext.setCapacity(pageDirectory.getNumDataPages());
 
         this.bitmapSizeInBytes = computeBitmapSizeInBytes(pageDirectory.getEffectivePageSize(), schema);
         this.numRecordsPerPage = computeNumRecordsPerPage(pageDirectory.getEffectivePageSize(), schema);
@@ -430,6 +434,17 @@ public class Table implements BacktrackingIterable<Record> {
         return new RecordIterator(ridIterator());
     }
 
+    /**
+     * @return Performs a full scan on the table to return batches of all
+     * existing records. Each page is read with a single call to the buffer
+     * manager and decoded straight into the batch's column vectors, instead
+     * of fetching the page once per record.
+     */
+    public Iterator<RecordBatch> batchIterator() {
+        LockUtil.ensureSufficientLockHeld(tableContext, LockType.S);
+        return new BatchIterator(pageDirectory.iterator());
+    }
+
     /**
      * RIDPageIterator is a BacktrackingIterator over the RecordIds of a single
      * page of the table.
@@ -516,6 +531,63 @@ public class Table implements BacktrackingIterable<Record> {
         }
     }
 
+    /**
+     * Iterator over batches of the records of a sequence of data pages. Each
+     * batch holds the records of as many whole pages as fit in it.
+     */
+    private class BatchIterator implements Iterator<RecordBatch> {
+        private Iterator<Page> pageIter;
+        private RecordBatch nextBatch;
+        private int batchCapacity;
+        private byte[] pageBytes;
+
+        private BatchIterator(Iterator<Page> pageIter) {
+            this.pageIter = pageIter;
+            this.nextBatch = null;
+            this.batchCapacity = Math.max(RecordBatch.DEFAULT_CAPACITY, numRecordsPerPage);
+            this.pageBytes = new byte[bitmapSizeInBytes + numRecordsPerPage * schema.getSizeInBytes()];
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.nextBatch == null || this.nextBatch.isEmpty()) {
+                if (!this.pageIter.hasNext()) return false;
+                this.nextBatch = new RecordBatch(schema, this.batchCapacity);
+                while (this.nextBatch.remainingCapacity() >= numRecordsPerPage && this.pageIter.hasNext()) {
+                    this.readPage(this.pageIter.next(), this.nextBatch);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public RecordBatch next() {
+            if (!this.hasNext()) throw new NoSuchElementException();
+            RecordBatch batch = this.nextBatch;
+            this.nextBatch = null;
+            return batch;
+        }
+
+        /**
+         * Appends the records on page, which is pinned, to batch and unpins the page.
+         */
+        private void readPage(Page page, RecordBatch batch) {
+            try {
+                page.getBuffer().get(this.pageBytes);
+            } finally {
+                page.unpin();
+            }
+            Buffer buf = ByteBuffer.wrap(this.pageBytes);
+            int recordSize = schema.getSizeInBytes();
+            for (int i = 0; i < numRecordsPerPage; ++i) {
+                if (bitmapSizeInBytes == 0 || Bits.getBit(this.pageBytes, i) == Bits.Bit.ONE) {
+                    buf.position(bitmapSizeInBytes + i * recordSize);
+                    batch.append(buf);
+                }
+            }
+        }
+    }
+
     /**
      * Wraps an iterator of record ids to form an iterator over records.
      */
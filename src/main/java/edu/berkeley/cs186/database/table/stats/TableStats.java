@@ -171,6 +171,21 @@ public class TableStats {
         return new TableStats(this.schema, this.numRecordsPerPage, numRecords, copyHistograms);
     }
 
+    /**
+     * Estimates the table statistics for the table that would be produced
+     * after keeping only the columns at the indices in `columns`, in that
+     * order, which have schema `schema`.
+     */
+    public TableStats copyWithProjection(List<Integer> columns, Schema schema) {
+        List<Histogram> copyHistograms = new ArrayList<>();
+        for (int column : columns) {
+            copyHistograms.add(histograms.get(column));
+        }
+        int projectedRecordsPerPage = Table.computeNumRecordsPerPage(
+                PageDirectory.EFFECTIVE_PAGE_SIZE, schema);
+        return new TableStats(schema, projectedRecordsPerPage, this.numRecords, copyHistograms);
+    }
+
     /**
      * Creates a new TableStats which is the statistics for the table
      * that results from this TableStats joined with the given TableStats.
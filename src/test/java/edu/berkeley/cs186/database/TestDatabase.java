@@ -3,10 +3,12 @@ package edu.berkeley.cs186.database;
 import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.SystemTests;
 import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.databox.BoolDataBox;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.index.BPlusTreeException;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.RecordId;
@@ -19,10 +21,17 @@ import org.junit.experimental.categories.Category;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @Category({Proj99Tests.class, SystemTests.class})
 public class TestDatabase {
@@ -306,4 +315,227 @@ public class TestDatabase {
             assertFalse(iter.hasNext());
         }
     }
+    @Test
+    public void testCreateIndexBulkLoad() {
+        // more records than fit in work memory, so that the sort spills runs
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, new Random(186));
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("id", Type.intType())
+                    .add("name", Type.stringType(10));
+            t1.createTable(s, "table1");
+            for (int id : ids) {
+                t1.insert("table1", id, "name" + id);
+            }
+            t1.commit();
+        }
+
+        db.setIndexFillFactor(0.5f);
+        try (Transaction t2 = db.beginTransaction()) {
+            t2.createIndex("table1", "id", true);
+            TransactionContext transaction = t2.getTransactionContext();
+            Iterator<Record> iter = transaction.sortedScan("table1", "id");
+            for (int i = 0; i < 2000; ++i) {
+                assertEquals(new Record(i, "name" + i), iter.next());
+            }
+            assertFalse(iter.hasNext());
+
+            // the index is maintained as usual afterwards
+            t2.insert("table1", 2000, "name2000");
+            iter = transaction.lookupKey("table1", "id", new IntDataBox(2000));
+            assertEquals(new Record(2000, "name2000"), iter.next());
+            iter = transaction.lookupKey("table1", "id", new IntDataBox(1234));
+            assertEquals(new Record(1234, "name1234"), iter.next());
+            t2.commit();
+        }
+    }
+
+    @Test
+    public void testCreateIndexBulkLoadDuplicateKeys() {
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("id", Type.intType())
+                    .add("name", Type.stringType(10));
+            t1.createTable(s, "table1");
+            t1.insert("table1", 1, "Jane");
+            t1.insert("table1", 2, "John");
+            t1.insert("table1", 1, "Jack");
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            t2.createIndex("table1", "id", true);
+            fail();
+        } catch (BPlusTreeException e) {
+            /* do nothing */
+        }
+    }
+
+    @Test
+    public void testNonUniqueIndex() {
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("id", Type.intType())
+                    .add("name", Type.stringType(10));
+            t1.createTable(s, "table1");
+            t1.insert("table1", 1, "Jane");
+            t1.insert("table1", 2, "John");
+            t1.insert("table1", 1, "Jack");
+            t1.createIndex("table1", Collections.singletonList("id"), false, true);
+            t1.insert("table1", 1, "Jill");
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            TransactionContext transaction = t2.getTransactionContext();
+            Iterator<Record> iter = transaction.lookupKey("table1", "id", new IntDataBox(1));
+            List<Record> records = new ArrayList<>();
+            iter.forEachRemaining(records::add);
+            assertEquals(3, records.size());
+            assertTrue(records.contains(new Record(1, "Jane")));
+            assertTrue(records.contains(new Record(1, "Jack")));
+            assertTrue(records.contains(new Record(1, "Jill")));
+
+            t2.delete("table1", "name", PredicateOperator.EQUALS, new StringDataBox("Jack", 10));
+            iter = transaction.lookupKey("table1", "id", new IntDataBox(1));
+            records.clear();
+            iter.forEachRemaining(records::add);
+            assertEquals(2, records.size());
+            assertFalse(records.contains(new Record(1, "Jack")));
+            assertTrue(transaction.contains("table1", "id", new IntDataBox(2)));
+            assertFalse(transaction.contains("table1", "id", new IntDataBox(3)));
+        }
+    }
+
+    @Test
+    public void testCompositeIndex() {
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("a", Type.intType())
+                    .add("b", Type.intType())
+                    .add("c", Type.stringType(10));
+            t1.createTable(s, "table1");
+            for (int i = 0; i < 5000; ++i) {
+                t1.insert("table1", i % 10, i / 10, "row" + i);
+            }
+            t1.createIndex("table1", Arrays.asList("a", "b"), false, true);
+            // indexed after creating the index
+            t1.insert("table1", 3, 600, "late");
+            t1.getTransactionContext().getTable("table1").buildStatistics(10);
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            // SELECT * FROM table1 WHERE a = 3 AND b > 495;
+            QueryPlan query = t2.query("table1");
+            query.select("a", PredicateOperator.EQUALS, 3);
+            query.select("b", PredicateOperator.GREATER_THAN, 495);
+            Iterator<Record> iter = query.execute();
+            assertTrue(query.getFinalOperator().toString().contains("Index Scan for a=3 AND b>495"));
+            for (int b = 496; b < 500; ++b) {
+                assertEquals(new Record(3, b, "row" + (10 * b + 3)), iter.next());
+            }
+            assertEquals(new Record(3, 600, "late"), iter.next());
+            assertFalse(iter.hasNext());
+
+            // updates move records within the index
+            t2.update("table1", "b", r -> new IntDataBox(0),
+                      r -> new BoolDataBox(r.getValue(2).equals(new StringDataBox("late", 10))));
+            query = t2.query("table1");
+            query.select("a", PredicateOperator.EQUALS, 3);
+            query.select("b", PredicateOperator.LESS_THAN_EQUALS, 0);
+            iter = query.execute();
+            assertEquals(new Record(3, 0, "row3"), iter.next());
+            assertEquals(new Record(3, 0, "late"), iter.next());
+            assertFalse(iter.hasNext());
+
+            assertEquals(Collections.singletonList("a,b"), t2.getTransactionContext().getIndexNames("table1"));
+            t2.dropIndex("table1", "a,b");
+            assertEquals(Collections.emptyList(), t2.getTransactionContext().getIndexNames("table1"));
+        }
+    }
+
+    @Test
+    public void testCoveringIndexScan() {
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("a", Type.intType())
+                    .add("b", Type.intType())
+                    .add("c", Type.stringType(10));
+            t1.createTable(s, "table1");
+            for (int i = 0; i < 5000; ++i) {
+                t1.insert("table1", i % 10, i / 10, "row" + i);
+            }
+            t1.createIndex("table1", Arrays.asList("a", "b"), false, true);
+            t1.getTransactionContext().getTable("table1").buildStatistics(10);
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            // SELECT b FROM table1 WHERE a = 3 AND b > 495;
+            QueryPlan query = t2.query("table1");
+            query.select("a", PredicateOperator.EQUALS, 3);
+            query.select("b", PredicateOperator.GREATER_THAN, 495);
+            query.project("b");
+            Iterator<Record> iter = query.execute();
+            assertTrue(query.getFinalOperator().toString().contains("Index Only Scan for a=3 AND b>495"));
+            for (int b = 496; b < 500; ++b) {
+                assertEquals(new Record(b), iter.next());
+            }
+            assertFalse(iter.hasNext());
+
+            // SELECT COUNT(*), MIN(b), MAX(b) FROM table1 WHERE a = 3;
+            query = t2.query("table1");
+            query.select("a", PredicateOperator.EQUALS, 3);
+            query.project("COUNT(*)", "MIN(b)", "MAX(b)");
+            iter = query.execute();
+            assertTrue(query.getFinalOperator().toString().contains("Index Only Scan for a=3"));
+            assertEquals(new Record(500, 0, 499), iter.next());
+            assertFalse(iter.hasNext());
+
+            // c isn't in the index, so the records must be read
+            query = t2.query("table1");
+            query.select("a", PredicateOperator.EQUALS, 3);
+            query.select("b", PredicateOperator.GREATER_THAN, 495);
+            query.project("b", "c");
+            iter = query.execute();
+            assertTrue(query.getFinalOperator().toString().contains("Index Scan for a=3 AND b>495"));
+            assertEquals(new Record(496, "row4963"), iter.next());
+        }
+    }
+
+    @Test
+    public void testCoveringIndexScanSortColumn() {
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("a", Type.intType())
+                    .add("b", Type.intType());
+            t1.createTable(s, "table1");
+            for (int i = 0; i < 5000; ++i) {
+                t1.insert("table1", i, 5000 - i);
+            }
+            t1.createIndex("table1", "a", false);
+            t1.getTransactionContext().getTable("table1").buildStatistics(10);
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            // SELECT a FROM table1 WHERE a > 4990 ORDER BY b;
+            // b isn't in the index, so the records must be read to sort them
+            QueryPlan query = t2.query("table1");
+            query.select("a", PredicateOperator.GREATER_THAN, 4990);
+            query.project("a");
+            query.sort("b");
+            Iterator<Record> iter = query.execute();
+            assertFalse(query.getFinalOperator().toString().contains("Index Only Scan"));
+            for (int a = 4999; a > 4990; --a) {
+                assertEquals(new Record(a), iter.next());
+            }
+            assertFalse(iter.hasNext());
+        }
+    }
 }
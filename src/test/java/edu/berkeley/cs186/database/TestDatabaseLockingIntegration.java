@@ -2,13 +2,16 @@ package edu.berkeley.cs186.database;
 
 import edu.berkeley.cs186.database.categories.HiddenTests;
 import edu.berkeley.cs186.database.categories.Proj4IntegrationTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.PublicTests;
 import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.concurrency.DeadlockException;
 import edu.berkeley.cs186.database.concurrency.DeterministicRunner;
 import edu.berkeley.cs186.database.concurrency.LoggingLockManager;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.RecordId;
@@ -22,6 +25,8 @@ import org.junit.rules.Timeout;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -469,4 +474,286 @@ public class TestDatabaseLockingIntegration {
             ), lockManager.log);
         }
     }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testDeadlockRolledBack() throws Exception {
+        // Two transactions update the same two tables in opposite orders. With
+        // the deadlock detector running, one of them is aborted and the other
+        // commits. Rolling back needs a recovery manager.
+        this.db.close();
+        this.filename = tempFolder.newFolder("testDeadlock").getAbsolutePath();
+        this.db = new Database(this.filename, 128, this.lockManager, new ClockEvictionPolicy(), true);
+        this.db.waitAllTransactions();
+        createTableWithIndices("testTable1", 1, Collections.emptyList());
+        createTableWithIndices("testTable2", 1, Collections.emptyList());
+        lockManager.startDeadlockDetector(10);
+
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        AtomicInteger aborted = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 2; ++i) {
+                String first = "testTable" + (i + 1);
+                String second = "testTable" + (2 - i);
+                int value = 1000 + i;
+                futures.add(executor.submit(() -> {
+                    Transaction t = db.beginTransaction();
+                    try {
+                        t.update(first, "int2", (Record r) -> new IntDataBox(value));
+                        barrier.await();
+                        t.update(second, "int2", (Record r) -> new IntDataBox(value));
+                        t.commit();
+                    } catch (DeadlockException e) {
+                        // the victim was rolled back, releasing its locks
+                        assertEquals(Transaction.Status.COMPLETE, t.getStatus());
+                        aborted.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            lockManager.stopDeadlockDetector();
+        }
+        assertEquals(1, aborted.get());
+
+        // the surviving transaction's update was applied to both tables
+        try (Transaction t = beginTransaction()) {
+            Set<Integer> values = new HashSet<>();
+            for (String tableName : Arrays.asList("testTable1", "testTable2")) {
+                Iterator<Record> records = t.getTransactionContext().getRecordIterator(tableName);
+                while (records.hasNext()) {
+                    values.add(records.next().getValue(1).getInt());
+                }
+            }
+            assertEquals(1, values.size());
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testUpdateEscalatesTableLock() {
+        // Updating every record of a 6 page table, with escalation after 2
+        // page locks, ends with one X lock on the table and no page locks.
+        String tableName = "testTable1";
+        createTableWithIndices(tableName, 6, Collections.emptyList());
+        db.setTableLockEscalation(2, 0);
+
+        try (Transaction t = beginTransaction()) {
+            t.update(tableName, "int2", (Record r) -> new IntDataBox(-1));
+            List<String> tableLocks = lockManager.getLocks(t.getTransactionContext()).stream()
+                    .filter(lock -> lock.name.toString().startsWith("database/testtable1"))
+                    .map(lock -> lock.lockType + "(" + lock.name + ")")
+                    .collect(Collectors.toList());
+            assertEquals(Collections.singletonList("X(database/testtable1)"), tableLocks);
+        }
+    }
+
+    // int2 values of the records of a table, as seen by the transaction
+    private static List<Integer> readInt2(Transaction t, String tableName) {
+        List<Integer> values = new ArrayList<>();
+        Iterator<Record> records = t.getTransactionContext().getRecordIterator(tableName);
+        while (records.hasNext()) {
+            values.add(records.next().getValue(1).getInt());
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testSnapshotReadsCommittedData() throws Exception {
+        // A writer updates, deletes (emptying a page) and inserts (onto new
+        // pages) records of a table. A snapshot transaction started before the
+        // writer commits reads the table as it was, without blocking on or
+        // taking locks; one started after the commit sees the changes.
+        String tableName = "testTable1";
+        List<RecordId> rids = createTableWithIndices(tableName, 3, Collections.emptyList());
+        int perPage = rids.size() / 3;
+        db.enableSnapshotReads();
+        List<Integer> before = new ArrayList<>();
+        for (int i = 0; i < rids.size(); ++i) {
+            before.add(i);
+        }
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Transaction w = writer.submit(() -> {
+                Transaction t = db.beginTransaction();
+                t.delete(tableName, "int1", PredicateOperator.LESS_THAN, new IntDataBox(perPage));
+                t.update(tableName, "int2", (Record r) -> new IntDataBox(-r.getValue(0).getInt()));
+                for (int i = 0; i < 2 * perPage; ++i) {
+                    t.insert(tableName, new Record(-1, -1));
+                }
+                return t;
+            }).get();
+
+            try (Transaction s = db.beginSnapshotTransaction()) {
+                assertEquals(before, readInt2(s, tableName));
+                assertEquals(Collections.emptyList(), lockManager.getLocks(s.getTransactionContext()));
+
+                writer.submit(() -> w.commit()).get();
+                assertEquals(before, readInt2(s, tableName));
+            }
+        } finally {
+            writer.shutdownNow();
+        }
+
+        List<Integer> after = new ArrayList<>();
+        for (int i = 0; i < 2 * perPage; ++i) {
+            after.add(-1);
+        }
+        for (int i = perPage; i < rids.size(); ++i) {
+            after.add(-i);
+        }
+        Collections.sort(after);
+        try (Transaction s = db.beginSnapshotTransaction()) {
+            assertEquals(after, readInt2(s, tableName));
+        }
+        // no snapshot or writer is left to need old versions
+        assertEquals(0, db.getBufferManager().getVersionStore().getNumVersions());
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testSnapshotIndexRootSplit() throws Exception {
+        // A writer inserts enough records to split the root of an index. A
+        // snapshot transaction started before the writer commits looks keys
+        // up from the root it sees, not the writer's new root.
+        String tableName = "testTable1";
+        Schema s = new Schema()
+            .add("int1", Type.intType())
+            .add("int2", Type.intType());
+        try (Transaction t1 = beginTransaction()) {
+            t1.createTable(s, tableName);
+            t1.createIndex(tableName, "int1", false);
+            for (int i = 0; i < 10; ++i) {
+                t1.insert(tableName, i, i);
+            }
+        }
+        db.waitAllTransactions();
+        db.enableSnapshotReads();
+
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Transaction w = writer.submit(() -> {
+            Transaction t = db.beginTransaction();
+            for (int i = 10; i < 1000; ++i) {
+                t.insert(tableName, i, -i);
+            }
+            return t;
+        }).get();
+        try (Transaction snapshot = db.beginSnapshotTransaction()) {
+            TransactionContext context = snapshot.getTransactionContext();
+            Iterator<Record> records = context.lookupKey(tableName, "int1", new IntDataBox(5));
+            assertEquals(new Record(5, 5), records.next());
+            assertFalse(records.hasNext());
+            assertFalse(context.lookupKey(tableName, "int1", new IntDataBox(500)).hasNext());
+
+            writer.submit(w::close).get();
+            assertFalse(context.lookupKey(tableName, "int1", new IntDataBox(500)).hasNext());
+        } finally {
+            // commits the writer if the snapshot's checks failed
+            writer.submit(w::close).get();
+            writer.shutdownNow();
+        }
+
+        try (Transaction snapshot = db.beginSnapshotTransaction()) {
+            Iterator<Record> records = snapshot.getTransactionContext()
+                    .lookupKey(tableName, "int1", new IntDataBox(500));
+            assertEquals(new Record(500, -500), records.next());
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testSnapshotTransactionReadOnly() {
+        String tableName = "testTable1";
+        createTableWithIndices(tableName, 1, Collections.emptyList());
+        db.enableSnapshotReads();
+
+        try (Transaction s = db.beginSnapshotTransaction()) {
+            try {
+                s.insert(tableName, new Record(-1, -1));
+                fail("snapshot transaction inserted a record");
+            } catch (DatabaseException e) {
+                // expected
+            }
+            try {
+                s.update(tableName, "int2", (Record r) -> new IntDataBox(-1));
+                fail("snapshot transaction updated a record");
+            } catch (DatabaseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testDeadlockInQueryRolledBack() throws Exception {
+        // Two transactions each update one table, then read the other, so
+        // that they deadlock while reading the records of their queries. The
+        // victim is rolled back without its caller doing anything.
+        this.db.close();
+        this.filename = tempFolder.newFolder("testDeadlockInQuery").getAbsolutePath();
+        this.db = new Database(this.filename, 128, this.lockManager, new ClockEvictionPolicy(), true);
+        this.db.waitAllTransactions();
+        createTableWithIndices("testTable1", 1, Collections.emptyList());
+        createTableWithIndices("testTable2", 1, Collections.emptyList());
+        lockManager.startDeadlockDetector(10);
+
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        List<Transaction> victims = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 2; ++i) {
+                String written = "testTable" + (i + 1);
+                String read = "testTable" + (2 - i);
+                futures.add(executor.submit(() -> {
+                    Transaction t = db.beginTransaction();
+                    try {
+                        t.update(written, "int2", (Record r) -> new IntDataBox(-1));
+                        barrier.await();
+                        Iterator<Record> records = t.query(read).execute();
+                        while (records.hasNext()) {
+                            records.next();
+                        }
+                        t.commit();
+                    } catch (DeadlockException e) {
+                        victims.add(t);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+            lockManager.stopDeadlockDetector();
+        }
+        assertEquals(1, victims.size());
+        Transaction victim = victims.get(0);
+        assertEquals(Transaction.Status.COMPLETE, victim.getStatus());
+        assertEquals(Collections.emptyList(), lockManager.getLocks(victim.getTransactionContext()));
+
+        // the victim's update was undone
+        try (Transaction t = beginTransaction()) {
+            Set<String> updatedTables = new HashSet<>();
+            for (String tableName : Arrays.asList("testTable1", "testTable2")) {
+                Iterator<Record> records = t.getTransactionContext().getRecordIterator(tableName);
+                while (records.hasNext()) {
+                    if (records.next().getValue(1).getInt() == -1) {
+                        updatedTables.add(tableName);
+                    }
+                }
+            }
+            assertEquals(1, updatedTables.size());
+        }
+    }
 }
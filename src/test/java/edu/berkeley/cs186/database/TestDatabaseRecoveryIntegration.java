@@ -6,6 +6,7 @@ import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
 import edu.berkeley.cs186.database.query.QueryPlan;
+import edu.berkeley.cs186.database.recovery.LogManager;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import org.junit.Before;
@@ -34,6 +35,8 @@ public class TestDatabaseRecoveryIntegration {
     private Database db;
     private LockManager lockManager;
     private String filename;
+    // threads of the redo pass when the database is reloaded
+    private int redoThreads = 1;
 
     @Rule
     public TemporaryFolder tempFolder = new TemporaryFolder();
@@ -52,7 +55,8 @@ public class TestDatabaseRecoveryIntegration {
             TransactionContext.unsetTransaction();
         }
         this.lockManager = new LockManager();
-        this.db = new Database(this.filename, 128, this.lockManager, new ClockEvictionPolicy(), true);
+        this.db = new Database(this.filename, 128, this.lockManager, ClockEvictionPolicy::new, 1, true,
+                               LogManager.DEFAULT_LOG_PAGES, this.redoThreads);
         this.db.setWorkMem(32); // B=32
 
         if (closeOld) {
@@ -195,6 +199,115 @@ public class TestDatabaseRecoveryIntegration {
         this.db.close();
     }
 
+    @Test
+    public void testRollbackIndexRootSplit() {
+        /**
+         * Inserts enough records into an indexed table to split the root of
+         * the index, then rolls back. The rollback frees the new root, so the
+         * index must be read from its old root afterwards.
+         */
+        try (Transaction t = db.beginTransaction()) {
+            t.createTable(new Schema().add("id", Type.intType()), "t");
+            for (int i = 0; i < 10; ++i) {
+                t.insert("t", i);
+            }
+            t.createIndex("t", "id", false);
+        }
+
+        try (Transaction t = db.beginTransaction()) {
+            for (int i = 10; i < 1000; ++i) {
+                t.insert("t", i);
+            }
+            t.rollback();
+        }
+
+        try (Transaction t = db.beginTransaction()) {
+            TransactionContext transaction = t.getTransactionContext();
+            assertTrue(transaction.contains("t", "id", DataBox.fromObject(5)));
+            assertFalse(transaction.contains("t", "id", DataBox.fromObject(100)));
+            t.insert("t", 100);
+            assertTrue(transaction.contains("t", "id", DataBox.fromObject(100)));
+        }
+        this.db.close();
+    }
+
+    @Test
+    public void testSavepointIndexRootSplit() {
+        /**
+         * Like testRollbackIndexRootSplit, but rolls back to a savepoint and
+         * keeps using the index in the same transaction.
+         */
+        try (Transaction t = db.beginTransaction()) {
+            t.createTable(new Schema().add("id", Type.intType()), "t");
+            t.createIndex("t", "id", false);
+            t.insert("t", 0);
+            t.savepoint("beforeInserts");
+            for (int i = 1; i < 1000; ++i) {
+                t.insert("t", i);
+            }
+            t.rollbackToSavepoint("beforeInserts");
+
+            TransactionContext transaction = t.getTransactionContext();
+            assertTrue(transaction.contains("t", "id", DataBox.fromObject(0)));
+            assertFalse(transaction.contains("t", "id", DataBox.fromObject(100)));
+            t.insert("t", 100);
+            assertTrue(transaction.contains("t", "id", DataBox.fromObject(100)));
+        }
+        this.db.close();
+    }
+
+    @Test
+    public void testRollbackFullLog() throws Exception {
+        /**
+         * Inserts into a table until the (small) log is full, then rolls
+         * back. The rollback must still be able to log its CLRs, and the
+         * log must have room again for new transactions afterwards.
+         */
+        this.db.close();
+        this.filename = tempFolder.newFolder("smallLog").getAbsolutePath();
+        this.lockManager = new LockManager();
+        this.db = new Database(this.filename, 128, this.lockManager, ClockEvictionPolicy::new, 1,
+                               true, 64);
+        this.db.waitAllTransactions();
+
+        try (Transaction t = db.beginTransaction()) {
+            t.createTable(new Schema().add("id", Type.intType()), "t");
+            t.insert("t", -1);
+        }
+
+        int inserted = 0;
+        try (Transaction t = db.beginTransaction()) {
+            try {
+                while (true) {
+                    t.insert("t", inserted++);
+                }
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("log is full"));
+            }
+            assertTrue(inserted > 1);
+            t.rollback();
+        }
+
+        try (Transaction t = db.beginTransaction()) {
+            Iterator<Record> records = t.query("t").execute();
+            assertEquals(new Record(-1), records.next());
+            assertFalse(records.hasNext());
+            for (int i = 0; i < 100; ++i) {
+                t.insert("t", i);
+            }
+        }
+        try (Transaction t = db.beginTransaction()) {
+            Iterator<Record> records = t.query("t").execute();
+            int count = 0;
+            while (records.hasNext()) {
+                records.next();
+                ++count;
+            }
+            assertEquals(101, count);
+        }
+        this.db.close();
+    }
+
     @Test
     public void testRollbackUpdate() {
         /**
@@ -378,6 +491,50 @@ public class TestDatabaseRecoveryIntegration {
         this.db.close();
     }
 
+    @Test
+    public void testRebootParallelRedo() {
+        /**
+         * Like testRebootPartialDelete, but with committed inserts into
+         * several tables before, and with the log redone by several threads
+         * on reboot.
+         */
+        try (Transaction t0 = db.beginTransaction()) {
+            for (int i = 0; i < 3; i++) {
+                t0.createTable(new Schema().add("int", Type.intType()), "ints" + i);
+                for (int j = 0; j < 1024 * 2; j++) {
+                    t0.insert("ints" + i, j);
+                }
+            }
+        }
+        List<Record> oldRecords = new ArrayList<>();
+        List<Record> newRecords = new ArrayList<>();
+
+        Transaction t1 = db.beginTransaction();
+        Iterator<Record> records = t1.query("Students").execute();
+        while (records.hasNext()) oldRecords.add(records.next());
+
+        t1.delete("Students", "gpa", PredicateOperator.GREATER_THAN_EQUALS, DataBox.fromObject(1.86));
+        db.getBufferManager().evictAll();
+
+        // Note: Changes flushed, but T1 never commits!
+        Database old = this.db;
+        this.redoThreads = 4;
+        reloadDatabase(false);
+        try (Transaction t2 = db.beginTransaction()) {
+            Iterator<Record> records2 = t2.query("Students").execute();
+            while (records2.hasNext()) newRecords.add(records2.next());
+            for (int i = 0; i < 3; i++) {
+                Iterator<Record> ints = t2.query("ints" + i).execute();
+                for (int j = 0; j < 1024 * 2; j++) {
+                    assertEquals(new Record(j), ints.next());
+                }
+                assertFalse(ints.hasNext());
+            }
+        }
+        assertEquals(oldRecords, newRecords);
+        this.db.close();
+    }
+
     @Test
     public void testRebootPartialDelete() {
         /**
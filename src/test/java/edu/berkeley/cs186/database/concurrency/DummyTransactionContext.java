@@ -6,12 +6,14 @@ import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
@@ -60,6 +62,11 @@ public class DummyTransactionContext extends TransactionContext {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
 
+    @Override
+    public List<String> getIndexNames(String tableName) {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
     @Override
     public Iterator<Record> sortedScan(String tableName, String columnName) {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
@@ -77,6 +84,18 @@ public class DummyTransactionContext extends TransactionContext {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
 
+    @Override
+    public Iterator<Record> indexRangeScan(String tableName, String indexName,
+                                           List<DataBox> low, List<DataBox> high) {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
+    @Override
+    public Iterator<Record> indexOnlyScan(String tableName, String indexName,
+                                          List<DataBox> low, List<DataBox> high) {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
     @Override
     public boolean contains(String tableName, String columnName, DataBox key) {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
@@ -107,6 +126,11 @@ public class DummyTransactionContext extends TransactionContext {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
 
+    @Override
+    public Iterator<RecordBatch> getRecordBatchIterator(String tableName) {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
     @Override
     public RecordId updateRecord(String tableName, RecordId rid, Record record)  {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
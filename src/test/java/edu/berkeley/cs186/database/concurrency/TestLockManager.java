@@ -2,9 +2,11 @@ package edu.berkeley.cs186.database.concurrency;
 
 import edu.berkeley.cs186.database.TimeoutScaling;
 import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
 import edu.berkeley.cs186.database.categories.HiddenTests;
 import edu.berkeley.cs186.database.categories.Proj4Part1Tests;
 import edu.berkeley.cs186.database.categories.Proj4Tests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.PublicTests;
 import org.junit.Before;
 import org.junit.Rule;
@@ -17,6 +19,7 @@ import org.junit.rules.Timeout;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -756,5 +759,371 @@ public class TestLockManager {
         runner.joinAll();
     }
 
-}
+    /**
+     * Runs `acquire` on `runner`'s thread i, recording in aborted[i] whether
+     * it threw a DeadlockException.
+     */
+    private void runAcquire(DeterministicRunner runner, int i, ResourceName name, boolean[] aborted) {
+        runner.run(i, () -> {
+            try {
+                lockman.acquire(transactions[i], name, LockType.X);
+            } catch (DeadlockException e) {
+                aborted[i] = true;
+            }
+        });
+    }
+
+    /**
+     * Transaction 0 holds X(table0) and waits for X(table1), transaction 1
+     * holds X(table1) and waits for X(table0). Checks:
+     *  - detectDeadlocks aborts the youngest transaction, transaction 1
+     *  - transaction 0 gets X(table1) once transaction 1 rolls back
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testDetectDeadlock() {
+        DeterministicRunner runner = new DeterministicRunner(2);
+        boolean[] aborted = new boolean[2];
+        runAcquire(runner, 0, tables[0], aborted);
+        runAcquire(runner, 1, tables[1], aborted);
+        runAcquire(runner, 0, tables[1], aborted);
+        runAcquire(runner, 1, tables[0], aborted);
+        assertTrue(transactions[0].getBlocked());
+        assertTrue(transactions[1].getBlocked());
+
+        assertEquals(Collections.singletonList(1L), lockman.detectDeadlocks());
+        runner.join(1);
+        assertTrue(aborted[1]);
+        assertFalse(transactions[1].getBlocked());
+        assertEquals(LockType.NL, lockman.getLockType(transactions[1], tables[0]));
+
+        // rollback releases transaction 1's locks
+        lockman.release(transactions[1], tables[1]);
+        runner.join(0);
+        assertFalse(aborted[0]);
+        assertEquals(LockType.X, lockman.getLockType(transactions[0], tables[1]));
+        assertEquals(Collections.emptyList(), lockman.detectDeadlocks());
+    }
+
+    /**
+     * Transaction 0 holds X(table0), transaction 1 holds X(table1) and
+     * X(table2), and they deadlock as in testDetectDeadlock. Checks that with
+     * FEWEST_LOCKS victims, transaction 0 is aborted.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testDetectDeadlockFewestLocks() {
+        DeterministicRunner runner = new DeterministicRunner(2);
+        boolean[] aborted = new boolean[2];
+        lockman.setDeadlockVictim(LockManager.DeadlockVictim.FEWEST_LOCKS);
+        runAcquire(runner, 0, tables[0], aborted);
+        runAcquire(runner, 1, tables[1], aborted);
+        runAcquire(runner, 1, tables[2], aborted);
+        runAcquire(runner, 0, tables[1], aborted);
+        runAcquire(runner, 1, tables[0], aborted);
+
+        assertEquals(Collections.singletonList(0L), lockman.detectDeadlocks());
+        runner.join(0);
+        assertTrue(aborted[0]);
+        lockman.release(transactions[0], tables[0]);
+        runner.join(1);
+        assertFalse(aborted[1]);
+        assertEquals(LockType.X, lockman.getLockType(transactions[1], tables[0]));
+    }
+
+    /**
+     * With wait-die, transaction 0 (older) waits for transaction 1, but
+     * transaction 1 (younger) aborts rather than wait for transaction 0.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testWaitDie() {
+        DeterministicRunner runner = new DeterministicRunner(2);
+        boolean[] aborted = new boolean[2];
+        lockman.setDeadlockPrevention(LockManager.DeadlockPrevention.WAIT_DIE);
+        runAcquire(runner, 0, tables[0], aborted);
+        runAcquire(runner, 1, tables[1], aborted);
+        runAcquire(runner, 0, tables[1], aborted);
+        assertTrue(transactions[0].getBlocked());
+
+        runAcquire(runner, 1, tables[0], aborted);
+        assertTrue(aborted[1]);
+        assertFalse(transactions[1].getBlocked());
+        assertEquals(Collections.singletonList(new Lock(tables[0], LockType.X, 0L)), lockman.getLocks(tables[0]));
+
+        lockman.release(transactions[1], tables[1]);
+        runner.joinAll();
+        assertFalse(aborted[0]);
+        assertEquals(LockType.X, lockman.getLockType(transactions[0], tables[1]));
+    }
+
+    /**
+     * With wound-wait:
+     *  - transaction 1 (younger) waits for transaction 0, and transaction 0
+     *    (older) requesting a lock of transaction 1 cancels transaction 1's
+     *    request
+     *  - transaction 2 (younger, running) wounded by transaction 0 aborts at
+     *    its next request that blocks
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testWoundWait() {
+        DeterministicRunner runner = new DeterministicRunner(3);
+        boolean[] aborted = new boolean[3];
+        lockman.setDeadlockPrevention(LockManager.DeadlockPrevention.WOUND_WAIT);
+        runAcquire(runner, 0, tables[0], aborted);
+        runAcquire(runner, 1, tables[1], aborted);
+        runAcquire(runner, 1, tables[0], aborted);
+        assertTrue(transactions[1].getBlocked());
+
+        runAcquire(runner, 0, tables[1], aborted);
+        assertTrue(transactions[0].getBlocked());
+        runner.join(1);
+        assertTrue(aborted[1]);
+        lockman.release(transactions[1], tables[1]);
+        runner.join(0);
+        assertFalse(aborted[0]);
+        assertEquals(LockType.X, lockman.getLockType(transactions[0], tables[1]));
+
+        runAcquire(runner, 2, tables[2], aborted);
+        new Thread(() -> lockman.acquire(transactions[0], tables[2], LockType.X)).start();
+        while (!transactions[0].getBlocked()) {
+            Thread.yield();
+        }
+        runAcquire(runner, 2, tables[0], aborted);
+        assertTrue(aborted[2]);
+        assertFalse(transactions[2].getBlocked());
+        lockman.release(transactions[2], tables[2]);
+        runner.joinAll();
+        while (transactions[0].getBlocked()) {
+            Thread.yield();
+        }
+        assertEquals(LockType.X, lockman.getLockType(transactions[0], tables[2]));
+    }
+
+    /**
+     * Checks that the background deadlock detector breaks a deadlock between
+     * transactions 0 and 1.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testDeadlockDetector() {
+        DeterministicRunner runner = new DeterministicRunner(2);
+        boolean[] aborted = new boolean[2];
+        lockman.startDeadlockDetector(10);
+        try {
+            runAcquire(runner, 0, tables[0], aborted);
+            runAcquire(runner, 1, tables[1], aborted);
+            runAcquire(runner, 0, tables[1], aborted);
+            runAcquire(runner, 1, tables[0], aborted);
+            runner.join(1);
+            assertTrue(aborted[1]);
+            lockman.release(transactions[1], tables[1]);
+            runner.join(0);
+            assertFalse(aborted[0]);
+        } finally {
+            lockman.stopDeadlockDetector();
+        }
+    }
+
+    /**
+     * Checks that tryAcquire grants a lock only if it is compatible with the
+     * locks held and no request is queued, and never queues the request.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testTryAcquire() {
+        DeterministicRunner runner = new DeterministicRunner(2);
+        assertTrue(lockman.tryAcquire(transactions[0], tables[0], LockType.S));
+        assertTrue(lockman.tryAcquire(transactions[1], tables[0], LockType.S));
+        assertFalse(lockman.tryAcquire(transactions[2], tables[0], LockType.X));
+        assertEquals(LockType.NL, lockman.getLockType(transactions[2], tables[0]));
 
+        // S is compatible with the locks held, but not with the X request queued
+        runner.run(0, () -> lockman.promote(transactions[0], tables[0], LockType.X));
+        assertTrue(transactions[0].getBlocked());
+        assertFalse(lockman.tryAcquire(transactions[3], tables[0], LockType.S));
+        assertFalse(transactions[3].getBlocked());
+
+        lockman.release(transactions[1], tables[0]);
+        runner.joinAll();
+        assertEquals(Collections.singletonList(new Lock(tables[0], LockType.X, 0L)), lockman.getLocks(tables[0]));
+    }
+
+    /**
+     * Transaction 0 holds S(table0), transaction 1 waits for X(table0) with a
+     * timeout, and transaction 2 waits for S(table0) behind it. Checks:
+     *  - transaction 1's request times out, leaving it unblocked and without
+     *    a lock
+     *  - withdrawing transaction 1's request grants transaction 2's
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testAcquireTimeout() throws Exception {
+        DeterministicRunner runner = new DeterministicRunner(1);
+        lockman.acquire(transactions[0], tables[0], LockType.S);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                lockman.acquire(transactions[1], tables[0], LockType.X, 100);
+            } catch (LockTimeoutException e) {
+                timedOut.set(true);
+            }
+        });
+        waiter.start();
+        while (!transactions[1].getBlocked()) {
+            Thread.yield();
+        }
+        runner.run(0, () -> lockman.acquire(transactions[2], tables[0], LockType.S));
+        assertTrue(transactions[2].getBlocked());
+
+        waiter.join();
+        runner.joinAll();
+        assertTrue(timedOut.get());
+        assertFalse(transactions[1].getBlocked());
+        assertEquals(LockType.NL, lockman.getLockType(transactions[1], tables[0]));
+        assertEquals(LockType.S, lockman.getLockType(transactions[2], tables[0]));
+    }
+
+    /**
+     * Checks that a request granted before its timeout succeeds, and that a
+     * transaction's lock wait timeout of 0 fails promotions and acquisitions
+     * that would block, without queueing them.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testLockWaitTimeout() throws Exception {
+        lockman.acquire(transactions[0], tables[0], LockType.X);
+        Thread waiter = new Thread(() -> lockman.acquire(transactions[1], tables[0], LockType.X, 60000));
+        waiter.start();
+        while (!transactions[1].getBlocked()) {
+            Thread.yield();
+        }
+        lockman.release(transactions[0], tables[0]);
+        waiter.join();
+        assertEquals(LockType.X, lockman.getLockType(transactions[1], tables[0]));
+
+        transactions[2].setLockWaitTimeout(0);
+        lockman.acquire(transactions[2], tables[1], LockType.S);
+        lockman.acquire(transactions[3], tables[1], LockType.S);
+        try {
+            lockman.promote(transactions[2], tables[1], LockType.X);
+            fail("expected promotion to time out");
+        } catch (LockTimeoutException e) {
+            // expected
+        }
+        try {
+            lockman.acquire(transactions[2], tables[0], LockType.S);
+            fail("expected acquisition to time out");
+        } catch (LockTimeoutException e) {
+            // expected
+        }
+        assertEquals(LockType.S, lockman.getLockType(transactions[2], tables[1]));
+        assertEquals(LockType.NL, lockman.getLockType(transactions[2], tables[0]));
+        // nothing was left queued
+        lockman.release(transactions[1], tables[0]);
+        assertTrue(lockman.tryAcquire(transactions[4], tables[0], LockType.X));
+    }
+
+    /**
+     * Runs 8 transactions against a sharded lock manager, each repeatedly
+     * taking an S lock on a resource of its own, trading it for an X lock on
+     * a shared resource with acquire-and-release, and releasing that.
+     * Checks:
+     *  - no two transactions hold the X lock at once
+     *  - no locks are left once all transactions are done
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testShardedConcurrentLocks() throws Exception {
+        LockManager lockManager = new LockManager();
+        ResourceName shared = tables[0];
+        AtomicInteger holders = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(transactions.length);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < transactions.length; ++i) {
+                TransactionContext transaction = transactions[i];
+                ResourceName own = new ResourceName(tables[i], "page");
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 200; ++j) {
+                        lockManager.acquire(transaction, own, LockType.S);
+                        lockManager.acquireAndRelease(transaction, shared, LockType.X,
+                                Collections.singletonList(own));
+                        if (holders.incrementAndGet() > 1) {
+                            overlapped.set(true);
+                        }
+                        holders.decrementAndGet();
+                        lockManager.release(transaction, shared);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertFalse(overlapped.get());
+        assertEquals(Collections.emptyList(), lockManager.getLocks(shared));
+        for (TransactionContext transaction : transactions) {
+            assertEquals(Collections.emptyList(), lockManager.getLocks(transaction));
+        }
+    }
+
+    /**
+     * Measures acquire/release pairs per second of transactions locking
+     * resources of their own, with all resources in one shard (a single latch
+     * for all lock traffic, as before sharding) and with the default number of
+     * shards. Results are printed rather than asserted on, since they depend
+     * on the machine.
+     */
+    @Test
+    @Category({Proj99Tests.class, BenchmarkTests.class})
+    public void testLockThroughputBenchmark() throws Exception {
+        int pairsPerThread = 10000;
+        // warm up, so that the first configuration measured isn't penalized
+        lockThroughput(LockManager.DEFAULT_SHARDS, 2, pairsPerThread);
+        for (int numShards : new int[] {1, LockManager.DEFAULT_SHARDS}) {
+            for (int threads : new int[] {1, 2, 4, 8}) {
+                System.out.printf("%2d shard(s), %d thread(s): %,.0f acquire/release pairs/sec%n",
+                        numShards, threads, lockThroughput(numShards, threads, pairsPerThread));
+            }
+        }
+    }
+
+    /**
+     * @return acquire/release pairs per second of `threads` transactions each
+     * taking and releasing X locks on 16 resources of its own, round robin
+     */
+    private double lockThroughput(int numShards, int threads, int pairsPerThread) throws Exception {
+        LockManager lockManager = new LockManager(numShards);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Object>> tasks = new ArrayList<>();
+            for (int i = 0; i < threads; ++i) {
+                TransactionContext transaction = transactions[i];
+                ResourceName[] pages = new ResourceName[16];
+                for (int p = 0; p < pages.length; ++p) {
+                    pages[p] = new ResourceName(tables[i], "page" + p);
+                }
+                tasks.add(Executors.callable(() -> {
+                    for (int j = 0; j < pairsPerThread; ++j) {
+                        ResourceName page = pages[j % pages.length];
+                        lockManager.acquire(transaction, page, LockType.X);
+                        lockManager.release(transaction, page);
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Future<Object> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            return threads * pairsPerThread / (elapsed / 1e9);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
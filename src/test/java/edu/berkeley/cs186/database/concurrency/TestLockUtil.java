@@ -15,7 +15,9 @@ import java.util.Arrays;
 import java.util.Collections;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @Category({Proj4Tests.class, Proj4Part2Tests.class})
 public class TestLockUtil {
@@ -278,5 +280,87 @@ public class TestLockUtil {
         assertEquals(Collections.emptyList(), lockManager.log);
     }
 
-}
+    @Test
+    @Category(Proj99Tests.class)
+    public void testNoWaitAndTimeout() {
+        /**
+         * Another transaction holds X(table1), so S(page4) can't be granted:
+         * tryEnsureSufficientLockHeld returns false (keeping the IS lock on
+         * the database), and a timed ensureSufficientLockHeld times out and
+         * restores the transaction's timeout. Once X(table1) is released,
+         * the locks are granted.
+         */
+        TransactionContext other = new DummyTransactionContext(lockManager, 1);
+        dbContext.acquire(other, LockType.IX);
+        tableContext.acquire(other, LockType.X);
+
+        assertFalse(LockUtil.tryEnsureSufficientLockHeld(pageContexts[4], LockType.S));
+        assertEquals(LockType.IS, dbContext.getExplicitLockType(transaction));
+        assertEquals(LockType.NL, tableContext.getExplicitLockType(transaction));
+        try {
+            LockUtil.ensureSufficientLockHeld(pageContexts[4], LockType.S, 20);
+            fail("expected lock request to time out");
+        } catch (LockTimeoutException e) {
+            // expected
+        }
+        assertEquals(-1, transaction.getLockWaitTimeout());
+        assertFalse(transaction.getBlocked());
+
+        tableContext.release(other);
+        dbContext.release(other);
+        assertTrue(LockUtil.tryEnsureSufficientLockHeld(pageContexts[4], LockType.S));
+        assertEquals(LockType.S, pageContexts[4].getExplicitLockType(transaction));
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testAutoEscalateChildLocks() {
+        /**
+         * With an escalation threshold of 3 child locks on table1, requesting
+         * X(page3) after X(page0..2) escalates to X(table1) instead, which
+         * then covers further page requests.
+         */
+        tableContext.setEscalationThreshold(3, 0);
+        for (int i = 0; i < 3; ++i) {
+            LockUtil.ensureSufficientLockHeld(pageContexts[i], LockType.X);
+        }
+        lockManager.startLog();
+        LockUtil.ensureSufficientLockHeld(pageContexts[3], LockType.X);
+        LockUtil.ensureSufficientLockHeld(pageContexts[4], LockType.S);
+        assertEquals(Collections.singletonList(
+                "acquire-and-release 0 database/table1 X [database/table1, database/table1/0, " +
+                "database/table1/1, database/table1/2]"
+        ), lockManager.log);
+        assertEquals(0, tableContext.getNumChildren(transaction));
+        assertEquals(LockType.X, tableContext.getExplicitLockType(transaction));
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testAutoEscalateChildFraction() {
+        /**
+         * With an escalation threshold of 10% of table1's pages, holding
+         * S(page0) and S(page1) escalates table1 before the next page lock
+         * once table1 has 20 pages, but not while it has fewer than
+         * MIN_ESCALATION_CAPACITY. Requesting X escalates to S(table1) and
+         * then promotes it.
+         */
+        tableContext.setEscalationThreshold(0, 0.1);
+        tableContext.setCapacity(8);
+        LockUtil.ensureSufficientLockHeld(pageContexts[0], LockType.S);
+        LockUtil.ensureSufficientLockHeld(pageContexts[1], LockType.S);
+        LockUtil.ensureSufficientLockHeld(pageContexts[2], LockType.S);
+        assertEquals(3, tableContext.getNumChildren(transaction));
 
+        tableContext.setCapacity(20);
+        lockManager.startLog();
+        LockUtil.ensureSufficientLockHeld(pageContexts[3], LockType.X);
+        assertEquals(Arrays.asList(
+                "acquire-and-release 0 database/table1 S [database/table1, database/table1/0, " +
+                "database/table1/1, database/table1/2]",
+                "promote 0 database IX",
+                "promote 0 database/table1 X"
+        ), lockManager.log);
+        assertEquals(0, tableContext.getNumChildren(transaction));
+    }
+}
@@ -2,6 +2,7 @@ package edu.berkeley.cs186.database.index;
 
 import edu.berkeley.cs186.database.TimeoutScaling;
 import edu.berkeley.cs186.database.categories.HiddenTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.Proj2Tests;
 import edu.berkeley.cs186.database.categories.PublicTests;
 import edu.berkeley.cs186.database.categories.SystemTests;
@@ -10,6 +11,8 @@ import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 import edu.berkeley.cs186.database.concurrency.LockContext;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.LongDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
 import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
@@ -470,6 +473,130 @@ public class TestBPlusTree {
         }
     }
 
+    @Test
+    @Category(Proj99Tests.class)
+    public void testPutRemoveOnLeafPages() {
+        // Inserts and deletes that do not split a leaf are done directly on
+        // the leaf's page once the root is an inner node. Check that they
+        // leave the same tree as inserting and deleting through the nodes.
+        BPlusTree tree = getBPlusTree(Type.longType(), 2);
+        List<Long> inserted = new ArrayList<>();
+        Random random = new Random(186);
+        for (int i = 0; i < 200; ++i) {
+            // include negative keys, which sort before positive ones
+            long key = random.nextInt(1000) - 500;
+            if (inserted.contains(key)) {
+                continue;
+            }
+            tree.put(new LongDataBox(key), new RecordId(key, (short) i));
+            inserted.add(key);
+        }
+        Collections.sort(inserted);
+        List<Long> scanned = new ArrayList<>();
+        for (Iterator<RecordId> iter = tree.scanAll(); iter.hasNext(); ) {
+            scanned.add(iter.next().getPageNum());
+        }
+        assertEquals(inserted, scanned);
+
+        // duplicate keys are rejected, and leave the tree unchanged
+        String sexp = tree.toSexp();
+        try {
+            tree.put(new LongDataBox(inserted.get(0)), new RecordId(0, (short) 0));
+            fail();
+        } catch (BPlusTreeException e) {
+            /* do nothing */
+        }
+        assertEquals(sexp, tree.toSexp());
+
+        // removing a key that is not in the tree does nothing
+        tree.remove(new LongDataBox(1000));
+        assertEquals(sexp, tree.toSexp());
+
+        for (int i = 0; i < inserted.size(); i += 2) {
+            tree.remove(new LongDataBox(inserted.get(i)));
+        }
+        BPlusTree fromDisk = new BPlusTree(bufferManager, metadata, treeContext);
+        for (int i = 0; i < inserted.size(); ++i) {
+            Optional<RecordId> rid = fromDisk.get(new LongDataBox(inserted.get(i)));
+            if (i % 2 == 0) {
+                assertEquals(Optional.empty(), rid);
+            } else {
+                assertEquals((long) inserted.get(i), rid.get().getPageNum());
+            }
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testStringKeys() {
+        // String keys are compared by decoding them, rather than in place.
+        BPlusTree tree = getBPlusTree(Type.stringType(3), 2);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            keys.add(String.format("%03d", i));
+        }
+        Collections.shuffle(keys, new Random(42));
+        for (String key : keys) {
+            tree.put(new StringDataBox(key, 3), new RecordId(Integer.parseInt(key), (short) 0));
+        }
+        for (int i = 0; i < 100; ++i) {
+            String key = String.format("%03d", i);
+            assertEquals(Optional.of(new RecordId(i, (short) 0)), tree.get(new StringDataBox(key, 3)));
+        }
+        assertEquals(Optional.empty(), tree.get(new StringDataBox("100", 3)));
+        // scans may start from a key that is not in the tree
+        Iterator<RecordId> iter = tree.scanGreaterEqual(new StringDataBox("04a", 3));
+        assertEquals(new RecordId(50, (short) 0), iter.next());
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testScanRange() {
+        BPlusTree tree = getBPlusTree(Type.intType(), 2);
+        for (int i = 0; i < 100; ++i) {
+            tree.put(new IntDataBox(i), new RecordId(i, (short) 0));
+        }
+        // empty the leaves holding 40 through 59, which the scans must skip
+        for (int i = 40; i < 60; ++i) {
+            tree.remove(new IntDataBox(i));
+        }
+
+        List<RecordId> expected = new ArrayList<>();
+        for (int i = 30; i <= 70; ++i) {
+            if (i < 40 || i >= 60) {
+                expected.add(new RecordId(i, (short) 0));
+            }
+        }
+        assertEquals(expected, indexIteratorToList(
+                () -> tree.scanRange(new IntDataBox(30), new IntDataBox(70))));
+
+        // the upper bound is inclusive, and either bound may be missing
+        assertEquals(Arrays.asList(new RecordId(0, (short) 0), new RecordId(1, (short) 0)),
+                indexIteratorToList(() -> tree.scanRange(null, new IntDataBox(1))));
+        assertEquals(Arrays.asList(new RecordId(98, (short) 0), new RecordId(99, (short) 0)),
+                indexIteratorToList(() -> tree.scanRange(new IntDataBox(98), null)));
+        assertEquals(80, indexIteratorToList(() -> tree.scanRange(null, null)).size());
+        assertEquals(Collections.emptyList(),
+                indexIteratorToList(() -> tree.scanRange(new IntDataBox(45), new IntDataBox(55))));
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testScanKeys() {
+        BPlusTree tree = getBPlusTree(Type.intType(), 2);
+        for (int i = 0; i < 100; ++i) {
+            tree.put(new IntDataBox(2 * i), new RecordId(i, (short) 0));
+        }
+        List<DataBox> expected = new ArrayList<>();
+        for (int i = 10; i <= 40; i += 2) {
+            expected.add(new IntDataBox(i));
+        }
+        // the bounds need not be keys in the tree
+        assertEquals(expected, indexIteratorToList(
+                () -> tree.scanKeys(new IntDataBox(9), new IntDataBox(41))));
+        assertEquals(100, indexIteratorToList(() -> tree.scanKeys(null, null)).size());
+    }
+
     @Test
     @Category(SystemTests.class)
     public void testMaxOrder() {
@@ -0,0 +1,175 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
+import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import edu.berkeley.cs186.database.table.RecordId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs operations on a B+ tree from several threads at once. As in Database,
+ * every operation goes through its own BPlusTree object of the tree.
+ */
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestBPlusTreeConcurrency {
+    private BufferManager bufferManager;
+    private BPlusTreeMetadata metadata;
+    private ExecutorService executor;
+
+    @Before
+    public void beforeEach() {
+        DiskSpaceManager diskSpaceManager = new MemoryDiskSpaceManager();
+        diskSpaceManager.allocPart(0);
+        this.bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 4096, 8,
+                ClockEvictionPolicy::new);
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void afterEach() {
+        this.executor.shutdownNow();
+        this.bufferManager.close();
+    }
+
+    private void createTree(int order) {
+        this.metadata = new BPlusTreeMetadata("test", "col", Type.intType(), order,
+                0, DiskSpaceManager.INVALID_PAGE_NUM, -1);
+        new BPlusTree(bufferManager, metadata, new DummyLockContext());
+    }
+
+    // Loads the tree from metadata that may be out of date, like the metadata
+    // of another thread's transaction
+    private BPlusTree tree() {
+        BPlusTreeMetadata copy = new BPlusTreeMetadata("test", "col", Type.intType(),
+                metadata.getOrder(), 0, metadata.getRootPageNum(), metadata.getHeight());
+        return new BPlusTree(bufferManager, copy, new DummyLockContext());
+    }
+
+    private static RecordId rid(int i) {
+        return new RecordId(i, (short) (i % 100));
+    }
+
+    // Runs task(t) for t = 0, ..., numThreads - 1 at once, and waits for all of them
+    private void runThreads(int numThreads, ThreadTask task) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < numThreads; ++t) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                task.run(thread);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread) throws Exception;
+    }
+
+    // Inserts numKeys keys in random order, split between numThreads threads
+    private void insertKeys(int numKeys, int numThreads) throws Exception {
+        runThreads(numThreads, thread -> {
+            List<Integer> keys = new ArrayList<>();
+            for (int i = thread; i < numKeys; i += numThreads) {
+                keys.add(i);
+            }
+            Collections.shuffle(keys, new Random(thread));
+            for (int key : keys) {
+                tree().put(new IntDataBox(key), rid(key));
+            }
+        });
+    }
+
+    @Test
+    public void testConcurrentPuts() throws Exception {
+        // a small order, so that nodes split often
+        createTree(2);
+        insertKeys(4000, 4);
+
+        BPlusTree tree = tree();
+        Iterator<RecordId> iter = tree.scanAll();
+        for (int i = 0; i < 4000; ++i) {
+            assertEquals(rid(i), iter.next());
+        }
+        assertFalse(iter.hasNext());
+        for (int i = 0; i < 4000; ++i) {
+            assertEquals(Optional.of(rid(i)), tree.get(new IntDataBox(i)));
+        }
+    }
+
+    @Test
+    public void testReadsDuringWrites() throws Exception {
+        // even keys are in the tree throughout, odd keys are inserted and
+        // removed while the even keys are looked up and scanned
+        createTree(3);
+        for (int i = 0; i < 2000; i += 2) {
+            tree().put(new IntDataBox(i), rid(i));
+        }
+        AtomicBoolean done = new AtomicBoolean(false);
+        runThreads(4, thread -> {
+            if (thread < 2) {
+                for (int round = 0; round < 2; ++round) {
+                    for (int i = 2 * thread + 1; i < 2000; i += 4) {
+                        tree().put(new IntDataBox(i), rid(i));
+                    }
+                    for (int i = 2 * thread + 1; i < 2000; i += 4) {
+                        tree().remove(new IntDataBox(i));
+                    }
+                }
+                done.set(true);
+            } else {
+                Random random = new Random(thread);
+                while (!done.get()) {
+                    int key = 2 * random.nextInt(1000);
+                    assertEquals(Optional.of(rid(key)), tree().get(new IntDataBox(key)));
+                    Iterator<RecordId> iter = tree().scanGreaterEqual(new IntDataBox(key));
+                    assertEquals(rid(key), iter.next());
+                }
+            }
+        });
+
+        Iterator<RecordId> iter = tree().scanAll();
+        for (int i = 0; i < 2000; i += 2) {
+            assertEquals(rid(i), iter.next());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testInsertThroughput() throws Exception {
+        int order = BPlusTree.maxOrder(BufferManager.EFFECTIVE_PAGE_SIZE, Type.intType());
+        for (int numThreads : new int[] {1, 2, 4}) {
+            createTree(order);
+            long start = System.nanoTime();
+            insertKeys(200000, numThreads);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d thread(s): %,.0f inserts/sec%n", numThreads, 200000 / seconds);
+        }
+    }
+}
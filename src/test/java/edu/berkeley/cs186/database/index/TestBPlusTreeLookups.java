@@ -0,0 +1,108 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.concurrency.LockContext;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
+import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import edu.berkeley.cs186.database.table.RecordId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs random point lookups on a B+ tree of a million keys, and reports the
+ * lookups per second of BPlusTree.get, which searches the nodes on their pages,
+ * and of looking up the key through nodes loaded with fromBytes.
+ */
+@Category({Proj99Tests.class, SystemTests.class, BenchmarkTests.class})
+public class TestBPlusTreeLookups {
+    private static final int NUM_KEYS = 1000000;
+    private static final int NUM_LOOKUPS = 20000;
+
+    private BufferManager bufferManager;
+    private LockContext treeContext;
+    private BPlusTree tree;
+
+    @Before
+    public void beforeEach() {
+        DiskSpaceManager diskSpaceManager = new MemoryDiskSpaceManager();
+        diskSpaceManager.allocPart(0);
+        // large enough to hold the whole tree
+        this.bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 8192,
+                new ClockEvictionPolicy());
+        this.treeContext = new DummyLockContext();
+        int order = BPlusTree.maxOrder(BufferManager.EFFECTIVE_PAGE_SIZE, Type.intType());
+        BPlusTreeMetadata metadata = new BPlusTreeMetadata("test", "col", Type.intType(), order,
+                0, DiskSpaceManager.INVALID_PAGE_NUM, -1);
+        this.tree = new BPlusTree(bufferManager, metadata, treeContext);
+        tree.bulkLoad(new Iterator<Pair<DataBox, RecordId>>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < NUM_KEYS;
+            }
+
+            @Override
+            public Pair<DataBox, RecordId> next() {
+                Pair<DataBox, RecordId> next = new Pair<>(new IntDataBox(i), rid(i));
+                ++i;
+                return next;
+            }
+        }, 1.0f);
+    }
+
+    @After
+    public void afterEach() {
+        this.bufferManager.close();
+    }
+
+    private static RecordId rid(int i) {
+        return new RecordId(i, (short) (i % 100));
+    }
+
+    @Test
+    public void testLookupThroughput() {
+        BPlusTreeMetadata metadata = tree.getMetadata();
+        BPlusNode root = BPlusNode.fromBytes(metadata, bufferManager, treeContext,
+                                             metadata.getRootPageNum());
+
+        // once to warm up, then timed
+        for (int run = 0; run < 2; ++run) {
+            boolean report = run == 1;
+            lookups("loaded nodes", key -> root.get(key).getKey(key), report);
+            lookups("page search", tree::get, report);
+        }
+    }
+
+    private void lookups(String name, Function<DataBox, Optional<RecordId>> get, boolean report) {
+        Random random = new Random(186);
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_LOOKUPS; ++i) {
+            int key = random.nextInt(NUM_KEYS);
+            assertEquals(Optional.of(rid(key)), get.apply(new IntDataBox(key)));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (report) {
+            System.out.printf("%-15s %,.0f lookups/sec%n", name, NUM_LOOKUPS / seconds);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.table.RecordId;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestIndexKey {
+    private static final List<Type> TYPES = Arrays.asList(
+            Type.boolType(), Type.intType(), Type.floatType(), Type.longType(), Type.stringType(4));
+
+    private static List<DataBox> randomValues(Random random) {
+        float[] floats = {Float.NEGATIVE_INFINITY, -1e10f, -1.5f, -0.0f, 0.0f, 1e-10f, 2.5f, 1e10f};
+        String[] strings = {"", "a", "ab", "abcd", "b", "ba"};
+        return Arrays.asList(
+                new BoolDataBox(random.nextBoolean()),
+                new IntDataBox(random.nextInt(5) - 2 + (random.nextBoolean() ? 0 : Integer.MIN_VALUE)),
+                new FloatDataBox(floats[random.nextInt(floats.length)]),
+                new LongDataBox(random.nextLong() % 3),
+                new StringDataBox(strings[random.nextInt(strings.length)], 4));
+    }
+
+    // Compares values column by column, like an index on the columns would
+    private static int compare(List<DataBox> a, List<DataBox> b) {
+        for (int i = 0; i < a.size(); ++i) {
+            int c = a.get(i).compareTo(b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    @Test
+    public void testEncodingPreservesOrder() {
+        Random random = new Random(186);
+        for (int i = 0; i < 2000; ++i) {
+            List<DataBox> a = randomValues(random);
+            List<DataBox> b = randomValues(random);
+            int expected = Integer.signum(compare(a, b));
+            int actual = Integer.signum(IndexKey.encode(TYPES, a, null).compareTo(IndexKey.encode(TYPES, b, null)));
+            assertEquals(a + " vs " + b, expected, actual);
+        }
+    }
+
+    @Test
+    public void testRecordIdsBreakTies() {
+        List<Type> types = Collections.singletonList(Type.intType());
+        List<DataBox> values = Collections.singletonList(new IntDataBox(7));
+        DataBox a = IndexKey.encode(types, values, new RecordId(1, (short) 5));
+        DataBox b = IndexKey.encode(types, values, new RecordId(1, (short) 6));
+        DataBox c = IndexKey.encode(types, values, new RecordId(2, (short) 0));
+        assertTrue(a.compareTo(b) < 0);
+        assertTrue(b.compareTo(c) < 0);
+
+        // keys of equal values lie between the bounds of the values
+        Type keySchema = IndexKey.keySchema(types, false);
+        assertTrue(IndexKey.lowerBound(keySchema, types, values).compareTo(a) <= 0);
+        assertTrue(IndexKey.upperBound(keySchema, types, values).compareTo(c) >= 0);
+        List<DataBox> next = Collections.singletonList(new IntDataBox(8));
+        assertTrue(IndexKey.encode(types, next, new RecordId(0, (short) 0))
+                .compareTo(IndexKey.upperBound(keySchema, types, values)) > 0);
+    }
+
+    @Test
+    public void testPrefixBounds() {
+        Type keySchema = IndexKey.keySchema(TYPES, true);
+        List<DataBox> prefix = Arrays.asList(new BoolDataBox(true), new IntDataBox(3));
+        DataBox low = IndexKey.lowerBound(keySchema, TYPES, prefix);
+        DataBox high = IndexKey.upperBound(keySchema, TYPES, prefix);
+        Random random = new Random(42);
+        for (int i = 0; i < 200; ++i) {
+            List<DataBox> values = new ArrayList<>(randomValues(random));
+            values.set(0, new BoolDataBox(true));
+            values.set(1, new IntDataBox(random.nextInt(3) + 2));
+            DataBox key = IndexKey.encode(TYPES, values, null);
+            boolean inRange = low.compareTo(key) <= 0 && key.compareTo(high) <= 0;
+            assertEquals(values.get(1).getInt() == 3, inRange);
+        }
+    }
+
+    @Test
+    public void testDecode() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100; ++i) {
+            List<DataBox> values = randomValues(random);
+            DataBox key = IndexKey.encode(TYPES, values, new RecordId(i, (short) i));
+            assertEquals(values, IndexKey.decode(TYPES, key));
+        }
+    }
+
+    @Test
+    public void testUniquenessFromKeySchema() {
+        // _metadata.indices only records the key type of an index, from which
+        // whether its keys are encoded and whether it is unique are inferred
+        List<Type> one = Collections.singletonList(Type.intType());
+        List<Type> two = Arrays.asList(Type.intType(), Type.stringType(4));
+        BPlusTreeMetadata typed = new BPlusTreeMetadata("t", "a", Type.intType(), 2, 1, -1, -1);
+        assertFalse(IndexKey.isEncoded(typed, one));
+        assertTrue(IndexKey.isUnique(typed, one));
+
+        BPlusTreeMetadata nonUnique = new BPlusTreeMetadata("t", "a", IndexKey.keySchema(one, false), 2, 1, -1, -1);
+        assertTrue(IndexKey.isEncoded(nonUnique, one));
+        assertFalse(IndexKey.isUnique(nonUnique, one));
+
+        BPlusTreeMetadata composite = new BPlusTreeMetadata("t", "a,b", IndexKey.keySchema(two, true), 2, 1, -1, -1);
+        assertTrue(IndexKey.isEncoded(composite, two));
+        assertTrue(IndexKey.isUnique(composite, two));
+
+        composite = new BPlusTreeMetadata("t", "a,b", IndexKey.keySchema(two, false), 2, 1, -1, -1);
+        assertTrue(IndexKey.isEncoded(composite, two));
+        assertFalse(IndexKey.isUnique(composite, two));
+
+        // indices on byte array columns are unique with typed keys
+        List<Type> bytes = Collections.singletonList(Type.byteArrayType(18));
+        typed = new BPlusTreeMetadata("t", "a", Type.byteArrayType(18), 2, 1, -1, -1);
+        assertFalse(IndexKey.isEncoded(typed, bytes));
+        assertTrue(IndexKey.isUnique(typed, bytes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testByteArrayColumns() {
+        IndexKey.keySchema(Collections.singletonList(Type.byteArrayType(4)), true);
+    }
+}
@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.io;
 
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
 import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.SystemTests;
 import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
@@ -11,7 +12,11 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -32,6 +37,10 @@ public class TestDiskSpaceManager {
         return new DiskSpaceManagerImpl(managerRoot.toString(), new DummyRecoveryManager());
     }
 
+    private DiskSpaceManager getDiskSpaceManager(DiskSpaceManagerImpl.IOMode ioMode) {
+        return new DiskSpaceManagerImpl(managerRoot.toString(), new DummyRecoveryManager(), ioMode);
+    }
+
     @Test
     public void testCreateDiskSpaceManager() {
         diskSpaceManager = getDiskSpaceManager();
@@ -298,5 +307,134 @@ public class TestDiskSpaceManager {
         diskSpaceManager.freePart(partNum2);
         diskSpaceManager.close();
     }
-}
 
+    @Test
+    public void testReadWriteIOModes() {
+        for (DiskSpaceManagerImpl.IOMode ioMode : DiskSpaceManagerImpl.IOMode.values()) {
+            diskSpaceManager = getDiskSpaceManager(ioMode);
+            int partNum = diskSpaceManager.allocPart();
+            long pageNum1 = diskSpaceManager.allocPage(partNum);
+
+            byte[] buf1 = new byte[DiskSpaceManager.PAGE_SIZE];
+            byte[] buf2 = new byte[DiskSpaceManager.PAGE_SIZE];
+            for (int i = 0; i < buf1.length; ++i) {
+                buf1[i] = (byte) (Integer.valueOf(i).hashCode() & 0xFF);
+                buf2[i] = (byte) ((Integer.valueOf(i).hashCode() >> 8) & 0xFF);
+            }
+            diskSpaceManager.writePage(pageNum1, buf1);
+            byte[] readbuf = new byte[DiskSpaceManager.PAGE_SIZE];
+            diskSpaceManager.readPage(pageNum1, readbuf);
+            assertArrayEquals(ioMode.toString(), buf1, readbuf);
+
+            // pages allocated and written after earlier reads must be visible
+            long pageNum2 = diskSpaceManager.allocPage(partNum);
+            diskSpaceManager.writePage(pageNum2, buf2);
+            diskSpaceManager.readPage(pageNum2, readbuf);
+            assertArrayEquals(ioMode.toString(), buf2, readbuf);
+
+            // as must overwrites of pages that were already read
+            diskSpaceManager.writePage(pageNum1, buf2);
+            diskSpaceManager.readPage(pageNum1, readbuf);
+            assertArrayEquals(ioMode.toString(), buf2, readbuf);
+
+            try {
+                diskSpaceManager.readPage(pageNum2 + 1, readbuf);
+                fail(ioMode + ": read of unallocated page should fail");
+            } catch (PageException e) {
+                /* do nothing */
+            }
+
+            diskSpaceManager.freePart(partNum);
+            diskSpaceManager.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws InterruptedException {
+        for (DiskSpaceManagerImpl.IOMode ioMode : DiskSpaceManagerImpl.IOMode.values()) {
+            diskSpaceManager = getDiskSpaceManager(ioMode);
+            int partNum = diskSpaceManager.allocPart();
+            long[] pageNums = writeNumberedPages(partNum, 64);
+            readConcurrently(pageNums, 8, 500);
+            diskSpaceManager.freePart(partNum);
+            diskSpaceManager.close();
+        }
+    }
+
+    /**
+     * Measures page reads per second with several threads reading random pages of
+     * the same partition, under each I/O mode. Results are printed rather than
+     * asserted on, since they depend on the machine.
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testConcurrentReadBenchmark() throws InterruptedException {
+        int numPages = 256;
+        int readsPerThread = 5000;
+        for (DiskSpaceManagerImpl.IOMode ioMode : DiskSpaceManagerImpl.IOMode.values()) {
+            diskSpaceManager = getDiskSpaceManager(ioMode);
+            int partNum = diskSpaceManager.allocPart();
+            long[] pageNums = writeNumberedPages(partNum, numPages);
+            for (int numThreads : new int[] {1, 4, 8}) {
+                long elapsed = readConcurrently(pageNums, numThreads, readsPerThread);
+                System.out.printf("%-10s reads, %d thread(s): %,.0f reads/sec%n", ioMode, numThreads,
+                        (double) numThreads * readsPerThread * 1e9 / elapsed);
+            }
+            diskSpaceManager.freePart(partNum);
+            diskSpaceManager.close();
+        }
+    }
+
+    /**
+     * Allocates numPages pages in the partition, and writes the index of each
+     * page to its first byte.
+     */
+    private long[] writeNumberedPages(int partNum, int numPages) {
+        long[] pageNums = new long[numPages];
+        byte[] contents = new byte[DiskSpaceManager.PAGE_SIZE];
+        for (int i = 0; i < numPages; ++i) {
+            pageNums[i] = diskSpaceManager.allocPage(partNum);
+            contents[0] = (byte) i;
+            diskSpaceManager.writePage(pageNums[i], contents);
+        }
+        return pageNums;
+    }
+
+    /**
+     * Reads random pages written by writeNumberedPages from numThreads threads
+     * at once, and checks the contents of every page read.
+     * @return time taken by the reads, in nanoseconds
+     */
+    private long readConcurrently(long[] pageNums, int numThreads, int readsPerThread)
+            throws InterruptedException {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; ++t) {
+            Random random = new Random(t);
+            threads.add(new Thread(() -> {
+                byte[] buf = new byte[DiskSpaceManager.PAGE_SIZE];
+                try {
+                    for (int i = 0; i < readsPerThread; ++i) {
+                        int index = random.nextInt(pageNums.length);
+                        diskSpaceManager.readPage(pageNums[index], buf);
+                        if (buf[0] != (byte) index) {
+                            throw new AssertionError("read wrong contents for page " + pageNums[index]);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertNull(error.get());
+        return elapsed;
+    }
+}
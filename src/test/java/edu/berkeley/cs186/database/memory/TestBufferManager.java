@@ -320,6 +320,100 @@ public class TestBufferManager {
         assertTrue(frame7.isValid());
     }
 
+    @Test
+    public void testPrefetch() throws InterruptedException {
+        int partNum = diskSpaceManager.allocPart(1);
+        long pageNum1 = diskSpaceManager.allocPage(partNum);
+        long pageNum2 = diskSpaceManager.allocPage(partNum);
+
+        // read-ahead is disabled by default
+        bufferManager.prefetch(pageNum1);
+        assertEquals(0, bufferManager.getNumIOs());
+
+        bufferManager.setReadAhead(1);
+        bufferManager.prefetch(pageNum1);
+        bufferManager.prefetch(DiskSpaceManager.getVirtualPageNum(partNum, 10)); // not allocated
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bufferManager.getNumPrefetchIOs() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, bufferManager.getNumPrefetchIOs());
+
+        // fetching the prefetched page is a hit
+        bufferManager.fetchPageFrame(pageNum1).unpin();
+        bufferManager.fetchPageFrame(pageNum2).unpin();
+        assertEquals(2, bufferManager.getNumIOs());
+        assertEquals(1, bufferManager.getNumDemandIOs());
+    }
+
+    @Test
+    public void testPageCleaner() throws InterruptedException {
+        int partNum = diskSpaceManager.allocPart(1);
+
+        byte[] expected = new byte[] { (byte) 0xDE, (byte) 0xAD, (byte) 0xBE, (byte) 0xEF };
+        byte[] actual = new byte[DiskSpaceManager.PAGE_SIZE];
+
+        BufferFrame frame1 = bufferManager.fetchNewPageFrame(partNum);
+        BufferFrame frame2 = bufferManager.fetchNewPageFrame(partNum);
+        BufferFrame frame3 = bufferManager.fetchNewPageFrame(partNum);
+        frame1.writeBytes((short) 67, (short) 4, expected);
+        frame2.writeBytes((short) 67, (short) 4, expected);
+        frame3.writeBytes((short) 67, (short) 4, expected);
+        frame1.unpin();
+        frame2.unpin();
+
+        // 3 of 5 frames are dirty, clean down to 1 dirty frame; frame3 is pinned so it must stay dirty
+        bufferManager.startPageCleaner(0.4, 0.2, 1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bufferManager.getNumBackgroundWrites() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        bufferManager.stopPageCleaner();
+        frame3.unpin();
+
+        assertEquals(2, bufferManager.getNumBackgroundWrites());
+        assertEquals(0, bufferManager.getNumForegroundWrites());
+        diskSpaceManager.readPage(frame1.getPageNum(), actual);
+        assertArrayEquals(expected, Arrays.copyOfRange(actual, 67 + BufferManager.RESERVED_SPACE,
+                          71 + BufferManager.RESERVED_SPACE));
+        diskSpaceManager.readPage(frame3.getPageNum(), actual);
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(actual, 67 + BufferManager.RESERVED_SPACE,
+                          71 + BufferManager.RESERVED_SPACE));
+
+        // cleaned pages are not written again on eviction
+        bufferManager.evictAll();
+        assertEquals(1, bufferManager.getNumForegroundWrites());
+    }
+
+    /**
+     * Hinting that a page is only used once must not take the stripe lock
+     * while the page is pinned: here another thread holds the stripe lock to
+     * evict the page, and waits for the page to be unpinned.
+     */
+    @Test
+    public void testUseOnceWhileEvicting() throws InterruptedException {
+        bufferManager.close();
+        bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 5,
+                                          new TwoQueueEvictionPolicy());
+        int partNum = diskSpaceManager.allocPart(1);
+        BufferFrame frame = bufferManager.fetchNewPageFrame(partNum);
+        long pageNum = frame.getPageNum();
+
+        Thread evictor = new Thread(() -> bufferManager.evict(pageNum));
+        evictor.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (evictor.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, evictor.getState());
+
+        bufferManager.fetchPage(new DummyLockContext(), pageNum, true).unpin();
+        frame.unpin();
+        evictor.join(10000);
+        assertFalse(evictor.isAlive());
+        assertFalse(frame.isValid());
+    }
+
     @Test(expected = PageException.class)
     public void testMissingPart() {
         bufferManager.fetchPageFrame(DiskSpaceManager.getVirtualPageNum(0, 0));
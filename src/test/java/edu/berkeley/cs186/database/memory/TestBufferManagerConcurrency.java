@@ -0,0 +1,269 @@
+package edu.berkeley.cs186.database.memory;
+
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.common.ByteBuffer;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
+import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded tests for the buffer manager. The benchmarks, which compare a
+ * single-stripe buffer pool against a striped one and scans with and without
+ * read-ahead, are in the BenchmarkTests category and don't run by default.
+ */
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestBufferManagerConcurrency {
+    private static final int NUM_PAGES = 512;
+
+    private DiskSpaceManager diskSpaceManager;
+    private long[] pageNums;
+
+    @Before
+    public void beforeEach() {
+        diskSpaceManager = new MemoryDiskSpaceManager();
+        int partNum = diskSpaceManager.allocPart(1);
+        pageNums = new long[NUM_PAGES];
+        byte[] contents = new byte[DiskSpaceManager.PAGE_SIZE];
+        for (int i = 0; i < NUM_PAGES; ++i) {
+            pageNums[i] = diskSpaceManager.allocPage(partNum);
+            // every page stores its own page number right after the reserved space
+            ByteBuffer.wrap(contents).putLong(BufferManager.RESERVED_SPACE, pageNums[i]);
+            diskSpaceManager.writePage(pageNums[i], contents);
+        }
+    }
+
+    @After
+    public void afterEach() {
+        diskSpaceManager.close();
+    }
+
+    @Test
+    public void testStripeCount() {
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(),
+                5, 8, ClockEvictionPolicy::new);
+        assertEquals(5, bufferManager.getNumStripes());
+        bufferManager.close();
+    }
+
+    @Test
+    public void testStripedEviction() {
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(),
+                8, 4, ClockEvictionPolicy::new);
+        byte[] buf = new byte[8];
+        for (int round = 0; round < 3; ++round) {
+            for (long pageNum : pageNums) {
+                BufferFrame frame = bufferManager.fetchPageFrame(pageNum);
+                frame.readBytes((short) 0, (short) 8, buf);
+                frame.unpin();
+                assertEquals(pageNum, ByteBuffer.wrap(buf).getLong());
+            }
+        }
+        bufferManager.evictAll();
+        bufferManager.iterPageNums((pageNum, dirty) -> fail("page " + pageNum + " still loaded"));
+        bufferManager.close();
+    }
+
+    @Test
+    public void testConcurrentFetches() throws InterruptedException {
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(),
+                64, 8, ClockEvictionPolicy::new);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        runThreads(8, 2000, bufferManager, new AtomicLong(), error);
+        assertNull(error.get());
+        bufferManager.close();
+    }
+
+    /**
+     * Measures page fetches per second for a read-only workload whose working set is
+     * twice the size of the buffer, so that threads both hit resident pages and load
+     * pages from disk. Results are printed rather than asserted on, since they depend
+     * on the machine.
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testThroughputBenchmark() throws InterruptedException {
+        int[] threadCounts = {1, 4, 8};
+        int[] stripeCounts = {1, 16};
+        for (int numStripes : stripeCounts) {
+            for (int numThreads : threadCounts) {
+                BufferManager bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(),
+                        NUM_PAGES / 2, numStripes, ClockEvictionPolicy::new);
+                AtomicLong fetches = new AtomicLong();
+                AtomicReference<Throwable> error = new AtomicReference<>();
+                long start = System.nanoTime();
+                runThreads(numThreads, 20000, bufferManager, fetches, error);
+                long elapsed = System.nanoTime() - start;
+                bufferManager.close();
+                assertNull(error.get());
+                System.out.printf("buffer pool: %2d stripe(s), %d thread(s): %,.0f fetches/sec%n",
+                        numStripes, numThreads, fetches.get() * 1e9 / elapsed);
+            }
+        }
+    }
+
+    /**
+     * Measures the time taken to sequentially scan a file through a small buffer, on a
+     * disk where each read takes a millisecond, with and without reading pages ahead.
+     */
+    @Test
+    public void testReadAhead() {
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(),
+                32, new ClockEvictionPolicy());
+        bufferManager.setReadAhead(8);
+        scan(bufferManager, NUM_PAGES);
+        bufferManager.close();
+    }
+
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testReadAheadBenchmark() {
+        DiskSpaceManager slowDisk = new SlowDiskSpaceManager(diskSpaceManager, 1);
+        int numPages = 200;
+        for (int readAhead : new int[] {0, 2, 8}) {
+            BufferManager bufferManager = new BufferManager(slowDisk, new DummyRecoveryManager(),
+                    32, new ClockEvictionPolicy());
+            bufferManager.setReadAhead(readAhead);
+            long start = System.nanoTime();
+            scan(bufferManager, numPages);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("scan of %d pages, read-ahead %d: %.1f ms (%d demand reads, %d prefetched)%n",
+                    numPages, readAhead, elapsed / 1e6, bufferManager.getNumDemandIOs(),
+                    bufferManager.getNumPrefetchIOs());
+            bufferManager.close();
+        }
+    }
+
+    /**
+     * Fetches the first numPages pages in order, prefetching as many pages
+     * ahead of the scan as the buffer manager's read-ahead, and checks the
+     * contents of each.
+     */
+    private void scan(BufferManager bufferManager, int numPages) {
+        byte[] buf = new byte[8];
+        for (int i = 0; i < numPages; ++i) {
+            for (int j = 1; j <= bufferManager.getReadAhead() && i + j < numPages; ++j) {
+                bufferManager.prefetch(pageNums[i + j]);
+            }
+            BufferFrame frame = bufferManager.fetchPageFrame(pageNums[i]);
+            frame.readBytes((short) 0, (short) 8, buf);
+            frame.unpin();
+            assertEquals(pageNums[i], ByteBuffer.wrap(buf).getLong());
+        }
+    }
+
+    private void runThreads(int numThreads, int fetchesPerThread, BufferManager bufferManager,
+                            AtomicLong fetches, AtomicReference<Throwable> error) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; ++t) {
+            Random random = new Random(t);
+            threads.add(new Thread(() -> {
+                byte[] buf = new byte[8];
+                try {
+                    for (int i = 0; i < fetchesPerThread; ++i) {
+                        long pageNum = pageNums[random.nextInt(pageNums.length)];
+                        BufferFrame frame = bufferManager.fetchPageFrame(pageNum);
+                        try {
+                            frame.readBytes((short) 0, (short) 8, buf);
+                        } finally {
+                            frame.unpin();
+                        }
+                        if (ByteBuffer.wrap(buf).getLong() != pageNum) {
+                            throw new AssertionError("read wrong contents for page " + pageNum);
+                        }
+                        fetches.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Disk space manager that delays every page read, to simulate disk latency.
+     */
+    private static class SlowDiskSpaceManager implements DiskSpaceManager {
+        private final DiskSpaceManager diskSpaceManager;
+        private final long readDelayMillis;
+
+        SlowDiskSpaceManager(DiskSpaceManager diskSpaceManager, long readDelayMillis) {
+            this.diskSpaceManager = diskSpaceManager;
+            this.readDelayMillis = readDelayMillis;
+        }
+
+        @Override
+        public void close() {
+            diskSpaceManager.close();
+        }
+
+        @Override
+        public int allocPart() {
+            return diskSpaceManager.allocPart();
+        }
+
+        @Override
+        public int allocPart(int partNum) {
+            return diskSpaceManager.allocPart(partNum);
+        }
+
+        @Override
+        public void freePart(int partNum) {
+            diskSpaceManager.freePart(partNum);
+        }
+
+        @Override
+        public long allocPage(int partNum) {
+            return diskSpaceManager.allocPage(partNum);
+        }
+
+        @Override
+        public long allocPage(long pageNum) {
+            return diskSpaceManager.allocPage(pageNum);
+        }
+
+        @Override
+        public void freePage(long page) {
+            diskSpaceManager.freePage(page);
+        }
+
+        @Override
+        public void readPage(long page, byte[] buf) {
+            try {
+                Thread.sleep(readDelayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            diskSpaceManager.readPage(page, buf);
+        }
+
+        @Override
+        public void writePage(long page, byte[] buf) {
+            diskSpaceManager.writePage(page, buf);
+        }
+
+        @Override
+        public boolean pageAllocated(long page) {
+            return diskSpaceManager.pageAllocated(page);
+        }
+    }
+}
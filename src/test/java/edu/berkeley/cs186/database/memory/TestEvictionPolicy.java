@@ -32,7 +32,7 @@ public class TestEvictionPolicy {
 
         @Override
         long getPageNum() {
-            return 0;
+            return index;
         }
 
         @Override
@@ -193,4 +193,57 @@ public class TestEvictionPolicy {
         assertEquals(frames[2], policy.evict(new BufferFrame[] {placeholderFrames[0], placeholderFrames[1], frames[2], placeholderFrames[3]}));
         policy.cleanup(frames[2]);
     }
+
+    @Test
+    public void testTwoQueuePolicy() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy();
+        policy.init(frames[0]); policy.hit(frames[0]);
+        policy.init(frames[1]); policy.hit(frames[1]);
+        policy.init(frames[2]); policy.hit(frames[2]);
+        policy.init(frames[3]); policy.hit(frames[3]);
+
+        // new pages are evicted in FIFO order, and hits right after loading don't count
+        assertEquals(frames[0], policy.evict(new BufferFrame[] {frames[0], frames[1], frames[2], frames[3]}));
+        policy.cleanup(frames[0]);
+
+        policy.init(frames[4]); policy.hit(frames[4]);
+
+        // a later hit moves page 1 to the main queue
+        policy.hit(frames[1]);
+        assertEquals(frames[2], policy.evict(new BufferFrame[] {frames[4], frames[1], frames[2], frames[3]}));
+        policy.cleanup(frames[2]);
+
+        // page 0 was evicted recently, so reloading it puts it in the main queue
+        policy.init(frames[0]); policy.hit(frames[0]);
+
+        assertEquals(frames[3], policy.evict(new BufferFrame[] {frames[4], frames[1], frames[0], frames[3]}));
+        policy.cleanup(frames[3]);
+
+        policy.init(frames[5]); policy.hit(frames[5]);
+
+        // use-once pages are evicted first
+        policy.useOnce(frames[5]);
+        assertEquals(frames[5], policy.evict(new BufferFrame[] {frames[4], frames[1], frames[0], frames[5]}));
+        policy.cleanup(frames[5]);
+
+        // the main queue is evicted from in LRU order once few new pages are left
+        assertEquals(frames[1], policy.evict(new BufferFrame[] {frames[4], frames[1], frames[0], placeholderFrames[3]}));
+        policy.hit(frames[1]);
+        assertEquals(frames[0], policy.evict(new BufferFrame[] {frames[4], frames[1], frames[0], placeholderFrames[3]}));
+
+        frames[4].pin();
+        frames[1].pin();
+        frames[0].pin();
+        boolean exceptionThrown = false;
+        try {
+            policy.evict(new BufferFrame[] {frames[4], frames[1], frames[0], placeholderFrames[3]});
+        } catch (IllegalStateException e) {
+            exceptionThrown = true;
+        }
+        assertTrue(exceptionThrown);
+
+        frames[0].unpin();
+        assertEquals(frames[0], policy.evict(new BufferFrame[] {frames[4], frames[1], frames[0], placeholderFrames[3]}));
+        policy.cleanup(frames[0]);
+    }
 }
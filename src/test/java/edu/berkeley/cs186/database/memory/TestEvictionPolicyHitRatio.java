@@ -0,0 +1,95 @@
+package edu.berkeley.cs186.database.memory;
+
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
+import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a trace of point lookups on a small set of hot pages, interleaved with
+ * full scans of a file several times the size of the buffer, and compares the hit
+ * ratio of the lookups under each eviction policy.
+ */
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestEvictionPolicyHitRatio {
+    private static final int BUFFER_SIZE = 64;
+    private static final int NUM_HOT_PAGES = 40;
+    private static final int NUM_SCAN_PAGES = 4 * BUFFER_SIZE;
+    private static final int LOOKUPS_BETWEEN_SCANS = 500;
+    private static final int NUM_SCANS = 20;
+
+    private DiskSpaceManager diskSpaceManager;
+    private long[] hotPages;
+    private long[] scanPages;
+
+    @Before
+    public void beforeEach() {
+        diskSpaceManager = new MemoryDiskSpaceManager();
+        int partNum = diskSpaceManager.allocPart(1);
+        hotPages = new long[NUM_HOT_PAGES];
+        for (int i = 0; i < NUM_HOT_PAGES; ++i) {
+            hotPages[i] = diskSpaceManager.allocPage(partNum);
+        }
+        scanPages = new long[NUM_SCAN_PAGES];
+        for (int i = 0; i < NUM_SCAN_PAGES; ++i) {
+            scanPages[i] = diskSpaceManager.allocPage(partNum);
+        }
+    }
+
+    @Test
+    public void testHitRatios() {
+        double lru = replay(LRUEvictionPolicy::new, false);
+        double clock = replay(ClockEvictionPolicy::new, false);
+        double twoQueue = replay(TwoQueueEvictionPolicy::new, false);
+        double twoQueueHinted = replay(TwoQueueEvictionPolicy::new, true);
+
+        // every scan flushes the hot pages out of an LRU buffer, but not out of a 2Q buffer
+        assertTrue(twoQueue > lru);
+        assertTrue(twoQueue > clock);
+        assertTrue(twoQueueHinted >= twoQueue);
+    }
+
+    /**
+     * Replays the trace against a buffer manager using the given policy.
+     * @return hit ratio of the point lookups
+     */
+    private double replay(Supplier<EvictionPolicy> policy, boolean hintScans) {
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(),
+                BUFFER_SIZE, 1, policy);
+        Random random = new Random(186);
+        long lookups = 0;
+        long lookupMisses = 0;
+        for (int scan = 0; scan < NUM_SCANS; ++scan) {
+            for (int i = 0; i < LOOKUPS_BETWEEN_SCANS; ++i) {
+                long numIOs = bufferManager.getNumIOs();
+                read(bufferManager, hotPages[random.nextInt(NUM_HOT_PAGES)], false);
+                lookupMisses += bufferManager.getNumIOs() - numIOs;
+                ++lookups;
+            }
+            for (long pageNum : scanPages) {
+                read(bufferManager, pageNum, hintScans);
+            }
+        }
+        bufferManager.close();
+        return 1.0 - (double) lookupMisses / lookups;
+    }
+
+    private void read(BufferManager bufferManager, long pageNum, boolean useOnce) {
+        Page page = bufferManager.fetchPage(new DummyLockContext(), pageNum, useOnce);
+        try {
+            page.getBuffer().getLong();
+        } finally {
+            page.unpin();
+        }
+    }
+}
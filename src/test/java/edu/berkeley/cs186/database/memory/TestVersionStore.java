@@ -0,0 +1,102 @@
+package edu.berkeley.cs186.database.memory;
+
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestVersionStore {
+    private VersionStore versions;
+
+    @Before
+    public void beforeEach() {
+        this.versions = new VersionStore();
+    }
+
+    private static byte[] page(int value) {
+        return new byte[] {(byte) value, (byte) value};
+    }
+
+    @Test
+    public void testSnapshotSeesCommittedWriters() {
+        // transaction 1 writes page 10 and commits before the snapshot,
+        // transaction 2 writes it after transaction 1 and is still running
+        versions.saveVersion(1L, 10L, page(0));
+        versions.commit(1L);
+        versions.saveVersion(2L, 10L, page(1));
+        long snapshot = versions.beginSnapshot();
+        // contents before transaction 2's first write
+        assertArrayEquals(page(1), versions.getVersion(10L, snapshot, 99L));
+        // saving again does not overwrite transaction 2's version
+        versions.saveVersion(2L, 10L, page(2));
+        assertArrayEquals(page(1), versions.getVersion(10L, snapshot, 99L));
+
+        versions.commit(2L);
+        assertArrayEquals(page(1), versions.getVersion(10L, snapshot, 99L));
+        long laterSnapshot = versions.beginSnapshot();
+        assertNull(versions.getVersion(10L, laterSnapshot, 99L));
+        // pages without versions read their latest contents
+        assertNull(versions.getVersion(11L, snapshot, 99L));
+
+        versions.endSnapshot(snapshot);
+        versions.endSnapshot(laterSnapshot);
+        assertEquals(0, versions.getNumVersions());
+    }
+
+    @Test
+    public void testNewPage() {
+        versions.saveNewPage(1L, 10L);
+        versions.saveVersion(1L, 10L, page(1));
+        long snapshot = versions.beginSnapshot();
+        assertEquals(0, versions.getVersion(10L, snapshot, 99L).length);
+        // a transaction sees its own changes
+        assertNull(versions.getVersion(10L, snapshot, 1L));
+        versions.commit(1L);
+        assertEquals(0, versions.getVersion(10L, snapshot, 99L).length);
+        versions.endSnapshot(snapshot);
+        assertEquals(0, versions.getNumVersions());
+    }
+
+    @Test
+    public void testAbortDropsVersions() {
+        long snapshot = versions.beginSnapshot();
+        versions.saveVersion(1L, 10L, page(0));
+        versions.commit(1L);
+        versions.saveVersion(2L, 10L, page(1));
+        versions.saveVersion(2L, 11L, page(1));
+        assertEquals(3, versions.getNumVersions());
+
+        // once rolled back, the latest contents of transaction 2's pages are
+        // the contents before its writes
+        versions.abort(2L);
+        assertEquals(1, versions.getNumVersions());
+        assertArrayEquals(page(0), versions.getVersion(10L, snapshot, 99L));
+        assertNull(versions.getVersion(11L, snapshot, 99L));
+
+        versions.endSnapshot(snapshot);
+        assertEquals(0, versions.getNumVersions());
+    }
+
+    @Test
+    public void testOldestSnapshotKeepsVersions() {
+        long oldSnapshot = versions.beginSnapshot();
+        versions.saveVersion(1L, 10L, page(0));
+        versions.commit(1L);
+        long newSnapshot = versions.beginSnapshot();
+        versions.saveVersion(2L, 10L, page(1));
+        versions.commit(2L);
+        assertArrayEquals(page(0), versions.getVersion(10L, oldSnapshot, 99L));
+        assertArrayEquals(page(1), versions.getVersion(10L, newSnapshot, 99L));
+
+        // the version only the old snapshot reads is dropped when it ends
+        versions.endSnapshot(oldSnapshot);
+        assertEquals(1, versions.getNumVersions());
+        assertArrayEquals(page(1), versions.getVersion(10L, newSnapshot, 99L));
+        versions.endSnapshot(newSnapshot);
+        assertEquals(0, versions.getNumVersions());
+    }
+}
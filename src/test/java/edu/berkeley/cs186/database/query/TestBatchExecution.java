@@ -0,0 +1,237 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.databox.BoolDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.query.join.SHJOperator;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
+import edu.berkeley.cs186.database.table.Schema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the batch-at-a-time iterators of query operators produce the
+ * same records as their row-at-a-time iterators, and benchmarks the two.
+ */
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestBatchExecution {
+    private Database db;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void beforeEach() throws Exception {
+        File testDir = tempFolder.newFolder("batchExecutionTest");
+        this.db = new Database(testDir.getAbsolutePath(), 64);
+        this.db.setWorkMem(8);
+        try (Transaction t = this.db.beginTransaction()) {
+            t.createTable(TestUtils.createSchemaWithAllTypes(), "table");
+            for (int i = 0; i < 2000; ++i) {
+                t.insert("table", new Record(i % 3 == 0, i, "" + (char) ('a' + i % 26), i / 10.0f));
+            }
+            // leave holes in the pages
+            t.delete("table", "int", PredicateOperator.LESS_THAN, new IntDataBox(100));
+            t.delete("table", r -> new BoolDataBox(r.getValue(1).getInt() % 7 == 0));
+        }
+        this.db.waitAllTransactions();
+    }
+
+    @After
+    public void afterEach() {
+        this.db.waitAllTransactions();
+        this.db.close();
+    }
+
+    private static List<Record> fromBatches(Iterator<RecordBatch> batches) {
+        List<Record> records = new ArrayList<>();
+        RecordBatch.toRecords(batches).forEachRemaining(records::add);
+        return records;
+    }
+
+    private static List<Record> fromRows(Iterator<Record> rows) {
+        List<Record> records = new ArrayList<>();
+        rows.forEachRemaining(records::add);
+        return records;
+    }
+
+    @Test
+    public void testScan() {
+        try (Transaction t = this.db.beginTransaction()) {
+            QueryOperator scan = new SequentialScanOperator(t.getTransactionContext(), "table");
+            List<Record> expected = fromRows(scan.iterator());
+            assertEquals(1900 - 1900 / 7, expected.size());
+            assertEquals(expected, fromBatches(scan.batchIterator()));
+        }
+    }
+
+    @Test
+    public void testSelect() {
+        try (Transaction t = this.db.beginTransaction()) {
+            TransactionContext transaction = t.getTransactionContext();
+            List<DataBox> values = Arrays.asList(new IntDataBox(1000), new FloatDataBox(150.5f));
+            for (PredicateOperator op : PredicateOperator.values()) {
+                for (int column = 0; column < 2; ++column) {
+                    QueryOperator scan = new SequentialScanOperator(transaction, "table");
+                    String columnName = column == 0 ? "int" : "float";
+                    QueryOperator select = new SelectOperator(scan, columnName, op, values.get(column));
+                    assertEquals(op + " on " + columnName, fromRows(select.iterator()),
+                            fromBatches(select.batchIterator()));
+                }
+            }
+            // string values and int columns compared with floats go through DataBox comparisons
+            QueryOperator select = new SelectOperator(new SequentialScanOperator(transaction, "table"),
+                    "string", PredicateOperator.GREATER_THAN_EQUALS, DataBox.fromObject("x"));
+            assertEquals(fromRows(select.iterator()), fromBatches(select.batchIterator()));
+            select = new SelectOperator(new SequentialScanOperator(transaction, "table"),
+                    "int", PredicateOperator.LESS_THAN, new FloatDataBox(500.5f));
+            assertEquals(fromRows(select.iterator()), fromBatches(select.batchIterator()));
+        }
+    }
+
+    @Test
+    public void testProject() {
+        try (Transaction t = this.db.beginTransaction()) {
+            TransactionContext transaction = t.getTransactionContext();
+            QueryOperator select = new SelectOperator(new SequentialScanOperator(transaction, "table"),
+                    "bool", PredicateOperator.EQUALS, DataBox.fromObject(true));
+            QueryOperator project = new ProjectOperator(select, Arrays.asList("float", "int"),
+                    Collections.emptyList());
+            List<Record> expected = fromRows(project.iterator());
+            assertEquals(fromBatches(project.batchIterator()), expected);
+            assertEquals(2, expected.get(0).size());
+
+            // expressions that aren't plain columns are evaluated record by record
+            project = new ProjectOperator(select, Arrays.asList("int", "int * 2"), Collections.emptyList());
+            assertEquals(fromRows(project.iterator()), fromBatches(project.batchIterator()));
+
+            // aggregates fall back to the row-at-a-time iterator
+            project = new ProjectOperator(new SequentialScanOperator(transaction, "table"),
+                    Arrays.asList("SUM(int)", "COUNT(*)"), Collections.emptyList());
+            assertEquals(fromRows(project.iterator()), fromBatches(project.batchIterator()));
+        }
+    }
+
+    @Test
+    public void testHashJoin() {
+        try (Transaction t = this.db.beginTransaction()) {
+            t.createTable(new Schema().add("id", Type.intType()).add("name", Type.stringType(4)), "other");
+            for (int i = 0; i < 600; ++i) {
+                t.insert("other", i % 300, "n" + i);
+            }
+            TransactionContext transaction = t.getTransactionContext();
+            QueryOperator join = new SHJOperator(new SequentialScanOperator(transaction, "other"),
+                    new SequentialScanOperator(transaction, "table"), "id", "int", transaction);
+            List<Record> expected = fromRows(join.iterator());
+            List<Record> actual = fromBatches(join.batchIterator());
+            // ids 100 to 299 that aren't multiples of 7, twice each
+            assertEquals(2 * 172, expected.size());
+            Comparator<Record> order = Comparator.comparing(Record::toString);
+            expected.sort(order);
+            actual.sort(order);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testQueryPlan() {
+        try (Transaction t = this.db.beginTransaction()) {
+            // a filter and projection over a scan runs a batch at a time
+            QueryPlan query = t.query("table");
+            query.select("int", PredicateOperator.GREATER_THAN, new IntDataBox(1500));
+            query.project("float", "int");
+            List<Record> actual = fromRows(query.execute());
+            assertTrue(query.getFinalOperator().isVectorized());
+
+            QueryOperator select = new SelectOperator(
+                    new SequentialScanOperator(t.getTransactionContext(), "table"),
+                    "int", PredicateOperator.GREATER_THAN, new IntDataBox(1500));
+            QueryOperator project = new ProjectOperator(select, Arrays.asList("float", "int"),
+                    Collections.emptyList());
+            assertEquals(fromRows(project.iterator()), actual);
+
+            // a sort only has a row iterator
+            query = t.query("table");
+            query.sort("float");
+            assertEquals(1900 - 1900 / 7, fromRows(query.execute()).size());
+            assertFalse(query.getFinalOperator().isVectorized());
+        }
+    }
+
+    /**
+     * Measures rows per second    /**
+     * Measures rows per second for a filter and projection over two million
+     * rows (20 scans of a 100,000 row table, since loading a larger table one
+     * insert at a time would dominate the test), with the row-at-a-time and
+     * the batch-at-a-time iterators. Results are printed rather than asserted
+     * on, since they depend on the machine.
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testFilterProjectBenchmark() {
+        int numRecords = 100_000;
+        int numScans = 20;
+        try (Transaction t = this.db.beginTransaction()) {
+            t.createTable(new Schema().add("id", Type.intType()).add("value", Type.floatType()), "big");
+            for (int i = 0; i < numRecords; ++i) {
+                t.insert("big", new Record(i, (i % 1000) / 10.0f));
+            }
+        }
+        this.db.waitAllTransactions();
+        for (int round = 0; round < 2; ++round) {
+            for (boolean batched : new boolean[] {false, true}) {
+                long start = System.nanoTime();
+                for (int scan = 0; scan < numScans; ++scan) {
+                    try (Transaction t = this.db.beginTransaction()) {
+                        TransactionContext transaction = t.getTransactionContext();
+                        QueryOperator select = new SelectOperator(new SequentialScanOperator(transaction, "big"),
+                                "value", PredicateOperator.LESS_THAN, new FloatDataBox(10.0f));
+                        QueryOperator project = new ProjectOperator(select, Collections.singletonList("id"),
+                                Collections.emptyList());
+                        long count = 0;
+                        if (batched) {
+                            Iterator<RecordBatch> batches = project.batchIterator();
+                            while (batches.hasNext()) {
+                                count += batches.next().size();
+                            }
+                        } else {
+                            Iterator<Record> records = project.iterator();
+                            while (records.hasNext()) {
+                                records.next();
+                                ++count;
+                            }
+                        }
+                        assertEquals(numRecords / 10, count);
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                // the first round warms up the JIT
+                if (round > 0) {
+                    System.out.printf("filter+project, %s: %,.0f rows/sec%n",
+                            batched ? "batch-at-a-time" : "row-at-a-time ",
+                            (double) numRecords * numScans * 1e9 / elapsed);
+                }
+            }
+        }
+    }
+}
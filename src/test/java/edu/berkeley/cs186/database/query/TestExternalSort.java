@@ -0,0 +1,207 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.query.disk.Run;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestExternalSort {
+    private Database d;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws Exception {
+        File tempDir = tempFolder.newFolder("externalSortTest");
+        d = new Database(tempDir.getAbsolutePath(), 256);
+        d.setWorkMem(3); // B = 3
+        d.waitAllTransactions();
+    }
+
+    @After
+    public void cleanup() {
+        d.waitAllTransactions();
+        d.close();
+    }
+
+    private static void checkSorted(Iterator<Record> records, int expectedCount) {
+        int count = 0;
+        int prev = Integer.MIN_VALUE;
+        while (records.hasNext()) {
+            int value = records.next().getValue(1).getInt();
+            assertTrue(prev <= value);
+            prev = value;
+            ++count;
+        }
+        assertEquals(expectedCount, count);
+    }
+
+    /**
+     * On unordered input, replacement selection should produce fewer runs
+     * than sorting B pages at a time, and sorted input should come out as a
+     * single run.
+     */
+    @Test
+    public void testReplacementSelection() {
+        try (Transaction transaction = d.beginTransaction()) {
+            TransactionContext context = transaction.getTransactionContext();
+            Schema schema = TestUtils.createSchemaWithAllTypes();
+            // 3 pages hold 1200 records
+            List<Record> records = new ArrayList<>();
+            for (int i = 0; i < 6000; i++) {
+                records.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            }
+            SortOperator s = new SortOperator(context, new TestSourceOperator(records, schema), "int");
+            assertEquals(1, s.replacementSelection(records.iterator()).size());
+
+            Collections.shuffle(records, new Random(42));
+            List<Run> runs = s.replacementSelection(records.iterator());
+            assertTrue(runs.size() < 5);
+            int count = 0;
+            for (Run run : runs) {
+                Iterator<Record> iterator = run.iterator();
+                int prev = Integer.MIN_VALUE;
+                while (iterator.hasNext()) {
+                    int value = iterator.next().getValue(1).getInt();
+                    assertTrue(prev <= value);
+                    prev = value;
+                    ++count;
+                }
+            }
+            assertEquals(6000, count);
+        }
+    }
+
+    /**
+     * Reverse ordered input gives replacement selection runs of exactly B
+     * pages, so five runs take three merge passes with B = 3. Each merge
+     * needs all B buffers, so the merges of a pass run one at a time.
+     */
+    @Test
+    public void testMultiPassSort() {
+        try (Transaction transaction = d.beginTransaction()) {
+            TransactionContext context = transaction.getTransactionContext();
+            Schema schema = TestUtils.createSchemaWithAllTypes();
+            List<Record> records = new ArrayList<>();
+            for (int i = 5999; i >= 0; i--) {
+                records.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            }
+            SortOperator s = new SortOperator(context, new TestSourceOperator(records, schema), "int");
+            checkSorted(s.iterator(), 6000);
+            assertTrue(s.str(), s.str().contains("actual runs=5, actual passes=4"));
+        }
+    }
+
+    /**
+     * With B = 12, 13 runs take two passes merging 11 runs at a time, and
+     * also two passes merging 5 runs at a time, which lets two merges of 6
+     * buffers each run at once.
+     */
+    @Test
+    public void testParallelMergeFanIn() {
+        d.setWorkMem(12);
+        try (Transaction transaction = d.beginTransaction()) {
+            TransactionContext context = transaction.getTransactionContext();
+            Schema schema = TestUtils.createSchemaWithAllTypes();
+            SortOperator s = new SortOperator(context,
+                    new TestSourceOperator(new ArrayList<>(), schema), "int");
+            assertEquals(5, s.mergeFanIn(13));
+            // a single pass can't be split without adding a pass
+            assertEquals(11, s.mergeFanIn(11));
+
+            List<Run> runs = new ArrayList<>();
+            for (int i = 0; i < 13; i++) {
+                List<Record> records = new ArrayList<>();
+                for (int j = 0; j < 100; j++) {
+                    records.add(TestUtils.createRecordWithAllTypesWithValue(13 * j + i));
+                }
+                runs.add(s.makeRun(records));
+            }
+            List<Run> merged = s.mergePass(runs, 5);
+            assertEquals(3, merged.size());
+            int count = 0;
+            for (Run run : merged) {
+                Iterator<Record> iterator = run.iterator();
+                int prev = Integer.MIN_VALUE;
+                while (iterator.hasNext()) {
+                    int value = iterator.next().getValue(1).getInt();
+                    assertTrue(prev <= value);
+                    prev = value;
+                    ++count;
+                }
+            }
+            assertEquals(1300, count);
+        }
+    }
+
+    /**
+     * With B = 12, 30 pages take one merge pass after replacement selection
+     * (2 runs), and also after sorting four chunks of 3 pages at a time (10
+     * runs). 60 pages only keep a single pass with two chunks of 6 pages at a
+     * time, and 100 pages not even then (17 runs). 10 pages are a single run
+     * of replacement selection.
+     */
+    @Test
+    public void testParallelPass0() {
+        d.setWorkMem(12);
+        try (Transaction transaction = d.beginTransaction()) {
+            TransactionContext context = transaction.getTransactionContext();
+            Schema schema = TestUtils.createSchemaWithAllTypes();
+            List<Record> records = new ArrayList<>();
+            for (int i = 0; i < 12000; i++) {
+                records.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            }
+            Collections.shuffle(records, new Random(42));
+            SortOperator s = new SortOperator(context, new TestSourceOperator(records, schema), "int");
+            assertEquals(1, s.pass0Parallelism(10));
+            assertEquals(4, s.pass0Parallelism(30));
+            assertEquals(2, s.pass0Parallelism(60));
+            assertEquals(1, s.pass0Parallelism(100));
+
+            // 30 pages in chunks of 3 pages
+            List<Run> runs = s.sortRunsInParallel(records.iterator(), 4);
+            assertEquals(10, runs.size());
+            int count = 0;
+            for (Run run : runs) {
+                Iterator<Record> iterator = run.iterator();
+                int prev = Integer.MIN_VALUE;
+                while (iterator.hasNext()) {
+                    int value = iterator.next().getValue(1).getInt();
+                    assertTrue(prev <= value);
+                    prev = value;
+                    ++count;
+                }
+            }
+            assertEquals(12000, count);
+        }
+    }
+
+    @Test
+    public void testEmptySort() {
+        try (Transaction transaction = d.beginTransaction()) {
+            TransactionContext context = transaction.getTransactionContext();
+            Schema schema = TestUtils.createSchemaWithAllTypes();
+            SortOperator s = new SortOperator(context,
+                    new TestSourceOperator(new ArrayList<>(), schema), "int");
+            assertFalse(s.iterator().hasNext());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.query.join.BNLJOperator;
+import edu.berkeley.cs186.database.query.join.HHJOperator;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestHybridHashJoin {
+    private Database d;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws Exception {
+        File tempDir = tempFolder.newFolder("hhjTest");
+        d = new Database(tempDir.getAbsolutePath(), 256);
+        d.setWorkMem(6); // B = 6
+        d.waitAllTransactions();
+    }
+
+    @After
+    public void cleanup() {
+        d.waitAllTransactions();
+        d.close();
+    }
+
+    private static Map<Record, Integer> count(Iterable<Record> records) {
+        Map<Record, Integer> counts = new HashMap<>();
+        for (Record record : records) counts.merge(record, 1, Integer::sum);
+        return counts;
+    }
+
+    /**
+     * Checks that HHJ produces the same records as BNLJ on the given inputs.
+     */
+    private void checkAgainstBNLJ(List<Record> leftRecords, Schema leftSchema,
+                                  List<Record> rightRecords, Schema rightSchema,
+                                  int expectedSize, TransactionContext transaction) {
+        HHJOperator hhj = new HHJOperator(
+                new TestSourceOperator(leftRecords, leftSchema),
+                new TestSourceOperator(rightRecords, rightSchema),
+                "int", "int", transaction);
+        BNLJOperator bnlj = new BNLJOperator(
+                new TestSourceOperator(leftRecords, leftSchema),
+                new TestSourceOperator(rightRecords, rightSchema),
+                "int", "int", transaction);
+        Map<Record, Integer> output = count(hhj);
+        int size = 0;
+        for (int n : output.values()) size += n;
+        assertEquals(expectedSize, size);
+        assertEquals(count(bnlj), output);
+    }
+
+    /**
+     * The build side fits in memory, so it should be joined in one pass.
+     */
+    @Test
+    public void testInMemory() {
+        try (Transaction transaction = d.beginTransaction()) {
+            Schema schema = TestUtils.createSchemaWithAllTypes();
+            List<Record> leftRecords = new ArrayList<>();
+            List<Record> rightRecords = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                leftRecords.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            }
+            for (int i = 5; i < 15; i++) {
+                rightRecords.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            }
+            TransactionContext context = transaction.getTransactionContext();
+            checkAgainstBNLJ(leftRecords, schema, rightRecords, schema, 5, context);
+
+            HHJOperator hhj = new HHJOperator(new TestSourceOperator(leftRecords, schema),
+                    new TestSourceOperator(rightRecords, schema), "int", "int", context);
+            // both sides are read exactly once
+            assertEquals(2, hhj.estimateIOCost());
+        }
+    }
+
+    /**
+     * Neither side fits in memory, so both sides have to be partitioned.
+     */
+    @Test
+    public void testSpill() {
+        try (Transaction transaction = d.beginTransaction()) {
+            d.setWorkMem(3); // B = 3
+            Schema leftSchema = TestUtils.createSchemaWithAllTypes();
+            Schema rightSchema = new Schema()
+                    .add("int", Type.intType())
+                    .add("string", Type.stringType(10));
+            List<Record> leftRecords = new ArrayList<>();
+            List<Record> rightRecords = new ArrayList<>();
+            for (int i = 186; i < 9300; i++) {
+                leftRecords.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            }
+            for (int i = 0; i < 1860; i++) {
+                rightRecords.add(new Record(i, "I love 186"));
+            }
+            TransactionContext context = transaction.getTransactionContext();
+            HHJOperator hhj = new HHJOperator(new TestSourceOperator(leftRecords, leftSchema),
+                    new TestSourceOperator(rightRecords, rightSchema), "int", "int", context);
+            for (Record record : hhj) {
+                assertEquals(leftSchema.size() + rightSchema.size(), record.size());
+                assertEquals(record.getValue(1), record.getValue(leftSchema.size()));
+            }
+            checkAgainstBNLJ(leftRecords, leftSchema, rightRecords, rightSchema, 1674, context);
+        }
+    }
+
+    /**
+     * Every record has the same join value, so repartitioning never shrinks
+     * the partitions. HHJ should fall back to joining a chunk at a time
+     * instead of failing like GHJ.
+     */
+    @Test
+    public void testSkew() {
+        try (Transaction transaction = d.beginTransaction()) {
+            d.setWorkMem(3); // B = 3
+            Schema schema = new Schema()
+                    .add("int", Type.intType())
+                    .add("string", Type.stringType(500));
+            List<Record> leftRecords = new ArrayList<>();
+            List<Record> rightRecords = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                leftRecords.add(new Record(7, "left" + i));
+                rightRecords.add(new Record(7, "right" + i));
+            }
+            // a few records that do partition
+            for (int i = 0; i < 40; i++) {
+                leftRecords.add(new Record(i + 100, "left"));
+                rightRecords.add(new Record(i + 100, "right"));
+            }
+            checkAgainstBNLJ(leftRecords, schema, rightRecords, schema, 100 * 100 + 40,
+                    transaction.getTransactionContext());
+        }
+    }
+
+    /**
+     * The optimizer should pick HHJ when one side fits in memory and the
+     * other is much larger than memory.
+     */
+    @Test
+    public void testOptimizerPicksHHJ() {
+        d.setWorkMem(5); // B = 5
+        try (Transaction transaction = d.beginTransaction()) {
+            Schema schema = TestUtils.createSchemaWithAllTypes();
+            transaction.createTable(schema, "small");
+            transaction.createTable(schema, "large");
+            for (int i = 0; i < 200; ++i) {
+                transaction.insert("small", new Record(false, i, "!", 0.0f));
+            }
+            for (int i = 0; i < 4000; ++i) {
+                transaction.insert("large", new Record(false, i, "!", 0.0f));
+            }
+            transaction.getTransactionContext().getTable("small").buildStatistics(10);
+            transaction.getTransactionContext().getTable("large").buildStatistics(10);
+
+            // SELECT * FROM large INNER JOIN small ON large.int = small.int
+            QueryPlan query = transaction.query("large");
+            query.join("small", "large.int", "small.int");
+            Iterator<Record> records = query.execute();
+            QueryOperator finalOperator = query.getFinalOperator();
+            assertTrue(finalOperator.toString(), finalOperator.toString().contains("HHJ"));
+            assertTrue(finalOperator.toString().contains("build right"));
+
+            int count = 0;
+            while (records.hasNext()) {
+                Record record = records.next();
+                assertEquals(record.getValue(1), record.getValue(5));
+                ++count;
+            }
+            assertEquals(200, count);
+        }
+    }
+}
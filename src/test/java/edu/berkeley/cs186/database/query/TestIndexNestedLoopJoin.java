@@ -0,0 +1,118 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.query.join.BNLJOperator;
+import edu.berkeley.cs186.database.query.join.INLJOperator;
+import edu.berkeley.cs186.database.table.Record;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestIndexNestedLoopJoin {
+    private Database db;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void beforeEach() throws Exception {
+        File testDir = tempFolder.newFolder("inljTest");
+        this.db = new Database(testDir.getAbsolutePath(), 64);
+        this.db.setWorkMem(5); // B=5
+        try (Transaction t = this.db.beginTransaction()) {
+            t.createTable(TestUtils.createSchemaWithAllTypes(), "small");
+            t.createTable(TestUtils.createSchemaWithAllTypes(), "large");
+            t.createIndex("large", "int", false);
+            for (int i = 0; i < 100; ++i) {
+                t.insert("small", new Record(false, i * 37 % 100, "s", 0.0f));
+            }
+            for (int i = 0; i < 10000; ++i) {
+                t.insert("large", new Record(i % 2 == 0, i, "l", (float) i));
+            }
+            t.getTransactionContext().getTable("small").buildStatistics(10);
+            t.getTransactionContext().getTable("large").buildStatistics(10);
+        }
+        this.db.waitAllTransactions();
+    }
+
+    @After
+    public void afterEach() {
+        this.db.waitAllTransactions();
+        this.db.close();
+    }
+
+    private static Map<Record, Integer> count(Iterable<Record> records) {
+        Map<Record, Integer> counts = new HashMap<>();
+        for (Record record : records) counts.merge(record, 1, Integer::sum);
+        return counts;
+    }
+
+    @Test
+    public void testINLJ() {
+        try (Transaction t = this.db.beginTransaction()) {
+            TransactionContext transaction = t.getTransactionContext();
+            QueryOperator inlj = new INLJOperator(new SequentialScanOperator(transaction, "small"),
+                    "large", "int", "int", transaction);
+            QueryOperator bnlj = new BNLJOperator(new SequentialScanOperator(transaction, "small"),
+                    new SequentialScanOperator(transaction, "large"), "int", "int", transaction);
+            Map<Record, Integer> output = count(inlj);
+            assertEquals(count(bnlj), output);
+            int size = 0;
+            for (int n : output.values()) size += n;
+            assertEquals(100, size);
+
+            // output stays in the order of the left records
+            List<Record> left = new ArrayList<>();
+            new SequentialScanOperator(transaction, "small").iterator().forEachRemaining(left::add);
+            Iterator<Record> records = inlj.iterator();
+            for (Record leftRecord : left) {
+                assertEquals(leftRecord.getValue(1), records.next().getValue(1));
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    /**
+     * A join of a handful of records against a large indexed table should
+     * look up the matches instead of scanning the large table.
+     */
+    @Test
+    public void testOptimizerPicksINLJ() {
+        try (Transaction t = this.db.beginTransaction()) {
+            // SELECT * FROM small INNER JOIN large ON small.int = large.int
+            // WHERE small.int < 3 AND large.bool = true
+            QueryPlan query = t.query("small");
+            query.join("large", "small.int", "large.int");
+            query.select("small.int", PredicateOperator.LESS_THAN, 3);
+            query.select("large.bool", PredicateOperator.EQUALS, true);
+            Iterator<Record> records = query.execute();
+            String plan = query.getFinalOperator().toString();
+            assertTrue(plan, plan.contains("INLJ on small.int=large.int using index on large.int"));
+            assertFalse(plan, plan.contains("Seq Scan on large"));
+
+            Set<Record> output = new HashSet<>();
+            records.forEachRemaining(output::add);
+            // of values 0, 1 and 2, only 0 and 2 have bool = true in the large table
+            assertEquals(2, output.size());
+            for (Record record : output) {
+                assertEquals(record.getValue(1), record.getValue(5));
+                assertTrue(record.getValue(4).getBool());
+            }
+        }
+    }
+}
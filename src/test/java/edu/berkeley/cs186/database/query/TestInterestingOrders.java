@@ -0,0 +1,126 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.table.Record;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestInterestingOrders {
+    private Database db;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void beforeEach() throws Exception {
+        File testDir = tempFolder.newFolder("testInterestingOrders");
+        this.db = new Database(testDir.getAbsolutePath(), 32);
+        this.db.setWorkMem(3); // B=3
+        try (Transaction t = this.db.beginTransaction()) {
+            t.createTable(TestUtils.createSchemaWithAllTypes(), "table1");
+            t.createTable(TestUtils.createSchemaWithAllTypes(), "table2");
+            // insert out of order, so that nothing is sorted by accident
+            for (int i = 0; i < 3000; ++i) {
+                int value = (i * 7) % 3000;
+                t.insert("table1", new Record(false, value, "!", 0.0f));
+                t.insert("table2", new Record(false, 2999 - value, "!", 0.0f));
+            }
+            t.getTransactionContext().getTable("table1").buildStatistics(10);
+            t.getTransactionContext().getTable("table2").buildStatistics(10);
+        }
+        this.db.waitAllTransactions();
+    }
+
+    @After
+    public void afterEach() {
+        this.db.waitAllTransactions();
+        this.db.close();
+    }
+
+    private static void checkSorted(Iterator<Record> records, int column, int expectedCount) {
+        int count = 0;
+        int prev = Integer.MIN_VALUE;
+        while (records.hasNext()) {
+            int value = records.next().getValue(column).getInt();
+            assertTrue(prev <= value);
+            prev = value;
+            ++count;
+        }
+        assertEquals(expectedCount, count);
+    }
+
+    /**
+     * Without an ORDER BY, the join isn't worth sorting the inputs for.
+     */
+    @Test
+    public void testJoinWithoutOrderBy() {
+        try (Transaction transaction = this.db.beginTransaction()) {
+            QueryPlan query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+            query.execute();
+            assertFalse(query.getFinalOperator().toString().contains("SORTMERGE"));
+        }
+    }
+
+    /**
+     * Sorting the output of the cheapest join costs more than a merge join,
+     * whose output is already in order of the join column, so the optimizer
+     * should keep the merge join as the plan for that order and use it
+     * without adding a sort on top.
+     */
+    @Test
+    public void testOrderByJoinColumn() {
+        try (Transaction transaction = this.db.beginTransaction()) {
+            QueryPlan query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+            query.sort("table1.int");
+            Iterator<Record> records = query.execute();
+            QueryOperator finalOperator = query.getFinalOperator();
+            assertTrue(finalOperator.toString(), finalOperator.toString().startsWith("SORTMERGE"));
+            checkSorted(records, 1, 3000);
+
+            // ordering by the other join column is satisfied by the same plan
+            query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+            query.sort("table2.int");
+            records = query.execute();
+            assertTrue(query.getFinalOperator().toString().startsWith("SORTMERGE"));
+            checkSorted(records, 5, 3000);
+        }
+    }
+
+    /**
+     * Projections and selections keep the order of their source.
+     */
+    @Test
+    public void testOrderByThroughProjectAndSelect() {
+        try (Transaction transaction = this.db.beginTransaction()) {
+            QueryPlan query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+            query.select("table2.int", PredicateOperator.LESS_THAN, 2000);
+            query.project("table1.int", "table2.bool");
+            query.sort("table1.int");
+            Iterator<Record> records = query.execute();
+            String plan = query.getFinalOperator().toString();
+            // no sort above the merge join
+            assertTrue(plan, plan.startsWith("Project"));
+            assertTrue(plan, plan.contains("\n\t-> SORTMERGE"));
+            checkSorted(records, 0, 2000);
+        }
+    }
+}
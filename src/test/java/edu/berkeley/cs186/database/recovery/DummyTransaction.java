@@ -8,13 +8,16 @@ import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordBatch;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
@@ -90,7 +93,7 @@ class DummyTransaction extends Transaction {
     public void dropAllTables() {}
 
     @Override
-    public void createIndex(String tableName, String columnName, boolean bulkLoad) {}
+    public void createIndex(String tableName, List<String> columnNames, boolean unique, boolean bulkLoad) {}
 
     @Override
     public void dropIndex(String tableName, String columnName) {}
@@ -177,6 +180,11 @@ class DummyTransaction extends Transaction {
             return false;
         }
 
+        @Override
+        public List<String> getIndexNames(String tableName) {
+            return Collections.emptyList();
+        }
+
         @Override
         public void updateIndexMetadata(BPlusTreeMetadata metadata) {}
 
@@ -195,11 +203,28 @@ class DummyTransaction extends Transaction {
             return null;
         }
 
+        @Override
+        public Iterator<Record> indexRangeScan(String tableName, String indexName,
+                                               List<DataBox> low, List<DataBox> high) {
+            return null;
+        }
+
+        @Override
+        public Iterator<Record> indexOnlyScan(String tableName, String indexName,
+                                              List<DataBox> low, List<DataBox> high) {
+            return null;
+        }
+
         @Override
         public BacktrackingIterator<Record> getRecordIterator(String tableName) {
             return null;
         }
 
+        @Override
+        public Iterator<RecordBatch> getRecordBatchIterator(String tableName) {
+            return null;
+        }
+
         @Override
         public boolean contains(String tableName, String columnName, DataBox key) {
             return false;
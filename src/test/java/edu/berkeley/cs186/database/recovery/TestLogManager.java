@@ -1,9 +1,12 @@
 package edu.berkeley.cs186.database.recovery;
 
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.SystemTests;
 import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 import edu.berkeley.cs186.database.concurrency.LockContext;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
 import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
 import edu.berkeley.cs186.database.memory.BufferManager;
 import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
@@ -11,19 +14,30 @@ import edu.berkeley.cs186.database.memory.Page;
 import edu.berkeley.cs186.database.recovery.records.MasterLogRecord;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.*;
 
 @Category(SystemTests.class)
 public class TestLogManager {
     private LogManager logManager;
     private BufferManager bufferManager;
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Before
     public void setup() {
         DiskSpaceManager diskSpaceManager = new MemoryDiskSpaceManager();
@@ -130,4 +144,363 @@ public class TestLogManager {
         postIO = bufferManager.getNumIOs();
         assertEquals(0, postIO - prevIO);
     }
+
+    /**
+     * Threads appending at the same time should each get their own LSN, and
+     * every record should be readable at its LSN and show up in a scan.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testConcurrentAppend() throws Exception {
+        int numThreads = 8;
+        int recordsPerThread = 2000;
+        long[][] LSNs = new long[numThreads][recordsPerThread];
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; ++t) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < recordsPerThread; ++i) {
+                        LSNs[thread][i] = logManager.appendToLog(new MasterLogRecord(thread * recordsPerThread + i));
+                        if (i % 500 == 0) logManager.flushToLSN(LSNs[thread][i]);
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+
+        for (int t = 0; t < numThreads; ++t) {
+            for (int i = 0; i < recordsPerThread; ++i) {
+                assertEquals(new MasterLogRecord(t * recordsPerThread + i), logManager.fetchLogRecord(LSNs[t][i]));
+            }
+        }
+        Set<LogRecord> scanned = new HashSet<>();
+        logManager.iterator().forEachRemaining(scanned::add);
+        assertEquals(numThreads * recordsPerThread, scanned.size());
+    }
+
+    /**
+     * Replaces the in-memory log with one on disk, where every page write is
+     * forced, so that flushing the log costs about what it would for real.
+     */
+    private void useDiskLog() throws Exception {
+        openDiskLog(tempFolder.newFolder("log"), LogManager.DEFAULT_LOG_PAGES);
+    }
+
+    /**
+     * Replaces the current log with the one in dir, creating it if needed.
+     */
+    private void openDiskLog(File dir, int numLogPages) {
+        logManager.close();
+        bufferManager.close();
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir.getAbsolutePath(),
+                new DummyRecoveryManager());
+        try {
+            diskSpaceManager.allocPart(0);
+        } catch (IllegalStateException e) {
+            // already created
+        }
+        bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 1024,
+                new ClockEvictionPolicy());
+        logManager = new LogManager(bufferManager, numLogPages);
+    }
+
+    /**
+     * Replaces the log with an empty in-memory one using numLogPages slots.
+     */
+    private void useSmallLog(int numLogPages) {
+        logManager.close();
+        bufferManager.close();
+        DiskSpaceManager diskSpaceManager = new MemoryDiskSpaceManager();
+        diskSpaceManager.allocPart(0);
+        bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 1024,
+                new ClockEvictionPolicy());
+        logManager = new LogManager(bufferManager, numLogPages);
+    }
+
+    /**
+     * Appends MasterLogRecords with values from start (inclusive) to end
+     * (exclusive), flushing each page and truncating the log before it once
+     * it is full.
+     *
+     * @return LSN the log was last truncated at
+     */
+    private long appendAndTruncate(int start, int end) {
+        long truncateLSN = 0L;
+        long prevLSN = -1L;
+        for (int i = start; i < end; ++i) {
+            long LSN = logManager.appendToLog(new MasterLogRecord(i));
+            assertTrue(LSN > prevLSN);
+            if (LogManager.getLSNPage(LSN) != LogManager.getLSNPage(prevLSN) && prevLSN > 0) {
+                logManager.flushToLSN(prevLSN);
+                logManager.truncate(LSN);
+                truncateLSN = LSN;
+            }
+            prevLSN = LSN;
+        }
+        return truncateLSN;
+    }
+
+    /**
+     * Truncating should free log pages, so that the log can cycle through a
+     * few slots of the log partition many times, with LSNs still increasing.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testTruncate() {
+        useSmallLog(4);
+        int recordsPerPage = DiskSpaceManager.PAGE_SIZE / 9;
+        long truncateLSN = appendAndTruncate(0, recordsPerPage * 20);
+        long truncatePage = LogManager.getLSNPage(truncateLSN);
+        assertEquals(19, truncatePage);
+
+        // only the master page and the slots are ever allocated
+        for (long pageNum = 0; pageNum <= 4; ++pageNum) {
+            assertEquals(pageNum == 0 || pageNum == 1 + (truncatePage - 1) % 4,
+                         bufferManager.pageAllocated(pageNum));
+        }
+        assertFalse(bufferManager.pageAllocated(5L));
+
+        // records on truncated pages are gone, but the master page is kept
+        assertEquals(new MasterLogRecord(0), logManager.fetchLogRecord(0L));
+        assertNull(logManager.fetchLogRecord(LogManager.makeLSN(1, 0)));
+        assertNull(logManager.fetchLogRecord(truncateLSN - 10000L));
+        assertEquals(LogManager.makeLSN(truncatePage, 0), logManager.getFirstLSN());
+
+        // scans skip from the master page to the oldest page left
+        Iterator<LogRecord> iter = logManager.iterator();
+        for (int i = 0; i < recordsPerPage; ++i) {
+            assertEquals(new MasterLogRecord(i), iter.next());
+        }
+        LogRecord record = iter.next();
+        assertEquals(truncateLSN, (long) record.getLSN());
+        assertEquals(new MasterLogRecord(truncatePage * recordsPerPage), record);
+        for (long i = truncatePage * recordsPerPage + 1; i < recordsPerPage * 20; ++i) {
+            assertEquals(new MasterLogRecord(i), iter.next());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    /**
+     * Appending to a log whose slots are all in use should fail rather than
+     * overwrite log pages that were not truncated.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testLogFull() {
+        useSmallLog(4);
+        int recordsPerPage = DiskSpaceManager.PAGE_SIZE / 9;
+        // the master page, and 3 pages in the slots: one slot is always left free
+        for (int i = 0; i < recordsPerPage * 4; ++i) {
+            logManager.appendToLog(new MasterLogRecord(i));
+        }
+        try {
+            logManager.appendToLog(new MasterLogRecord(-1));
+            fail("appended to a full log");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        logManager.flushToLSN(LogManager.maxLSN(3));
+        logManager.truncate(LogManager.makeLSN(2, 0));
+        assertTrue(logManager.appendToLog(new MasterLogRecord(-1)) >= LogManager.makeLSN(4, 0));
+    }
+
+    /**
+     * An append that finds the log full should run the log full handler,
+     * which can append to the log itself, and go on once it has truncated
+     * the log. A handler that doesn't truncate the log leaves it full.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testLogFullHandler() {
+        useSmallLog(16);
+        int recordsPerPage = DiskSpaceManager.PAGE_SIZE / 9;
+        int[] numHandled = {0};
+        logManager.setLogFullHandler(() -> {
+            ++numHandled[0];
+            long LSN = logManager.appendToLog(new MasterLogRecord(-1));
+            logManager.flushToLSN(LSN);
+            logManager.truncate(LSN);
+        });
+        long prevLSN = -1L;
+        for (int i = 0; i < recordsPerPage * 100; ++i) {
+            long LSN = logManager.appendToLog(new MasterLogRecord(i));
+            assertTrue(LSN > prevLSN);
+            prevLSN = LSN;
+        }
+        // 12 of the 15 slots are used before the handler runs
+        assertTrue(numHandled[0] >= 8);
+        assertTrue(LogManager.getLSNPage(prevLSN) >= 100);
+
+        logManager.setLogFullHandler(() -> {});
+        try {
+            for (int i = 0; i < recordsPerPage * 16; ++i) {
+                logManager.appendToLog(new MasterLogRecord(i));
+            }
+            fail("appended to a full log");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A log that was truncated and wrapped around its slots should be found
+     * again from the master record when it is reopened, including the pages
+     * before the checkpoint that were not truncated.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testTruncatedLogRestart() throws Exception {
+        File dir = tempFolder.newFolder("log");
+        openDiskLog(dir, 8);
+        int recordsPerPage = DiskSpaceManager.PAGE_SIZE / 9;
+        assertEquals(LogManager.makeLSN(27, 0), appendAndTruncate(0, recordsPerPage * 28));
+        // pages 27 to 31 are left, in slots 3 to 7
+        int numRecords = recordsPerPage * 32;
+        long checkpointLSN = -1L;
+        long lastLSN = -1L;
+        for (int i = recordsPerPage * 28; i < numRecords; ++i) {
+            lastLSN = logManager.appendToLog(new MasterLogRecord(i));
+            if (i == recordsPerPage * 29) {
+                checkpointLSN = lastLSN;
+            }
+        }
+        logManager.rewriteMasterRecord(new MasterLogRecord(checkpointLSN));
+        logManager.flushToLSN(lastLSN);
+
+        openDiskLog(dir, 8);
+        assertEquals(LogManager.makeLSN(27, 0), logManager.getFirstLSN());
+        assertEquals(LogManager.maxLSN(31), logManager.getFlushedLSN());
+        assertEquals(new MasterLogRecord(numRecords - 1), logManager.fetchLogRecord(lastLSN));
+        Iterator<LogRecord> iter = logManager.scanFrom(LogManager.makeLSN(27, 0));
+        for (int i = recordsPerPage * 27; i < numRecords; ++i) {
+            assertEquals(new MasterLogRecord(i), iter.next());
+        }
+        assertFalse(iter.hasNext());
+        assertTrue(logManager.appendToLog(new MasterLogRecord(-1)) > LogManager.maxLSN(31));
+    }
+
+    /**
+     * Runs numThreads threads that each append and flushCommit
+     * commitsPerThread records, checking that every record is durable once
+     * flushCommit returns.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    private long runCommits(int numThreads, int commitsPerThread) throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CyclicBarrier barrier = new CyclicBarrier(numThreads + 1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; ++t) {
+            threads.add(new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int i = 0; i < commitsPerThread; ++i) {
+                        long LSN = logManager.appendToLog(new MasterLogRecord(i));
+                        logManager.flushCommit(LSN);
+                        if (logManager.getFlushedLSN() < LSN) {
+                            throw new AssertionError("commit " + LSN + " not flushed");
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        barrier.await();
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertNull(error.get());
+        return elapsed;
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testGroupCommit() throws Exception {
+        useDiskLog();
+        // without group commit every commit creates and flushes its own log page
+        logManager.setGroupCommit(false);
+        runCommits(1, 1); // the first commit goes on the log tail created up front
+        long prevIO = bufferManager.getNumIOs();
+        runCommits(1, 10);
+        assertEquals(2 * 10, bufferManager.getNumIOs() - prevIO);
+
+        // concurrent commits share a flush: flushing takes the log's monitor,
+        // so holding it keeps the first committer from flushing until all of
+        // them are waiting
+        logManager.setGroupCommit(true);
+        // start a log tail, which also takes the monitor, for the commits to go on
+        logManager.appendToLog(new MasterLogRecord(-1));
+        int numThreads = 64;
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        prevIO = bufferManager.getNumIOs();
+        synchronized (logManager) {
+            for (int t = 0; t < numThreads; ++t) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        long LSN = logManager.appendToLog(new MasterLogRecord(0));
+                        logManager.flushCommit(LSN);
+                        if (logManager.getFlushedLSN() < LSN) {
+                            throw new AssertionError("commit " + LSN + " not flushed");
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (logManager.getNumCommitWaiters() < numThreads && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(numThreads, logManager.getNumCommitWaiters());
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+        // the commits are all on the log tail, which is written once
+        assertEquals(1, bufferManager.getNumIOs() - prevIO);
+    }
+
+    /**
+     * Measures commits per second and log page writes per commit with 1, 8
+     * and 64 committing threads, with and without group commit. Results are
+     * printed rather than asserted on, since they depend on the machine.
+     */
+    @Test
+    @Category({Proj99Tests.class, BenchmarkTests.class})
+    public void testGroupCommitBenchmark() throws Exception {
+        useDiskLog();
+        int commitsPerThread = 20;
+        runCommits(8, commitsPerThread); // warm up
+        for (boolean groupCommit : new boolean[] {false, true}) {
+            logManager.setGroupCommit(groupCommit);
+            for (int numThreads : new int[] {1, 8, 64}) {
+                long prevIO = bufferManager.getNumIOs();
+                long elapsed = runCommits(numThreads, commitsPerThread);
+                long numCommits = (long) numThreads * commitsPerThread;
+                System.out.printf("group commit %-5s, %2d thread(s): %,.0f commits/sec, %.2f I/Os per commit%n",
+                        groupCommit, numThreads, numCommits * 1e9 / elapsed,
+                        (double) (bufferManager.getNumIOs() - prevIO) / numCommits);
+            }
+        }
+    }
 }
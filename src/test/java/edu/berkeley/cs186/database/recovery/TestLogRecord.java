@@ -98,6 +98,35 @@ public class TestLogRecord {
                        pageString));
     }
 
+    @Test
+    public void testUpdatePageRangesSerialize() {
+        // mix of zero runs, bytes unchanged between before and after, literals,
+        // and runs longer than a single encoded run
+        byte[] longBefore = new byte[200];
+        byte[] longAfter = new byte[200];
+        for (int i = 0; i < longAfter.length; ++i) {
+            longBefore[i] = (byte) (i % 3 == 0 ? 0 : i);
+            longAfter[i] = (byte) (i < 100 ? i : 0);
+        }
+        checkSerialize(new UpdatePageRangesLogRecord(-98765L, -43210L, -12345L, new short[] {(short) 1234},
+                       new byte[][] {"asdfg".getBytes()}, new byte[][] {"zxcvb".getBytes()}));
+        checkSerialize(new UpdatePageRangesLogRecord(98765L, 43210L, 12345L, new short[] {0, 10, 2000},
+                       new byte[][] {"as\0\0fg".getBytes(), new byte[1], longBefore},
+                       new byte[][] {"zx\0\0fb".getBytes(), new byte[] {-1}, longAfter}));
+    }
+
+    @Test
+    public void testUndoUpdatePageRangesSerialize() {
+        byte[] pageString = new String(new char[BufferManager.EFFECTIVE_PAGE_SIZE]).replace('\0',
+                'a').getBytes();
+        checkSerialize(new UndoUpdatePageRangesLogRecord(-98765L, -43210L, -12345L, -57812L,
+                       new short[] {(short) 1234}, new byte[][] {"zxcvb".getBytes()}));
+        checkSerialize(new UndoUpdatePageRangesLogRecord(98765L, 43210L, 12345L, 57812L,
+                       new short[] {0, 100}, new byte[][] {new byte[100], "zx\0\0cvb".getBytes()}));
+        checkSerialize(new UndoUpdatePageRangesLogRecord(-98765L, -43210L, -12345L, -57812L,
+                       new short[] {0}, new byte[][] {pageString}));
+    }
+
     @Test
     public void testBeginCheckpointSerialize() {
         checkSerialize(new BeginCheckpointLogRecord());
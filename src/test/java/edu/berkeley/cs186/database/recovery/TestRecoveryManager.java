@@ -1,16 +1,26 @@
 package edu.berkeley.cs186.database.recovery;
 
+import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.TimeoutScaling;
 import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
 import edu.berkeley.cs186.database.categories.HiddenTests;
 import edu.berkeley.cs186.database.categories.Proj5Tests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.PublicTests;
 import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.concurrency.DummyTransactionContext;
+import edu.berkeley.cs186.database.concurrency.LoggingLockManager;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
 import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
 import edu.berkeley.cs186.database.memory.BufferManager;
 import edu.berkeley.cs186.database.memory.LRUEvictionPolicy;
+import edu.berkeley.cs186.database.memory.Page;
 import edu.berkeley.cs186.database.recovery.records.*;
+import edu.berkeley.cs186.database.table.PageDirectory;
+import edu.berkeley.cs186.database.table.Table;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -1462,6 +1472,343 @@ public class TestRecoveryManager {
         assertEquals(Collections.singletonMap(10000000002L, LSN2), dirtyPageTable);
     }
 
+    /**
+     * Tests parallel redo:
+     * 1. Logs several updates to the same bytes of each of 64 pages, round
+     *    robin over the pages, with a partition allocation in the middle,
+     *    and crashes before any update reaches the pages.
+     * 2. Runs redo with 4 threads.
+     * Checks:
+     *  - every page holds its last update, so updates to the same page were
+     *    redone in LSN order
+     *  - every pageLSN is the LSN of the page's last update
+     *  - the partition was allocated
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testParallelRedo() {
+        int numPages = 64;
+        int updatesPerPage = 4;
+        long[] lastLSNs = logCrashedUpdates(numPages, updatesPerPage, true);
+
+        recoveryManager.setRedoThreads(4);
+        recoveryManager.restartRedo();
+
+        checkRedoneUpdates(numPages, updatesPerPage, lastLSNs);
+        assertEquals(10, DiskSpaceManager.getPartNum(diskSpaceManager.allocPage(10)));
+    }
+
+    /**
+     * Measures how long the redo pass takes after a crash that lost updates
+     * to 256 pages, with one redo thread and with one per core (at least 4).
+     * Results are printed rather than asserted on, since they depend on the
+     * machine.
+     */
+    @Test
+    @Category({Proj99Tests.class, BenchmarkTests.class})
+    public void testParallelRedoBenchmark() throws IOException {
+        int numPages = 256;
+        int updatesPerPage = 8;
+        int numThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int threads : new int[] {1, numThreads}) {
+            testDir = tempFolder.newFolder("redo-" + threads).getAbsolutePath();
+            recoveryManager.close();
+            recoveryManager = loadRecoveryManager(testDir);
+            long[] lastLSNs = logCrashedUpdates(numPages, updatesPerPage, false);
+
+            recoveryManager.setRedoThreads(threads);
+            long start = System.nanoTime();
+            recoveryManager.restartRedo();
+            long elapsed = System.nanoTime() - start;
+
+            checkRedoneUpdates(numPages, updatesPerPage, lastLSNs);
+            System.out.printf("redo of %d records over %d pages, %2d thread(s): %.1f ms%n",
+                    numPages * updatesPerPage, numPages, threads, elapsed / 1e6);
+        }
+    }
+
+    /**
+     * Tests that checkpoints truncate the log:
+     * 1. T1 logs a write, then T2 logs enough writes to fill several log
+     *    pages, commits and ends. A checkpoint is taken.
+     *    Checks:
+     *     - nothing from T1's write on is truncated, since T1 is running and
+     *       its page is in the DPT
+     * 2. T1 commits and ends, and both pages are flushed. A checkpoint is taken.
+     *    Checks:
+     *     - the log is truncated up to the page of the new checkpoint
+     * 3. T3 logs a write, and the database crashes.
+     *    Checks:
+     *     - restart from the truncated log aborts T3
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testCheckpointTruncatesLog() {
+        byte[] before = new byte[] { (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
+        byte[] after = new byte[] { (byte) 0xBA, (byte) 0xAD, (byte) 0xF0, (byte) 0x0D };
+
+        // 1
+        recoveryManager.startTransaction(DummyTransaction.create(1L));
+        long firstLSN = recoveryManager.logPageWrite(1L, 10000000001L, (short) 0, before, after);
+        recoveryManager.startTransaction(DummyTransaction.create(2L));
+        for (int i = 0; i < 1000; ++i) {
+            recoveryManager.logPageWrite(2L, 10000000002L, (short) 0, before, after);
+        }
+        recoveryManager.commit(2L);
+        recoveryManager.end(2L);
+        // flushing the page T2 wrote takes it out of the DPT
+        dirtyPageTable.remove(10000000002L);
+        recoveryManager.checkpoint();
+
+        assertEquals(LogType.UPDATE_PAGE, logManager.fetchLogRecord(firstLSN).getType());
+        assertTrue(logManager.getFirstLSN() <= firstLSN);
+
+        // 2
+        recoveryManager.commit(1L);
+        recoveryManager.end(1L);
+        dirtyPageTable.remove(10000000001L);
+        recoveryManager.checkpoint();
+
+        long checkpointLSN = ((MasterLogRecord) logManager.fetchLogRecord(0L)).lastCheckpointLSN;
+        long checkpointPage = LogManager.getLSNPage(checkpointLSN);
+        assertTrue(checkpointPage > LogManager.getLSNPage(firstLSN) + 1);
+        assertEquals(LogManager.makeLSN(checkpointPage, 0), logManager.getFirstLSN());
+        assertNull(logManager.fetchLogRecord(firstLSN));
+        for (long logPage = 1; logPage < checkpointPage; ++logPage) {
+            assertFalse(diskSpaceManager.pageAllocated(logPage));
+        }
+        assertEquals(LogType.BEGIN_CHECKPOINT, logManager.fetchLogRecord(checkpointLSN).getType());
+
+        // 3
+        recoveryManager.startTransaction(DummyTransaction.create(3L));
+        long LSN = recoveryManager.logPageWrite(3L, 10000000003L, (short) 0, before, after);
+        shutdownRecoveryManager(recoveryManager);
+        recoveryManager = loadRecoveryManager(testDir);
+        recoveryManager.restart();
+
+        assertTrue(transactionTable.isEmpty());
+        Iterator<LogRecord> logs = logManager.scanFrom(LSN);
+        assertEquals(LogType.UPDATE_PAGE, logs.next().getType());
+        assertEquals(LogType.ABORT_TRANSACTION, logs.next().getType());
+        assertEquals(LogType.UNDO_UPDATE_PAGE, logs.next().getType());
+        assertEquals(LogType.END_TRANSACTION, logs.next().getType());
+    }
+
+    /**
+     * Tests that the background checkpointer keeps truncating the log while
+     * transactions run: 100 transactions each log 20 writes and commit, and
+     * their pages are flushed. Once the checkpointer has truncated the log
+     * past the first write, it is stopped.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testCheckpointer() throws InterruptedException {
+        byte[] before = new byte[] { (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
+        byte[] after = new byte[] { (byte) 0xBA, (byte) 0xAD, (byte) 0xF0, (byte) 0x0D };
+
+        recoveryManager.startCheckpointer(5);
+        long firstLSN = -1L;
+        for (long transNum = 1; transNum <= 100; ++transNum) {
+            recoveryManager.startTransaction(DummyTransaction.create(transNum));
+            for (int i = 0; i < 20; ++i) {
+                long pageNum = DiskSpaceManager.getVirtualPageNum(1, i % 10);
+                long LSN = recoveryManager.logPageWrite(transNum, pageNum, (short) 0, before, after);
+                if (firstLSN < 0) {
+                    firstLSN = LSN;
+                }
+            }
+            recoveryManager.commit(transNum);
+            recoveryManager.end(transNum);
+            dirtyPageTable.clear();
+        }
+        while (logManager.getFirstLSN() <= firstLSN) {
+            Thread.sleep(5);
+        }
+        recoveryManager.stopCheckpointer();
+
+        assertNull(logManager.fetchLogRecord(firstLSN));
+        long checkpointLSN = ((MasterLogRecord) logManager.fetchLogRecord(0L)).lastCheckpointLSN;
+        assertTrue(checkpointLSN >= logManager.getFirstLSN());
+        assertEquals(LogType.BEGIN_CHECKPOINT, logManager.fetchLogRecord(checkpointLSN).getType());
+    }
+
+    /**
+     * Tests restart with writes logged as compact page range records:
+     * 1. T1 logs a write of three ranges of a page and commits, T2 logs a
+     *    write of two ranges of another page, and the database crashes
+     *    without applying either write.
+     * 2. Restart runs.
+     *    Checks:
+     *     - T1's write is redone
+     *     - T2's write is undone with a single CLR
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testCompactPageUpdatesRestart() {
+        long pageNum1 = DiskSpaceManager.getVirtualPageNum(1, 1);
+        long pageNum2 = DiskSpaceManager.getVirtualPageNum(1, 2);
+        short[] offsets1 = new short[] { 0, 100, 2000 };
+        byte[][] befores1 = new byte[][] { new byte[4], new byte[2], new byte[100] };
+        byte[][] afters1 = new byte[][] { { 1, 2, 3, 4 }, { 0, 5 }, new byte[100] };
+        Arrays.fill(afters1[2], (byte) 7);
+        short[] offsets2 = new short[] { 8, 16 };
+        byte[][] befores2 = new byte[][] { new byte[4], new byte[4] };
+        byte[][] afters2 = new byte[][] { { 9, 9, 9, 9 }, { 0, 0, 9, 9 } };
+
+        recoveryManager.startTransaction(DummyTransaction.create(1L));
+        recoveryManager.startTransaction(DummyTransaction.create(2L));
+        long LSN1 = recoveryManager.logPageWrites(1L, pageNum1, offsets1, befores1, afters1);
+        long LSN2 = recoveryManager.logPageWrites(2L, pageNum2, offsets2, befores2, afters2);
+        recoveryManager.commit(1L);
+        assertEquals(LogType.UPDATE_PAGE_RANGES, logManager.fetchLogRecord(LSN1).getType());
+        assertEquals(LSN1, (long) dirtyPageTable.get(pageNum1));
+
+        shutdownRecoveryManager(recoveryManager);
+        recoveryManager = loadRecoveryManager(testDir);
+        recoveryManager.restart();
+
+        checkPageBytes(pageNum1, offsets1, afters1);
+        checkPageBytes(pageNum2, offsets2, befores2);
+
+        Iterator<LogRecord> logs = logManager.scanFrom(LSN2);
+        assertEquals(LogType.UPDATE_PAGE_RANGES, logs.next().getType());
+        assertEquals(LogType.COMMIT_TRANSACTION, logs.next().getType());
+        assertEquals(LogType.END_TRANSACTION, logs.next().getType());
+        assertEquals(LogType.ABORT_TRANSACTION, logs.next().getType());
+        LogRecord clr = logs.next();
+        assertEquals(LogType.UNDO_UPDATE_PAGE_RANGES, clr.getType());
+        assertEquals(Optional.of(0L), clr.getUndoNextLSN());
+        assertEquals(LogType.END_TRANSACTION, logs.next().getType());
+    }
+
+    /**
+     * Inserts rows into a table through the buffer manager, once logging every
+     * changed range of a page as its own UpdatePageLogRecord and once logging
+     * compact page range records, and checks that compact records take less
+     * than two thirds of the log space.
+     */
+    @Test
+    @Category(Proj99Tests.class)
+    public void testCompactPageUpdatesLogBytes() throws IOException {
+        int numRecords = 200;
+        long[] logBytes = new long[2];
+        for (int compact = 0; compact < 2; ++compact) {
+            testDir = tempFolder.newFolder("compact-" + compact).getAbsolutePath();
+            recoveryManager.close();
+            recoveryManager = loadRecoveryManager(testDir);
+            recoveryManager.setCompactPageUpdates(compact == 1);
+            recoveryManager.startTransaction(DummyTransaction.create(1L));
+
+            TransactionContext.setTransaction(new DummyTransactionContext(new LoggingLockManager(), 1L));
+            try {
+                Page page = bufferManager.fetchNewPage(new DummyLockContext(), 1);
+                PageDirectory pageDirectory;
+                try {
+                    pageDirectory = new PageDirectory(bufferManager, 1, page.getPageNum(), (short) 0,
+                            new DummyLockContext());
+                } finally {
+                    page.unpin();
+                }
+                Table table = new Table("table", TestUtils.createSchemaWithAllTypes(), pageDirectory,
+                        new DummyLockContext());
+                for (int i = 0; i < numRecords; ++i) {
+                    table.addRecord(TestUtils.createRecordWithAllTypesWithValue(i));
+                }
+            } finally {
+                TransactionContext.unsetTransaction();
+            }
+
+            Iterator<LogRecord> logs = logManager.scanFrom(0L);
+            while (logs.hasNext()) {
+                LogRecord record = logs.next();
+                if (record.getType() == LogType.UPDATE_PAGE || record.getType() == LogType.UPDATE_PAGE_RANGES) {
+                    logBytes[compact] += record.toBytes().length;
+                }
+            }
+        }
+        assertTrue(logBytes[1] * 3 < logBytes[0] * 2);
+    }
+
+    /**
+     * Logs updatesPerPage updates to the first 3 bytes of each of the first
+     * numPages pages of partition 1, round robin over the pages, without
+     * applying them. Then simulates a crash, reloads the recovery manager,
+     * and sets up the dirty page table as analysis would.
+     *
+     * @param allocPart whether to log the allocation of partition 10 halfway
+     * @return LSN of the last update to each page
+     */
+    private long[] logCrashedUpdates(int numPages, int updatesPerPage, boolean allocPart) {
+        for (int i = 10; i < numPages; ++i) {
+            diskSpaceManager.allocPage(DiskSpaceManager.getVirtualPageNum(1, i));
+        }
+        long[] firstLSNs = new long[numPages];
+        long[] lastLSNs = new long[numPages];
+        long prevLSN = 0L;
+        for (int u = 0; u < updatesPerPage; ++u) {
+            if (allocPart && u == updatesPerPage / 2) {
+                prevLSN = logManager.appendToLog(new AllocPartLogRecord(1L, 10, prevLSN));
+            }
+            for (int i = 0; i < numPages; ++i) {
+                byte[] before = u == 0 ? new byte[3] : updateBytes(i, u - 1);
+                prevLSN = logManager.appendToLog(new UpdatePageLogRecord(1L,
+                        DiskSpaceManager.getVirtualPageNum(1, i), prevLSN, (short) 0, before, updateBytes(i, u)));
+                if (u == 0) {
+                    firstLSNs[i] = prevLSN;
+                }
+                lastLSNs[i] = prevLSN;
+            }
+        }
+
+        shutdownRecoveryManager(recoveryManager);
+        recoveryManager = loadRecoveryManager(testDir);
+        for (int i = 0; i < numPages; ++i) {
+            dirtyPageTable.put(DiskSpaceManager.getVirtualPageNum(1, i), firstLSNs[i]);
+        }
+        return lastLSNs;
+    }
+
+    /**
+     * Checks that every page written by logCrashedUpdates holds its last
+     * update, with its pageLSN set to the LSN of that update.
+     */
+    private void checkRedoneUpdates(int numPages, int updatesPerPage, long[] lastLSNs) {
+        for (int i = 0; i < numPages; ++i) {
+            Page page = bufferManager.fetchPage(new DummyLockContext(), DiskSpaceManager.getVirtualPageNum(1, i));
+            try {
+                byte[] bytes = new byte[3];
+                page.getBuffer().get(bytes);
+                assertArrayEquals(updateBytes(i, updatesPerPage - 1), bytes);
+                assertEquals(lastLSNs[i], page.getPageLSN());
+            } finally {
+                page.unpin();
+            }
+        }
+    }
+
+    /**
+     * Checks that each range of the page starting at offsets[i] holds bytes[i].
+     */
+    private void checkPageBytes(long pageNum, short[] offsets, byte[][] bytes) {
+        Page page = bufferManager.fetchPage(new DummyLockContext(), pageNum);
+        try {
+            for (int i = 0; i < offsets.length; ++i) {
+                byte[] actual = new byte[bytes[i].length];
+                page.getBuffer().position(offsets[i]).get(actual);
+                assertArrayEquals(bytes[i], actual);
+            }
+        } finally {
+            page.unpin();
+        }
+    }
+
+    /**
+     * @return bytes written by update number u to page number i
+     */
+    private static byte[] updateBytes(int i, int u) {
+        return new byte[] { (byte) (i >> 8), (byte) i, (byte) (u + 1) };
+    }
+
     // Helpers /////////////////////////////////////////////////////////////////
 
     /**
@@ -215,6 +215,72 @@ public class TestPageDirectory {
         }
     }
 
+    @Test
+    public void testIteratorReadAhead() {
+        createPageDirectory((short) 0);
+        createPageDirectory((short) (pageDirectory.getEffectivePageSize() - 30));
+
+        int numRequests = 100;
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < numRequests; ++i) {
+            Page page = pageDirectory.getPageWithSpace((short) 13);
+            if (pages.size() == 0 || !pages.get(pages.size() - 1).equals(page)) {
+                pages.add(page);
+            }
+            page.unpin();
+        }
+
+        bufferManager.evictAll();
+        bufferManager.setReadAhead(4);
+        long numIOs = bufferManager.getNumIOs();
+
+        Iterator<Page> iter = pageDirectory.iterator();
+        for (Page page : pages) {
+            assertTrue(iter.hasNext());
+
+            Page p = iter.next();
+            p.unpin();
+            assertEquals(page, p);
+        }
+        assertFalse(iter.hasNext());
+
+        // each data page (and the header page) is read exactly once, whether by the
+        // scan itself or ahead of it
+        assertEquals(pages.size() + 1, bufferManager.getNumIOs() - numIOs);
+        assertTrue(bufferManager.getNumPrefetchIOs() <= pages.size());
+    }
+
+    @Test
+    public void testReopenWithManyHeaderPages() {
+        Page header = bufferManager.fetchNewPage(new DummyLockContext("_dummyPageDirectoryRecord"), 0);
+        long headerPageNum = header.getPageNum();
+        header.unpin();
+        createPageDirectory(headerPageNum, (short) 0);
+
+        // one data page per request, more than the first header page has entries for
+        short pageSize = (short) pageDirectory.getEffectivePageSize();
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            Page page = pageDirectory.getPageWithSpace(pageSize);
+            pages.add(page);
+            page.unpin();
+        }
+
+        // the next header page pointer must not overwrite the page directory
+        // id of the first header page
+        createPageDirectory(headerPageNum, (short) 0);
+        assertEquals(500, pageDirectory.getNumDataPages());
+        Iterator<Page> iter = pageDirectory.iterator();
+        for (Page page : pages) {
+            assertTrue(iter.hasNext());
+
+            Page p = iter.next();
+            p.unpin();
+            assertEquals(page, p);
+        }
+        assertFalse(iter.hasNext());
+    }
+
     @Test
     public void testIteratorWithDeletes() {
         createPageDirectory((short) 0);